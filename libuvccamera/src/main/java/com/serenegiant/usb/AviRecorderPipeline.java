@@ -0,0 +1,132 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Pipeline stage that writes the frames from the camera into AVI file as they are,
+ * i.e. MJPEG frames are stored as Motion-JPEG without decoding and re-encoding
+ * and YUYV/UYVY frames are stored as uncompressed video.
+ * The file is written sequentially through a large buffer so that the recording thread rarely blocks,
+ * and the buffer is flushed and the headers are updated every second of capture time,
+ * so the file is playable up to there even if the app is killed while recording.
+ * The index is built in memory while recording and appended with the final headers by #stopRecording.
+ * Every frame is passed to the next stage regardless of recording.
+ * Recording stops automatically before the file exceeds 1GB(AVI 1.0 limit).
+ */
+public class AviRecorderPipeline extends IPipeline {
+
+	public AviRecorderPipeline() {
+		this(0);
+	}
+
+	/**
+	 * @param maxBufferNum maximum number of frames queued to this stage, 0 to use default
+	 */
+	public AviRecorderPipeline(final int maxBufferNum) {
+		super(PIPELINE_TYPE_AVI_RECORDER);
+		mNativePtr = nativeCreate(maxBufferNum);
+	}
+
+	@Override
+	public int getState() {
+		return mNativePtr != 0 ? nativeGetState(mNativePtr) : PIPELINE_STATE_UNINITIALIZED;
+	}
+
+	@Override
+	public void setPipeline(final IPipeline pipeline) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(mNativePtr, pipeline);
+		}
+	}
+
+	@Override
+	public void start() {
+		if (mNativePtr != 0) {
+			nativeStart(mNativePtr);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (mNativePtr != 0) {
+			nativeStop(mNativePtr);
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	/**
+	 * start recording from the next frame.
+	 * the format and size of the file are decided by the first frame,
+	 * following frames that have different format/size are skipped
+	 * @param recordPath AVI file, overwritten if it exists
+	 * @return false if already recording or the file could not be created
+	 */
+	public boolean startRecording(final String recordPath) {
+		if (mNativePtr != 0) {
+			return nativeStartRecording(mNativePtr, recordPath) == 0;
+		}
+		return false;
+	}
+
+	/**
+	 * finish the file with the index and the frame rate measured from the capture time of frames
+	 */
+	public void stopRecording() {
+		if (mNativePtr != 0) {
+			nativeStopRecording(mNativePtr);
+		}
+	}
+
+	/**
+	 * @return false after #stopRecording, a write error or reaching the size limit
+	 */
+	public boolean isRecording() {
+		return mNativePtr != 0 && nativeIsRecording(mNativePtr);
+	}
+
+	/**
+	 * @return number of frames written in the current(or last) recording
+	 */
+	public int getFrameCount() {
+		return mNativePtr != 0 ? nativeGetFrameCount(mNativePtr) : 0;
+	}
+
+	private final native long nativeCreate(final int max_buffer_num);
+	private final native void nativeDestroy(final long id_pipeline);
+	private static final native int nativeGetState(final long id_pipeline);
+	private static final native int nativeSetPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeStart(final long id_pipeline);
+	private static final native int nativeStop(final long id_pipeline);
+	private static final native int nativeStartRecording(final long id_pipeline, final String record_path);
+	private static final native int nativeStopRecording(final long id_pipeline);
+	private static final native boolean nativeIsRecording(final long id_pipeline);
+	private static final native int nativeGetFrameCount(final long id_pipeline);
+}
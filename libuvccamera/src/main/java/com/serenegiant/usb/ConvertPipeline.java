@@ -0,0 +1,76 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Pipeline stage that converts frames into the specific pixel format and passes them to the next stage.
+ */
+public class ConvertPipeline extends IPipeline {
+
+	public ConvertPipeline(final int pixelFormat) {
+		super(PIPELINE_TYPE_CONVERT);
+		mNativePtr = nativeCreate(pixelFormat);
+	}
+
+	@Override
+	public int getState() {
+		return mNativePtr != 0 ? nativeGetState(mNativePtr) : PIPELINE_STATE_UNINITIALIZED;
+	}
+
+	@Override
+	public void setPipeline(final IPipeline pipeline) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(mNativePtr, pipeline);
+		}
+	}
+
+	@Override
+	public void start() {
+		if (mNativePtr != 0) {
+			nativeStart(mNativePtr);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (mNativePtr != 0) {
+			nativeStop(mNativePtr);
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	private final native long nativeCreate(final int pixelFormat);
+	private final native void nativeDestroy(final long id_pipeline);
+	private static final native int nativeGetState(final long id_pipeline);
+	private static final native int nativeSetPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeStart(final long id_pipeline);
+	private static final native int nativeStop(final long id_pipeline);
+}
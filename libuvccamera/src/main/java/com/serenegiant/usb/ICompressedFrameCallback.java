@@ -0,0 +1,49 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Frame callback interface that also receives the size and metadata of the frame,
+ * intended for UVCCamera#PIXEL_FORMAT_MJPEG that passes each JPEG frame from the camera without decoding
+ * so that you can store or send frames at the compression ratio of the camera.
+ * You can pass this to UVCCamera#setFrameCallback/#addFrameCallback same as IFrameCallback,
+ * and then #onFrame(ByteBuffer, int, long, long, int) is called instead of IFrameCallback#onFrame(ByteBuffer).
+ * Other pixel formats also work with this, frameBytes is the size of the converted frame then.
+ */
+public interface ICompressedFrameCallback extends IFrameCallback {
+	/**
+	 * This method is called from native library via JNI same as IFrameCallback#onFrame(ByteBuffer).
+	 * @param frame this is direct ByteBuffer from JNI layer, see IFrameCallback#onFrame(ByteBuffer).
+	 * Its position is 0 and its limit is frameBytes, the capacity is larger than that for compressed frames.
+	 * Broken frames and frames larger than the buffer are never passed.
+	 * @param frameBytes size of the frame, for UVCCamera#PIXEL_FORMAT_MJPEG this differs on each frame
+	 * @param captureTimeNs estimate of the time when the camera captured the frame in nanoseconds,
+	 * see ITimestampedFrameCallback#onFrame(ByteBuffer, long, long)
+	 * @param arrivalTimeNs the time when the last data of the frame arrived in nanoseconds
+	 * @param sequence sequence number of the frame from the camera, it starts from 0 on each preview
+	 * and gaps mean the frames were lost before this callback(dropped frames for maxFps are also gaps)
+	 */
+	public void onFrame(ByteBuffer frame, int frameBytes, long captureTimeNs, long arrivalTimeNs, int sequence);
+}
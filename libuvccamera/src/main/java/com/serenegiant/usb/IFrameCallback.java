@@ -39,6 +39,10 @@ public interface IFrameCallback {
 	 * just execute pixel format conversion. If you want to get same result as on screen, please try to
 	 * consider to get images via texture(SurfaceTexture) and read pixel buffer from it using OpenGL|ES2/3
 	 * instead of using IFrameCallback(this way is much efficient in most case than using IFrameCallback).
+	 * The ByteBuffer is one of the buffers that are reused for following frames,
+	 * so do not access it after returning from this method unless you keep it with UVCCamera#leaseFrame
+	 * and return it with UVCCamera#releaseFrame.
+	 * If you need the time when the frame was captured, use ITimestampedFrameCallback instead.
 	 * @param frame this is direct ByteBuffer from JNI layer and you should handle it's byte order and limitation.
 	 */
 	public void onFrame(ByteBuffer frame);
@@ -0,0 +1,39 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Listener interface for UVCCamera#setFrameDropListener
+ * to know when the camera drops more frames than expected, e.g. to lower the resolution or frame rate.
+ */
+public interface IFrameDropListener {
+	/**
+	 * This method is called from native library via JNI on the capture thread
+	 * when the rate of dropped frames in the interval exceeds the threshold.
+	 * You should not block this method too long, otherwise IFrameCallback is also delayed.
+	 * @param dropRate ratio of dropped frames to all frames from the camera in the interval
+	 * @param drops the number of dropped frames for each cause in the interval, indexed by UVCCamera.DROP_XXX
+	 */
+	public void onFrameDrop(float dropRate, int[] drops);
+}
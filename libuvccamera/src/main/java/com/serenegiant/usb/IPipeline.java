@@ -0,0 +1,81 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Base class of the native pipeline stages.
+ * Each stage duplicates the frames that are queued from the previous stage
+ * and handles them on its own native thread, then passes them to the next stage.
+ * Compose stages with PipelineBuilder.
+ */
+public abstract class IPipeline {
+	// same as pipeline_type_t in IPipeline.h
+	public static final int PIPELINE_TYPE_SIMPLE_BUFFERED = 0;
+	public static final int PIPELINE_TYPE_PRE_EVENT_BUFFERED = 10;
+	public static final int PIPELINE_TYPE_CALLBACK = 200;
+	public static final int PIPELINE_TYPE_CONVERT = 300;
+	public static final int PIPELINE_TYPE_PREVIEW = 400;
+	public static final int PIPELINE_TYPE_DISTRIBUTE = 600;
+	public static final int PIPELINE_TYPE_SHARED_MEMORY = 700;
+	public static final int PIPELINE_TYPE_AVI_RECORDER = 800;
+
+	// same as pipeline_state_t in IPipeline.h
+	public static final int PIPELINE_STATE_UNINITIALIZED = 0;
+	public static final int PIPELINE_STATE_RELEASING = 10;
+	public static final int PIPELINE_STATE_INITIALIZED = 20;
+	public static final int PIPELINE_STATE_STARTING = 30;
+	public static final int PIPELINE_STATE_RUNNING = 40;
+	public static final int PIPELINE_STATE_STOPPING = 50;
+
+	// these fields from here are accessed from native code and do not change name and remove
+	protected long mNativePtr;
+	protected final int mType;
+	// until here
+
+	protected IPipeline(final int type) {
+		mType = type;
+	}
+
+	/**
+	 * @return one of PIPELINE_STATE_XXX
+	 */
+	public abstract int getState();
+	/**
+	 * set the next stage that receives frames from this stage
+	 * @param pipeline null to clear
+	 */
+	public abstract void setPipeline(final IPipeline pipeline);
+	/**
+	 * start the thread of this stage
+	 */
+	public abstract void start();
+	/**
+	 * stop the thread of this stage, frames that are not handled yet are dropped
+	 */
+	public abstract void stop();
+	/**
+	 * release native resources, you can not use this stage after this
+	 */
+	public abstract void release();
+}
@@ -0,0 +1,45 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Frame callback interface that also receives the timestamps of the frame.
+ * You can pass this to UVCCamera#setFrameCallback/#addFrameCallback same as IFrameCallback,
+ * and then #onFrame(ByteBuffer, long, long) is called instead of IFrameCallback#onFrame(ByteBuffer).
+ * Both timestamps are on the same clock as System#nanoTime(CLOCK_MONOTONIC)
+ * so that you can compare them with other timestamps like audio samples.
+ */
+public interface ITimestampedFrameCallback extends IFrameCallback {
+	/**
+	 * This method is called from native library via JNI same as IFrameCallback#onFrame(ByteBuffer).
+	 * @param frame this is direct ByteBuffer from JNI layer, see IFrameCallback#onFrame(ByteBuffer)
+	 * @param captureTimeNs estimate of the time when the camera captured the frame in nanoseconds.
+	 * This is the presentation time stamp(PTS) of the camera mapped through its source clock reference(SCR)
+	 * with clock drift correction, so this is not affected by USB transfer and queueing jitter.
+	 * If the camera does not send PTS, this is same as arrivalTimeNs.
+	 * @param arrivalTimeNs the time when the last data of the frame arrived in nanoseconds
+	 */
+	public void onFrame(ByteBuffer frame, long captureTimeNs, long arrivalTimeNs);
+}
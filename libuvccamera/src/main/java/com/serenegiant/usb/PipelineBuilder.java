@@ -0,0 +1,210 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.view.Surface;
+
+/**
+ * Builder to compose native pipeline stages that receive every frame from UVCCamera
+ * in addition to the preview and IFrameCallback.
+ * Each stage runs on its own native thread so that the work is spread across cores.
+ * <pre>
+ * final PipelineBuilder.Chain chain = camera.pipelineBuilder()
+ *     .buffer()
+ *     .distribute(
+ *         camera.pipelineBuilder().convert(UVCCamera.PIXEL_FORMAT_NV21).callback(encoderCallback, UVCCamera.PIXEL_FORMAT_RAW),
+ *         camera.pipelineBuilder().preview(surface))
+ *     .build();
+ * chain.start();
+ * ...
+ * chain.release();
+ * </pre>
+ */
+public class PipelineBuilder {
+	private final UVCCamera mCamera;
+	private final List<IPipeline> mPipelines = new ArrayList<IPipeline>();
+	private IPipeline mHead, mTail;
+
+	/**
+	 * @param camera the camera that feeds frames, null if this builder is used only as a branch of #distribute
+	 */
+	public PipelineBuilder(final UVCCamera camera) {
+		mCamera = camera;
+	}
+
+	/**
+	 * append a stage that buffers frames so that the previous stage is not blocked
+	 */
+	public PipelineBuilder buffer() {
+		return append(new SimpleBufferedPipeline());
+	}
+
+	/**
+	 * append a stage that keeps the last frames in a memory-mapped ring file
+	 * and passes them to the following stages only while recording
+	 * @param pipeline keep the reference to call PreEventBufferedPipeline#startRecording
+	 */
+	public PipelineBuilder preEvent(final PreEventBufferedPipeline pipeline) {
+		return append(pipeline);
+	}
+
+	/**
+	 * append a stage that writes raw frames into Motion-JPEG AVI file while recording
+	 * and passes every frame to the following stages
+	 * @param pipeline keep the reference to call AviRecorderPipeline#startRecording
+	 */
+	public PipelineBuilder aviRecorder(final AviRecorderPipeline pipeline) {
+		return append(pipeline);
+	}
+
+	/**
+	 * append a stage that converts frames into pixelFormat for the following stages
+	 * @param pixelFormat one of UVCCamera.PIXEL_FORMAT_XXX
+	 */
+	public PipelineBuilder convert(final int pixelFormat) {
+		return append(new ConvertPipeline(pixelFormat));
+	}
+
+	/**
+	 * append a stage that passes frames to IFrameCallback
+	 * @param callback
+	 * @param pixelFormat one of UVCCamera.PIXEL_FORMAT_XXX
+	 */
+	public PipelineBuilder callback(final IFrameCallback callback, final int pixelFormat) {
+		final FrameCallbackPipeline pipeline = new FrameCallbackPipeline();
+		pipeline.setFrameCallback(callback, pixelFormat);
+		return append(pipeline);
+	}
+
+	/**
+	 * append a stage that draws frames onto the Surface as RGB565
+	 * @param surface
+	 */
+	public PipelineBuilder preview(final Surface surface) {
+		final PreviewPipeline pipeline = new PreviewPipeline();
+		pipeline.setCaptureDisplay(surface);
+		return append(pipeline);
+	}
+
+	/**
+	 * append a stage that passes frames to each branch and to the following stages,
+	 * stages of the branches are started/stopped/released with the chain of this builder
+	 * @param branches builders that are not built yet
+	 */
+	public PipelineBuilder distribute(final PipelineBuilder... branches) {
+		final DistributePipeline pipeline = new DistributePipeline();
+		append(pipeline);
+		for (final PipelineBuilder branch: branches) {
+			if ((branch != null) && (branch.mHead != null)) {
+				pipeline.addPipeline(branch.mHead);
+				mPipelines.addAll(branch.mPipelines);
+				branch.mPipelines.clear();
+				branch.mHead = branch.mTail = null;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @return the chain of the stages, call Chain#start to receive frames
+	 * @throws IllegalStateException no stage is appended
+	 */
+	public Chain build() {
+		if (mHead == null) {
+			throw new IllegalStateException("no pipeline stage");
+		}
+		final Chain result = new Chain(mCamera, mHead, mPipelines);
+		mPipelines.clear();
+		mHead = mTail = null;
+		return result;
+	}
+
+	private PipelineBuilder append(final IPipeline pipeline) {
+		if (mTail != null) {
+			mTail.setPipeline(pipeline);
+		} else {
+			mHead = pipeline;
+		}
+		mTail = pipeline;
+		mPipelines.add(pipeline);
+		return this;
+	}
+
+	/**
+	 * stages that are built by PipelineBuilder
+	 */
+	public static class Chain {
+		private final UVCCamera mCamera;
+		private final IPipeline mHead;
+		private final List<IPipeline> mPipelines;
+
+		private Chain(final UVCCamera camera, final IPipeline head, final List<IPipeline> pipelines) {
+			mCamera = camera;
+			mHead = head;
+			mPipelines = new ArrayList<IPipeline>(pipelines);
+		}
+
+		public IPipeline getHead() {
+			return mHead;
+		}
+
+		/**
+		 * start all stages from the last one and then attach the first stage to the camera
+		 */
+		public synchronized void start() {
+			for (int i = mPipelines.size() - 1; i >= 0; i--) {
+				mPipelines.get(i).start();
+			}
+			if (mCamera != null) {
+				mCamera.setPipeline(mHead);
+			}
+		}
+
+		/**
+		 * detach from the camera and then stop all stages from the first one
+		 */
+		public synchronized void stop() {
+			if (mCamera != null) {
+				mCamera.setPipeline(null);
+			}
+			for (final IPipeline pipeline: mPipelines) {
+				pipeline.stop();
+			}
+		}
+
+		/**
+		 * stop and release all stages, you can not use this chain after this
+		 */
+		public synchronized void release() {
+			stop();
+			for (final IPipeline pipeline: mPipelines) {
+				pipeline.release();
+			}
+			mPipelines.clear();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Pipeline stage that keeps the last frames(e.g. raw MJPEG) in a fixed size memory-mapped ring file
+ * so that you can record the frames before an event without running an encoder all the time.
+ * Nothing is passed to the next stage until #startRecording is called,
+ * then the frames in the pre-event window and the following live frames are written
+ * into the recording file as AVI(Motion-JPEG for MJPEG frames, see AviRecorderPipeline)
+ * and also passed to the next stage.
+ * The next stage may drop frames of the pre-event burst if its buffer is not enough.
+ */
+public class PreEventBufferedPipeline extends IPipeline {
+
+	/**
+	 * @param ringPath path of the ring file, the file is created or resized to capacityBytes
+	 * @param capacityBytes size of the frame data in the ring
+	 * @param durationMs frames older than durationMs are discarded even if the ring has room
+	 * @throws IllegalArgumentException the ring file could not be mapped
+	 */
+	public PreEventBufferedPipeline(final String ringPath, final int capacityBytes, final int durationMs) {
+		super(PIPELINE_TYPE_PRE_EVENT_BUFFERED);
+		mNativePtr = nativeCreate(ringPath, capacityBytes, durationMs);
+		if (mNativePtr == 0) {
+			throw new IllegalArgumentException("failed to map ring file:" + ringPath);
+		}
+	}
+
+	@Override
+	public int getState() {
+		return mNativePtr != 0 ? nativeGetState(mNativePtr) : PIPELINE_STATE_UNINITIALIZED;
+	}
+
+	@Override
+	public void setPipeline(final IPipeline pipeline) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(mNativePtr, pipeline);
+		}
+	}
+
+	@Override
+	public void start() {
+		if (mNativePtr != 0) {
+			nativeStart(mNativePtr);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (mNativePtr != 0) {
+			nativeStop(mNativePtr);
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	/**
+	 * start recording from the frames in the pre-event window.
+	 * if this is called while recording, only the post-event time is extended from the latest frame
+	 * and recordPath is ignored.
+	 * @param recordPath AVI file that receives the frames
+	 * @param preMs frames newer than preMs before the trigger are flushed, 0 to start from the live frame
+	 * @param postMs recording stops after postMs from the trigger, 0 to record until #stopRecording
+	 * @return true if recording started or was extended
+	 */
+	public boolean startRecording(final String recordPath, final int preMs, final int postMs) {
+		if (mNativePtr != 0) {
+			return nativeStartRecording(mNativePtr, recordPath, preMs, postMs) == 0;
+		}
+		return false;
+	}
+
+	public void stopRecording() {
+		if (mNativePtr != 0) {
+			nativeStopRecording(mNativePtr);
+		}
+	}
+
+	/**
+	 * @return false after the post-event time elapsed
+	 */
+	public boolean isRecording() {
+		return mNativePtr != 0 && nativeIsRecording(mNativePtr);
+	}
+
+	/**
+	 * @return duration of the frames that are available as pre-event history in milliseconds
+	 */
+	public int getBufferedMs() {
+		return mNativePtr != 0 ? nativeGetBufferedMs(mNativePtr) : 0;
+	}
+
+	private final native long nativeCreate(final String ring_path, final int capacity_bytes, final int duration_ms);
+	private final native void nativeDestroy(final long id_pipeline);
+	private static final native int nativeGetState(final long id_pipeline);
+	private static final native int nativeSetPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeStart(final long id_pipeline);
+	private static final native int nativeStop(final long id_pipeline);
+	private static final native int nativeStartRecording(final long id_pipeline, final String record_path, final int pre_ms, final int post_ms);
+	private static final native int nativeStopRecording(final long id_pipeline);
+	private static final native boolean nativeIsRecording(final long id_pipeline);
+	private static final native int nativeGetBufferedMs(final long id_pipeline);
+}
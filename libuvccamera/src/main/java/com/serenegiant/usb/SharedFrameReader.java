@@ -0,0 +1,195 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Reads frames that SharedMemoryPipeline in this or another process writes into shared memory.
+ * The frame data is not copied, the ByteBuffer of #getFrame refers the slot in shared memory directly,
+ * so check #releaseFrame after using it because the producer may overwrite the slot
+ * when this reader falls behind by the number of slots.
+ * Call #waitFrame/#getFrame/#releaseFrame/#release on the same thread.
+ * <pre>
+ * final SharedFrameReader reader = new SharedFrameReader(pfd);
+ * while (running) {
+ *     final ByteBuffer frame = reader.waitFrame(100);
+ *     if (reader.isClosed()) break;	// e.g. frame size changed, subscribe again
+ *     if (frame == null) continue;
+ *     // read frame, reader.getWidth(), reader.getFormat() etc.
+ *     if (!reader.releaseFrame()) {
+ *         // the frame was overwritten while reading, discard the result
+ *     }
+ * }
+ * reader.release();
+ * </pre>
+ */
+public class SharedFrameReader {
+	static {
+		UVCCamera.loadLibraries();
+	}
+
+	// index of mInfo, same order as nativeWaitFrame
+	private static final int INFO_SLOT = 0;
+	private static final int INFO_BYTES = 1;
+	private static final int INFO_WIDTH = 2;
+	private static final int INFO_HEIGHT = 3;
+	private static final int INFO_STEP = 4;
+	private static final int INFO_FORMAT = 5;
+	private static final int INFO_SEQUENCE = 6;
+	private static final int INFO_CAPTURE_NS = 7;
+
+	private long mNativePtr;
+	private volatile boolean mClosed;
+	private final long[] mInfo = new long[8];
+	private final ByteBuffer[] mSlots;
+
+	/**
+	 * @param pfd file descriptor from SharedMemoryPipeline#getFileDescriptor,
+	 * 		you can close it after this because the memory is mapped
+	 * @throws IllegalArgumentException the file descriptor is not the shared memory of SharedMemoryPipeline
+	 */
+	public SharedFrameReader(final ParcelFileDescriptor pfd) {
+		mNativePtr = nativeCreate(pfd.getFd());
+		if (mNativePtr == 0) {
+			throw new IllegalArgumentException("failed to map shared memory");
+		}
+		final int n = nativeGetSlotNum(mNativePtr);
+		mSlots = new ByteBuffer[n];
+		for (int i = 0; i < n; i++) {
+			mSlots[i] = nativeGetSlotBuffer(mNativePtr, i).asReadOnlyBuffer();
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * unmap the shared memory, you can not use ByteBuffers from this reader after this
+	 */
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	/**
+	 * wait for the next frame, skip to the newest frame if this reader fell behind
+	 * @param timeoutMs
+	 * @return ByteBuffer that refers the frame in shared memory, null if timed out, released or closed
+	 */
+	public ByteBuffer waitFrame(final int timeoutMs) {
+		if (mNativePtr != 0) {
+			final int result = nativeWaitFrame(mNativePtr, timeoutMs, mInfo);
+			if (result >= 0) {
+				return getFrame();
+			} else if (result == -2) {
+				mClosed = true;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the producer closed the shared memory, no more frames come through this reader.
+	 * 		the producer closes it when it is released or the frame size changed
+	 */
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * @return the frame that #waitFrame returned last time
+	 */
+	public ByteBuffer getFrame() {
+		final ByteBuffer result = mSlots[(int)mInfo[INFO_SLOT]];
+		result.clear();
+		result.limit((int)mInfo[INFO_BYTES]);
+		return result;
+	}
+
+	/**
+	 * @return true if the frame was not overwritten while using it
+	 */
+	public boolean releaseFrame() {
+		return (mNativePtr != 0) && nativeReleaseFrame(mNativePtr);
+	}
+
+	public int getWidth() {
+		return (int)mInfo[INFO_WIDTH];
+	}
+
+	public int getHeight() {
+		return (int)mInfo[INFO_HEIGHT];
+	}
+
+	/**
+	 * @return bytes per line, 0 for compressed frames
+	 */
+	public int getStep() {
+		return (int)mInfo[INFO_STEP];
+	}
+
+	/**
+	 * @return uvc_frame_format of the frame, e.g. MJPEG or YUYV when the producer is attached to UVCCamera directly
+	 */
+	public int getFormat() {
+		return (int)mInfo[INFO_FORMAT];
+	}
+
+	public int getSequence() {
+		return (int)mInfo[INFO_SEQUENCE];
+	}
+
+	/**
+	 * @return capture time of the frame in nanoseconds, same clock as System.nanoTime
+	 */
+	public long getCaptureTimeNs() {
+		return mInfo[INFO_CAPTURE_NS];
+	}
+
+	/**
+	 * @return number of frames that were overwritten before this reader read them
+	 */
+	public int getSkippedFrames() {
+		return mNativePtr != 0 ? nativeGetSkipped(mNativePtr) : 0;
+	}
+
+	private static final native long nativeCreate(final int fd);
+	private static final native void nativeDestroy(final long id_reader);
+	private static final native int nativeGetSlotNum(final long id_reader);
+	private static final native ByteBuffer nativeGetSlotBuffer(final long id_reader, final int slot);
+	private static final native int nativeWaitFrame(final long id_reader, final int timeout_ms, final long[] info);
+	private static final native boolean nativeReleaseFrame(final long id_reader);
+	private static final native int nativeGetSkipped(final long id_reader);
+}
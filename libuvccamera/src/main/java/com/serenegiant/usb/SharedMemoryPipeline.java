@@ -0,0 +1,105 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.io.IOException;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Pipeline stage that copies every frame into a ring of slots in shared memory(memfd or ashmem).
+ * Pass #getFileDescriptor to other processes once, then they can read frames
+ * with SharedFrameReader without copying and without binder transaction per frame.
+ * Frames are passed to the next stage as they are.
+ */
+public class SharedMemoryPipeline extends IPipeline {
+
+	/**
+	 * @param slotNum number of slots, at least 2
+	 * @param slotBytes size of each slot, larger frames are not shared
+	 * @throws IllegalArgumentException the shared memory could not be created
+	 */
+	public SharedMemoryPipeline(final int slotNum, final int slotBytes) {
+		super(PIPELINE_TYPE_SHARED_MEMORY);
+		mNativePtr = nativeCreate(slotNum, slotBytes);
+		if (mNativePtr == 0) {
+			throw new IllegalArgumentException("failed to create shared memory");
+		}
+	}
+
+	@Override
+	public int getState() {
+		return mNativePtr != 0 ? nativeGetState(mNativePtr) : PIPELINE_STATE_UNINITIALIZED;
+	}
+
+	@Override
+	public void setPipeline(final IPipeline pipeline) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(mNativePtr, pipeline);
+		}
+	}
+
+	@Override
+	public void start() {
+		if (mNativePtr != 0) {
+			nativeStart(mNativePtr);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (mNativePtr != 0) {
+			nativeStop(mNativePtr);
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	/**
+	 * @return duplicated file descriptor of the shared memory, the caller should close it
+	 * @throws IOException
+	 * @throws IllegalStateException already released
+	 */
+	public synchronized ParcelFileDescriptor getFileDescriptor() throws IOException {
+		final int fd = mNativePtr != 0 ? nativeGetFd(mNativePtr) : -1;
+		if (fd < 0) {
+			throw new IllegalStateException("already released");
+		}
+		return ParcelFileDescriptor.fromFd(fd);
+	}
+
+	private final native long nativeCreate(final int slot_num, final int slot_bytes);
+	private final native void nativeDestroy(final long id_pipeline);
+	private static final native int nativeGetState(final long id_pipeline);
+	private static final native int nativeSetPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeStart(final long id_pipeline);
+	private static final native int nativeStop(final long id_pipeline);
+	private static final native int nativeGetFd(final long id_pipeline);
+}
@@ -0,0 +1,146 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of UVCCamera#captureStill/#captureBurst, #get returns the path of the JPEG file after it is written.
+ * The result is set from the native worker thread that writes the file.
+ * Timing stats(#getCaptureTimeNs, #getWaitNs, #getEncodeNs) are valid after the file is written.
+ * #cancel only stops waiting for the result, the file may still be written.
+ */
+public final class StillCaptureFuture implements Future<String> {
+	private final String mPath;
+	private boolean mIsDone;
+	private boolean mIsCancelled;
+	private int mResult;
+	private long mCaptureTimeNs;
+	private long mWaitNs;
+	private long mEncodeNs;
+
+	/*package*/StillCaptureFuture(final String path) {
+		mPath = path;
+	}
+
+	@Override
+	public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+		if (mIsDone) {
+			return false;
+		}
+		mIsDone = mIsCancelled = true;
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mIsCancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mIsDone;
+	}
+
+	@Override
+	public synchronized String get() throws InterruptedException, ExecutionException {
+		for ( ; !mIsDone ; ) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized String get(final long timeout, final TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException {
+
+		final long end = System.nanoTime() + unit.toNanos(timeout);
+		for ( ; !mIsDone ; ) {
+			final long remaining = end - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	/**
+	 * @return capture time of the frame that was written, CLOCK_MONOTONIC(same as System#nanoTime)
+	 */
+	public synchronized long getCaptureTimeNs() {
+		return mCaptureTimeNs;
+	}
+
+	/**
+	 * @return time from when the frame was reserved until its encoding started,
+	 * this grows when the workers are busy
+	 */
+	public synchronized long getWaitNs() {
+		return mWaitNs;
+	}
+
+	/**
+	 * @return time to encode and write the file
+	 */
+	public synchronized long getEncodeNs() {
+		return mEncodeNs;
+	}
+
+	private String getResult() throws ExecutionException {
+		if (mIsCancelled) {
+			throw new CancellationException();
+		}
+		if (mResult != 0) {
+			throw new ExecutionException(new IOException("failed to capture still:" + mPath));
+		}
+		return mPath;
+	}
+
+	/**
+	 * set the result, also called from native code when the request failed without capturing
+	 * @param result 0 if the file was written
+	 * @param captureTimeNs capture time of the frame, 0 if no frame was captured
+	 * @param waitNs time from reserving the frame until encoding started
+	 * @param encodeNs time to encode and write the file
+	 */
+	/*package*/synchronized void onResult(final int result,
+		final long captureTimeNs, final long waitNs, final long encodeNs) {
+
+		if (!mIsDone) {
+			mResult = result;
+			mCaptureTimeNs = captureTimeNs;
+			mWaitNs = waitNs;
+			mEncodeNs = encodeNs;
+			mIsDone = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.serenegiant.usb.USBMonitor.UsbControlBlock;
+
+/**
+ * Chooses bandwidthFactor of UVCCamera#setPreviewSize for cameras that share a bus(root hub).
+ * Each camera gets the smallest isochronous altsetting that sustains its format/fps first,
+ * and then the rest of the bus bandwidth is shared step by step up to the altsetting
+ * that the camera asks with dwMaxPayloadTransferSize.
+ * When a camera joins or leaves the bus, the other cameras are re-balanced
+ * and OnReallocateListener is called for the cameras whose altsetting changed.
+ * <pre>
+ * final float factor = UVCBandwidthAllocator.getInstance().allocate(camera, width, height,
+ *     minFps, maxFps, UVCCamera.FRAME_FORMAT_MJPEG, listener);
+ * camera.setPreviewSize(width, height, minFps, maxFps, UVCCamera.FRAME_FORMAT_MJPEG, factor);
+ * camera.startPreview();
+ * ...
+ * camera.stopPreview();
+ * UVCBandwidthAllocator.getInstance().release(camera);
+ * </pre>
+ */
+public class UVCBandwidthAllocator {
+	private static final boolean DEBUG = false;	// TODO set false when releasing
+	private static final String TAG = UVCBandwidthAllocator.class.getSimpleName();
+
+	// periodic bandwidth that a bus can reserve for isochronous transfer, bytes per millisecond
+	public static final int FULL_SPEED_BUDGET = 1350;		// 90% of 1500 bytes/frame
+	public static final int HIGH_SPEED_BUDGET = 48000;		// 80% of 7500 bytes/microframe x 8
+	public static final int SUPER_SPEED_BUDGET = 450000;	// 90% of 500000 bytes/ms
+
+	private static final int SPEED_HIGH = 3;				// libusb_speed
+	private static final int SPEED_SUPER = 4;
+
+	public interface OnReallocateListener {
+		/**
+		 * called when the altsetting for the camera changed because another camera joined/left the bus,
+		 * restart preview with the new bandwidthFactor before returning
+		 * so that the bandwidth is actually released before the other camera starts.
+		 * this is not called for the camera that is passed to #allocate/#release
+		 * @param camera
+		 * @param bandwidthFactor
+		 */
+		public void onReallocate(final UVCCamera camera, final float bandwidthFactor);
+	}
+
+	private static UVCBandwidthAllocator sInstance;
+
+	/**
+	 * cameras should share the instance to know which cameras are on the same bus
+	 */
+	public static synchronized UVCBandwidthAllocator getInstance() {
+		if (sInstance == null) {
+			sInstance = new UVCBandwidthAllocator();
+		}
+		return sInstance;
+	}
+
+	private final Map<Integer, List<Stream>> mBuses = new HashMap<Integer, List<Stream>>();
+	private final Map<Integer, Integer> mBudgets = new HashMap<Integer, Integer>();
+
+	private UVCBandwidthAllocator() {
+	}
+
+	/**
+	 * override the bandwidth of the bus, e.g. when other devices on the bus use isochronous transfer.
+	 * this takes effect when a camera joins/leaves the bus next time
+	 * @param busNum UsbControlBlock#getBusNum
+	 * @param bytesPerMs 0 to use the default budget for the speed of the cameras on the bus
+	 */
+	public synchronized void setBusBudget(final int busNum, final int bytesPerMs) {
+		if (bytesPerMs > 0) {
+			mBudgets.put(busNum, bytesPerMs);
+		} else {
+			mBudgets.remove(busNum);
+		}
+	}
+
+	/**
+	 * @param busNum UsbControlBlock#getBusNum
+	 * @return bandwidth of the bus, bytes per millisecond
+	 */
+	public synchronized int getBusBudget(final int busNum) {
+		return getBudget(busNum, mBuses.get(busNum));
+	}
+
+	/**
+	 * @param busNum UsbControlBlock#getBusNum
+	 * @return bandwidth reserved by the cameras on the bus, bytes per millisecond
+	 */
+	public synchronized int getReservedRate(final int busNum) {
+		int result = 0;
+		final List<Stream> streams = mBuses.get(busNum);
+		if (streams != null) {
+			for (final Stream stream: streams) {
+				result += stream.altRate[stream.alt];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param camera
+	 * @return bandwidthFactor allocated for the camera, UVCCamera.DEFAULT_BANDWIDTH if not allocated
+	 */
+	public synchronized float getBandwidthFactor(final UVCCamera camera) {
+		final Stream stream = find(camera);
+		return stream != null ? stream.getBandwidthFactor() : UVCCamera.DEFAULT_BANDWIDTH;
+	}
+
+	/**
+	 * reserve the bandwidth for the stream of the camera and re-balance the other cameras on the same bus.
+	 * if the camera is already allocated, the previous allocation is replaced.
+	 * call this before UVCCamera#startPreview and pass the result to UVCCamera#setPreviewSize
+	 * @param camera opened camera
+	 * @param width
+	 * @param height
+	 * @param minFps
+	 * @param maxFps
+	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @param listener called when the allocation of this camera changed later, can be null
+	 * @return bandwidthFactor for UVCCamera#setPreviewSize
+	 * @throws IllegalArgumentException the camera does not support the size/format/fps
+	 * @throws IllegalStateException the camera is not opened or the bus does not have enough bandwidth
+	 */
+	public float allocate(final UVCCamera camera,
+		final int width, final int height, final int minFps, final int maxFps, final int frameFormat,
+		final OnReallocateListener listener) {
+
+		final UsbControlBlock ctrlBlock = camera.getUsbControlBlock();
+		if (ctrlBlock == null) {
+			throw new IllegalStateException("camera is not opened");
+		}
+		final int busNum = ctrlBlock.getBusNum();
+		final Stream stream = new Stream(camera, listener,
+			camera.getStreamBandwidth(width, height, minFps, maxFps, frameFormat));
+		final List<Stream> changed = new ArrayList<Stream>();
+		boolean allocated = true;
+		synchronized (this) {
+			removeLocked(camera);
+			final List<Stream> current = mBuses.get(busNum);
+			if (stream.isochronous) {
+				final List<Stream> streams = new ArrayList<Stream>();
+				if (current != null) {
+					streams.addAll(current);
+				}
+				streams.add(stream);
+				if (balance(streams, getBudget(busNum, streams), changed)) {
+					mBuses.put(busNum, streams);
+				} else {
+					allocated = false;
+					// the previous allocation of the camera may have been released
+					if (current != null) {
+						balance(current, getBudget(busNum, current), changed);
+					}
+				}
+			} else if (current != null) {
+				// bulk transfer does not reserve bandwidth,
+				// but the previous allocation of the camera may have been released
+				balance(current, getBudget(busNum, current), changed);
+			}
+			if (DEBUG) Log.v(TAG, "allocate:bus=" + busNum + ",required=" + stream.required
+				+ ",alt=" + stream.alt + ",reserved=" + getReservedRate(busNum) + "/" + getBudget(busNum, mBuses.get(busNum)));
+		}
+		notifyReallocate(changed);
+		if (!allocated) {
+			throw new IllegalStateException("no bandwidth on bus " + busNum
+				+ ",required=" + stream.altRate[stream.minAlt]);
+		}
+		return stream.getBandwidthFactor();
+	}
+
+	/**
+	 * release the bandwidth reserved for the camera and re-balance the other cameras on the same bus,
+	 * call this after UVCCamera#stopPreview
+	 * @param camera
+	 */
+	public void release(final UVCCamera camera) {
+		final List<Stream> changed = new ArrayList<Stream>();
+		synchronized (this) {
+			final int busNum = removeLocked(camera);
+			final List<Stream> streams = mBuses.get(busNum);
+			if (streams != null) {
+				balance(streams, getBudget(busNum, streams), changed);
+			}
+		}
+		notifyReallocate(changed);
+	}
+
+	private Stream find(final UVCCamera camera) {
+		for (final List<Stream> streams: mBuses.values()) {
+			for (final Stream stream: streams) {
+				if (stream.camera == camera) {
+					return stream;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return bus number that the camera was on, -1 if the camera was not allocated
+	 */
+	private int removeLocked(final UVCCamera camera) {
+		for (final Map.Entry<Integer, List<Stream>> entry: mBuses.entrySet()) {
+			final List<Stream> streams = entry.getValue();
+			for (final Stream stream: streams) {
+				if (stream.camera == camera) {
+					streams.remove(stream);
+					final int busNum = entry.getKey();
+					if (streams.isEmpty()) {
+						mBuses.remove(busNum);
+					}
+					return busNum;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private int getBudget(final int busNum, final List<Stream> streams) {
+		final Integer budget = mBudgets.get(busNum);
+		if (budget != null) {
+			return budget;
+		}
+		int speed = 0;
+		if (streams != null) {
+			for (final Stream stream: streams) {
+				speed = Math.max(speed, stream.speed);
+			}
+		}
+		return speed >= SPEED_SUPER ? SUPER_SPEED_BUDGET
+			: (speed == SPEED_HIGH ? HIGH_SPEED_BUDGET : FULL_SPEED_BUDGET);
+	}
+
+	/**
+	 * give each stream the smallest altsetting that sustains it and then
+	 * raise the altsettings one step at a time in turn while the budget allows
+	 * @param streams
+	 * @param budget
+	 * @param changed streams that were already allocated and whose altsetting changed are added
+	 * @return false if the streams do not fit into the budget, the altsettings are not changed
+	 */
+	private static boolean balance(final List<Stream> streams, final int budget, final List<Stream> changed) {
+		final int n = streams.size();
+		final int[] alts = new int[n];
+		int total = 0;
+		for (int i = 0; i < n; i++) {
+			final Stream stream = streams.get(i);
+			alts[i] = stream.minAlt;
+			total += stream.altRate[alts[i]];
+		}
+		if (total > budget) {
+			return false;
+		}
+		for (boolean raised = true; raised; ) {
+			raised = false;
+			for (int i = 0; i < n; i++) {
+				final Stream stream = streams.get(i);
+				final int next = stream.nextAlt(alts[i]);
+				if ((next > 0)
+					&& (total - stream.altRate[alts[i]] + stream.altRate[next] <= budget)) {
+
+					total += stream.altRate[next] - stream.altRate[alts[i]];
+					alts[i] = next;
+					raised = true;
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			final Stream stream = streams.get(i);
+			if ((stream.alt >= 0) && (stream.alt != alts[i]) && !changed.contains(stream)) {
+				changed.add(stream);
+			}
+			stream.alt = alts[i];
+		}
+		return true;
+	}
+
+	private static void notifyReallocate(final List<Stream> changed) {
+		for (final Stream stream: changed) {
+			if (stream.listener != null) {
+				try {
+					stream.listener.onReallocate(stream.camera, stream.getBandwidthFactor());
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * bandwidth of the stream of a camera, see UVCCamera#getStreamBandwidth
+	 */
+	private static final class Stream {
+		private final UVCCamera camera;
+		private final OnReallocateListener listener;
+		private final int speed;
+		private final boolean isochronous;
+		private final int maxPayload;
+		private final int required;
+		private final int[] altBytes;
+		private final int[] altRate;
+		/** smallest altsetting that sustains the stream */
+		private final int minAlt;
+		/** altsetting that libuvc chooses for DEFAULT_BANDWIDTH */
+		private final int maxAlt;
+		/** allocated altsetting, -1 until allocated */
+		private int alt = -1;
+
+		private Stream(final UVCCamera camera, final OnReallocateListener listener, final int[] info) {
+			this.camera = camera;
+			this.listener = listener;
+			speed = info[UVCCamera.BANDWIDTH_SPEED];
+			isochronous = info[UVCCamera.BANDWIDTH_ISOCHRONOUS] != 0;
+			maxPayload = info[UVCCamera.BANDWIDTH_MAX_PAYLOAD];
+			required = info[UVCCamera.BANDWIDTH_REQUIRED_RATE];
+			final int n = Math.min(info[UVCCamera.BANDWIDTH_NUM_ALT], UVCCamera.MAX_ALTSETTINGS);
+			altBytes = new int[n];
+			altRate = new int[n];
+			for (int i = 0; i < n; i++) {
+				altBytes[i] = info[UVCCamera.BANDWIDTH_ALT_BYTES + i * 2];
+				altRate[i] = info[UVCCamera.BANDWIDTH_ALT_RATE + i * 2];
+			}
+			// libuvc chooses the first altsetting whose packet is not smaller than
+			// dwMaxPayloadTransferSize x bandwidthFactor, or the last one
+			int max = -1;
+			for (int i = 0; i < n; i++) {
+				if (altBytes[i] > 0) {
+					max = i;
+					if (altBytes[i] >= maxPayload) break;
+				}
+			}
+			int min = max;
+			for (int i = 0; i < max; i++) {
+				if ((altBytes[i] > 0) && (altRate[i] >= required)) {
+					min = i;
+					break;
+				}
+			}
+			if (isochronous && (min >= 0) && (altRate[min] < required)) {
+				Log.w(TAG, "no altsetting sustains the stream,required=" + required + ",max=" + altRate[min]);
+			}
+			minAlt = Math.max(min, 0);
+			maxAlt = Math.max(max, 0);
+			if (!isochronous || (max < 0)) {
+				alt = 0;
+			}
+		}
+
+		/**
+		 * @return next larger altsetting up to maxAlt, -1 if there is no more
+		 */
+		private int nextAlt(final int current) {
+			for (int i = current + 1; i <= maxAlt; i++) {
+				if (altBytes[i] > 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private float getBandwidthFactor() {
+			if (!isochronous || (alt >= maxAlt) || (maxPayload <= 0) || (altBytes.length == 0)) {
+				return UVCCamera.DEFAULT_BANDWIDTH;
+			}
+			// slightly less than the packet size of the altsetting so that rounding error
+			// never makes libuvc choose the next one
+			return (altBytes[alt] - 0.5f) / maxPayload;
+		}
+	}
+}
@@ -23,13 +23,17 @@
 
 package com.serenegiant.usb;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.usb.UsbDevice;
 import android.text.TextUtils;
@@ -50,6 +54,8 @@ public class UVCCamera {
 	public static final int DEFAULT_PREVIEW_MIN_FPS = 1;
 	public static final int DEFAULT_PREVIEW_MAX_FPS = 30;
 	public static final float DEFAULT_BANDWIDTH = 1.0f;
+	// handlers ask UVCBandwidthAllocator for bandwidthFactor, UVCCamera itself treats this as DEFAULT_BANDWIDTH
+	public static final float AUTO_BANDWIDTH = -1.0f;
 
 	public static final int FRAME_FORMAT_YUYV = 0;
 	public static final int FRAME_FORMAT_MJPEG = 1;
@@ -60,6 +66,45 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_RGBX = 3;
 	public static final int PIXEL_FORMAT_YUV420SP = 4;
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar
+	public static final int PIXEL_FORMAT_Y8 = 6;		// luminance only, 1 byte per pixel
+	public static final int PIXEL_FORMAT_MJPEG = 7;		// frames as transferred from the camera, see ICompressedFrameCallback
+
+	public static final int MAX_STILL_BURST = 30;		// same as MAX_STILL_BURST in StillCapture.h
+
+	// drop policy of the frame queue between USB transfer and preview, see #setFrameQueue
+	public static final int FRAME_QUEUE_DROP_NEWEST = 0;
+	public static final int FRAME_QUEUE_DROP_OLDEST = 1;
+	public static final int DEFAULT_FRAME_QUEUE_CAPACITY = 4;
+	// MJPEG decode worker threads, see #setDecodeThreads
+	public static final int MAX_DECODE_THREADS = 8;
+	public static final int DEFAULT_DECODE_MAX_IN_FLIGHT = 4;
+	// maximum number of frame callbacks, see #addFrameCallback
+	public static final int MAX_FRAME_CALLBACKS = 8;
+	// filter to resize frames for frame callback, see #setFrameCallback(IFrameCallback, int, Rect, int, int, int)
+	public static final int RESIZE_FILTER_NEAREST = 0;	// fastest
+	public static final int RESIZE_FILTER_BILINEAR = 1;
+	public static final int RESIZE_FILTER_AREA = 2;		// average of the covered pixels, best for large downscale
+	// causes of dropped frames, index of #getDropCounts and IFrameDropListener#onFrameDrop
+	public static final int DROP_TRANSFER = 0;			// lost by USB transfer error or libuvc fell behind
+	public static final int DROP_NOT_RUNNING = 1;		// arrived while preview is stopping
+	public static final int DROP_BROKEN = 2;			// empty frame or uncompressed frame shorter than expected
+	public static final int DROP_SIZE_MISMATCH = 3;		// width/height differ from #setPreviewSize
+	public static final int DROP_NO_BUFFER = 4;			// no frame buffer is available
+	public static final int DROP_PREVIEW_QUEUE = 5;		// preview thread fell behind, see #setFrameQueue
+	public static final int DROP_CAPTURE_QUEUE = 6;		// capture thread/IFrameCallback fell behind
+	public static final int DROP_DECODE = 7;			// failed to decode/convert for preview
+	public static final int DROP_ENCODER = 8;			// native encoder had no input buffer, see #startEncoder
+	public static final int NUM_DROP_CAUSES = 9;
+	// index of #getStreamBandwidth, rates are bytes per millisecond
+	public static final int BANDWIDTH_SPEED = 0;			// 1: low, 2: full, 3: high, 4: super speed
+	public static final int BANDWIDTH_ISOCHRONOUS = 1;		// 0 if bulk transfer, that does not reserve bandwidth
+	public static final int BANDWIDTH_MAX_PAYLOAD = 2;		// dwMaxPayloadTransferSize, bandwidthFactor is relative to this
+	public static final int BANDWIDTH_REQUIRED_RATE = 3;	// rate that sustains the format/fps
+	public static final int BANDWIDTH_NUM_ALT = 4;			// number of altsettings
+	public static final int BANDWIDTH_ALT_BYTES = 5;		// bytes per packet of altsetting#n at BANDWIDTH_ALT_BYTES + n * 2
+	public static final int BANDWIDTH_ALT_RATE = 6;			// rate reserved by altsetting#n at BANDWIDTH_ALT_RATE + n * 2
+	public static final int MAX_ALTSETTINGS = 16;
+	public static final int BANDWIDTH_INFO_SIZE = BANDWIDTH_ALT_BYTES + MAX_ALTSETTINGS * 2;
 
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
@@ -115,6 +160,14 @@ public class UVCCamera {
 
 	private static boolean isLoaded;
 	static {
+		loadLibraries();
+	}
+
+	/**
+	 * load native libraries, classes that can be used without UVCCamera(e.g. SharedFrameReader)
+	 * should call this before calling their native methods
+	 */
+	static synchronized void loadLibraries() {
 		if (!isLoaded) {
 			System.loadLibrary("jpeg-turbo1500");
 			System.loadLibrary("usb100");
@@ -333,6 +386,28 @@ public class UVCCamera {
 		}
 	}
 
+	/**
+	 * get the bandwidth that the stream needs and the bandwidth that each isochronous altsetting reserves.
+	 * this negotiates the stream with the camera but does not start it, call this before #startPreview.
+	 * UVCBandwidthAllocator uses this to choose bandwidthFactor for #setPreviewSize
+	 * @param width
+	 * @param height
+	 * @param min_fps
+	 * @param max_fps
+	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @return array of BANDWIDTH_INFO_SIZE elements indexed by BANDWIDTH_XXX
+	 * @throws IllegalArgumentException the camera does not support the size/format/fps
+	 */
+	public int[] getStreamBandwidth(final int width, final int height, final int min_fps, final int max_fps, final int frameFormat) {
+		final int[] info = new int[BANDWIDTH_INFO_SIZE];
+		if (mNativePtr != 0) {
+			if (nativeGetStreamBandwidth(mNativePtr, width, height, min_fps, max_fps, frameFormat, info) != 0) {
+				throw new IllegalArgumentException("Failed to get stream bandwidth");
+			}
+		}
+		return info;
+	}
+
 	public List<Size> getSupportedSizeList() {
 		final int type = (mCurrentFrameFormat > 0) ? 6 : 4;
 		return getSupportedSize(type, mSupportedSize);
@@ -406,8 +481,276 @@ public class UVCCamera {
      * @param pixelFormat
      */
     public void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+    	setFrameCallback(callback, pixelFormat, 1);
+    }
+
+    /**
+     * set frame callback that receives frames at 1/scaleDenom size of the stream.
+     * this replaces the callback that was set by this method last time
+     * and does not affect the callbacks added by #addFrameCallback
+     * scaling is done while decoding MJPEG so it costs less than decoding at full size,
+     * scaleDenom is ignored on YUYV mode(FRAME_FORMAT_YUYV) except PIXEL_FORMAT_Y8 that subsamples luminance
+     * @param callback
+     * @param pixelFormat
+     * @param scaleDenom 1, 2, 4 or 8. the frame size is rounded up when the stream size is not divisible by scaleDenom.
+     * PIXEL_FORMAT_RAW/PIXEL_FORMAT_YUV need even width after scaling
+     * @throws IllegalArgumentException if scaleDenom is invalid, other failures(e.g. too many frame callbacks)
+     * are only logged as #setFrameCallback(IFrameCallback, int) was
+     */
+    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat, final int scaleDenom) {
+    	if ((scaleDenom != 1) && (scaleDenom != 2) && (scaleDenom != 4) && (scaleDenom != 8)) {
+    		throw new IllegalArgumentException("invalid scale denominator:" + scaleDenom);
+    	}
+    	if (mNativePtr != 0) {
+        	final int result = nativeSetFrameCallback(mNativePtr, callback, pixelFormat, scaleDenom,
+        		0, 0, 0, 0, 0, 0, RESIZE_FILTER_NEAREST);
+			if (result != 0) {
+				Log.w(TAG, "setFrameCallback:failed to set frame callback,pixelFormat=" + pixelFormat + ",err=" + result);
+			}
+    	}
+    }
+
+    /**
+     * set frame callback that receives the crop rectangle of frames resized to width x height.
+     * cropping and resizing are done in the same pass as the colour conversion in native code,
+     * MJPEG frames are also scaled while decoding as far as the crop rectangle stays larger than the output,
+     * so the full size frame is never converted and only the small buffer is passed to the callback.
+     * this replaces the callback that was set by #setFrameCallback last time
+     * @param callback
+     * @param pixelFormat
+     * @param crop crop rectangle in the stream size, null for whole frame.
+     * the rectangle is clipped by the stream size
+     * @param width output width, PIXEL_FORMAT_RAW/PIXEL_FORMAT_YUV need even width
+     * @param height output height
+     * @param filter RESIZE_FILTER_NEAREST, RESIZE_FILTER_BILINEAR or RESIZE_FILTER_AREA
+     */
+    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat,
+    	final Rect crop, final int width, final int height, final int filter) {
+
     	if (mNativePtr != 0) {
-        	nativeSetFrameCallback(mNativePtr, callback, pixelFormat);
+    		final int result = nativeSetFrameCallback(mNativePtr, callback, pixelFormat, 1,
+    			crop != null ? crop.left : 0, crop != null ? crop.top : 0,
+    			crop != null ? crop.width() : 0, crop != null ? crop.height() : 0,
+    			width, height, filter);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid crop rectangle/size/filter or too many frame callbacks");
+    	}
+    }
+
+    /**
+     * add frame callback, you can add up to MAX_FRAME_CALLBACKS callbacks including the one set by #setFrameCallback.
+     * each frame is converted once for each pair of pixel format and scale,
+     * callbacks that request same pixel format and scale receive the same ByteBuffer.
+     * if the callback is already added, its parameters are updated.
+     * the callback is kept until #removeFrameCallback is called even if preview stops
+     * @param callback
+     * @param pixelFormat PIXEL_FORMAT_RAW, PIXEL_FORMAT_YUV, PIXEL_FORMAT_RGB565, PIXEL_FORMAT_RGBX, PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21, PIXEL_FORMAT_Y8 or PIXEL_FORMAT_MJPEG.
+     * PIXEL_FORMAT_MJPEG passes each frame without decoding(the JPEG on MJPEG mode), the limit of the ByteBuffer
+     * is the size of the frame and scaleDenom is ignored. use ICompressedFrameCallback to receive the size and sequence number
+     * @param scaleDenom 1, 2, 4 or 8, see #setFrameCallback(IFrameCallback, int, int)
+     * @param maxFps maximum frame rate that the callback receives, 0 for no limit.
+     * 			frames are picked uniformly by their capture time on the device
+     * 			and the others are never converted nor copied for this callback
+     */
+    public void addFrameCallback(final IFrameCallback callback, final int pixelFormat, final int scaleDenom, final float maxFps) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeAddFrameCallback(mNativePtr, callback, pixelFormat, scaleDenom, maxFps,
+    			0, 0, 0, 0, 0, 0, RESIZE_FILTER_NEAREST);
+			if (result != 0)
+				throw new IllegalArgumentException("failed to add frame callback");
+    	}
+    }
+
+    /**
+     * add frame callback that receives the crop rectangle of frames resized to width x height,
+     * see #setFrameCallback(IFrameCallback, int, Rect, int, int, int).
+     * callbacks that request same pixel format, crop rectangle, size and filter receive the same ByteBuffer
+     * @param callback
+     * @param pixelFormat
+     * @param crop crop rectangle in the stream size, null for whole frame
+     * @param width output width
+     * @param height output height
+     * @param filter RESIZE_FILTER_NEAREST, RESIZE_FILTER_BILINEAR or RESIZE_FILTER_AREA
+     * @param maxFps maximum frame rate that the callback receives, 0 for no limit
+     */
+    public void addFrameCallback(final IFrameCallback callback, final int pixelFormat,
+    	final Rect crop, final int width, final int height, final int filter, final float maxFps) {
+
+    	if (mNativePtr != 0) {
+    		final int result = nativeAddFrameCallback(mNativePtr, callback, pixelFormat, 1, maxFps,
+    			crop != null ? crop.left : 0, crop != null ? crop.top : 0,
+    			crop != null ? crop.width() : 0, crop != null ? crop.height() : 0,
+    			width, height, filter);
+			if (result != 0)
+				throw new IllegalArgumentException("failed to add frame callback");
+    	}
+    }
+
+    /**
+     * remove frame callback that was added by #addFrameCallback or set by #setFrameCallback
+     * @param callback
+     */
+    public void removeFrameCallback(final IFrameCallback callback) {
+    	if (mNativePtr != 0) {
+    		nativeRemoveFrameCallback(mNativePtr, callback);
+    	}
+    }
+
+    /**
+     * keep the frame passed to IFrameCallback#onFrame after returning from onFrame.
+     * the ByteBuffer is not reused for following frames until #releaseFrame is called.
+     * when several callbacks receive the same ByteBuffer, each of them can lease it
+     * frames are not passed to IFrameCallback while all buffers are leased,
+     * so release the frame as soon as possible
+     * @param frame the ByteBuffer passed to IFrameCallback#onFrame, call this in onFrame
+     * @return true if leased, false if the frame is not in use
+     */
+    public boolean leaseFrame(final ByteBuffer frame) {
+    	return (mNativePtr != 0) && (nativeLeaseFrame(mNativePtr, frame) == 0);
+    }
+
+    /**
+     * return the frame leased by #leaseFrame, you should not access the ByteBuffer after this
+     * this can be called on any thread
+     * @param frame
+     */
+    public void releaseFrame(final ByteBuffer frame) {
+    	if (mNativePtr != 0) {
+    		nativeReleaseFrame(mNativePtr, frame);
+    	}
+    }
+
+    /**
+     * get a snapshot of per-stage latency histograms and frame counters as JSON without stopping the stream.
+     * "latency" has count/mean/p50/p90/p99/p999/max[us] of each stage
+     * (transfer, dispatch, dequeue, convert, surface, preview, callbackEntry, callback),
+     * "counters" has the number of frames since preview started("decimated" counts frames that
+     * no consumer wanted at its max fps, they are not drops), "drops" has the number of dropped frames
+     * for each cause(see DROP_XXX) and their total, and
+     * "fps" is averaged since the previous call of this method.
+     * this can be called on any thread
+     * @return JSON string, null if the camera is not opened
+     */
+    public String getStatistics() {
+    	return mNativePtr != 0 ? nativeGetStatistics(mNativePtr) : null;
+    }
+
+    /**
+     * create a builder to compose native pipeline stages that receive every frame from this camera,
+     * see PipelineBuilder
+     */
+    public PipelineBuilder pipelineBuilder() {
+    	return new PipelineBuilder(this);
+    }
+
+    /**
+     * set the first stage of the pipeline that receives every frame from this camera
+     * in addition to the preview and IFrameCallback. the pipeline should be started before this.
+     * PipelineBuilder.Chain calls this when it starts/stops
+     * @param pipeline null to detach
+     */
+    public void setPipeline(final IPipeline pipeline) {
+    	if (mNativePtr != 0) {
+    		nativeSetPipeline(mNativePtr, pipeline);
+    	}
+    }
+
+    /**
+     * get the number of dropped frames for each cause since preview started, same as "drops" of #getStatistics.
+     * this can be called on any thread
+     * @return array of NUM_DROP_CAUSES elements indexed by DROP_XXX, null if the camera is not opened
+     */
+    public int[] getDropCounts() {
+    	if (mNativePtr != 0) {
+    		final int[] drops = new int[NUM_DROP_CAUSES];
+    		if (nativeGetDropCounts(mNativePtr, drops) == 0) {
+    			return drops;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * set listener that is called when the rate of dropped frames exceeds the threshold.
+     * the rate is checked every intervalMs on the capture thread while previewing
+     * @param listener null to remove
+     * @param threshold ratio of dropped frames to all frames from the camera in the interval, [0, 1]
+     * @param intervalMs interval to check the rate in milliseconds
+     */
+    public void setFrameDropListener(final IFrameDropListener listener, final float threshold, final int intervalMs) {
+    	if (mNativePtr != 0) {
+    		if (nativeSetFrameDropListener(mNativePtr, listener, threshold, intervalMs) != 0) {
+    			throw new IllegalArgumentException("invalid threshold/interval");
+    		}
+    	}
+    }
+
+    /**
+     * set scale of the preview surface, the preview shows frames at 1/scaleDenom size of the stream.
+     * this takes effect when preview starts next time and only on MJPEG mode(FRAME_FORMAT_MJPEG)
+     * @param scaleDenom 1(default), 2, 4 or 8
+     */
+    public void setPreviewScale(final int scaleDenom) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetPreviewScale(mNativePtr, scaleDenom);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid scale denominator");
+    	}
+    }
+
+    /**
+     * limit the frame rate of the preview surface, frames are picked uniformly by their capture time
+     * and the others are skipped before decoding/converting. this can be called while previewing
+     * @param maxFps maximum frame rate of the preview, 0(default) for no limit
+     */
+    public void setPreviewMaxFps(final float maxFps) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetPreviewMaxFps(mNativePtr, maxFps);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid max fps");
+    	}
+    }
+
+    /**
+     * limit the frame rate of the capture surface that was set by #startCapture,
+     * frames are picked in the same way as #setPreviewMaxFps. this can be called while capturing
+     * @param maxFps maximum frame rate of the capture surface, 0(default) for no limit
+     */
+    public void setCaptureMaxFps(final float maxFps) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetCaptureMaxFps(mNativePtr, maxFps);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid max fps");
+    	}
+    }
+
+    /**
+     * set capacity and drop policy of the frame queue between USB transfer and preview.
+     * this takes effect when preview starts next time
+     * @param capacity maximum number of frames waiting for preview, default is DEFAULT_FRAME_QUEUE_CAPACITY
+     * @param dropPolicy FRAME_QUEUE_DROP_NEWEST(default) or FRAME_QUEUE_DROP_OLDEST
+     */
+    public void setFrameQueue(final int capacity, final int dropPolicy) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetFrameQueue(mNativePtr, capacity, dropPolicy);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid frame queue capacity/drop policy");
+    	}
+    }
+
+    /**
+     * set number of worker threads that decode MJPEG frames concurrently.
+     * decoded frames are delivered to preview, capture and IFrameCallback in the order of arrival.
+     * this takes effect when preview starts next time and only on MJPEG mode
+     * @param numThreads 0(default) decodes on preview thread, up to MAX_DECODE_THREADS
+     * @param maxInFlight maximum number of frames that are decoding or waiting for delivery,
+     * this bounds the latency, default is DEFAULT_DECODE_MAX_IN_FLIGHT
+     */
+    public void setDecodeThreads(final int numThreads, final int maxInFlight) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetDecodeThreads(mNativePtr, numThreads, maxInFlight);
+			if (result != 0)
+				throw new IllegalArgumentException("invalid number of decode threads/max in flight");
     	}
     }
 
@@ -1043,7 +1386,16 @@ public class UVCCamera {
     private static final native int nativeStartPreview(final long id_camera);
     private static final native int nativeStopPreview(final long id_camera);
     private static final native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
-    private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
+    private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat, final int scaleDenom,
+    	final int cropX, final int cropY, final int cropWidth, final int cropHeight, final int width, final int height, final int filter);
+    private static final native int nativeAddFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat, final int scaleDenom, final float maxFps,
+    	final int cropX, final int cropY, final int cropWidth, final int cropHeight, final int width, final int height, final int filter);
+    private static final native int nativeRemoveFrameCallback(final long mNativePtr, final IFrameCallback callback);
+    private static final native int nativeSetFrameQueue(final long id_camera, final int capacity, final int dropPolicy);
+    private static final native int nativeSetDecodeThreads(final long id_camera, final int numThreads, final int maxInFlight);
+    private static final native int nativeSetPreviewScale(final long id_camera, final int scaleDenom);
+    private static final native int nativeSetPreviewMaxFps(final long id_camera, final float maxFps);
+    private static final native int nativeSetCaptureMaxFps(final long id_camera, final float maxFps);
 
 //**********************************************************************
     /**
@@ -1067,6 +1419,94 @@ public class UVCCamera {
     }
     private static final native int nativeSetCaptureDisplay(final long id_camera, final Surface surface);
 
+    /**
+     * start encoding frames into h.264 mp4 file with NDK MediaCodec/MediaMuxer(API>=21).
+     * frames are converted directly into the input buffer of the codec on the native side
+     * and queued with their capture time, they never reach Java side. only video is recorded.
+     * this can be called before or while previewing
+     * @param path path of the output file, overwritten if it exists
+     * @param width should be same as the preview size
+     * @param height should be same as the preview size
+     * @param frameRate only used for bitrate control of the codec
+     * @param bitrate bits per second
+     * @param colorFormat MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar or COLOR_QCOM_FormatYUV420SemiPlanar
+     * that the encoder supports
+     * @throws IllegalArgumentException invalid size/bitrate/color format, the encoder is already running or NDK MediaCodec is not available
+     */
+    public void startEncoder(final String path, final int width, final int height,
+    	final int frameRate, final int bitrate, final int colorFormat) {
+
+    	if (mNativePtr != 0) {
+    		final int result = nativeStartEncoder(mNativePtr, path, width, height, frameRate, bitrate, colorFormat);
+			if (result != 0)
+				throw new IllegalArgumentException("failed to start encoder");
+    	}
+    }
+
+    /**
+     * stop encoding that was started by #startEncoder, this blocks until the file is finalized
+     */
+    public void stopEncoder() {
+    	if (mNativePtr != 0) {
+    		nativeStopEncoder(mNativePtr);
+    	}
+    }
+    /**
+     * write the next frame from the camera into the JPEG file at the full size of the stream(not the preview size).
+     * MJPEG frames are written as they are without decoding, YUYV frames are encoded by TurboJPEG.
+     * the file is written on a native worker thread so this never blocks the caller nor the preview
+     * @param path path of the JPEG file, overwritten if it exists
+     * @param quality JPEG quality for YUYV frames, [1, 100]
+     * @return the future that returns path after the file is written,
+     * it fails if the camera is not previewing or preview stops before the next frame
+     */
+    public Future<String> captureStill(final String path, final int quality) {
+    	final StillCaptureFuture result = new StillCaptureFuture(path);
+    	if ((mNativePtr == 0) || (nativeCaptureStill(mNativePtr, path, quality, result) != 0)) {
+    		result.onResult(-1, 0, 0, 0);
+    	}
+    	return result;
+    }
+
+    /**
+     * write the next consecutive frames from the camera into JPEG files, one frame for each path.
+     * frames are reserved as they arrive and encoded on a small pool of native workers,
+     * the futures complete in the order of frames. frames may be skipped(not reserved)
+     * while too many reserved frames wait for encoding, so they are not always adjacent under load.
+     * @param paths paths of the JPEG files, up to MAX_STILL_BURST
+     * @param quality JPEG quality for YUYV frames, [1, 100]
+     * @return futures in the same order as paths, they fail if preview stops before the frames are captured
+     */
+    public List<StillCaptureFuture> captureBurst(final String[] paths, final int quality) {
+    	if ((paths == null) || (paths.length == 0) || (paths.length > MAX_STILL_BURST)) {
+    		throw new IllegalArgumentException("number of paths should be [1, " + MAX_STILL_BURST + "]");
+    	}
+    	final int n = paths.length;
+    	final StillCaptureFuture[] futures = new StillCaptureFuture[n];
+    	for (int i = 0; i < n; i++) {
+    		futures[i] = new StillCaptureFuture(paths[i]);
+    	}
+    	if ((mNativePtr == 0) || (nativeCaptureBurst(mNativePtr, paths, quality, futures) != 0)) {
+    		for (final StillCaptureFuture future: futures) {
+    			future.onResult(-1, 0, 0, 0);
+    		}
+    	}
+    	return Arrays.asList(futures);
+    }
+
+    private static final native int nativeStartEncoder(final long id_camera, final String path, final int width, final int height,
+    	final int frameRate, final int bitrate, final int colorFormat);
+    private static final native int nativeStopEncoder(final long id_camera);
+    private static final native int nativeCaptureStill(final long id_camera, final String path, final int quality, final StillCaptureFuture callback);
+    private static final native int nativeCaptureBurst(final long id_camera, final String[] paths, final int quality, final StillCaptureFuture[] callbacks);
+    private static final native int nativeLeaseFrame(final long id_camera, final ByteBuffer frame);
+    private static final native int nativeReleaseFrame(final long id_camera, final ByteBuffer frame);
+    private static final native String nativeGetStatistics(final long id_camera);
+    private static final native int nativeSetPipeline(final long id_camera, final IPipeline pipeline);
+    private static final native int nativeSetFrameDropListener(final long id_camera, final IFrameDropListener listener, final float threshold, final int intervalMs);
+    private static final native int nativeGetDropCounts(final long id_camera, final int[] drops);
+    private static final native int nativeGetStreamBandwidth(final long id_camera, final int width, final int height, final int min_fps, final int max_fps, final int mode, final int[] info);
+
     private static final native long nativeGetCtrlSupports(final long id_camera);
     private static final native long nativeGetProcSupports(final long id_camera);
 
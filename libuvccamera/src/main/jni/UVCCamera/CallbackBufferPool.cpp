@@ -0,0 +1,317 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: CallbackBufferPool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "CallbackBufferPool.h"
+
+#define	LOCAL_DEBUG 0
+
+jmethodID CallbackBufferPool::sClearMethod = NULL;
+jmethodID CallbackBufferPool::sLimitMethod = NULL;
+
+CallbackBufferPool::CallbackBufferPool()
+:	mNumBuffers(0),
+	mDataBytes(0) {
+
+	ENTER();
+	pthread_mutex_init(&pool_mutex, NULL);
+	EXIT();
+}
+
+CallbackBufferPool::~CallbackBufferPool() {
+
+	ENTER();
+	clear(getEnv());
+	if (UNLIKELY(!mBuffers.isEmpty())) {
+		// Java side may still access them, never free
+		LOGW("%d callback buffers are still leased", mBuffers.size());
+	}
+	pthread_mutex_destroy(&pool_mutex);
+	EXIT();
+}
+
+/**
+ * reallocate buffers if the number or the size of buffers changed,
+ * buffers in use are retired and freed when they return to the pool
+ * @param num_buffers number of buffers, 0 to free all buffers
+ * @param data_bytes size of each buffer
+ * @return 0 if buffers are ready
+ */
+int CallbackBufferPool::resize(JNIEnv *env, int num_buffers, size_t data_bytes) {
+
+	if (LIKELY((num_buffers == mNumBuffers) && (data_bytes == mDataBytes))) {
+		collect(env);
+		return EXIT_SUCCESS;
+	}
+	ENTER();
+
+	if (UNLIKELY(!sClearMethod)) {
+		jclass clazz = env->FindClass("java/nio/Buffer");
+		if (LIKELY(clazz)) {
+			sClearMethod = env->GetMethodID(clazz, "clear", "()Ljava/nio/Buffer;");
+			env->ExceptionClear();
+			sLimitMethod = env->GetMethodID(clazz, "limit", "(I)Ljava/nio/Buffer;");
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+	}
+	pthread_mutex_lock(&pool_mutex);
+	{
+		const int n = mBuffers.size();
+		for (int i = 0; i < n; i++) {
+			callback_buffer_t *buf = mBuffers[i];
+			if (mFree.getIndex(buf) >= 0) {
+				mGarbage.put(buf);
+			} else {
+				buf->retired = true;
+			}
+		}
+		mFree.clear();
+		mNumBuffers = mDataBytes = 0;
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	collect(env);
+
+	int result = EXIT_SUCCESS;
+	for (int i = 0; i < num_buffers; i++) {
+		uvc_frame_t *frame = uvc_allocate_frame(data_bytes);
+		if (UNLIKELY(!frame)) {
+			result = EXIT_FAILURE;
+			break;
+		}
+		// converters never reallocate the data buffer that the DirectByteBuffer wraps
+		frame->library_owns_data = 0;
+		jobject byte_buffer = env->NewDirectByteBuffer(frame->data, data_bytes);
+		if (UNLIKELY(!byte_buffer)) {
+			env->ExceptionClear();
+			free(frame->data);
+			uvc_free_frame(frame);
+			result = EXIT_FAILURE;
+			break;
+		}
+		callback_buffer_t *buf = new callback_buffer_t;
+		buf->pool = this;
+		buf->frame = frame;
+		buf->byte_buffer = env->NewGlobalRef(byte_buffer);
+		buf->leases = 0;
+		buf->retired = false;
+		env->DeleteLocalRef(byte_buffer);
+		frame->release = release_buffer_frame;
+		frame->release_ptr = buf;
+		pthread_mutex_lock(&pool_mutex);
+		{
+			mBuffers.put(buf);
+			mFree.put(buf);
+		}
+		pthread_mutex_unlock(&pool_mutex);
+	}
+	if (LIKELY(!result)) {
+		mNumBuffers = num_buffers;
+		mDataBytes = data_bytes;
+	} else {
+		LOGW("failed to allocate callback buffers");
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * free all buffers, leased buffers are freed when they are released
+ */
+void CallbackBufferPool::clear(JNIEnv *env) {
+	ENTER();
+
+	if (LIKELY(env)) {
+		resize(env, 0, 0);
+	}
+
+	EXIT();
+}
+
+/**
+ * free retired buffers that already returned to the pool
+ */
+void CallbackBufferPool::collect(JNIEnv *env) {
+	ObjectArray<callback_buffer_t *> garbage;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		for (callback_buffer_t *buf = mGarbage.last(); buf; buf = mGarbage.last()) {
+			mBuffers.removeObject(buf);
+			garbage.put(buf);
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	for (callback_buffer_t *buf = garbage.last(); buf; buf = garbage.last()) {
+		free_buffer(env, buf);
+	}
+}
+
+void CallbackBufferPool::free_buffer(JNIEnv *env, callback_buffer_t *buf) {
+	env->DeleteGlobalRef(buf->byte_buffer);
+	free(buf->frame->data);
+	uvc_free_frame(buf->frame);
+	delete buf;
+}
+
+/**
+ * get a free buffer, this can be called on any thread
+ * @param data_bytes expected size of the buffer
+ * @return NULL if all buffers are in use or the size does not match
+ */
+uvc_frame_t *CallbackBufferPool::obtain(size_t data_bytes) {
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (LIKELY(data_bytes == mDataBytes)) {
+			callback_buffer_t *buf = mFree.last();
+			if (LIKELY(buf)) {
+				frame = buf->frame;
+				// converters write packed pixels when the step is not set
+				frame->step = 0;
+			}
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	return frame;
+}
+
+/*
+ * called from uvc_unref_frame when the reference counter of the frame became zero
+ */
+// static
+void CallbackBufferPool::release_buffer_frame(uvc_frame_t *frame, void *vptr_args) {
+	callback_buffer_t *buf = reinterpret_cast<callback_buffer_t *>(vptr_args);
+	buf->pool->return_buffer(buf);
+}
+
+void CallbackBufferPool::return_buffer(callback_buffer_t *buf) {
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (UNLIKELY(buf->retired)) {
+			mGarbage.put(buf);
+		} else {
+			mFree.put(buf);
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+}
+
+/**
+ * get the DirectByteBuffer of the buffer frame to pass it to Java
+ * position and limit are reset because Java side may have changed them last time
+ * @param limit size of the data in the buffer when it is smaller than the buffer(e.g. compressed frame),
+ * 			0 to use whole buffer
+ */
+// static
+jobject CallbackBufferPool::prepare(JNIEnv *env, uvc_frame_t *frame, size_t limit) {
+	jobject byte_buffer = reinterpret_cast<callback_buffer_t *>(frame->release_ptr)->byte_buffer;
+	if (LIKELY(sClearMethod)) {
+		jobject ret = env->CallObjectMethod(byte_buffer, sClearMethod);
+		env->ExceptionClear();
+		if (ret) env->DeleteLocalRef(ret);
+	}
+	if (limit && (limit < frame->data_bytes) && LIKELY(sLimitMethod)) {
+		jobject ret = env->CallObjectMethod(byte_buffer, sLimitMethod, (jint)limit);
+		env->ExceptionClear();
+		if (ret) env->DeleteLocalRef(ret);
+	}
+	return byte_buffer;
+}
+
+/**
+ * pool_mutex should be locked
+ */
+callback_buffer_t *CallbackBufferPool::find_locked(JNIEnv *env, jobject byte_buffer) {
+	void *address = byte_buffer ? env->GetDirectBufferAddress(byte_buffer) : NULL;
+	if (LIKELY(address)) {
+		const int n = mBuffers.size();
+		for (int i = 0; i < n; i++) {
+			if (mBuffers[i]->frame->data == address) {
+				return mBuffers[i];
+			}
+		}
+	}
+	return NULL;
+}
+
+/**
+ * keep the buffer that is passed to IFrameCallback#onFrame until #release is called
+ * @return 0 if leased, otherwise the buffer is not in use or not in this pool
+ */
+int CallbackBufferPool::lease(JNIEnv *env, jobject byte_buffer) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		callback_buffer_t *buf = find_locked(env, byte_buffer);
+		if (LIKELY(buf && (mFree.getIndex(buf) < 0) && (mGarbage.getIndex(buf) < 0))) {
+			buf->leases++;
+			uvc_ref_frame(buf->frame);
+			result = EXIT_SUCCESS;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * return the leased buffer to the pool
+ * @return 0 if released, otherwise the buffer was not leased
+ */
+int CallbackBufferPool::release(JNIEnv *env, jobject byte_buffer) {
+	ENTER();
+
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		callback_buffer_t *buf = find_locked(env, byte_buffer);
+		if (LIKELY(buf && (buf->leases > 0))) {
+			buf->leases--;
+			frame = buf->frame;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	if (LIKELY(frame)) {
+		uvc_unref_frame(frame);
+		collect(env);
+	}
+
+	RETURN(frame ? EXIT_SUCCESS : EXIT_FAILURE, int);
+}
@@ -0,0 +1,82 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: CallbackBufferPool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#ifndef CALLBACKBUFFERPOOL_H_
+#define CALLBACKBUFFERPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "objectarray.h"
+
+#pragma interface
+
+class CallbackBufferPool;
+
+typedef struct callback_buffer {
+	CallbackBufferPool *pool;
+	uvc_frame_t *frame;			// the data buffer never moves while the buffer is alive
+	jobject byte_buffer;		// global reference of DirectByteBuffer that wraps the data buffer
+	int leases;					// number of UVCCamera#leaseFrame calls that Java side keeps the frame by
+	bool retired;				// the pool was resized, free when the buffer returns
+} callback_buffer_t;
+
+/**
+ * frame buffers for IFrameCallback, each buffer is paired with one DirectByteBuffer
+ * that is created once and reused for every frame to avoid JNI allocation/GC on each frame.
+ * buffers are reference counted uvc_frame_t and return to the pool with uvc_unref_frame,
+ * Java side can hold a frame after IFrameCallback#onFrame by #lease and return it by #release,
+ * one buffer may be passed to several callbacks and each of them can lease it.
+ * methods that take JNIEnv should be called on the thread attached to JavaVM,
+ * others can be called on any thread.
+ */
+class CallbackBufferPool {
+private:
+	pthread_mutex_t pool_mutex;
+	static jmethodID sClearMethod;	// java.nio.Buffer#clear
+	static jmethodID sLimitMethod;	// java.nio.Buffer#limit(int)
+	int mNumBuffers;
+	size_t mDataBytes;
+	ObjectArray<callback_buffer_t *> mBuffers;	// all buffers including retired ones
+	ObjectArray<callback_buffer_t *> mFree;
+	ObjectArray<callback_buffer_t *> mGarbage;	// retired buffers waiting for JNIEnv to free
+	static void release_buffer_frame(uvc_frame_t *frame, void *vptr_args);
+	void return_buffer(callback_buffer_t *buf);
+	callback_buffer_t *find_locked(JNIEnv *env, jobject byte_buffer);
+	void free_buffer(JNIEnv *env, callback_buffer_t *buf);
+public:
+	CallbackBufferPool();
+	~CallbackBufferPool();
+
+	int resize(JNIEnv *env, int num_buffers, size_t data_bytes);
+	void clear(JNIEnv *env);
+	void collect(JNIEnv *env);
+	uvc_frame_t *obtain(size_t data_bytes);
+	static inline bool isBufferFrame(const uvc_frame_t *frame) { return frame->release == release_buffer_frame; };
+	static jobject prepare(JNIEnv *env, uvc_frame_t *frame, size_t limit = 0);
+	int lease(JNIEnv *env, jobject byte_buffer);
+	int release(JNIEnv *env, jobject byte_buffer);
+};
+
+#endif /* CALLBACKBUFFERPOOL_H_ */
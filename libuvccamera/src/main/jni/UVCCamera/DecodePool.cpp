@@ -0,0 +1,270 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: DecodePool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "DecodePool.h"
+
+#define	LOCAL_DEBUG 0
+
+DecodePool::DecodePool()
+:	mNumThreads(0),
+	mJobs(NULL),
+	mSlots(0),
+	mMaxInFlight(0),
+	mSubmitted(0),
+	mDispatched(0),
+	mDelivered(0),
+	mIsDelivering(false),
+	mIsRunning(false),
+	mDeliverFunc(NULL),
+	mDeliverArgs(NULL) {
+
+	ENTER();
+	pthread_mutex_init(&pool_mutex, NULL);
+	pthread_cond_init(&job_sync, NULL);
+	pthread_cond_init(&done_sync, NULL);
+	EXIT();
+}
+
+DecodePool::~DecodePool() {
+
+	ENTER();
+	stop();
+	pthread_cond_destroy(&done_sync);
+	pthread_cond_destroy(&job_sync);
+	pthread_mutex_destroy(&pool_mutex);
+	EXIT();
+}
+
+/**
+ * start worker threads
+ * @param num_threads number of worker threads, [1, MAX_DECODE_THREADS]
+ * @param max_in_flight maximum number of jobs that are submitted but not delivered yet
+ * @param deliver_func called in submitted order on one of worker threads(or on the caller of #stop)
+ * @return 0 if worker threads started
+ */
+int DecodePool::start(int num_threads, int max_in_flight, deliverFunc_t deliver_func, void *deliver_args) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (UNLIKELY(isRunning() || !deliver_func || (num_threads < 1) || (max_in_flight < 1)))
+		RETURN(result, int);
+
+	if (num_threads > MAX_DECODE_THREADS)
+		num_threads = MAX_DECODE_THREADS;
+	// slots of the reorder buffer is power of 2 to keep indices continuous when they wrap around
+	for (mSlots = 1; mSlots < max_in_flight; mSlots <<= 1) ;
+	mJobs = new decode_job_t[mSlots];
+	memset(mJobs, 0, sizeof(decode_job_t) * mSlots);
+	mMaxInFlight = max_in_flight;
+	mSubmitted = mDispatched = mDelivered = 0;
+	mIsDelivering = false;
+	mDeliverFunc = deliver_func;
+	mDeliverArgs = deliver_args;
+	mIsRunning = true;
+	mNumThreads = 0;
+	for (int i = 0; i < num_threads; i++) {
+		if (LIKELY(!pthread_create(&threads[mNumThreads], NULL, worker_thread_func, (void *)this))) {
+			mNumThreads++;
+		}
+	}
+	if (LIKELY(mNumThreads)) {
+		LOGI("decode pool started:threads=%d,max_in_flight=%d", mNumThreads, mMaxInFlight);
+		result = EXIT_SUCCESS;
+	} else {
+		LOGW("failed to create decode worker thread");
+		mIsRunning = false;
+		SAFE_DELETE_ARRAY(mJobs);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * stop worker threads after they finished current jobs,
+ * jobs that are not started yet are delivered with UVC_ERROR_INTERRUPTED
+ */
+void DecodePool::stop() {
+	ENTER();
+
+	if (!mJobs) {
+		EXIT();
+	}
+	pthread_mutex_lock(&pool_mutex);
+	{
+		mIsRunning = false;
+		pthread_cond_broadcast(&job_sync);
+		pthread_cond_broadcast(&done_sync);
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	for (int i = 0; i < mNumThreads; i++) {
+		if (pthread_join(threads[i], NULL) != EXIT_SUCCESS) {
+			LOGW("DecodePool::terminate worker thread: pthread_join failed");
+		}
+	}
+	mNumThreads = 0;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		const uint32_t mask = mSlots - 1;
+		for (; mDispatched != mSubmitted; mDispatched++) {
+			decode_job_t *job = &mJobs[mDispatched & mask];
+			for (int i = 0; i < DECODE_JOB_OUTPUTS; i++) {
+				job->result[i] = UVC_ERROR_INTERRUPTED;
+				job->elapsed_ns[i] = 0;
+			}
+			job->done = true;
+		}
+		deliver_locked();
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	SAFE_DELETE_ARRAY(mJobs);
+
+	EXIT();
+}
+
+/**
+ * submit a job, block while the number of jobs in flight reaches max_in_flight
+ * @param out0 output frame, NULL if not needed
+ * @param func0 convert function from src to out0
+ * @param scale0 scale_denom passed to func0
+ * @param out1 output frame, NULL if not needed
+ * @param func1 convert function from src to out1
+ * @param scale1 scale_denom passed to func1
+ * @param tag any value that the caller wants to receive with the job on delivery
+ * @return 0 if submitted, otherwise pool is not running and caller still owns the frames
+ */
+int DecodePool::submit(uvc_frame_t *src,
+	uvc_frame_t *out0, decodeFunc_t func0, int scale0,
+	uvc_frame_t *out1, decodeFunc_t func1, int scale1, uint32_t tag) {
+
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		for ( ; mIsRunning && ((int)(mSubmitted - mDelivered) >= mMaxInFlight) ; ) {
+			pthread_cond_wait(&done_sync, &pool_mutex);
+		}
+		if (LIKELY(mIsRunning)) {
+			decode_job_t *job = &mJobs[mSubmitted & (mSlots - 1)];
+			job->src = src;
+			job->out[0] = out0;
+			job->func[0] = func0;
+			job->scale_denom[0] = scale0;
+			job->out[1] = out1;
+			job->func[1] = func1;
+			job->scale_denom[1] = scale1;
+			job->result[0] = job->result[1] = UVC_SUCCESS;
+			job->elapsed_ns[0] = job->elapsed_ns[1] = 0;
+			job->tag = tag;
+			job->done = false;
+			mSubmitted++;
+			pthread_cond_signal(&job_sync);
+			result = EXIT_SUCCESS;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	return result;
+}
+
+/**
+ * deliver completed jobs in submitted order,
+ * only one thread delivers at a time, others leave their jobs to it
+ * pool_mutex should be locked
+ */
+void DecodePool::deliver_locked() {
+	if (mIsDelivering) return;
+	mIsDelivering = true;
+	const uint32_t mask = mSlots - 1;
+	for ( ; mDelivered != mSubmitted ; ) {
+		decode_job_t *job = &mJobs[mDelivered & mask];
+		if (!job->done) break;
+		decode_job_t delivering = *job;
+		pthread_mutex_unlock(&pool_mutex);
+		mDeliverFunc(&delivering, mDeliverArgs);
+		pthread_mutex_lock(&pool_mutex);
+		job->done = false;
+		mDelivered++;
+		pthread_cond_broadcast(&done_sync);
+	}
+	mIsDelivering = false;
+}
+
+//======================================================================
+/*
+ * thread function
+ * @param vptr_args pointer to DecodePool instance
+ */
+// static
+void *DecodePool::worker_thread_func(void *vptr_args) {
+
+	ENTER();
+	DecodePool *pool = reinterpret_cast<DecodePool *>(vptr_args);
+	if (LIKELY(pool)) {
+		pool->do_work();
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+void DecodePool::do_work() {
+	ENTER();
+
+	pthread_mutex_lock(&pool_mutex);
+	for ( ; ; ) {
+		for ( ; mIsRunning && (mDispatched == mSubmitted) ; ) {
+			pthread_cond_wait(&job_sync, &pool_mutex);
+		}
+		if (UNLIKELY(!mIsRunning)) break;
+		decode_job_t *job = &mJobs[mDispatched & (mSlots - 1)];
+		mDispatched++;
+		pthread_mutex_unlock(&pool_mutex);
+		for (int i = 0; i < DECODE_JOB_OUTPUTS; i++) {
+			if (job->out[i] && job->func[i]) {
+				const int64_t start = monotonic_ns();
+				job->result[i] = job->func[i](job->src, job->out[i], job->scale_denom[i]);
+				job->elapsed_ns[i] = monotonic_ns() - start;
+			}
+		}
+		pthread_mutex_lock(&pool_mutex);
+		job->done = true;
+		deliver_locked();
+	}
+	pthread_mutex_unlock(&pool_mutex);
+
+	EXIT();
+}
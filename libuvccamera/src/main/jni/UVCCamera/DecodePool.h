@@ -0,0 +1,93 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: DecodePool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef DECODEPOOL_H_
+#define DECODEPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+#define DECODE_JOB_OUTPUTS 2
+#define MAX_DECODE_THREADS 8
+
+typedef uvc_error_t (*decodeFunc_t)(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);
+
+typedef struct decode_job {
+	uvc_frame_t *src;
+	uvc_frame_t *out[DECODE_JOB_OUTPUTS];		// NULL if the output is not needed
+	decodeFunc_t func[DECODE_JOB_OUTPUTS];
+	int scale_denom[DECODE_JOB_OUTPUTS];
+	uvc_error_t result[DECODE_JOB_OUTPUTS];		// UVC_ERROR_INTERRUPTED if the job was cancelled
+	int64_t elapsed_ns[DECODE_JOB_OUTPUTS];		// time that func took
+	uint32_t tag;								// passed through to deliverFunc_t as it is
+	bool done;
+} decode_job_t;
+
+/**
+ * called in submitted order after the job completed,
+ * the callee takes over all frames in the job
+ */
+typedef void (*deliverFunc_t)(decode_job_t *job, void *vptr_args);
+
+/**
+ * worker threads that decode consecutive frames concurrently.
+ * jobs may complete in any order but they are delivered in submitted order
+ * through the reorder buffer, the worker that completes the oldest job delivers it.
+ * the number of jobs in flight is limited by max_in_flight so #submit blocks when it is reached.
+ */
+class DecodePool {
+private:
+	pthread_mutex_t pool_mutex;
+	pthread_cond_t job_sync;		// signalled when a job is submitted or when stopping
+	pthread_cond_t done_sync;		// signalled when a job is delivered
+	pthread_t threads[MAX_DECODE_THREADS];
+	int mNumThreads;
+	decode_job_t *mJobs;			// reorder buffer
+	int mSlots;						// number of mJobs, power of 2
+	int mMaxInFlight;
+	uint32_t mSubmitted;			// index of next job to submit
+	uint32_t mDispatched;			// index of next job for worker
+	uint32_t mDelivered;			// index of next job to deliver
+	bool mIsDelivering;
+	volatile bool mIsRunning;
+	deliverFunc_t mDeliverFunc;
+	void *mDeliverArgs;
+	static void *worker_thread_func(void *vptr_args);
+	void do_work();
+	void deliver_locked();
+public:
+	DecodePool();
+	~DecodePool();
+
+	int start(int num_threads, int max_in_flight, deliverFunc_t deliver_func, void *deliver_args);
+	void stop();
+	inline const bool isRunning() const { return mIsRunning; };
+	int submit(uvc_frame_t *src,
+		uvc_frame_t *out0, decodeFunc_t func0, int scale0,
+		uvc_frame_t *out1, decodeFunc_t func1, int scale1, uint32_t tag = 0);
+};
+
+#endif /* DECODEPOOL_H_ */
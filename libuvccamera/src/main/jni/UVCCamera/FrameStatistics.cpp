@@ -0,0 +1,270 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameStatistics.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "FrameStatistics.h"
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
+
+#define	LOCAL_DEBUG 0
+
+using namespace rapidjson;
+
+static const char *STAGE_NAMES[STAT_NUM_STAGES] = {
+	"transfer",
+	"dispatch",
+	"dequeue",
+	"convert",
+	"surface",
+	"preview",
+	"callbackEntry",
+	"callback",
+};
+
+static const char *COUNTER_NAMES[STAT_NUM_COUNTERS] = {
+	"received",
+	"previewed",
+	"callbacks",
+	"decimated",
+	// drops
+	"transfer",
+	"notRunning",
+	"broken",
+	"sizeMismatch",
+	"noBuffer",
+	"previewQueue",
+	"captureQueue",
+	"decode",
+	"encoder",
+};
+
+FrameStatistics::FrameStatistics() {
+	ENTER();
+	pthread_mutex_init(&snapshot_mutex, NULL);
+	reset();
+	EXIT();
+}
+
+FrameStatistics::~FrameStatistics() {
+	ENTER();
+	pthread_mutex_destroy(&snapshot_mutex);
+	EXIT();
+}
+
+/**
+ * clear all histograms and counters,
+ * frames that are recorded while resetting may remain partially
+ */
+void FrameStatistics::reset() {
+	ENTER();
+	pthread_mutex_lock(&snapshot_mutex);
+	{
+		for (int i = 0; i < STAT_NUM_STAGES; i++) {
+			latency_histogram_t *histogram = &mHistograms[i];
+			for (int j = 0; j < STAT_NUM_BUCKETS; j++) {
+				__atomic_store_n(&histogram->buckets[j], 0, __ATOMIC_RELAXED);
+			}
+			__atomic_store_n(&histogram->count, 0, __ATOMIC_RELAXED);
+			__atomic_store_n(&histogram->max_us, 0, __ATOMIC_RELAXED);
+		}
+		for (int i = 0; i < STAT_NUM_COUNTERS; i++) {
+			__atomic_store_n(&mCounters[i], 0, __ATOMIC_RELAXED);
+			mSnapshotCounters[i] = 0;
+		}
+		mStartTimeNs = mSnapshotTimeNs = monotonic_ns();
+	}
+	pthread_mutex_unlock(&snapshot_mutex);
+	EXIT();
+}
+
+static inline int bucket_index(uint32_t us) {
+	if (us < STAT_SUB_BUCKETS) return us;
+	if (UNLIKELY(us >= (1U << STAT_MAX_EXPONENT))) return STAT_NUM_BUCKETS - 1;
+	const int exponent = 31 - __builtin_clz(us);
+	return (exponent - STAT_SUB_BUCKET_BITS + 1) * STAT_SUB_BUCKETS
+		+ ((us >> (exponent - STAT_SUB_BUCKET_BITS)) & (STAT_SUB_BUCKETS - 1));
+}
+
+/**
+ * middle of the range of the bucket
+ */
+static inline uint32_t bucket_value(int index) {
+	if (index < STAT_SUB_BUCKETS) return index;
+	const int shift = index / STAT_SUB_BUCKETS - 1;
+	const uint32_t lower = (uint32_t)(STAT_SUB_BUCKETS + (index % STAT_SUB_BUCKETS)) << shift;
+	return lower + ((1U << shift) >> 1);
+}
+
+/**
+ * add latency to the histogram of the stage without locking
+ * @param stage STAT_XXX
+ * @param ns latency in nanoseconds
+ */
+void FrameStatistics::record(int stage, int64_t ns) {
+	const uint32_t us = ns <= 0 ? 0 : (ns >= 4294967295000LL ? 0xffffffffU : (uint32_t)(ns / 1000));
+	latency_histogram_t *histogram = &mHistograms[stage];
+	__atomic_add_fetch(&histogram->buckets[bucket_index(us)], 1, __ATOMIC_RELAXED);
+	__atomic_add_fetch(&histogram->count, 1, __ATOMIC_RELAXED);
+	uint32_t max_us = __atomic_load_n(&histogram->max_us, __ATOMIC_RELAXED);
+	for ( ; (us > max_us)
+		&& !__atomic_compare_exchange_n(&histogram->max_us, &max_us, us,
+			false, __ATOMIC_RELAXED, __ATOMIC_RELAXED) ; ) {
+		// max_us was updated by other thread, retry
+	}
+}
+
+/**
+ * copy current counters without locking
+ * @param counters array that has STAT_NUM_COUNTERS elements
+ */
+void FrameStatistics::getCounters(uint32_t *counters) {
+	for (int i = 0; i < STAT_NUM_COUNTERS; i++) {
+		counters[i] = __atomic_load_n(&mCounters[i], __ATOMIC_RELAXED);
+	}
+}
+
+static void writeHistogram(Writer<StringBuffer> &writer, const char *name,
+	const uint32_t *buckets, uint32_t count, uint32_t max_us) {
+
+	static const double PERCENTILES[] = { 0.5, 0.9, 0.99, 0.999 };
+	static const char *PERCENTILE_NAMES[] = { "p50", "p90", "p99", "p999" };
+
+	writer.String(name);
+	writer.StartObject();
+	{
+		writer.String("count");
+		writer.Uint(count);
+		if (count) {
+			double sum = 0.0;
+			for (int i = 0; i < STAT_NUM_BUCKETS; i++) {
+				if (buckets[i]) sum += (double)bucket_value(i) * buckets[i];
+			}
+			writer.String("mean");
+			writer.Uint((uint32_t)(sum / count));
+			int index = 0;
+			uint32_t cumulative = 0;
+			for (int i = 0; i < (int)(sizeof(PERCENTILES) / sizeof(double)); i++) {
+				const uint32_t rank = (uint32_t)(PERCENTILES[i] * count + 0.5);
+				for ( ; (index < STAT_NUM_BUCKETS - 1) && (cumulative + buckets[index] < (rank ? rank : 1)) ; index++) {
+					cumulative += buckets[index];
+				}
+				const uint32_t v = bucket_value(index);
+				writer.String(PERCENTILE_NAMES[i]);
+				writer.Uint(v < max_us ? v : max_us);
+			}
+		}
+		writer.String("max");
+		writer.Uint(max_us);
+	}
+	writer.EndObject();
+}
+
+/**
+ * take a snapshot of the statistics as JSON without stopping recording,
+ * latencies are in microseconds and fps is averaged since the previous snapshot
+ * @return JSON string, caller should free it
+ */
+char *FrameStatistics::getStatistics() {
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+	uint32_t buckets[STAT_NUM_BUCKETS];
+	uint32_t counters[STAT_NUM_COUNTERS];
+
+	ENTER();
+	pthread_mutex_lock(&snapshot_mutex);
+	{
+		const int64_t now = monotonic_ns();
+		getCounters(counters);
+		const double interval = (now - mSnapshotTimeNs) / 1000000000.0;
+		writer.StartObject();
+		{
+			writer.String("elapsed");
+			writer.Int64((now - mStartTimeNs) / 1000000LL);
+			writer.String("interval");
+			writer.Int64((now - mSnapshotTimeNs) / 1000000LL);
+			writer.String("counters");
+			writer.StartObject();
+			for (int i = 0; i < STAT_DROP_BASE; i++) {
+				writer.String(COUNTER_NAMES[i]);
+				writer.Uint(counters[i]);
+			}
+			writer.EndObject();
+			writer.String("drops");
+			writer.StartObject();
+			{
+				uint32_t total = 0;
+				for (int i = STAT_DROP_BASE; i < STAT_NUM_COUNTERS; i++) {
+					writer.String(COUNTER_NAMES[i]);
+					writer.Uint(counters[i]);
+					total += counters[i];
+				}
+				writer.String("total");
+				writer.Uint(total);
+			}
+			writer.EndObject();
+			writer.String("fps");
+			writer.StartObject();
+			for (int i = STAT_RECEIVED; i <= STAT_CALLBACKS; i++) {
+				writer.String(COUNTER_NAMES[i]);
+				writer.Double(interval > 0.0 ? (counters[i] - mSnapshotCounters[i]) / interval : 0.0);
+			}
+			writer.EndObject();
+			writer.String("latency");
+			writer.StartObject();
+			for (int i = 0; i < STAT_NUM_STAGES; i++) {
+				const latency_histogram_t *histogram = &mHistograms[i];
+				uint32_t count = 0;
+				for (int j = 0; j < STAT_NUM_BUCKETS; j++) {
+					buckets[j] = __atomic_load_n(&histogram->buckets[j], __ATOMIC_RELAXED);
+					count += buckets[j];
+				}
+				writeHistogram(writer, STAGE_NAMES[i], buckets, count,
+					__atomic_load_n(&histogram->max_us, __ATOMIC_RELAXED));
+			}
+			writer.EndObject();
+		}
+		writer.EndObject();
+		mSnapshotTimeNs = now;
+		memcpy(mSnapshotCounters, counters, sizeof(counters));
+	}
+	pthread_mutex_unlock(&snapshot_mutex);
+
+	RETURN(strdup(buffer.GetString()), char *);
+}
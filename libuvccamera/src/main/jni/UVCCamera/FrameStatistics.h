@@ -0,0 +1,101 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameStatistics.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMESTATISTICS_H_
+#define FRAMESTATISTICS_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+// latencies that are measured at each stage of UVCPreview, all of them are in microseconds
+#define STAT_TRANSFER 0			// device capture -> USB transfer completion, only when the device clock is recovered
+#define STAT_DISPATCH 1			// USB transfer completion -> uvc_preview_frame_callback
+#define STAT_DEQUEUE 2			// USB transfer completion -> dequeued by preview thread
+#define STAT_CONVERT 3			// duration of MJPEG decode and/or colour conversion for preview
+#define STAT_SURFACE 4			// duration of copying to and posting the preview surface
+#define STAT_PREVIEW 5			// USB transfer completion -> preview surface posted
+#define STAT_CALLBACK_ENTRY 6	// USB transfer completion -> do_capture_callback entry
+#define STAT_CALLBACK 7			// duration of do_capture_callback including IFrameCallback#onFrame
+#define STAT_NUM_STAGES 8
+
+// counters
+#define STAT_RECEIVED 0			// frames passed to uvc_preview_frame_callback
+#define STAT_PREVIEWED 1		// frames posted to the preview surface
+#define STAT_CALLBACKS 2		// frames passed to IFrameCallback
+#define STAT_DECIMATED 3		// frames that no consumer wanted at its max fps, these are not drops
+// dropped frames for each cause, same order as UVCCamera.DROP_XXX
+#define STAT_DROP_BASE 4
+#define STAT_DROP_TRANSFER (STAT_DROP_BASE + 0)		// lost before uvc_preview_frame_callback, transfer error or libuvc fell behind
+#define STAT_DROP_NOT_RUNNING (STAT_DROP_BASE + 1)	// arrived while preview is stopping
+#define STAT_DROP_BROKEN (STAT_DROP_BASE + 2)		// empty frame or uncompressed frame shorter than expected
+#define STAT_DROP_SIZE_MISMATCH (STAT_DROP_BASE + 3)	// width/height differ from the negotiated ones
+#define STAT_DROP_NO_BUFFER (STAT_DROP_BASE + 4)		// no frame buffer is available in the pool
+#define STAT_DROP_PREVIEW_QUEUE (STAT_DROP_BASE + 5)	// preview thread fell behind
+#define STAT_DROP_CAPTURE_QUEUE (STAT_DROP_BASE + 6)	// capture thread fell behind, only the latest frame is kept
+#define STAT_DROP_DECODE (STAT_DROP_BASE + 7)		// failed to decode/convert for preview
+#define STAT_DROP_ENCODER (STAT_DROP_BASE + 8)		// no input buffer of MediaCodecEncoder or failed to convert
+#define STAT_NUM_DROPS 9
+#define STAT_NUM_COUNTERS (STAT_DROP_BASE + STAT_NUM_DROPS)
+
+// log-linear buckets, 16 sub-buckets for each power of 2 keep the relative error below 1/16
+#define STAT_SUB_BUCKET_BITS 4
+#define STAT_SUB_BUCKETS (1 << STAT_SUB_BUCKET_BITS)
+#define STAT_MAX_EXPONENT 30	// up to about 18 minutes
+#define STAT_NUM_BUCKETS ((STAT_MAX_EXPONENT - STAT_SUB_BUCKET_BITS + 1) * STAT_SUB_BUCKETS)
+
+typedef struct latency_histogram {
+	volatile uint32_t buckets[STAT_NUM_BUCKETS];
+	volatile uint32_t count;
+	volatile uint32_t max_us;
+} latency_histogram_t;
+
+/**
+ * latency histograms and counters of frames for one camera.
+ * #record and #count are lock-free and can be called on any thread,
+ * #getStatistics takes a snapshot while the frames are still recorded.
+ * only 32 bit atomic operations are used because some ABIs don't have 64 bit ones.
+ */
+class FrameStatistics {
+private:
+	pthread_mutex_t snapshot_mutex;
+	latency_histogram_t mHistograms[STAT_NUM_STAGES];
+	volatile uint32_t mCounters[STAT_NUM_COUNTERS];
+	int64_t mStartTimeNs;
+	int64_t mSnapshotTimeNs;		// when the previous snapshot was taken
+	uint32_t mSnapshotCounters[STAT_NUM_COUNTERS];
+public:
+	FrameStatistics();
+	~FrameStatistics();
+
+	void reset();
+	void record(int stage, int64_t ns);
+	inline void count(int counter) { __atomic_add_fetch(&mCounters[counter], 1, __ATOMIC_RELAXED); };
+	inline void count(int counter, uint32_t n) { __atomic_add_fetch(&mCounters[counter], n, __ATOMIC_RELAXED); };
+	void getCounters(uint32_t *counters);
+	char *getStatistics();
+};
+
+#endif /* FRAMESTATISTICS_H_ */
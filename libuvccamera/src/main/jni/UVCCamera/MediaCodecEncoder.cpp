@@ -0,0 +1,509 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodecEncoder.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <dlfcn.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "MediaCodecEncoder.h"
+
+#define	LOCAL_DEBUG 0
+
+#define MIME_TYPE "video/avc"
+#define INPUT_TIMEOUT_US 10000		// the frame is dropped if no input buffer is available in this time
+#define OUTPUT_TIMEOUT_US 10000
+#define MAX_EOS_RETRY 100			// give up waiting end of stream after MAX_EOS_RETRY * OUTPUT_TIMEOUT_US
+#define QCOM_UV_ALIGNMENT 2048		// QCOM encoders expect the chroma plane at this alignment
+
+// same values as NdkMediaCodec.h/NdkMediaMuxer.h
+typedef int32_t media_status_t;
+#define AMEDIA_OK 0
+#define AMEDIACODEC_CONFIGURE_FLAG_ENCODE 1
+#define AMEDIACODEC_BUFFER_FLAG_CODEC_CONFIG 2
+#define AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM 4
+#define AMEDIACODEC_INFO_TRY_AGAIN_LATER -1
+#define AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED -2
+#define AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED -3
+#define AMEDIAMUXER_OUTPUT_FORMAT_MPEG_4 0
+
+typedef struct AMediaCodecBufferInfo {
+	int32_t offset;
+	int32_t size;
+	int64_t presentationTimeUs;
+	uint32_t flags;
+} AMediaCodecBufferInfo;
+
+/**
+ * functions of libmediandk.so that are resolved at runtime
+ */
+static struct {
+	bool loaded;
+	AMediaFormat *(*AMediaFormat_new)();
+	media_status_t (*AMediaFormat_delete)(AMediaFormat *format);
+	void (*AMediaFormat_setInt32)(AMediaFormat *format, const char *name, int32_t value);
+	void (*AMediaFormat_setString)(AMediaFormat *format, const char *name, const char *value);
+	bool (*AMediaFormat_getInt32)(AMediaFormat *format, const char *name, int32_t *out);
+	AMediaCodec *(*AMediaCodec_createEncoderByType)(const char *mime_type);
+	media_status_t (*AMediaCodec_delete)(AMediaCodec *codec);
+	media_status_t (*AMediaCodec_configure)(AMediaCodec *codec, const AMediaFormat *format,
+		void *surface, void *crypto, uint32_t flags);
+	media_status_t (*AMediaCodec_start)(AMediaCodec *codec);
+	media_status_t (*AMediaCodec_stop)(AMediaCodec *codec);
+	ssize_t (*AMediaCodec_dequeueInputBuffer)(AMediaCodec *codec, int64_t timeout_us);
+	uint8_t *(*AMediaCodec_getInputBuffer)(AMediaCodec *codec, size_t idx, size_t *out_size);
+	media_status_t (*AMediaCodec_queueInputBuffer)(AMediaCodec *codec, size_t idx,
+		off_t offset, size_t size, uint64_t time, uint32_t flags);
+	ssize_t (*AMediaCodec_dequeueOutputBuffer)(AMediaCodec *codec, AMediaCodecBufferInfo *info, int64_t timeout_us);
+	uint8_t *(*AMediaCodec_getOutputBuffer)(AMediaCodec *codec, size_t idx, size_t *out_size);
+	AMediaFormat *(*AMediaCodec_getOutputFormat)(AMediaCodec *codec);
+	AMediaFormat *(*AMediaCodec_getInputFormat)(AMediaCodec *codec);	// API>=28, may be NULL
+	media_status_t (*AMediaCodec_releaseOutputBuffer)(AMediaCodec *codec, size_t idx, bool render);
+	AMediaMuxer *(*AMediaMuxer_new)(int fd, int format);
+	media_status_t (*AMediaMuxer_delete)(AMediaMuxer *muxer);
+	ssize_t (*AMediaMuxer_addTrack)(AMediaMuxer *muxer, const AMediaFormat *format);
+	media_status_t (*AMediaMuxer_start)(AMediaMuxer *muxer);
+	media_status_t (*AMediaMuxer_stop)(AMediaMuxer *muxer);
+	media_status_t (*AMediaMuxer_writeSampleData)(AMediaMuxer *muxer, size_t track_idx,
+		const uint8_t *data, const AMediaCodecBufferInfo *info);
+} ndk;
+
+static pthread_once_t ndk_once = PTHREAD_ONCE_INIT;
+
+static void load_mediandk() {
+	ENTER();
+
+	void *handle = dlopen("libmediandk.so", RTLD_NOW);
+	if (LIKELY(handle)) {
+		bool resolved = true;
+#define RESOLVE(name) \
+		if (!(*(void **)(&ndk.name) = dlsym(handle, #name))) { \
+			LOGW("%s not found", #name); \
+			resolved = false; \
+		}
+		RESOLVE(AMediaFormat_new);
+		RESOLVE(AMediaFormat_delete);
+		RESOLVE(AMediaFormat_setInt32);
+		RESOLVE(AMediaFormat_setString);
+		RESOLVE(AMediaFormat_getInt32);
+		RESOLVE(AMediaCodec_createEncoderByType);
+		RESOLVE(AMediaCodec_delete);
+		RESOLVE(AMediaCodec_configure);
+		RESOLVE(AMediaCodec_start);
+		RESOLVE(AMediaCodec_stop);
+		RESOLVE(AMediaCodec_dequeueInputBuffer);
+		RESOLVE(AMediaCodec_getInputBuffer);
+		RESOLVE(AMediaCodec_queueInputBuffer);
+		RESOLVE(AMediaCodec_dequeueOutputBuffer);
+		RESOLVE(AMediaCodec_getOutputBuffer);
+		RESOLVE(AMediaCodec_getOutputFormat);
+		RESOLVE(AMediaCodec_releaseOutputBuffer);
+		RESOLVE(AMediaMuxer_new);
+		RESOLVE(AMediaMuxer_delete);
+		RESOLVE(AMediaMuxer_addTrack);
+		RESOLVE(AMediaMuxer_start);
+		RESOLVE(AMediaMuxer_stop);
+		RESOLVE(AMediaMuxer_writeSampleData);
+#undef RESOLVE
+		// optional, the layout of the input buffer is estimated without it
+		*(void **)(&ndk.AMediaCodec_getInputFormat) = dlsym(handle, "AMediaCodec_getInputFormat");
+		if (resolved) {
+			ndk.loaded = true;
+		} else {
+			dlclose(handle);
+		}
+	} else {
+		LOGW("libmediandk.so is not available, API>=21 is required:%s", dlerror());
+	}
+
+	EXIT();
+}
+
+MediaCodecEncoder::MediaCodecEncoder()
+:	mIsRunning(false),
+	mIsDraining(false),
+	mCodec(NULL),
+	mMuxer(NULL),
+	mFd(-1),
+	mTrackIndex(-1),
+	mWidth(0),
+	mHeight(0),
+	mStride(0),
+	mSliceHeight(0),
+	mUVOffset(0),
+	mFrameBytes(0),
+	mWork(NULL),
+	mLastPtsUs(0) {
+
+	ENTER();
+	pthread_mutex_init(&encoder_mutex, NULL);
+	EXIT();
+}
+
+MediaCodecEncoder::~MediaCodecEncoder() {
+
+	ENTER();
+	stop();
+	pthread_mutex_destroy(&encoder_mutex);
+	EXIT();
+}
+
+/**
+ * whether NDK MediaCodec/MediaMuxer can be used on this device
+ */
+// static
+bool MediaCodecEncoder::isAvailable() {
+	pthread_once(&ndk_once, load_mediandk);
+	return ndk.loaded;
+}
+
+/**
+ * start encoding into the mp4 file, frames are passed by #encode after this
+ * @param path path of the output file, the file is overwritten if it exists
+ * @param width width of the frames to encode, frames with different size are dropped
+ * @param height height of the frames to encode
+ * @param frame_rate only used for bitrate control of the codec
+ * @param bitrate bits per second
+ * @param color_format COLOR_FormatYUV420SemiPlanar or COLOR_QCOM_FormatYUV420SemiPlanar
+ * @param iframe_interval seconds between key frames
+ */
+int MediaCodecEncoder::start(const char *path, int width, int height, int frame_rate, int bitrate,
+	int color_format, int iframe_interval) {
+
+	ENTER();
+
+	if (UNLIKELY(!path || (width <= 0) || (height <= 0) || (frame_rate <= 0) || (bitrate <= 0)
+		|| ((color_format != COLOR_FormatYUV420SemiPlanar) && (color_format != COLOR_QCOM_FormatYUV420SemiPlanar))
+		|| !isAvailable())) {
+
+		RETURN(EXIT_FAILURE, int);
+	}
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&encoder_mutex);
+	if (LIKELY(!mIsRunning && !mCodec)) {
+		AMediaFormat *format = ndk.AMediaFormat_new();
+		if (LIKELY(format)) {
+			ndk.AMediaFormat_setString(format, "mime", MIME_TYPE);
+			ndk.AMediaFormat_setInt32(format, "width", width);
+			ndk.AMediaFormat_setInt32(format, "height", height);
+			ndk.AMediaFormat_setInt32(format, "color-format", color_format);
+			ndk.AMediaFormat_setInt32(format, "bitrate", bitrate);
+			ndk.AMediaFormat_setInt32(format, "frame-rate", frame_rate);
+			ndk.AMediaFormat_setInt32(format, "i-frame-interval", iframe_interval);
+			mCodec = ndk.AMediaCodec_createEncoderByType(MIME_TYPE);
+			if (LIKELY(mCodec
+				&& (ndk.AMediaCodec_configure(mCodec, format, NULL, NULL, AMEDIACODEC_CONFIGURE_FLAG_ENCODE) == AMEDIA_OK)
+				&& (ndk.AMediaCodec_start(mCodec) == AMEDIA_OK))) {
+
+				mFd = open(path, O_CREAT | O_TRUNC | O_RDWR, 0644);
+				if (LIKELY(mFd >= 0)) {
+					mMuxer = ndk.AMediaMuxer_new(mFd, AMEDIAMUXER_OUTPUT_FORMAT_MPEG_4);
+				} else {
+					LOGE("failed to open %s", path);
+				}
+			} else {
+				LOGE("failed to start encoder:%dx%d,color_format=0x%x", width, height, color_format);
+			}
+			ndk.AMediaFormat_delete(format);
+		}
+		if (LIKELY(mMuxer)) {
+			mWidth = width;
+			mHeight = height;
+			if (UNLIKELY(setup_layout(color_format))) {
+				LOGE("failed to allocate work frame");
+			} else {
+				mTrackIndex = -1;
+				mLastPtsUs = 0;
+				mIsRunning = mIsDraining = true;
+				result = pthread_create(&drain_thread, NULL, drain_thread_func, (void *)this);
+				if (UNLIKELY(result)) {
+					mIsRunning = mIsDraining = false;
+				}
+			}
+		}
+		if (UNLIKELY(result)) {
+			release();
+		}
+	}
+	pthread_mutex_unlock(&encoder_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * decide the layout of the input buffer from stride/slice-height of the codec,
+ * frames are converted into mWork and copied with the layout if it is not tightly packed.
+ * encoder_mutex should be locked and mCodec should be started
+ * @return 0 on success
+ */
+int MediaCodecEncoder::setup_layout(const int &color_format) {
+	ENTER();
+
+	int32_t stride = 0, slice_height = 0;
+	AMediaFormat *format = ndk.AMediaCodec_getInputFormat ? ndk.AMediaCodec_getInputFormat(mCodec) : NULL;
+	if (format) {
+		ndk.AMediaFormat_getInt32(format, "stride", &stride);
+		ndk.AMediaFormat_getInt32(format, "slice-height", &slice_height);
+		ndk.AMediaFormat_delete(format);
+	}
+	if (color_format == COLOR_QCOM_FormatYUV420SemiPlanar) {
+		// same alignment as the venus driver when the codec does not tell
+		if (stride < mWidth) stride = (mWidth + 127) & ~127;
+		if (slice_height < mHeight) slice_height = (mHeight + 31) & ~31;
+	}
+	mStride = stride >= mWidth ? stride : mWidth;
+	mSliceHeight = slice_height >= mHeight ? slice_height : mHeight;
+	mUVOffset = mStride * mSliceHeight;
+	if (color_format == COLOR_QCOM_FormatYUV420SemiPlanar) {
+		mUVOffset = (mUVOffset + QCOM_UV_ALIGNMENT - 1) & ~(QCOM_UV_ALIGNMENT - 1);
+	}
+	// chroma plane of yuv420sp covers odd row/column with one sample, the last row does not need the padding
+	mFrameBytes = mUVOffset + mStride * (((mHeight + 1) >> 1) - 1) + ((mWidth + 1) >> 1) * 2;
+	const size_t packed_bytes = mWidth * mHeight + ((mWidth + 1) >> 1) * ((mHeight + 1) >> 1) * 2;
+	LOGI("input layout:%dx%d,stride=%d,slice_height=%d,uv_offset=%d",
+		mWidth, mHeight, mStride, mSliceHeight, (int)mUVOffset);
+	if ((mStride != mWidth) || (mUVOffset != (size_t)(mWidth * mHeight))) {
+		mWork = uvc_allocate_frame(packed_bytes);
+		RETURN(mWork ? 0 : -1, int);
+	}
+	RETURN(0, int);
+}
+
+/**
+ * copy tightly packed yuv420sp frame into the input buffer with the layout of the codec
+ */
+void MediaCodecEncoder::copy_to_layout(const uvc_frame_t *src, uint8_t *dst) {
+	const uint8_t *s = (const uint8_t *)src->data;
+	for (int h = 0; h < mHeight; h++) {
+		memcpy(dst + mStride * h, s, mWidth);
+		s += mWidth;
+	}
+	const int uv_bytes = ((mWidth + 1) >> 1) * 2;
+	const int uv_height = (mHeight + 1) >> 1;
+	uint8_t *uv = dst + mUVOffset;
+	for (int h = 0; h < uv_height; h++) {
+		memcpy(uv + mStride * h, s, uv_bytes);
+		s += uv_bytes;
+	}
+}
+
+/**
+ * stop encoding, this blocks until all encoded frames are written and the file is closed
+ */
+int MediaCodecEncoder::stop() {
+	ENTER();
+
+	bool running;
+	pthread_mutex_lock(&encoder_mutex);
+	{
+		running = mIsRunning;
+		if (running) {
+			mIsRunning = false;
+			// queue end of stream so that the drain thread writes all remaining frames
+			const ssize_t ix = ndk.AMediaCodec_dequeueInputBuffer(mCodec, INPUT_TIMEOUT_US);
+			if (UNLIKELY((ix < 0)
+				|| (ndk.AMediaCodec_queueInputBuffer(mCodec, ix, 0, 0, mLastPtsUs + 1,
+					AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM) != AMEDIA_OK))) {
+
+				LOGW("failed to queue end of stream, frames in the codec are lost");
+				mIsDraining = false;
+			}
+		}
+	}
+	pthread_mutex_unlock(&encoder_mutex);
+	if (running) {
+		if (pthread_join(drain_thread, NULL) != EXIT_SUCCESS) {
+			LOGW("MediaCodecEncoder::terminate drain thread: pthread_join failed");
+		}
+		pthread_mutex_lock(&encoder_mutex);
+		{
+			release();
+		}
+		pthread_mutex_unlock(&encoder_mutex);
+	}
+
+	RETURN(0, int);
+}
+
+/**
+ * encoder_mutex should be locked
+ */
+void MediaCodecEncoder::release() {
+	ENTER();
+
+	if (mCodec) {
+		ndk.AMediaCodec_stop(mCodec);
+		ndk.AMediaCodec_delete(mCodec);
+		mCodec = NULL;
+	}
+	if (mMuxer) {
+		ndk.AMediaMuxer_delete(mMuxer);
+		mMuxer = NULL;
+	}
+	if (mFd >= 0) {
+		close(mFd);
+		mFd = -1;
+	}
+	if (mWork) {
+		uvc_free_frame(mWork);
+		mWork = NULL;
+	}
+
+	EXIT();
+}
+
+/**
+ * convert the frame directly into the input buffer of the codec and queue it with its capture time.
+ * this does not block longer than INPUT_TIMEOUT_US
+ * @param frame MJPEG/yuyv/uyvy frame
+ * @return 0 if the frame was queued, otherwise the frame was dropped
+ */
+int MediaCodecEncoder::encode(uvc_frame_t *frame) {
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&encoder_mutex);
+	if (LIKELY(mIsRunning
+		&& (frame->width == (uint32_t)mWidth) && (frame->height == (uint32_t)mHeight))) {
+
+		const ssize_t ix = ndk.AMediaCodec_dequeueInputBuffer(mCodec, INPUT_TIMEOUT_US);
+		if (LIKELY(ix >= 0)) {
+			size_t sz = 0;
+			size_t bytes = 0;
+			uint8_t *buf = ndk.AMediaCodec_getInputBuffer(mCodec, ix, &sz);
+			if (LIKELY(buf && (sz >= mFrameBytes))) {
+				if (mWork) {
+					// libuvc only writes tightly packed frames, copy it with stride and chroma offset of the codec
+					if (LIKELY(!uvc_any2yuv420SP_scaled(frame, mWork, 1))) {
+						copy_to_layout(mWork, buf);
+						bytes = mFrameBytes;
+					}
+				} else {
+					// wrap the input buffer with uvc_frame_t that libuvc never reallocates
+					uvc_frame_t dest;
+					memset(&dest, 0, sizeof(dest));
+					dest.data = buf;
+					dest.data_bytes = sz;
+					dest.width = mWidth;
+					dest.height = mHeight;
+					dest.step = mWidth;
+					dest.frame_format = UVC_FRAME_FORMAT_NV12;
+					dest.library_owns_data = 0;
+					if (LIKELY(!uvc_any2yuv420SP_scaled(frame, &dest, 1))) {
+						bytes = mFrameBytes;
+					}
+				}
+			}
+			// presentation time should increase monotonically
+			int64_t pts_us = frame->timestamp.capture_ns / 1000LL;
+			if (pts_us <= mLastPtsUs) {
+				pts_us = mLastPtsUs + 1;
+			}
+			// the buffer is returned to the codec even if conversion failed, empty buffer is just ignored
+			if (LIKELY((ndk.AMediaCodec_queueInputBuffer(mCodec, ix, 0, bytes, pts_us, 0) == AMEDIA_OK) && bytes)) {
+				mLastPtsUs = pts_us;
+				result = 0;
+			}
+		}
+	}
+	pthread_mutex_unlock(&encoder_mutex);
+	return result;
+}
+
+/*
+ * thread function
+ * @param vptr_args pointer to MediaCodecEncoder instance
+ */
+// static
+void *MediaCodecEncoder::drain_thread_func(void *vptr_args) {
+	ENTER();
+	MediaCodecEncoder *encoder = reinterpret_cast<MediaCodecEncoder *>(vptr_args);
+	if (LIKELY(encoder)) {
+		encoder->do_drain();
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+/**
+ * write encoded frames to the muxer until end of stream
+ */
+void MediaCodecEncoder::do_drain() {
+	ENTER();
+
+	AMediaCodecBufferInfo info;
+	int retry = 0;
+	for (; mIsDraining ;) {
+		const ssize_t ix = ndk.AMediaCodec_dequeueOutputBuffer(mCodec, &info, OUTPUT_TIMEOUT_US);
+		if (ix >= 0) {
+			size_t sz = 0;
+			const uint8_t *buf = ndk.AMediaCodec_getOutputBuffer(mCodec, ix, &sz);
+			// codec specific data is passed to the muxer with the output format instead
+			if (LIKELY(buf && (info.size > 0) && (mTrackIndex >= 0)
+				&& !(info.flags & AMEDIACODEC_BUFFER_FLAG_CODEC_CONFIG))) {
+				ndk.AMediaMuxer_writeSampleData(mMuxer, mTrackIndex, buf, &info);
+			}
+			ndk.AMediaCodec_releaseOutputBuffer(mCodec, ix, false);
+			if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM) {
+				break;
+			}
+		} else if (ix == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED) {
+			AMediaFormat *format = ndk.AMediaCodec_getOutputFormat(mCodec);
+			if (LIKELY(format && (mTrackIndex < 0))) {
+				mTrackIndex = ndk.AMediaMuxer_addTrack(mMuxer, format);
+				if (UNLIKELY((mTrackIndex < 0) || (ndk.AMediaMuxer_start(mMuxer) != AMEDIA_OK))) {
+					LOGE("failed to start muxer");
+					mTrackIndex = -1;
+				}
+			}
+			if (format) {
+				ndk.AMediaFormat_delete(format);
+			}
+		} else if (ix == AMEDIACODEC_INFO_TRY_AGAIN_LATER) {
+			if (!mIsRunning && (++retry > MAX_EOS_RETRY)) {
+				LOGW("end of stream did not come from the codec");
+				break;
+			}
+		}
+		// AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED is ignored because buffers are got by index every time
+	}
+	if (mTrackIndex >= 0) {
+		ndk.AMediaMuxer_stop(mMuxer);
+		mTrackIndex = -1;
+	}
+	mIsDraining = false;
+
+	EXIT();
+}
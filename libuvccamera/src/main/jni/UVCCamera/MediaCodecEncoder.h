@@ -0,0 +1,84 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodecEncoder.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef MEDIACODECENCODER_H_
+#define MEDIACODECENCODER_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include <sys/types.h>
+
+#pragma interface
+
+// MediaCodecInfo.CodecCapabilities, the encoder accepts only semi planar formats same as MediaVideoBufferEncoder
+#define COLOR_FormatYUV420SemiPlanar 21
+#define COLOR_QCOM_FormatYUV420SemiPlanar 0x7fa30c00
+
+#define DEFAULT_ENCODER_IFRAME_INTERVAL 10
+
+// opaque types of libmediandk, its headers are not available on APP_PLATFORM android-14
+struct AMediaCodec;
+struct AMediaFormat;
+struct AMediaMuxer;
+
+/**
+ * h.264 encoder and mp4 muxer that run on NDK MediaCodec/MediaMuxer(API>=21).
+ * frames are converted directly into the input buffer of the codec and queued with their capture time,
+ * encoded frames are written to the muxer on the drain thread.
+ * libmediandk.so is loaded at runtime so this library still loads on older devices.
+ */
+class MediaCodecEncoder {
+private:
+	pthread_mutex_t encoder_mutex;	// guards mCodec while queueing input and stopping
+	pthread_t drain_thread;
+	volatile bool mIsRunning;		// frames are accepted by #encode
+	volatile bool mIsDraining;		// drain thread runs until end of stream
+	AMediaCodec *mCodec;
+	AMediaMuxer *mMuxer;
+	int mFd;
+	ssize_t mTrackIndex;			// -1 until the output format is available
+	int mWidth, mHeight;
+	int mStride, mSliceHeight;		// layout of the input buffer that the codec expects
+	size_t mUVOffset;				// offset of the chroma plane in the input buffer
+	size_t mFrameBytes;				// bytes of a yuv420sp frame in the input buffer
+	uvc_frame_t *mWork;				// packed frame to copy with the layout, NULL if it is packed
+	int64_t mLastPtsUs;				// presentation time of the last queued frame
+	static void *drain_thread_func(void *vptr_args);
+	void do_drain();
+	int setup_layout(const int &color_format);
+	void copy_to_layout(const uvc_frame_t *src, uint8_t *dst);
+	void release();
+public:
+	MediaCodecEncoder();
+	~MediaCodecEncoder();
+
+	static bool isAvailable();
+	int start(const char *path, int width, int height, int frame_rate, int bitrate,
+		int color_format, int iframe_interval = DEFAULT_ENCODER_IFRAME_INTERVAL);
+	int stop();
+	inline const bool isRunning() const { return mIsRunning; };
+	int encode(uvc_frame_t *frame);
+};
+
+#endif /* MEDIACODECENCODER_H_ */
@@ -0,0 +1,510 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StillCapture.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <time.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "turbojpeg.h"
+#include "StillCapture.h"
+
+#define	LOCAL_DEBUG 0
+
+static void free_request(still_request_t *req) {
+	if (req->frame) {
+		uvc_unref_frame(req->frame);
+	}
+	free(req->path);
+	delete req;
+}
+
+/**
+ * write whole data into the file, the file is overwritten if it exists
+ */
+static int write_file(const char *path, const uint8_t *data, size_t bytes) {
+	const int fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+	if (UNLIKELY(fd < 0)) {
+		LOGE("failed to open still file:%s", path);
+		return -1;
+	}
+	int result = 0;
+	for (size_t written = 0; written < bytes; ) {
+		const ssize_t n = write(fd, data + written, bytes - written);
+		if (UNLIKELY(n <= 0)) {
+			result = -1;
+			break;
+		}
+		written += n;
+	}
+	if (UNLIKELY(close(fd))) {
+		result = -1;
+	}
+	return result;
+}
+
+/**
+ * split packed yuyv/uyvy into planes of yuv422 that TurboJPEG compresses without color conversion
+ * @param y_offset 0 for yuyv, 1 for uyvy
+ */
+static void yuv422_to_planes(const uvc_frame_t *frame, int y_offset, uint8_t *planes) {
+	const int width = frame->width, height = frame->height;
+	const int src_step = frame->step ? frame->step : width * 2;
+	uint8_t *y = planes;
+	uint8_t *u = y + width * height;
+	uint8_t *v = u + (width >> 1) * height;
+	const int u_offset = y_offset ? 0 : 1;
+	const int v_offset = u_offset + 2;
+	for (int row = 0; row < height; row++) {
+		const uint8_t *src = (const uint8_t *)frame->data + src_step * row;
+		for (int col = 0; col < width; col += 2, src += 4) {
+			*y++ = src[y_offset];
+			*y++ = src[y_offset + 2];
+			*u++ = src[u_offset];
+			*v++ = src[v_offset];
+		}
+	}
+}
+
+/**
+ * @param tj TurboJPEG compressor, created on the first uncompressed frame
+ */
+static int write_still(still_request_t *req, tjhandle *tj) {
+	uvc_frame_t *frame = req->frame;
+	switch (frame->frame_format) {
+	case UVC_FRAME_FORMAT_MJPEG:
+		// libuvc clears actual_bytes of broken frames
+		if (UNLIKELY(!frame->actual_bytes || (frame->actual_bytes > frame->data_bytes))) {
+			return -1;
+		}
+		return write_file(req->path, (const uint8_t *)frame->data, frame->actual_bytes);
+	case UVC_FRAME_FORMAT_YUYV:
+	case UVC_FRAME_FORMAT_UYVY:
+		break;
+	default:
+		LOGW("unsupported frame format:%d", frame->frame_format);
+		return -1;
+	}
+	if (UNLIKELY(frame->width & 1)) {
+		return -1;
+	}
+	if (!*tj) {
+		*tj = tjInitCompress();
+		if (UNLIKELY(!*tj)) {
+			LOGE("tjInitCompress failed");
+			return -1;
+		}
+	}
+	const size_t plane_bytes = frame->width * frame->height * 2;
+	uint8_t *planes = (uint8_t *)malloc(plane_bytes);
+	if (UNLIKELY(!planes)) {
+		return -1;
+	}
+	yuv422_to_planes(frame, frame->frame_format == UVC_FRAME_FORMAT_UYVY ? 1 : 0, planes);
+	const unsigned char *src_planes[3] = {
+		planes,
+		planes + frame->width * frame->height,
+		planes + frame->width * frame->height + (frame->width >> 1) * frame->height,
+	};
+	unsigned char *jpeg = NULL;
+	unsigned long jpeg_bytes = 0;
+	int result = tjCompressFromYUVPlanes(*tj, src_planes, frame->width, NULL, frame->height,
+		TJSAMP_422, &jpeg, &jpeg_bytes, req->quality, TJFLAG_FASTDCT);
+	free(planes);
+	if (LIKELY(!result)) {
+		result = write_file(req->path, jpeg, jpeg_bytes);
+	} else {
+		LOGW("tjCompressFromYUVPlanes failed:%s", tjGetErrorStr());
+	}
+	if (jpeg) {
+		tjFree(jpeg);
+	}
+	return result;
+}
+
+StillCapture::StillCapture()
+:	mNumWorkers(0),
+	mIsRunning(false),
+	mHasPending(false),
+	mIsDelivering(false),
+	mBurstId(0),
+	mReservedBytes(0),
+	mSkippedFrames(0) {
+
+	ENTER();
+	pthread_mutex_init(&still_mutex, NULL);
+	pthread_cond_init(&still_sync, NULL);
+	EXIT();
+}
+
+StillCapture::~StillCapture() {
+	ENTER();
+
+	stop();
+	pthread_cond_destroy(&still_sync);
+	pthread_mutex_destroy(&still_mutex);
+
+	EXIT();
+}
+
+/**
+ * fail the requests that are waiting for frames and wait until workers finish the reserved ones,
+ * the owner of the frames should call this before releasing its frame pool.
+ * workers start again on the next request
+ */
+void StillCapture::stop() {
+	ENTER();
+
+	// workers fail cancelled requests before they finish
+	cancel();
+	int num_workers;
+	pthread_mutex_lock(&still_mutex);
+	{
+		num_workers = mNumWorkers;
+		mIsRunning = false;
+		pthread_cond_broadcast(&still_sync);
+	}
+	pthread_mutex_unlock(&still_mutex);
+	for (int i = 0; i < num_workers; i++) {
+		if (pthread_join(worker_threads[i], NULL) != EXIT_SUCCESS) {
+			LOGW("StillCapture::terminate worker thread: pthread_join failed");
+		}
+	}
+	pthread_mutex_lock(&still_mutex);
+	{
+		mNumWorkers = 0;
+	}
+	pthread_mutex_unlock(&still_mutex);
+
+	EXIT();
+}
+
+/**
+ * @return NULL if the callback is not StillCaptureFuture
+ */
+still_request_t *StillCapture::create_request(JNIEnv *env, jstring path_str, int quality, jobject callback) {
+	jmethodID onResult = NULL;
+	if (LIKELY(path_str && callback)) {
+		jclass clazz = env->GetObjectClass(callback);
+		if (LIKELY(clazz)) {
+			onResult = env->GetMethodID(clazz, "onResult", "(IJJJ)V");
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+	}
+	if (UNLIKELY(!onResult)) {
+		LOGE("Can't find StillCaptureFuture#onResult");
+		return NULL;
+	}
+	const char *path = env->GetStringUTFChars(path_str, JNI_FALSE);
+	still_request_t *req = new still_request_t;
+	memset(req, 0, sizeof(still_request_t));
+	req->path = strdup(path);
+	env->ReleaseStringUTFChars(path_str, path);
+	req->quality = quality < 1 ? 1 : (quality > 100 ? 100 : quality);
+	req->callback = env->NewGlobalRef(callback);
+	req->onResult = onResult;
+	return req;
+}
+
+/**
+ * start workers on the first request, still_mutex should be locked
+ */
+int StillCapture::start_workers_locked() {
+	if (mNumWorkers) return EXIT_SUCCESS;
+	const long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+	const int n = cpus < 1 ? 1 : (cpus > MAX_STILL_WORKERS ? MAX_STILL_WORKERS : (int)cpus);
+	mIsRunning = true;
+	for (int i = 0; i < n; i++) {
+		if (UNLIKELY(pthread_create(&worker_threads[mNumWorkers], NULL, worker_thread_func, (void *)this))) {
+			break;
+		}
+		mNumWorkers++;
+	}
+	mIsRunning = mNumWorkers > 0;
+	return mIsRunning ? EXIT_SUCCESS : EXIT_FAILURE;
+}
+
+/**
+ * request the next frame, StillCaptureFuture#onResult is called after the file is written
+ * @param callback StillCaptureFuture, local reference is ok
+ */
+int StillCapture::request(JNIEnv *env, jstring path, int quality, jobject callback) {
+	ENTER();
+
+	still_request_t *req = create_request(env, path, quality, callback);
+	if (UNLIKELY(!req)) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	int result;
+	pthread_mutex_lock(&still_mutex);
+	{
+		result = start_workers_locked();
+		if (LIKELY(!result)) {
+			mPending.put(req);
+			mHasPending = true;
+		}
+	}
+	pthread_mutex_unlock(&still_mutex);
+	if (UNLIKELY(result)) {
+		env->DeleteGlobalRef(req->callback);
+		free_request(req);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * request consecutive frames, one for each path.
+ * StillCaptureFuture#onResult of each request is called in the order of frames
+ * @param paths array of String, up to MAX_STILL_BURST
+ * @param callbacks array of StillCaptureFuture, same length as paths
+ */
+int StillCapture::requestBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks) {
+	ENTER();
+
+	const int num = paths && callbacks ? env->GetArrayLength(paths) : 0;
+	if (UNLIKELY((num < 1) || (num > MAX_STILL_BURST) || (env->GetArrayLength(callbacks) != num))) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	still_request_t *reqs[MAX_STILL_BURST];
+	int n = 0;
+	for ( ; n < num; n++) {
+		jstring path = (jstring)env->GetObjectArrayElement(paths, n);
+		jobject callback = env->GetObjectArrayElement(callbacks, n);
+		reqs[n] = create_request(env, path, quality, callback);
+		env->DeleteLocalRef(path);
+		env->DeleteLocalRef(callback);
+		if (UNLIKELY(!reqs[n])) break;
+	}
+	int result = n == num ? EXIT_SUCCESS : EXIT_FAILURE;
+	if (LIKELY(!result)) {
+		pthread_mutex_lock(&still_mutex);
+		{
+			result = start_workers_locked();
+			if (LIKELY(!result)) {
+				// requests of a burst are contiguous in mPending
+				mBurstId = mBurstId + 1 ? mBurstId + 1 : 1;
+				for (int i = 0; i < num; i++) {
+					reqs[i]->burst = mBurstId;
+					mPending.put(reqs[i]);
+				}
+				mHasPending = true;
+			}
+		}
+		pthread_mutex_unlock(&still_mutex);
+	}
+	if (UNLIKELY(result)) {
+		for (int i = 0; i < n; i++) {
+			env->DeleteGlobalRef(reqs[i]->callback);
+			free_request(reqs[i]);
+		}
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * reserve the frame for the requests that are waiting for it, this is called on preview thread.
+ * single stills that are waiting all take the frame and each burst takes it for its first request.
+ * the frame is referenced instead of copied, it returns to the pool of UVCPreview when all stills are written
+ * @param frame raw frame from the camera, the caller still owns its reference
+ */
+void StillCapture::capture(uvc_frame_t *frame) {
+	ENTER();
+
+	// the whole buffer of the frame is held until the stills are written, not only its payload
+	const size_t bytes = frame->data_bytes;
+	const int64_t now = monotonic_ns();
+	pthread_mutex_lock(&still_mutex);
+	{
+		if (UNLIKELY(!mQueue.isEmpty() && (mReservedBytes + bytes > MAX_STILL_RESERVED_BYTES))) {
+			// back-pressure, keep waiting until workers release reserved frames
+			mSkippedFrames++;
+		} else {
+			uint32_t last_burst = 0;
+			size_t reserved_bytes = bytes;
+			for (int i = 0; i < mPending.size(); ) {
+				still_request_t *req = mPending[i];
+				if (req->burst && (req->burst == last_burst)) {
+					// following requests of the burst take next frames
+					i++;
+					continue;
+				}
+				last_burst = req->burst;
+				mPending.remove(i);
+				req->frame = uvc_ref_frame(frame);
+				req->capture_ns = frame->timestamp.capture_ns;
+				req->reserved_bytes = reserved_bytes;
+				req->reserved_ns = now;
+				mReservedBytes += reserved_bytes;
+				reserved_bytes = 0;
+				mQueue.put(req);
+			}
+			mHasPending = !mPending.isEmpty();
+			pthread_cond_broadcast(&still_sync);
+		}
+	}
+	pthread_mutex_unlock(&still_mutex);
+
+	EXIT();
+}
+
+/**
+ * fail the requests that are waiting for frames, e.g. when preview stops
+ */
+void StillCapture::cancel() {
+	ENTER();
+
+	const int64_t now = monotonic_ns();
+	pthread_mutex_lock(&still_mutex);
+	{
+		for (int i = 0; i < mPending.size(); i++) {
+			mPending[i]->reserved_ns = now;
+			mQueue.put(mPending[i]);
+		}
+		mPending.clear();
+		mHasPending = false;
+		if (mSkippedFrames) {
+			LOGW("%u frames were not reserved for stills because of back-pressure", mSkippedFrames);
+			mSkippedFrames = 0;
+		}
+		pthread_cond_broadcast(&still_sync);
+	}
+	pthread_mutex_unlock(&still_mutex);
+
+	EXIT();
+}
+
+/**
+ * call StillCaptureFuture#onResult with the timing of the request and delete the global reference
+ */
+// static
+void StillCapture::complete(JNIEnv *env, still_request_t *req) {
+	env->CallVoidMethod(req->callback, req->onResult, (jint)req->result,
+		(jlong)req->capture_ns,
+		(jlong)req->wait_ns, (jlong)req->encode_ns);
+	env->ExceptionClear();
+	env->DeleteGlobalRef(req->callback);
+	req->callback = NULL;
+}
+
+/**
+ * deliver completed requests in the order of frames,
+ * only one worker delivers at a time, others leave their requests to it
+ * still_mutex should be locked
+ */
+void StillCapture::deliver_locked(JNIEnv *env) {
+	if (mIsDelivering) return;
+	mIsDelivering = true;
+	for ( ; !mQueue.isEmpty() && mQueue[0]->done ; ) {
+		still_request_t *req = mQueue.remove(0);
+		pthread_mutex_unlock(&still_mutex);
+		complete(env, req);
+		free_request(req);
+		pthread_mutex_lock(&still_mutex);
+	}
+	mIsDelivering = false;
+}
+
+/*
+ * thread function
+ * @param vptr_args pointer to StillCapture instance
+ */
+// static
+void *StillCapture::worker_thread_func(void *vptr_args) {
+	ENTER();
+	StillCapture *still = reinterpret_cast<StillCapture *>(vptr_args);
+	if (LIKELY(still)) {
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// attach to JavaVM
+		vm->AttachCurrentThread(&env, NULL);
+		still->do_work(env);
+		// detach from JavaVM
+		vm->DetachCurrentThread();
+		MARK("DetachCurrentThread");
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+/**
+ * write the reserved frames concurrently with other workers, this never blocks preview thread
+ */
+void StillCapture::do_work(JNIEnv *env) {
+	ENTER();
+
+	tjhandle tj = NULL;
+	pthread_mutex_lock(&still_mutex);
+	for ( ; ; ) {
+		still_request_t *req = NULL;
+		for (int i = 0; i < mQueue.size(); i++) {
+			if (!mQueue[i]->dispatched) {
+				req = mQueue[i];
+				break;
+			}
+		}
+		if (!req) {
+			if (!mIsRunning) break;
+			pthread_cond_wait(&still_sync, &still_mutex);
+			continue;
+		}
+		req->dispatched = true;
+		pthread_mutex_unlock(&still_mutex);
+		const int64_t start = monotonic_ns();
+		req->wait_ns = start - req->reserved_ns;
+		req->result = req->frame && !write_still(req, &tj) ? EXIT_SUCCESS : EXIT_FAILURE;
+		req->encode_ns = monotonic_ns() - start;
+		if (req->frame) {
+			// the frame returns to its pool without waiting for earlier requests to be delivered
+			uvc_unref_frame(req->frame);
+			req->frame = NULL;
+		}
+		pthread_mutex_lock(&still_mutex);
+		mReservedBytes -= req->reserved_bytes;
+		req->reserved_bytes = 0;
+		req->done = true;
+		deliver_locked(env);
+	}
+	pthread_mutex_unlock(&still_mutex);
+	if (tj) {
+		tjDestroy(tj);
+	}
+
+	EXIT();
+}
@@ -0,0 +1,101 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StillCapture.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#ifndef STILLCAPTURE_H_
+#define STILLCAPTURE_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "objectarray.h"
+
+#pragma interface
+
+#define DEFAULT_STILL_QUALITY 90
+#define MAX_STILL_BURST 30
+#define MAX_STILL_WORKERS 3
+// frames are not reserved while reserved frames exceed this until workers catch up
+#define MAX_STILL_RESERVED_BYTES (64 * 1024 * 1024)
+
+typedef struct still_request {
+	char *path;
+	int quality;				// JPEG quality for uncompressed frames, [1, 100]
+	jobject callback;			// global reference of StillCaptureFuture
+	jmethodID onResult;
+	uint32_t burst;				// requests of a burst take consecutive frames one by one, 0 for single still
+	uvc_frame_t *frame;			// NULL until the frame is reserved or if cancelled
+	size_t reserved_bytes;		// counted in mReservedBytes, 0 if other request of the same frame counts it
+	int64_t capture_ns;			// capture time of the frame, 0 if cancelled
+	int64_t reserved_ns;		// when the frame was reserved
+	int64_t wait_ns;			// from reserving the frame until a worker started
+	int64_t encode_ns;			// time that the worker took to encode and write
+	int result;
+	bool dispatched;
+	bool done;
+} still_request_t;
+
+/**
+ * reserves the next raw frames from the camera and writes them as JPEG files on worker threads,
+ * MJPEG frames are written as they are and yuyv/uyvy frames are encoded by TurboJPEG
+ * from planar yuv422 without color conversion.
+ * frames are reserved by reference on preview thread without copying, they are the full size
+ * of the stream regardless of the preview and IFrameCallback.
+ * a burst reserves consecutive frames one for each request and its requests are encoded concurrently
+ * by up to MAX_STILL_WORKERS threads. reserving pauses while reserved frames exceed
+ * MAX_STILL_RESERVED_BYTES, the burst continues from a later frame when workers catch up.
+ * results are passed to StillCaptureFuture#onResult in the order of frames on one of the workers.
+ */
+class StillCapture {
+private:
+	pthread_mutex_t still_mutex;
+	pthread_cond_t still_sync;
+	pthread_t worker_threads[MAX_STILL_WORKERS];
+	int mNumWorkers;
+	volatile bool mIsRunning;		// workers run until the queue becomes empty after this is cleared
+	volatile bool mHasPending;		// checked on preview thread without locking
+	bool mIsDelivering;
+	uint32_t mBurstId;
+	size_t mReservedBytes;
+	uint32_t mSkippedFrames;		// frames that were not reserved because of MAX_STILL_RESERVED_BYTES
+	ObjectArray<still_request_t *> mPending;	// waiting for frames, in the order of requests
+	ObjectArray<still_request_t *> mQueue;		// in the order of frames until delivered
+	still_request_t *create_request(JNIEnv *env, jstring path_str, int quality, jobject callback);
+	int start_workers_locked();
+	static void *worker_thread_func(void *vptr_args);
+	void do_work(JNIEnv *env);
+	void deliver_locked(JNIEnv *env);
+	static void complete(JNIEnv *env, still_request_t *req);
+public:
+	StillCapture();
+	~StillCapture();
+
+	int request(JNIEnv *env, jstring path, int quality, jobject callback);
+	int requestBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks);
+	inline const bool isPending() const { return mHasPending; };
+	void capture(uvc_frame_t *frame);
+	void cancel();
+	void stop();
+};
+
+#endif /* STILLCAPTURE_H_ */
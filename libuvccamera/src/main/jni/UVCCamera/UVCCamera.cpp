@@ -255,6 +255,28 @@ int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, i
 	RETURN(result, int);
 }
 
+/**
+ * get the bandwidth that the stream of the specified size/mode/fps needs and
+ * the bandwidth that each altsetting reserves, this negotiates the stream with the device
+ * but does not start it, so call this before starting preview
+ */
+int UVCCamera::getStreamBandwidth(int width, int height, int min_fps, int max_fps, int mode,
+	uvc_stream_bandwidth_t *bandwidth) {
+
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (LIKELY(mDeviceHandle)) {
+		uvc_stream_ctrl_t ctrl;
+		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
+			!mode ? UVC_FRAME_FORMAT_YUYV : UVC_FRAME_FORMAT_MJPEG,
+			width, height, min_fps, max_fps);
+		if (LIKELY(!result)) {
+			result = uvc_get_stream_bandwidth(mDeviceHandle, &ctrl, bandwidth);
+		}
+	}
+	RETURN(result, int);
+}
+
 int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	ENTER();
 	int result = EXIT_FAILURE;
@@ -264,11 +286,78 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(result, int);
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom,
+	const uvc_resize_t *resize) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, scale_denom, resize);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom, float max_fps,
+	const uvc_resize_t *resize) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->addFrameCallback(env, frame_callback_obj, pixel_format, scale_denom, max_fps, resize);
+	} else if (frame_callback_obj) {
+		env->DeleteGlobalRef(frame_callback_obj);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::removeFrameCallback(JNIEnv *env, jobject frame_callback_obj) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->removeFrameCallback(env, frame_callback_obj);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setFrameQueue(int capacity, int drop_policy) {
 	ENTER();
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = mPreview->setFrameQueue(capacity, drop_policy);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setDecodeThreads(int num_threads, int max_in_flight) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setDecodeThreads(num_threads, max_in_flight);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setPreviewScale(int scale_denom) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPreviewScale(scale_denom);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setPreviewMaxFps(float max_fps) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPreviewMaxFps(max_fps);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setCaptureMaxFps(float max_fps) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setCaptureMaxFps(max_fps);
 	}
 	RETURN(result, int);
 }
@@ -300,6 +389,96 @@ int UVCCamera::setCaptureDisplay(ANativeWindow *capture_window) {
 	RETURN(result, int);
 }
 
+int UVCCamera::startEncoder(const char *path, int width, int height, int frame_rate, int bitrate, int color_format) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->startEncoder(path, width, height, frame_rate, bitrate, color_format);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::stopEncoder() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->stopEncoder();
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::captureStill(JNIEnv *env, jstring path, int quality, jobject callback) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureStill(env, path, quality, callback);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::captureBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureBurst(env, paths, quality, callbacks);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::leaseFrame(JNIEnv *env, jobject frame) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->leaseFrame(env, frame);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::releaseFrame(JNIEnv *env, jobject frame) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->releaseFrame(env, frame);
+	}
+	RETURN(result, int);
+}
+
+char *UVCCamera::getStatistics() {
+	ENTER();
+	if (mPreview) {
+		RETURN(mPreview->getStatistics(), char *);
+	}
+	RETURN(NULL, char *);
+}
+
+int UVCCamera::setPipeline(IPipeline *pipeline) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPipeline(pipeline);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setFrameDropListener(JNIEnv *env, jobject drop_listener, float threshold, int interval_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setFrameDropListener(env, drop_listener, threshold, interval_ms);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getDropCounts(uint32_t *drops) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		mPreview->getDropCounts(drops);
+		result = EXIT_SUCCESS;
+	}
+	RETURN(result, int);
+}
+
 //======================================================================
 // カメラのサポートしているコントロール機能を取得する
 int UVCCamera::getCtrlSupports(uint64_t *supports) {
@@ -189,11 +189,31 @@ public:
 
 	char *getSupportedSize();
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
+	int getStreamBandwidth(int width, int height, int min_fps, int max_fps, int mode, uvc_stream_bandwidth_t *bandwidth);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom,
+		const uvc_resize_t *resize = NULL);
+	int addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom, float max_fps,
+		const uvc_resize_t *resize = NULL);
+	int removeFrameCallback(JNIEnv *env, jobject frame_callback_obj);
+	int setFrameQueue(int capacity, int drop_policy);
+	int setDecodeThreads(int num_threads, int max_in_flight);
+	int setPreviewScale(int scale_denom);
+	int setPreviewMaxFps(float max_fps);
+	int setCaptureMaxFps(float max_fps);
 	int startPreview();
 	int stopPreview();
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int startEncoder(const char *path, int width, int height, int frame_rate, int bitrate, int color_format);
+	int stopEncoder();
+	int captureStill(JNIEnv *env, jstring path, int quality, jobject callback);
+	int captureBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks);
+	int leaseFrame(JNIEnv *env, jobject frame);
+	int releaseFrame(JNIEnv *env, jobject frame);
+	char *getStatistics();
+	int setPipeline(IPipeline *pipeline);
+	int setFrameDropListener(JNIEnv *env, jobject drop_listener, float threshold, int interval_ms);
+	int getDropCounts(uint32_t *drops);
 
 	int getCtrlSupports(uint64_t *supports);
 	int getProcSupports(uint64_t *supports);
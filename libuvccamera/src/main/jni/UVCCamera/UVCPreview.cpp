@@ -23,6 +23,7 @@
 */
 
 #include <stdlib.h>
+#include <string.h>
 #include <linux/time.h>
 #include <unistd.h>
 
@@ -40,11 +41,32 @@
 #include "utilbase.h"
 #include "UVCPreview.h"
 #include "libuvc_internal.h"
+#include "pipeline/IPipeline.h"
 
 #define	LOCAL_DEBUG 0
-#define MAX_FRAME 4
 #define PREVIEW_PIXEL_BYTES 4	// RGBA/RGBX
-#define FRAME_POOL_SZ MAX_FRAME + 2
+#define FRAME_POOL_SZ (previewFrames.capacity() + decodeMaxInFlight + 2)
+#define PREVIEW_WAIT_TIMEOUT_NS 100000000LL	// 100ms, just for safety when terminating
+#define CAPTURE_WAIT_TIMEOUT_NS 100000000LL	// 100ms, to check frame drops even if no frame arrives
+// frame size after scaling by 1/scale_denom, same as libjpeg-turbo
+#define SCALED_SIZE(sz, scale_denom) (((sz) + (scale_denom) - 1) / (scale_denom))
+#define IS_VALID_SCALE(scale_denom) (((scale_denom) == 1) || ((scale_denom) == 2) || ((scale_denom) == 4) || ((scale_denom) == 8))
+
+/**
+ * @param resize NULL if not resized
+ */
+static bool is_valid_resize(const uvc_resize_t *resize, int pixel_format) {
+	return !resize
+		|| ((resize->width > 0) && (resize->height > 0)
+			&& (resize->crop_x >= 0) && (resize->crop_y >= 0)
+			&& (resize->crop_width >= 0) && (resize->crop_height >= 0)
+			&& (resize->filter >= UVC_RESIZE_NEAREST) && (resize->filter <= UVC_RESIZE_AREA)
+			// compressed frames are passed as they are
+			&& (pixel_format != PIXEL_FORMAT_MJPEG)
+			// yuyv needs even width
+			&& (((pixel_format != PIXEL_FORMAT_RAW) && (pixel_format != PIXEL_FORMAT_YUV))
+				|| !(resize->width & 1)));
+}
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 :	mPreviewWindow(NULL),
@@ -62,19 +84,41 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	frameMode(0),
 	previewBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
 	previewFormat(WINDOW_FORMAT_RGBA_8888),
+	requestPreviewScale(DEFAULT_SCALE_DENOM),
+	previewScale(DEFAULT_SCALE_DENOM),
+	previewWidth(DEFAULT_PREVIEW_WIDTH),
+	previewHeight(DEFAULT_PREVIEW_HEIGHT),
+	previewFrames(DEFAULT_FRAME_QUEUE_CAPACITY, DEFAULT_FRAME_QUEUE_POLICY),
+	requestQueueCapacity(DEFAULT_FRAME_QUEUE_CAPACITY),
+	requestQueuePolicy(DEFAULT_FRAME_QUEUE_POLICY),
+	requestDecodeThreads(DEFAULT_DECODE_THREADS),
+	requestDecodeMaxInFlight(DEFAULT_DECODE_MAX_IN_FLIGHT),
+	decodeMaxInFlight(0),
 	mIsRunning(false),
 	mIsCapturing(false),
 	captureQueu(NULL),
-	mFrameCallbackObj(NULL),
-	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(2) {
+	captureConsumers(0),
+	captureConverted(NULL),
+	captureConvertFunc(NULL),
+	captureConvertScale(DEFAULT_SCALE_DENOM),
+	mRawFrameNum(0),
+	mNumFrameCallbacks(0),
+	mNumCallbackGroups(0),
+	mPipeline(NULL),
+	mNextSequence(0),
+	mFrameDropListener(NULL),
+	mOnFrameDrop(NULL),
+	mDropThreshold(0),
+	mDropIntervalNs(0),
+	mNextDropCheckNs(0) {
 
 	ENTER();
-	pthread_cond_init(&preview_sync, NULL);
 	pthread_mutex_init(&preview_mutex, NULL);
 //
 	pthread_cond_init(&capture_sync, NULL);
 	pthread_mutex_init(&capture_mutex, NULL);
+	pthread_mutex_init(&callback_mutex, NULL);
+	pthread_mutex_init(&pipeline_mutex, NULL);
 //	
 	pthread_mutex_init(&pool_mutex, NULL);
 	EXIT();
@@ -83,6 +127,8 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 UVCPreview::~UVCPreview() {
 
 	ENTER();
+	// reserved stills hold frames of the pool
+	mStill.stop();
 	if (mPreviewWindow)
 		ANativeWindow_release(mPreviewWindow);
 	mPreviewWindow = NULL;
@@ -92,8 +138,21 @@ UVCPreview::~UVCPreview() {
 	clearPreviewFrame();
 	clearCaptureFrame();
 	clear_pool();
+	JNIEnv *env = getEnv();
+	if (LIKELY(env)) {
+		pthread_mutex_lock(&callback_mutex);
+		for (int i = mNumFrameCallbacks - 1; i >= 0; i--) {
+			remove_frame_callback_locked(env, i);
+		}
+		if (mFrameDropListener) {
+			env->DeleteGlobalRef(mFrameDropListener);
+			mFrameDropListener = NULL;
+		}
+		pthread_mutex_unlock(&callback_mutex);
+	}
+	pthread_mutex_destroy(&callback_mutex);
+	pthread_mutex_destroy(&pipeline_mutex);
 	pthread_mutex_destroy(&preview_mutex);
-	pthread_cond_destroy(&preview_sync);
 	pthread_mutex_destroy(&capture_mutex);
 	pthread_cond_destroy(&capture_sync);
 	pthread_mutex_destroy(&pool_mutex);
@@ -105,6 +164,7 @@ UVCPreview::~UVCPreview() {
  * if pool is empty, create new frame
  * this function does not confirm the frame size
  * and you may need to confirm the size
+ * the frame is reference counted and returns to the pool with #recycle_frame(uvc_unref_frame)
  */
 uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
 	uvc_frame_t *frame = NULL;
@@ -118,15 +178,83 @@ uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
 	if UNLIKELY(!frame) {
 		LOGW("allocate new frame");
 		frame = uvc_allocate_frame(data_bytes);
+		if (LIKELY(frame)) {
+			frame->release = release_pool_frame;
+			frame->release_ptr = this;
+		}
+	}
+	return frame;
+}
+
+/**
+ * get frame to take over the data buffer of the frame from libuvc with uvc_loan_frame
+ * return NULL if all frames for loan are in use, caller should fallback to copying.
+ * @param data_bytes capacity of the data buffer of the frame from libuvc,
+ * libuvc sizes it to the negotiated frame so frames of other capacity are replaced
+ */
+uvc_frame_t *UVCPreview::get_raw_frame(size_t data_bytes) {
+	uvc_frame_t *frame = NULL;
+	uvc_frame_t *stale = NULL;
+	bool allocate = false;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (!mRawFramePool.isEmpty()) {
+			frame = mRawFramePool.last();
+			if (UNLIKELY(frame->data_bytes != data_bytes)) {
+				// frame size was changed since the frame was allocated
+				stale = frame;
+				frame = NULL;
+				allocate = true;
+			}
+		} else if (mRawFrameNum < FRAME_POOL_SZ) {
+			mRawFrameNum++;
+			allocate = true;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	if (UNLIKELY(stale)) {
+		uvc_free_frame(stale);
+	}
+	if (UNLIKELY(allocate)) {
+		// the memory will be committed only when the data is actually written
+		frame = uvc_allocate_frame(data_bytes);
+		if (LIKELY(frame)) {
+			frame->release = release_raw_frame;
+			frame->release_ptr = this;
+		} else {
+			pthread_mutex_lock(&pool_mutex);
+			mRawFrameNum--;
+			pthread_mutex_unlock(&pool_mutex);
+		}
 	}
 	return frame;
 }
 
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
+	uvc_unref_frame(frame);
+}
+
+/*
+ * called from uvc_unref_frame when the reference counter of the frame became zero
+ */
+// static
+void UVCPreview::release_pool_frame(uvc_frame_t *frame, void *vptr_args) {
+	reinterpret_cast<UVCPreview *>(vptr_args)->return_frame(frame, false);
+}
+
+// static
+void UVCPreview::release_raw_frame(uvc_frame_t *frame, void *vptr_args) {
+	reinterpret_cast<UVCPreview *>(vptr_args)->return_frame(frame, true);
+}
+
+void UVCPreview::return_frame(uvc_frame_t *frame, bool raw) {
+	ObjectArray<uvc_frame_t *> &pool = raw ? mRawFramePool : mFramePool;
 	pthread_mutex_lock(&pool_mutex);
-	if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-		mFramePool.put(frame);
+	if (LIKELY(pool.size() < FRAME_POOL_SZ)) {
+		pool.put(frame);
 		frame = NULL;
+	} else if (raw) {
+		mRawFrameNum--;
 	}
 	pthread_mutex_unlock(&pool_mutex);
 	if (UNLIKELY(frame)) {
@@ -134,7 +262,6 @@ void UVCPreview::recycle_frame(uvc_frame_t *frame) {
 	}
 }
 
-
 void UVCPreview::init_pool(size_t data_bytes) {
 	ENTER();
 
@@ -142,7 +269,12 @@ void UVCPreview::init_pool(size_t data_bytes) {
 	pthread_mutex_lock(&pool_mutex);
 	{
 		for (int i = 0; i < FRAME_POOL_SZ; i++) {
-			mFramePool.put(uvc_allocate_frame(data_bytes));
+			uvc_frame_t *frame = uvc_allocate_frame(data_bytes);
+			if (LIKELY(frame)) {
+				frame->release = release_pool_frame;
+				frame->release_ptr = this;
+				mFramePool.put(frame);
+			}
 		}
 	}
 	pthread_mutex_unlock(&pool_mutex);
@@ -160,6 +292,12 @@ void UVCPreview::clear_pool() {
 			uvc_free_frame(mFramePool[i]);
 		}
 		mFramePool.clear();
+		const int m = mRawFramePool.size();
+		for (int i = 0; i < m; i++) {
+			uvc_free_frame(mRawFramePool[i]);
+		}
+		mRawFrameNum -= m;
+		mRawFramePool.clear();
 	}
 	pthread_mutex_unlock(&pool_mutex);
 	EXIT();
@@ -171,13 +309,14 @@ int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps,
 	ENTER();
 	
 	int result = 0;
+	// bandwidth can be changed alone when UVCBandwidthAllocator re-balances the bus
+	requestBandwidth = bandwidth;
 	if ((requestWidth != width) || (requestHeight != height) || (requestMode != mode)) {
 		requestWidth = width;
 		requestHeight = height;
 		requestMinFps = min_fps;
 		requestMaxFps = max_fps;
 		requestMode = mode;
-		requestBandwidth = bandwidth;
 
 		uvc_stream_ctrl_t ctrl;
 		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
@@ -198,7 +337,7 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 			mPreviewWindow = preview_window;
 			if (LIKELY(mPreviewWindow)) {
 				ANativeWindow_setBuffersGeometry(mPreviewWindow,
-					frameWidth, frameHeight, previewFormat);
+					previewWidth, previewHeight, previewFormat);
 			}
 		}
 	}
@@ -206,82 +345,450 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(0, int);
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
-	
+/**
+ * set IFrameCallback, this replaces the callback that was set by this method last time
+ * and does not affect callbacks added by #addFrameCallback
+ * @param frame_callback_obj global reference of IFrameCallback, NULL to remove
+ * @param scale_denom 1, 2, 4 or 8, frames are passed to the callback at 1/scale_denom size,
+ * 			this is applied only on MJPEG mode because scaling is done while decoding
+ * @param resize crop and resize frames for the callback instead of scale_denom, NULL if not resized
+ */
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom,
+	const uvc_resize_t *resize) {
+
 	ENTER();
-	pthread_mutex_lock(&capture_mutex);
+	if (UNLIKELY(!IS_VALID_SCALE(scale_denom) || !is_valid_resize(resize, pixel_format))) {
+		if (frame_callback_obj) {
+			env->DeleteGlobalRef(frame_callback_obj);
+		}
+		RETURN(EXIT_FAILURE, int);
+	}
+	int result = 0;
+	pthread_mutex_lock(&callback_mutex);
 	{
-		if (isRunning() && isCapturing()) {
-			mIsCapturing = false;
-			if (mFrameCallbackObj) {
-				pthread_cond_signal(&capture_sync);
-				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
+		for (int i = mNumFrameCallbacks - 1; i >= 0; i--) {
+			if (mFrameCallbacks[i].legacy
+				&& !env->IsSameObject(mFrameCallbacks[i].obj, frame_callback_obj)) {
+
+				remove_frame_callback_locked(env, i);
 			}
 		}
-		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
-			iframecallback_fields.onFrame = NULL;
-			if (mFrameCallbackObj) {
-				env->DeleteGlobalRef(mFrameCallbackObj);
-			}
-			mFrameCallbackObj = frame_callback_obj;
-			if (frame_callback_obj) {
-				// get method IDs of Java object for callback
-				jclass clazz = env->GetObjectClass(frame_callback_obj);
-				if (LIKELY(clazz)) {
-					iframecallback_fields.onFrame = env->GetMethodID(clazz,
-						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
-				} else {
-					LOGW("failed to get object class");
-				}
+		if (frame_callback_obj) {
+			result = add_frame_callback_locked(env, frame_callback_obj,
+				pixel_format, scale_denom, 0.0f, true, resize);
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	RETURN(result, int);
+}
+
+/**
+ * add IFrameCallback, callbacks that request same pixel format and scale share
+ * the conversion of each frame and the buffer passed to them.
+ * if the callback is already added, this updates its parameters
+ * @param frame_callback_obj global reference of IFrameCallback
+ * @param max_fps frames are passed at most this frame rate, 0 if not limited
+ * @param resize crop and resize frames for the callback instead of scale_denom, NULL if not resized
+ */
+int UVCPreview::addFrameCallback(JNIEnv *env, jobject frame_callback_obj,
+	int pixel_format, int scale_denom, float max_fps, const uvc_resize_t *resize) {
+
+	ENTER();
+	if (UNLIKELY(!frame_callback_obj || !IS_VALID_SCALE(scale_denom) || !is_valid_resize(resize, pixel_format)
+		|| (pixel_format < PIXEL_FORMAT_RAW) || (pixel_format > PIXEL_FORMAT_MJPEG)
+		|| (max_fps < 0.0f))) {
+
+		if (frame_callback_obj) {
+			env->DeleteGlobalRef(frame_callback_obj);
+		}
+		RETURN(EXIT_FAILURE, int);
+	}
+	int result;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		result = add_frame_callback_locked(env, frame_callback_obj,
+			pixel_format, scale_denom, max_fps, false, resize);
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	RETURN(result, int);
+}
+
+/**
+ * remove IFrameCallback that was added by #addFrameCallback or #setFrameCallback
+ * @param frame_callback_obj local reference is ok
+ */
+int UVCPreview::removeFrameCallback(JNIEnv *env, jobject frame_callback_obj) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		for (int i = 0; frame_callback_obj && (i < mNumFrameCallbacks); i++) {
+			if (env->IsSameObject(mFrameCallbacks[i].obj, frame_callback_obj)) {
+				remove_frame_callback_locked(env, i);
+				result = EXIT_SUCCESS;
+				break;
+			}
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * callback_mutex should be locked
+ * frame_callback_obj is deleted if it is already added or on failure
+ */
+int UVCPreview::add_frame_callback_locked(JNIEnv *env, jobject frame_callback_obj,
+	int pixel_format, int scale_denom, float max_fps, bool legacy, const uvc_resize_t *resize) {
+
+	frame_callback_t *cb = NULL;
+	for (int i = 0; i < mNumFrameCallbacks; i++) {
+		if (env->IsSameObject(mFrameCallbacks[i].obj, frame_callback_obj)) {
+			cb = &mFrameCallbacks[i];
+			env->DeleteGlobalRef(frame_callback_obj);
+			legacy |= cb->legacy;
+			break;
+		}
+	}
+	if (!cb) {
+		if (UNLIKELY(mNumFrameCallbacks >= MAX_FRAME_CALLBACKS)) {
+			LOGE("too many frame callbacks");
+			env->DeleteGlobalRef(frame_callback_obj);
+			return EXIT_FAILURE;
+		}
+		// get method IDs of Java object for callback, ICompressedFrameCallback#onFrame
+		// or ITimestampedFrameCallback#onFrame is used instead of IFrameCallback#onFrame if it exists
+		jmethodID onFrame = NULL;
+		bool timestamped = false, compressed = false;
+		jclass clazz = env->GetObjectClass(frame_callback_obj);
+		if (LIKELY(clazz)) {
+			onFrame = env->GetMethodID(clazz, "onFrame", "(Ljava/nio/ByteBuffer;IJJI)V");
+			env->ExceptionClear();
+			compressed = onFrame != NULL;
+			if (!onFrame) {
+				onFrame = env->GetMethodID(clazz, "onFrame", "(Ljava/nio/ByteBuffer;JJ)V");
 				env->ExceptionClear();
-				if (!iframecallback_fields.onFrame) {
-					LOGE("Can't find IFrameCallback#onFrame");
-					env->DeleteGlobalRef(frame_callback_obj);
-					mFrameCallbackObj = frame_callback_obj = NULL;
-				}
+				timestamped = onFrame != NULL;
+			}
+			if (!onFrame) {
+				onFrame = env->GetMethodID(clazz, "onFrame", "(Ljava/nio/ByteBuffer;)V");
 			}
+			env->DeleteLocalRef(clazz);
+		} else {
+			LOGW("failed to get object class");
 		}
-		if (frame_callback_obj) {
-			mPixelFormat = pixel_format;
-			callbackPixelFormatChanged();
+		env->ExceptionClear();
+		if (!onFrame) {
+			LOGE("Can't find IFrameCallback#onFrame");
+			env->DeleteGlobalRef(frame_callback_obj);
+			return EXIT_FAILURE;
 		}
+		// slot is kept while the callback is added even if others are removed
+		uint32_t used = 0;
+		for (int i = 0; i < mNumFrameCallbacks; i++) {
+			used |= CONSUMER_CALLBACK(mFrameCallbacks[i].slot);
+		}
+		int slot = 0;
+		for ( ; used & CONSUMER_CALLBACK(slot); slot++) {}
+		cb = &mFrameCallbacks[mNumFrameCallbacks++];
+		cb->slot = slot;
+		cb->obj = frame_callback_obj;
+		cb->onFrame = onFrame;
+		cb->timestamped = timestamped;
+		cb->compressed = compressed;
 	}
-	pthread_mutex_unlock(&capture_mutex);
-	RETURN(0, int);
+	cb->pixel_format = pixel_format;
+	cb->scale_denom = scale_denom;
+	if (resize) {
+		cb->resize = *resize;
+	} else {
+		memset(&cb->resize, 0, sizeof(cb->resize));
+	}
+	cb->limiter.setMaxFps(max_fps);
+	cb->legacy = legacy;
+	updateCallbackGroups_locked();
+	return EXIT_SUCCESS;
 }
 
-void UVCPreview::callbackPixelFormatChanged() {
-	mFrameCallbackFunc = NULL;
-	const size_t sz = requestWidth * requestHeight;
-	switch (mPixelFormat) {
-	  case PIXEL_FORMAT_RAW:
-		LOGI("PIXEL_FORMAT_RAW:");
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_YUV:
-		LOGI("PIXEL_FORMAT_YUV:");
-		callbackPixelBytes = sz * 2;
-		break;
+/**
+ * callback_mutex should be locked
+ * capture thread may still be calling the callback with its local reference
+ */
+void UVCPreview::remove_frame_callback_locked(JNIEnv *env, int index) {
+	env->DeleteGlobalRef(mFrameCallbacks[index].obj);
+	for (int i = index; i < mNumFrameCallbacks - 1; i++) {
+		mFrameCallbacks[i] = mFrameCallbacks[i + 1];
+	}
+	mNumFrameCallbacks--;
+	updateCallbackGroups_locked();
+}
+
+/**
+ * set capacity and drop policy of the queue between libuvc callback and preview thread
+ * this takes effect when preview starts next time
+ * @param capacity maximum number of frames that are waiting for preview thread
+ * @param drop_policy SPSC_DROP_NEWEST or SPSC_DROP_OLDEST
+ */
+int UVCPreview::setFrameQueue(int capacity, int drop_policy) {
+	ENTER();
+
+	int result = 0;
+	if (LIKELY((capacity > 0)
+		&& ((drop_policy == SPSC_DROP_NEWEST) || (drop_policy == SPSC_DROP_OLDEST)))) {
+		requestQueueCapacity = capacity;
+		requestQueuePolicy = drop_policy;
+	} else {
+		result = EXIT_FAILURE;
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * set number of worker threads to decode MJPEG frames concurrently
+ * this takes effect when preview starts next time
+ * @param num_threads 0 means decoding on preview thread, [0, MAX_DECODE_THREADS]
+ * @param max_in_flight maximum number of frames that are decoding or waiting for delivery,
+ * 			this bounds the latency
+ */
+int UVCPreview::setDecodeThreads(int num_threads, int max_in_flight) {
+	ENTER();
+
+	int result = 0;
+	if (LIKELY((num_threads >= 0) && (num_threads <= MAX_DECODE_THREADS) && (max_in_flight > 0))) {
+		requestDecodeThreads = num_threads;
+		requestDecodeMaxInFlight = max_in_flight;
+	} else {
+		result = EXIT_FAILURE;
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * set scale of preview, this takes effect when preview starts next time and only on MJPEG mode
+ * @param scale_denom 1, 2, 4 or 8, the preview surface shows frames at 1/scale_denom size
+ */
+int UVCPreview::setPreviewScale(int scale_denom) {
+	ENTER();
+
+	int result = 0;
+	if (LIKELY(IS_VALID_SCALE(scale_denom))) {
+		requestPreviewScale = scale_denom;
+	} else {
+		result = EXIT_FAILURE;
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * limit the frame rate of the preview surface, frames are skipped before decoding/converting
+ * @param max_fps 0 if not limited
+ */
+int UVCPreview::setPreviewMaxFps(float max_fps) {
+	ENTER();
+
+	int result = 0;
+	if (LIKELY(max_fps >= 0.0f)) {
+		pthread_mutex_lock(&preview_mutex);
+		{
+			mPreviewLimiter.setMaxFps(max_fps);
+		}
+		pthread_mutex_unlock(&preview_mutex);
+	} else {
+		result = EXIT_FAILURE;
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * limit the frame rate of the capture surface, frames are skipped before converting
+ * @param max_fps 0 if not limited
+ */
+int UVCPreview::setCaptureMaxFps(float max_fps) {
+	ENTER();
+
+	int result = 0;
+	if (LIKELY(max_fps >= 0.0f)) {
+		pthread_mutex_lock(&capture_mutex);
+		{
+			mCaptureLimiter.setMaxFps(max_fps);
+		}
+		pthread_mutex_unlock(&capture_mutex);
+	} else {
+		result = EXIT_FAILURE;
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * convert function for the callback group, NULL if the frame can be passed as it is
+ * the function should be called with group->scale_denom
+ */
+// static
+convFunc_t UVCPreview::callbackConvertFunc(uvc_frame_t *frame, const callback_group_t *group) {
+	convFunc_t convert_func = group->func;
+	if (!convert_func && (group->pixel_format != PIXEL_FORMAT_MJPEG) && ((frame->frame_format != UVC_FRAME_FORMAT_YUYV) || (group->scale_denom > 1))) {
+		// PIXEL_FORMAT_RAW/YUV expect yuyv, decode MJPEG into yuyv only in this case
+		convert_func = uvc_any2yuyv_scaled;
+	}
+	return convert_func;
+}
+
+/**
+ * fit the crop rectangle into the frame and choose the largest scale of MJPEG decoding
+ * that keeps the crop rectangle larger than the output size, the crop rectangle of the group
+ * is in the frame decoded at the scale.
+ * @return scale_denom to decode MJPEG frames, always 1 for uncompressed frames
+ */
+static int setup_callback_resize(callback_group_t *group, const uvc_resize_t *resize,
+	bool mjpeg, int frame_width, int frame_height) {
+
+	uvc_resize_t r = *resize;
+	if ((r.crop_x >= frame_width) || (r.crop_y >= frame_height)) {
+		LOGW("crop rectangle is out of the frame, use whole frame");
+		r.crop_x = r.crop_y = r.crop_width = r.crop_height = 0;
+	}
+	if (!r.crop_width || (r.crop_x + r.crop_width > frame_width)) {
+		r.crop_width = frame_width - r.crop_x;
+	}
+	if (!r.crop_height || (r.crop_y + r.crop_height > frame_height)) {
+		r.crop_height = frame_height - r.crop_y;
+	}
+	int scale_denom = DEFAULT_SCALE_DENOM;
+	if (mjpeg) {
+		for (scale_denom = 8; scale_denom > 1; scale_denom >>= 1) {
+			if ((r.crop_width / scale_denom >= r.width) && (r.crop_height / scale_denom >= r.height)) break;
+		}
+	}
+	r.crop_x /= scale_denom;
+	r.crop_y /= scale_denom;
+	r.crop_width /= scale_denom;
+	r.crop_height /= scale_denom;
+	group->resize = r;
+	return scale_denom;
+}
+
+/**
+ * @param resize NULL if not resized
+ */
+static void setup_callback_group(callback_group_t *group,
+	int pixel_format, int scale_denom, const uvc_resize_t *resize,
+	bool mjpeg, int frame_width, int frame_height) {
+
+	group->pixel_format = pixel_format;
+	group->func = NULL;
+	if (resize) {
+		group->scale_denom = setup_callback_resize(group, resize, mjpeg, frame_width, frame_height);
+		// same byte order as the conversion without resizing
+		switch (pixel_format) {
+		case PIXEL_FORMAT_RGB565:	group->resize_format = UVC_FRAME_FORMAT_RGB565; break;
+		case PIXEL_FORMAT_RGBX:		group->resize_format = UVC_FRAME_FORMAT_RGBX; break;
+		case PIXEL_FORMAT_YUV20SP:	group->resize_format = UVC_FRAME_FORMAT_NV21; break;
+		case PIXEL_FORMAT_NV21:		group->resize_format = UVC_FRAME_FORMAT_NV12; break;
+		case PIXEL_FORMAT_Y8:		group->resize_format = UVC_FRAME_FORMAT_GRAY8; break;
+		default:					group->resize_format = UVC_FRAME_FORMAT_YUYV; break;
+		}
+	} else {
+		memset(&group->resize, 0, sizeof(group->resize));
+		group->scale_denom = scale_denom;
+	}
+	const size_t width = resize ? group->resize.width : SCALED_SIZE(frame_width, scale_denom);
+	const size_t height = resize ? group->resize.height : SCALED_SIZE(frame_height, scale_denom);
+	const size_t sz = width * height;
+	// chroma plane of yuv420sp covers odd row/column with one sample
+	const size_t sz420sp = sz + ((width + 1) >> 1) * ((height + 1) >> 1) * 2;
+	switch (pixel_format) {
 	  case PIXEL_FORMAT_RGB565:
 		LOGI("PIXEL_FORMAT_RGB565:");
-		mFrameCallbackFunc = uvc_any2rgb565;
-		callbackPixelBytes = sz * 2;
+		group->func = uvc_any2rgb565_scaled;
+		group->pixel_bytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_RGBX:
 		LOGI("PIXEL_FORMAT_RGBX:");
-		mFrameCallbackFunc = uvc_any2rgbx;
-		callbackPixelBytes = sz * 4;
+		group->func = uvc_any2rgbx_scaled;
+		group->pixel_bytes = sz * 4;
 		break;
 	  case PIXEL_FORMAT_YUV20SP:
 		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_yuyv2iyuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
+		group->func = uvc_any2iyuv420SP_scaled;
+		group->pixel_bytes = sz420sp;
 		break;
 	  case PIXEL_FORMAT_NV21:
 		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_yuyv2yuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
+		group->func = uvc_any2yuv420SP_scaled;
+		group->pixel_bytes = sz420sp;
+		break;
+	  case PIXEL_FORMAT_Y8:
+		LOGI("PIXEL_FORMAT_Y8:");
+		// picks luminance from yuyv/uyvy or decodes only Y of MJPEG, no color conversion
+		group->func = uvc_any2y8_scaled;
+		group->pixel_bytes = sz;
+		break;
+	  case PIXEL_FORMAT_MJPEG:
+		LOGI("PIXEL_FORMAT_MJPEG:");
+		// JPEG of the stream is smaller than yuyv of same size in practice,
+		// larger frames are skipped instead of being truncated
+		group->pixel_bytes = sz * 2;
 		break;
+	  case PIXEL_FORMAT_YUV:
+	  default:
+		LOGI("PIXEL_FORMAT_YUV:");
+		group->pixel_format = PIXEL_FORMAT_YUV;	// same as PIXEL_FORMAT_RAW
+		group->pixel_bytes = sz * 2;
+		break;
+	}
+	if (resize) {
+		// uvc_resize_frame converts instead
+		group->func = NULL;
+	}
+}
+
+static bool is_same_group(const callback_group_t *a, const callback_group_t *b) {
+	return (a->pixel_format == b->pixel_format)
+		&& (a->scale_denom == b->scale_denom)
+		&& (a->resize.width == b->resize.width)
+		&& (a->resize.height == b->resize.height)
+		&& (!a->resize.width
+			|| ((a->resize.crop_x == b->resize.crop_x)
+				&& (a->resize.crop_y == b->resize.crop_y)
+				&& (a->resize.crop_width == b->resize.crop_width)
+				&& (a->resize.crop_height == b->resize.crop_height)
+				&& (a->resize.filter == b->resize.filter)));
+}
+
+/**
+ * group callbacks by actual pixel format and scale, the order of groups follows the order of callbacks
+ * so that the first callback always belongs to the first group that decode workers convert for.
+ * callback_mutex should be locked
+ */
+void UVCPreview::updateCallbackGroups_locked() {
+	mNumCallbackGroups = 0;
+	for (int i = 0; i < mNumFrameCallbacks; i++) {
+		frame_callback_t *cb = &mFrameCallbacks[i];
+		const int pixel_format = (cb->pixel_format == PIXEL_FORMAT_RAW) ? PIXEL_FORMAT_YUV : cb->pixel_format;
+		// only MJPEG frames can be scaled while decoding, except Y8 that subsamples yuyv directly
+		const int scale_denom = (pixel_format == PIXEL_FORMAT_MJPEG) ? DEFAULT_SCALE_DENOM
+			: ((requestMode || (pixel_format == PIXEL_FORMAT_Y8)) ? cb->scale_denom : DEFAULT_SCALE_DENOM);
+		callback_group_t group;
+		setup_callback_group(&group, pixel_format, scale_denom, cb->resize.width ? &cb->resize : NULL,
+			requestMode != 0, requestWidth, requestHeight);
+		int g = 0;
+		for (; g < mNumCallbackGroups; g++) {
+			if (is_same_group(&mCallbackGroups[g], &group)) {
+				break;
+			}
+		}
+		if (g == mNumCallbackGroups) {
+			mCallbackGroups[g] = group;
+			mNumCallbackGroups++;
+		}
+		cb->group = g;
 	}
 }
 
@@ -330,9 +837,32 @@ int UVCPreview::startPreview() {
 
 	int result = EXIT_FAILURE;
 	if (!isRunning()) {
+		// neither libuvc callback nor preview thread is running now
+		clearPreviewFrame();
+		previewFrames.resize(requestQueueCapacity);
+		previewFrames.policy(requestQueuePolicy);
+		previewFrames.resetCounters();
+		mStatistics.reset();
+		mNextSequence = 0;
+		pthread_mutex_lock(&callback_mutex);
+		{
+			memset(mDropCheckCounters, 0, sizeof(mDropCheckCounters));
+			mNextDropCheckNs = monotonic_ns() + mDropIntervalNs;
+			for (int i = 0; i < mNumFrameCallbacks; i++) {
+				mFrameCallbacks[i].limiter.reset();
+			}
+		}
+		pthread_mutex_unlock(&callback_mutex);
+		pthread_mutex_lock(&capture_mutex);
+		{
+			mCaptureLimiter.reset();
+		}
+		pthread_mutex_unlock(&capture_mutex);
+		decodeMaxInFlight = requestDecodeThreads > 0 ? requestDecodeMaxInFlight : 0;
 		mIsRunning = true;
 		pthread_mutex_lock(&preview_mutex);
 		{
+			mPreviewLimiter.reset();
 			if (LIKELY(mPreviewWindow)) {
 				result = pthread_create(&preview_thread, NULL, preview_thread_func, (void *)this);
 			}
@@ -341,11 +871,7 @@ int UVCPreview::startPreview() {
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
 			mIsRunning = false;
-			pthread_mutex_lock(&preview_mutex);
-			{
-				pthread_cond_signal(&preview_sync);
-			}
-			pthread_mutex_unlock(&preview_mutex);
+			previewFrames.interrupt();
 		}
 	}
 	RETURN(result, int);
@@ -356,7 +882,7 @@ int UVCPreview::stopPreview() {
 	bool b = isRunning();
 	if (LIKELY(b)) {
 		mIsRunning = false;
-		pthread_cond_signal(&preview_sync);
+		previewFrames.interrupt();
 		pthread_cond_signal(&capture_sync);
 		if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
 			LOGW("UVCPreview::terminate capture thread: pthread_join failed");
@@ -366,6 +892,8 @@ int UVCPreview::stopPreview() {
 		}
 		clearDisplay();
 	}
+	// requests that did not get a frame would never complete
+	mStill.cancel();
 	clearPreviewFrame();
 	clearCaptureFrame();
 	pthread_mutex_lock(&preview_mutex);
@@ -388,72 +916,120 @@ int UVCPreview::stopPreview() {
 //**********************************************************************
 void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
 	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
-	if UNLIKELY(!preview->isRunning() || !frame || !frame->frame_format || !frame->data || !frame->data_bytes) return;
-	if (UNLIKELY(
-		((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->actual_bytes < preview->frameBytes))
-		|| (frame->width != preview->frameWidth) || (frame->height != preview->frameHeight) )) {
+	if (UNLIKELY(!frame)) return;
+	preview->mStatistics.count(STAT_RECEIVED);
+	// libuvc numbers every completed frame, gaps are frames lost by transfer errors
+	// or skipped because this callback fell behind
+	if (frame->sequence > preview->mNextSequence) {
+		preview->mStatistics.count(STAT_DROP_TRANSFER, frame->sequence - preview->mNextSequence);
+	}
+	preview->mNextSequence = frame->sequence + 1;
+	if (UNLIKELY(!preview->isRunning())) {
+		preview->mStatistics.count(STAT_DROP_NOT_RUNNING);
+		return;
+	}
+	if (frame->timestamp.flags & UVC_FRAME_TS_SYNCED) {
+		preview->mStatistics.record(STAT_TRANSFER, frame->timestamp.arrival_ns - frame->timestamp.capture_ns);
+	}
+	preview->mStatistics.record(STAT_DISPATCH, monotonic_ns() - frame->timestamp.arrival_ns);
+	if (UNLIKELY(!frame->frame_format || !frame->data || !frame->data_bytes
+		|| ((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->actual_bytes < preview->frameBytes)))) {
 
 #if LOCAL_DEBUG
-		LOGD("broken frame!:format=%d,actual_bytes=%d/%d(%d,%d/%d,%d)",
-			frame->frame_format, frame->actual_bytes, preview->frameBytes,
+		LOGD("broken frame!:format=%d,actual_bytes=%d/%d",
+			frame->frame_format, frame->actual_bytes, preview->frameBytes);
+#endif
+		preview->mStatistics.count(STAT_DROP_BROKEN);
+		return;
+	}
+	if (UNLIKELY((frame->width != preview->frameWidth) || (frame->height != preview->frameHeight))) {
+#if LOCAL_DEBUG
+		LOGD("unexpected frame size!:(%d,%d/%d,%d)",
 			frame->width, frame->height, preview->frameWidth, preview->frameHeight);
 #endif
+		preview->mStatistics.count(STAT_DROP_SIZE_MISMATCH);
 		return;
 	}
+	pthread_mutex_lock(&preview->pipeline_mutex);
+	{
+		// the pipeline duplicates the frame and handles it on its own threads
+		if (preview->mPipeline) {
+			preview->mPipeline->queueFrame(frame);
+		}
+	}
+	pthread_mutex_unlock(&preview->pipeline_mutex);
 	if (LIKELY(preview->isRunning())) {
-		uvc_frame_t *copy = preview->get_frame(frame->data_bytes);
+		// take over the data buffer from libuvc and give back pooled one without copying
+		uvc_frame_t *copy = preview->get_raw_frame(frame->data_bytes);
+		if (LIKELY(copy)) {
+			if (LIKELY(!uvc_loan_frame(frame, copy))) {
+				preview->addPreviewFrame(copy);
+				return;
+			}
+			preview->recycle_frame(copy);
+		}
+		// all frames for loan are in use, fallback to copying
+		copy = preview->get_frame(frame->actual_bytes);
 		if (UNLIKELY(!copy)) {
 #if LOCAL_DEBUG
 			LOGE("uvc_callback:unable to allocate duplicate frame!");
 #endif
+			preview->mStatistics.count(STAT_DROP_NO_BUFFER);
 			return;
 		}
 		uvc_error_t ret = uvc_duplicate_frame(frame, copy);
 		if (UNLIKELY(ret)) {
 			preview->recycle_frame(copy);
+			preview->mStatistics.count(STAT_DROP_NO_BUFFER);
 			return;
 		}
 		preview->addPreviewFrame(copy);
 	}
 }
 
+/**
+ * pass the frame to preview thread, this is called only from libuvc callback thread(producer)
+ * if the queue is full, newest or oldest frame is dropped depending on the drop policy
+ */
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
 
-	pthread_mutex_lock(&preview_mutex);
-	if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-		previewFrames.put(frame);
-		frame = NULL;
-		pthread_cond_signal(&preview_sync);
+	if (LIKELY(isRunning())) {
+		frame = previewFrames.put(frame);
+		if (frame) {
+			mStatistics.count(STAT_DROP_PREVIEW_QUEUE);
+		}
+	} else {
+		mStatistics.count(STAT_DROP_NOT_RUNNING);
 	}
-	pthread_mutex_unlock(&preview_mutex);
 	if (frame) {
 		recycle_frame(frame);
 	}
 }
 
+/**
+ * get frame from the queue, if not exist, park and wait
+ * this is called only from preview thread(consumer)
+ */
 uvc_frame_t *UVCPreview::waitPreviewFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&preview_mutex);
-	{
-		if (!previewFrames.size()) {
-			pthread_cond_wait(&preview_sync, &preview_mutex);
-		}
-		if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-			frame = previewFrames.remove(0);
-		}
+	uvc_frame_t *frame = previewFrames.wait(PREVIEW_WAIT_TIMEOUT_NS);
+	if (UNLIKELY(frame && !isRunning())) {
+		recycle_frame(frame);
+		frame = NULL;
+	}
+	if (frame) {
+		mStatistics.record(STAT_DEQUEUE, monotonic_ns() - frame->timestamp.arrival_ns);
 	}
-	pthread_mutex_unlock(&preview_mutex);
 	return frame;
 }
 
+/**
+ * remove all frames in the queue,
+ * this should be called from consumer thread or while libuvc callback is not running
+ */
 void UVCPreview::clearPreviewFrame() {
-	pthread_mutex_lock(&preview_mutex);
-	{
-		for (int i = 0; i < previewFrames.size(); i++)
-			recycle_frame(previewFrames[i]);
-		previewFrames.clear();
+	for (uvc_frame_t *frame = previewFrames.poll(); frame; frame = previewFrames.poll()) {
+		recycle_frame(frame);
 	}
-	pthread_mutex_unlock(&preview_mutex);
 }
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
@@ -485,24 +1061,31 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 		uvc_print_stream_ctrl(ctrl, stderr);
 #endif
 		uvc_frame_desc_t *frame_desc;
+		// only MJPEG frames can be scaled while decoding
+		previewScale = requestMode ? requestPreviewScale : DEFAULT_SCALE_DENOM;
 		result = uvc_get_frame_desc(mDeviceHandle, ctrl, &frame_desc);
 		if (LIKELY(!result)) {
 			frameWidth = frame_desc->wWidth;
 			frameHeight = frame_desc->wHeight;
-			LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight, (!requestMode ? "YUYV" : "MJPEG"));
+			previewWidth = SCALED_SIZE(frameWidth, previewScale);
+			previewHeight = SCALED_SIZE(frameHeight, previewScale);
+			LOGI("frameSize=(%d,%d)@%s,previewSize=(%d,%d)", frameWidth, frameHeight,
+				(!requestMode ? "YUYV" : "MJPEG"), previewWidth, previewHeight);
 			pthread_mutex_lock(&preview_mutex);
 			if (LIKELY(mPreviewWindow)) {
 				ANativeWindow_setBuffersGeometry(mPreviewWindow,
-					frameWidth, frameHeight, previewFormat);
+					previewWidth, previewHeight, previewFormat);
 			}
 			pthread_mutex_unlock(&preview_mutex);
 		} else {
 			frameWidth = requestWidth;
 			frameHeight = requestHeight;
+			previewWidth = SCALED_SIZE(frameWidth, previewScale);
+			previewHeight = SCALED_SIZE(frameHeight, previewScale);
 		}
 		frameMode = requestMode;
 		frameBytes = frameWidth * frameHeight * (!requestMode ? 2 : 4);
-		previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+		previewBytes = previewWidth * previewHeight * PREVIEW_PIXEL_BYTES;
 	} else {
 		LOGE("could not negotiate with camera:err=%d", result);
 	}
@@ -513,7 +1096,6 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	ENTER();
 
 	uvc_frame_t *frame = NULL;
-	uvc_frame_t *frame_mjpeg = NULL;
 	uvc_error_t result = uvc_start_streaming_bandwidth(
 		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
 
@@ -524,29 +1106,21 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 #if LOCAL_DEBUG
 		LOGI("Streaming...");
 #endif
-		if (frameMode) {
-			// MJPEG mode
-			for ( ; LIKELY(isRunning()) ; ) {
-				frame_mjpeg = waitPreviewFrame();
-				if (LIKELY(frame_mjpeg)) {
-					frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-					result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
-					recycle_frame(frame_mjpeg);
-					if (LIKELY(!result)) {
-						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-						addCaptureFrame(frame);
-					} else {
-						recycle_frame(frame);
-					}
-				}
-			}
+		if (frameMode && (requestDecodeThreads > 0)
+			&& !mDecodePool.start(requestDecodeThreads, requestDecodeMaxInFlight, deliver_decoded_frame, this)) {
+			// MJPEG mode with decode worker threads
+			do_preview_decode_pool();
 		} else {
-			// yuvyv mode
+			// both MJPEG and yuyv frames are passed as they are,
+			// MJPEG frames are decoded directly into the format each consumer needs
 			for ( ; LIKELY(isRunning()) ; ) {
 				frame = waitPreviewFrame();
 				if (LIKELY(frame)) {
-					frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-					addCaptureFrame(frame);
+					const uint32_t consumers = select_consumers(frame);
+					if (consumers & CONSUMER_PREVIEW) {
+						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx_scaled, previewScale);
+					}
+					addCaptureFrame(frame, consumers & ~CONSUMER_PREVIEW);
 				}
 			}
 		}
@@ -555,6 +1129,8 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 		LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
 		uvc_stop_streaming(mDeviceHandle);
+		LOGI("preview queue:enqueued=%u,dropped=%u,wakeups=%u",
+			previewFrames.enqueued(), previewFrames.dropped(), previewFrames.wakeups());
 #if LOCAL_DEBUG
 		LOGI("Streaming finished");
 #endif
@@ -623,8 +1199,67 @@ int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
 	return result; //RETURN(result, int);
 }
 
+/**
+ * convert specific frame data and transfer it to the Surface(ANativeWindow)
+ * if the locked buffer has same size as the (scaled) frame and 4 bytes/pixel format,
+ * convert_func writes directly into the locked buffer honouring its stride,
+ * otherwise this converts into intermediate frame and copy it to the locked buffer.
+ * @param convert_func should output RGBA/RGBX
+ * @param scale_denom passed to convert_func
+ * @param convert_ns time that convert_func took is set if this is not NULL
+ */
+int UVCPreview::convertToSurface(uvc_frame_t *frame, ANativeWindow **window, convFunc_t convert_func, int scale_denom,
+	int64_t *convert_ns) {
+	// ENTER();
+	int result = -1;
+	int64_t start = 0;
+	if (LIKELY(*window)) {
+		ANativeWindow_Buffer buffer;
+		if (LIKELY(ANativeWindow_lock(*window, &buffer, NULL) == 0)) {
+			const int32_t width = SCALED_SIZE(frame->width, scale_denom);
+			const int32_t height = SCALED_SIZE(frame->height, scale_denom);
+			if (LIKELY((buffer.width == width)
+				&& (buffer.height == height)
+				&& ((buffer.format == WINDOW_FORMAT_RGBA_8888)
+					|| (buffer.format == WINDOW_FORMAT_RGBX_8888)))) {
+				// wrap the locked buffer with uvc_frame_t that libuvc never reallocates
+				uvc_frame_t dest;
+				memset(&dest, 0, sizeof(dest));
+				dest.data = buffer.bits;
+				dest.data_bytes = buffer.stride * buffer.height * PREVIEW_PIXEL_BYTES;
+				dest.width = buffer.width;
+				dest.height = buffer.height;
+				dest.step = buffer.stride * PREVIEW_PIXEL_BYTES;
+				dest.frame_format = UVC_FRAME_FORMAT_RGBX;
+				dest.library_owns_data = 0;
+				if (convert_ns) start = monotonic_ns();
+				result = convert_func(frame, &dest, scale_denom);
+				if (convert_ns) *convert_ns = monotonic_ns() - start;
+			} else {
+				uvc_frame_t *converted = get_frame(width * height * PREVIEW_PIXEL_BYTES);
+				if (LIKELY(converted)) {
+					if (convert_ns) start = monotonic_ns();
+					result = convert_func(frame, converted, scale_denom);
+					if (convert_ns) *convert_ns = monotonic_ns() - start;
+					if (LIKELY(!result)) {
+						const int src_w = converted->width * PREVIEW_PIXEL_BYTES;
+						const int dest_w = buffer.width * PREVIEW_PIXEL_BYTES;
+						const int h = converted->height < buffer.height ? converted->height : buffer.height;
+						copyFrame((uint8_t *)converted->data, (uint8_t *)buffer.bits,
+							src_w < dest_w ? src_w : dest_w, h,
+							converted->width * PREVIEW_PIXEL_BYTES, buffer.stride * PREVIEW_PIXEL_BYTES);
+					}
+					recycle_frame(converted);
+				}
+			}
+			ANativeWindow_unlockAndPost(*window);
+		}
+	}
+	return result; //RETURN(result, int);
+}
+
 // changed to return original frame instead of returning converted frame even if convert_func is not null.
-uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t convert_func, int pixcelBytes) {
+uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t convert_func, int scale_denom) {
 	// ENTER();
 
 	int b = 0;
@@ -634,29 +1269,164 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 	}
 	pthread_mutex_unlock(&preview_mutex);
 	if (LIKELY(b)) {
-		uvc_frame_t *converted;
+		int64_t convert_ns = 0;
+		const int64_t start = monotonic_ns();
 		if (convert_func) {
-			converted = get_frame(frame->width * frame->height * pixcelBytes);
-			if LIKELY(converted) {
-				b = convert_func(frame, converted);
-				if (!b) {
-					pthread_mutex_lock(&preview_mutex);
-					copyToSurface(converted, window);
-					pthread_mutex_unlock(&preview_mutex);
-				} else {
-					LOGE("failed converting");
-				}
-				recycle_frame(converted);
+			pthread_mutex_lock(&preview_mutex);
+			b = convertToSurface(frame, window, convert_func, scale_denom, &convert_ns);
+			pthread_mutex_unlock(&preview_mutex);
+			if (UNLIKELY(b)) {
+				LOGE("failed converting");
+				mStatistics.count(STAT_DROP_DECODE);
 			}
 		} else {
 			pthread_mutex_lock(&preview_mutex);
-			copyToSurface(frame, window);
+			b = copyToSurface(frame, window);
 			pthread_mutex_unlock(&preview_mutex);
 		}
+		if (LIKELY(!b)) {
+			postedPreview(frame, convert_ns, monotonic_ns() - start - convert_ns);
+		}
 	}
 	return frame; //RETURN(frame, uvc_frame_t *);
 }
 
+/**
+ * record latencies of the frame that was posted to the preview surface
+ * @param convert_ns time that decoding/converting took
+ * @param surface_ns time that locking, copying and posting the surface took
+ */
+void UVCPreview::postedPreview(uvc_frame_t *frame, int64_t convert_ns, int64_t surface_ns) {
+	mStatistics.count(STAT_PREVIEWED);
+	if (convert_ns) {
+		mStatistics.record(STAT_CONVERT, convert_ns);
+	}
+	mStatistics.record(STAT_SURFACE, surface_ns);
+	mStatistics.record(STAT_PREVIEW, monotonic_ns() - frame->timestamp.arrival_ns);
+}
+
+/**
+ * decide which consumers want the frame at their max fps, this is called on preview thread
+ * before decoding/converting so that frames nobody wants are never converted nor copied.
+ * frames are selected by their capture time instead of the time they reach here.
+ * @return CONSUMER_XXX bits, 0 if no consumer wants the frame
+ */
+uint32_t UVCPreview::select_consumers(uvc_frame_t *frame) {
+	const int64_t capture_ns = frame->timestamp.capture_ns;
+	uint32_t consumers = 0;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (mPreviewWindow && mPreviewLimiter.accept(capture_ns)) {
+			consumers |= CONSUMER_PREVIEW;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (mCaptureWindow && mCaptureLimiter.accept(capture_ns)) {
+			consumers |= CONSUMER_CAPTURE;
+		}
+	}
+	pthread_mutex_unlock(&capture_mutex);
+	if (mEncoder.isRunning()) {
+		// the encoder takes every frame, frame rate of the movie follows the camera
+		consumers |= CONSUMER_ENCODER;
+	}
+	if (mStill.isPending()) {
+		// stills reserve the raw frame by reference here so that a burst gets consecutive frames
+		// even if capture thread drops some, regardless of the frame rate of other consumers
+		mStill.capture(frame);
+	}
+	pthread_mutex_lock(&callback_mutex);
+	{
+		for (int i = 0; i < mNumFrameCallbacks; i++) {
+			frame_callback_t *cb = &mFrameCallbacks[i];
+			if (cb->limiter.accept(capture_ns)) {
+				consumers |= CONSUMER_CALLBACK(cb->slot);
+			}
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	if (!consumers) {
+		mStatistics.count(STAT_DECIMATED);
+	}
+	return consumers;
+}
+
+/**
+ * submit MJPEG frames to decode worker threads,
+ * decoded frames are delivered in order by #deliver_decoded
+ */
+void UVCPreview::do_preview_decode_pool() {
+	ENTER();
+
+	uvc_frame_t *frame, *preview, *converted;
+	convFunc_t convert_func;
+	int convert_scale;
+	uint32_t consumers;
+	for ( ; LIKELY(isRunning()) ; ) {
+		frame = waitPreviewFrame();
+		if (LIKELY(frame)) {
+			consumers = select_consumers(frame);
+			if (!consumers) {
+				recycle_frame(frame);
+				continue;
+			}
+			preview = (consumers & CONSUMER_PREVIEW) ? get_frame(previewBytes) : NULL;
+			// also convert for IFrameCallback on worker thread
+			convert_func = NULL;
+			convert_scale = DEFAULT_SCALE_DENOM;
+			converted = isCapturing() && (consumers & CONSUMER_CALLBACKS)
+				? get_callback_frame(frame, consumers, &convert_func, &convert_scale) : NULL;
+			// this blocks while the number of frames in flight reaches the limit
+			if (UNLIKELY(mDecodePool.submit(frame,
+				preview, uvc_any2rgbx_scaled, previewScale, converted, convert_func, convert_scale,
+				consumers))) {
+				if (preview) recycle_frame(preview);
+				if (converted) recycle_frame(converted);
+				recycle_frame(frame);
+			}
+		}
+	}
+	// remaining frames are delivered and recycled in #deliver_decoded
+	mDecodePool.stop();
+
+	EXIT();
+}
+
+/**
+ * called from DecodePool in the order of submission
+ */
+// static
+void UVCPreview::deliver_decoded_frame(decode_job_t *job, void *vptr_args) {
+	reinterpret_cast<UVCPreview *>(vptr_args)->deliver_decoded(job);
+}
+
+void UVCPreview::deliver_decoded(decode_job_t *job) {
+	uvc_frame_t *preview = job->out[0];
+	uvc_frame_t *converted = job->out[1];
+	if (preview) {
+		if (UNLIKELY(job->result[0] && (job->result[0] != UVC_ERROR_INTERRUPTED))) {
+			mStatistics.count(STAT_DROP_DECODE);
+		}
+		if (LIKELY(isRunning() && !job->result[0])) {
+			const int64_t start = monotonic_ns();
+			pthread_mutex_lock(&preview_mutex);
+			const int b = copyToSurface(preview, &mPreviewWindow);
+			pthread_mutex_unlock(&preview_mutex);
+			if (LIKELY(!b)) {
+				postedPreview(job->src, job->elapsed_ns[0], monotonic_ns() - start);
+			}
+		}
+		recycle_frame(preview);
+	}
+	if (converted && UNLIKELY(job->result[1])) {
+		recycle_frame(converted);
+		converted = NULL;
+	}
+	addCaptureFrame(job->src, job->tag & ~CONSUMER_PREVIEW, converted, job->func[1], job->scale_denom[1]);
+}
+
 //======================================================================
 //
 //======================================================================
@@ -678,6 +1448,7 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 			if (UNLIKELY(mCaptureWindow))
 				ANativeWindow_release(mCaptureWindow);
 			mCaptureWindow = capture_window;
+			mCaptureLimiter.reset();
 			// if you use Surface came from MediaCodec#createInputSurface
 			// you could not change window format at least when you use
 			// ANativeWindow_lock / ANativeWindow_unlockAndPost
@@ -698,32 +1469,147 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 	RETURN(0, int);
 }
 
-void UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&capture_mutex);
+/**
+ * start encoding frames with NDK MediaCodec into the mp4 file,
+ * frames are converted directly into the input buffer of the codec on capture thread
+ * and queued with their capture time, they never go through Java side.
+ * this can be called before or while previewing
+ * @param path path of the output file
+ * @param width should be same as the stream size
+ * @param height should be same as the stream size
+ * @param frame_rate only used for bitrate control of the codec
+ * @param bitrate bits per second
+ * @param color_format COLOR_FormatYUV420SemiPlanar or COLOR_QCOM_FormatYUV420SemiPlanar
+ */
+int UVCPreview::startEncoder(const char *path, int width, int height, int frame_rate, int bitrate, int color_format) {
+	ENTER();
+
+	const int result = mEncoder.start(path, width, height, frame_rate, bitrate, color_format);
+
+	RETURN(result, int);
+}
+
+/**
+ * stop encoding, this blocks until the mp4 file is finalized
+ */
+int UVCPreview::stopEncoder() {
+	ENTER();
+
+	const int result = mEncoder.stop();
+
+	RETURN(result, int);
+}
+
+/**
+ * write the next raw frame from the camera into the JPEG file at the full size of the stream.
+ * MJPEG frames are written as they are, yuyv frames are encoded on the workers of StillCapture
+ * so that neither preview thread nor the caller waits for encoding
+ * @param quality JPEG quality for yuyv frames, [1, 100]
+ * @param callback StillCaptureFuture that receives the result
+ */
+int UVCPreview::captureStill(JNIEnv *env, jstring path, int quality, jobject callback) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (LIKELY(isRunning())) {
+		result = mStill.request(env, path, quality, callback);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * write the next consecutive raw frames into JPEG files, one for each path
+ * @param paths array of String, up to MAX_STILL_BURST
+ * @param callbacks array of StillCaptureFuture, they complete in the order of frames
+ */
+int UVCPreview::captureBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
 	if (LIKELY(isRunning())) {
+		result = mStill.requestBurst(env, paths, quality, callbacks);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * pass the frame to capture thread
+ * @param consumers CONSUMER_XXX bits that want the frame, the frame is recycled here if 0
+ * @param converted frame for IFrameCallback that was already converted from the frame, can be NULL
+ * @param converted_func the function that was used to convert
+ * @param converted_scale scale_denom that was used to convert
+ */
+void UVCPreview::addCaptureFrame(uvc_frame_t *frame, uint32_t consumers, uvc_frame_t *converted,
+	convFunc_t converted_func, int converted_scale) {
+	pthread_mutex_lock(&capture_mutex);
+	if (LIKELY(isRunning() && consumers)) {
 		// keep only latest one
 		if (captureQueu) {
+			mStatistics.count(STAT_DROP_CAPTURE_QUEUE);
 			recycle_frame(captureQueu);
+			// consumers of the dropped frame take this one instead so that they keep their frame rate
+			consumers |= captureConsumers;
+		}
+		if (captureConverted) {
+			recycle_frame(captureConverted);
 		}
 		captureQueu = frame;
+		captureConsumers = consumers;
+		captureConverted = converted;
+		captureConvertFunc = converted_func;
+		captureConvertScale = converted_scale;
+		frame = converted = NULL;
 		pthread_cond_broadcast(&capture_sync);
 	}
 	pthread_mutex_unlock(&capture_mutex);
+	if (frame) {
+		recycle_frame(frame);
+	}
+	if (UNLIKELY(converted)) {
+		recycle_frame(converted);
+	}
 }
 
 /**
  * get frame data for capturing, if not exist, block and wait
+ * @param consumers CONSUMER_XXX bits that want the frame are set, 0 if no frame
+ * @param converted the frame already converted for IFrameCallback is set if exists, otherwise NULL
+ * @param converted_func the function that was used to convert
+ * @param converted_scale scale_denom that was used to convert
  */
-uvc_frame_t *UVCPreview::waitCaptureFrame() {
+uvc_frame_t *UVCPreview::waitCaptureFrame(uint32_t *consumers,
+	uvc_frame_t **converted, convFunc_t *converted_func, int *converted_scale) {
+
 	uvc_frame_t *frame = NULL;
+	*consumers = 0;
+	*converted = NULL;
 	pthread_mutex_lock(&capture_mutex);
 	{
 		if (!captureQueu) {
-			pthread_cond_wait(&capture_sync, &capture_mutex);
+			// wake up periodically so that #check_frame_drops runs even if all frames are dropped
+			struct timespec ts;
+			clock_gettime(CLOCK_REALTIME, &ts);
+			ts.tv_sec += CAPTURE_WAIT_TIMEOUT_NS / 1000000000LL;
+			ts.tv_nsec += CAPTURE_WAIT_TIMEOUT_NS % 1000000000LL;
+			if (ts.tv_nsec >= 1000000000L) {
+				ts.tv_sec++;
+				ts.tv_nsec -= 1000000000L;
+			}
+			pthread_cond_timedwait(&capture_sync, &capture_mutex, &ts);
 		}
 		if (LIKELY(isRunning() && captureQueu)) {
 			frame = captureQueu;
+			*consumers = captureConsumers;
 			captureQueu = NULL;
+			captureConsumers = 0;
+			// pixel format/scale of IFrameCallback may have changed after converting,
+			// do_capture_callback checks them
+			*converted = captureConverted;
+			*converted_func = captureConvertFunc;
+			*converted_scale = captureConvertScale;
+			captureConverted = NULL;
 		}
 	}
 	pthread_mutex_unlock(&capture_mutex);
@@ -739,6 +1625,10 @@ void UVCPreview::clearCaptureFrame() {
 		if (captureQueu)
 			recycle_frame(captureQueu);
 		captureQueu = NULL;
+		captureConsumers = 0;
+		if (captureConverted)
+			recycle_frame(captureConverted);
+		captureConverted = NULL;
 	}
 	pthread_mutex_unlock(&capture_mutex);
 }
@@ -776,7 +1666,12 @@ void UVCPreview::do_capture(JNIEnv *env) {
 	ENTER();
 
 	clearCaptureFrame();
-	callbackPixelFormatChanged();
+	// frame size and mode may have changed
+	pthread_mutex_lock(&callback_mutex);
+	{
+		updateCallbackGroups_locked();
+	}
+	pthread_mutex_unlock(&callback_mutex);
 	for (; isRunning() ;) {
 		mIsCapturing = true;
 		if (mCaptureWindow) {
@@ -786,14 +1681,26 @@ void UVCPreview::do_capture(JNIEnv *env) {
 		}
 		pthread_cond_broadcast(&capture_sync);
 	}	// end of for (; isRunning() ;)
+	// buffers that decode workers or Java side still hold are freed when they return
+	for (int i = 0; i < MAX_FRAME_CALLBACKS; i++) {
+		mCallbackBuffers[i].clear(env);
+	}
 	EXIT();
 }
 
 void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 	ENTER();
 	
+	uvc_frame_t *frame, *converted;
+	convFunc_t converted_func;
+	int converted_scale;
+	uint32_t consumers;
 	for (; isRunning() && isCapturing() ;) {
-		do_capture_callback(env, waitCaptureFrame());
+		frame = waitCaptureFrame(&consumers, &converted, &converted_func, &converted_scale);
+		if (consumers & CONSUMER_ENCODER) {
+			do_capture_encoder(frame);
+		}
+		do_capture_callback(env, frame, consumers, converted, converted_func, converted_scale);
 	}
 	
 	EXIT();
@@ -805,33 +1712,26 @@ void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 void UVCPreview::do_capture_surface(JNIEnv *env) {
 	ENTER();
 
-	uvc_frame_t *frame = NULL;
-	uvc_frame_t *converted = NULL;
-	char *local_picture_path;
+	uvc_frame_t *frame = NULL, *converted;
+	convFunc_t converted_func;
+	int converted_scale;
+	uint32_t consumers;
 
 	for (; isRunning() && isCapturing() ;) {
-		frame = waitCaptureFrame();
+		frame = waitCaptureFrame(&consumers, &converted, &converted_func, &converted_scale);
 		if (LIKELY(frame)) {
-			// frame data is always YUYV format.
-			if LIKELY(isCapturing()) {
-				if (UNLIKELY(!converted)) {
-					converted = get_frame(previewBytes);
-				}
-				if (LIKELY(converted)) {
-					int b = uvc_any2rgbx(frame, converted);
-					if (!b) {
-						if (LIKELY(mCaptureWindow)) {
-							copyToSurface(converted, &mCaptureWindow);
-						}
-					}
+			// frame data is YUYV or MJPEG format.
+			if (LIKELY(isCapturing() && (consumers & CONSUMER_CAPTURE))) {
+				if (LIKELY(mCaptureWindow)) {
+					convertToSurface(frame, &mCaptureWindow, uvc_any2rgbx_scaled, DEFAULT_SCALE_DENOM);
 				}
 			}
-			do_capture_callback(env, frame);
+			if (consumers & CONSUMER_ENCODER) {
+				do_capture_encoder(frame);
+			}
+			do_capture_callback(env, frame, consumers, converted, converted_func, converted_scale);
 		}
 	}
-	if (converted) {
-		recycle_frame(converted);
-	}
 	if (mCaptureWindow) {
 		ANativeWindow_release(mCaptureWindow);
 		mCaptureWindow = NULL;
@@ -841,36 +1741,406 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 }
 
 /**
-* call IFrameCallback#onFrame if needs
+ * convert the frame into the input buffer of MediaCodecEncoder on capture thread
+ */
+void UVCPreview::do_capture_encoder(uvc_frame_t *frame) {
+	if (UNLIKELY(mEncoder.encode(frame))) {
+		mStatistics.count(STAT_DROP_ENCODER);
+	}
+}
+
+/**
+ * get frame for IFrameCallback that decode worker converts into, for the first callback group.
+ * nothing is converted if no callback of the group wants the frame.
+ * the buffer for IFrameCallback is used if available to avoid copying on capture thread
+ * @param convert_func the function to convert the frame is set, NULL if conversion is not needed
+ * @param scale_denom scale_denom to convert is set
+ * @return NULL if conversion is not needed
  */
-void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
+uvc_frame_t *UVCPreview::get_callback_frame(uvc_frame_t *frame, uint32_t consumers,
+	convFunc_t *convert_func, int *scale_denom) {
+
+	callback_group_t group;
+	bool has_group = false;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		for (int i = 0; !has_group && (i < mNumFrameCallbacks); i++) {
+			has_group = !mFrameCallbacks[i].group
+				&& (consumers & CONSUMER_CALLBACK(mFrameCallbacks[i].slot));
+		}
+		has_group &= mNumCallbackGroups > 0;
+		if (has_group) {
+			group = mCallbackGroups[0];
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	*convert_func = has_group ? callbackConvertFunc(frame, &group) : NULL;
+	if (!*convert_func) {
+		return NULL;
+	}
+	*scale_denom = group.scale_denom;
+	if (group.resize.width) {
+		// decode worker only decodes MJPEG into yuyv, capture thread crops and resizes it
+		return get_frame(SCALED_SIZE(frame->width, group.scale_denom)
+			* SCALED_SIZE(frame->height, group.scale_denom) * 2);
+	}
+	uvc_frame_t *result = mCallbackBuffers[0].obtain(group.pixel_bytes);
+	return result ? result : get_frame(group.pixel_bytes);
+}
+
+/**
+ * copy the frame data into the buffer for IFrameCallback
+ */
+static void copy_callback_frame(uvc_frame_t *src, uvc_frame_t *dst) {
+	const size_t bytes = src->data_bytes < dst->data_bytes ? src->data_bytes : dst->data_bytes;
+	memcpy(dst->data, src->data, bytes);
+}
+
+/**
+ * copy the frame data as transferred from the camera into the buffer for IFrameCallback,
+ * the size of each compressed frame differs and is kept in actual_bytes of the buffer
+ * @return non-zero if the frame is broken(libuvc clears actual_bytes) or does not fit into the buffer
+ */
+static int copy_compressed_frame(uvc_frame_t *src, uvc_frame_t *dst) {
+	const size_t bytes = src->actual_bytes;
+	if (UNLIKELY(!bytes || (bytes > src->data_bytes) || (bytes > dst->data_bytes))) {
+		return -1;
+	}
+	memcpy(dst->data, src->data, bytes);
+	dst->actual_bytes = bytes;
+	return 0;
+}
+
+/**
+ * crop, resize and convert the frame for the callback group into one of the buffers of the group at once.
+ * MJPEG frames are decoded into yuyv at the scale of the group before that
+ * @param decode_func function to decode into yuyv, NULL if the frame is already yuyv
+ * @param converted the frame that decode worker already decoded, can be NULL. the caller still owns it
+ * @return NULL if failed
+ */
+uvc_frame_t *UVCPreview::resize_callback_frame(uvc_frame_t *frame, int index, const callback_group_t *group,
+	convFunc_t decode_func, uvc_frame_t *converted, convFunc_t converted_func, int converted_scale) {
+
+	uvc_frame_t *src = frame, *decoded = NULL;
+	if (decode_func) {
+		if (converted && (converted_func == decode_func) && (converted_scale == group->scale_denom)) {
+			src = converted;
+		} else {
+			src = decoded = get_frame(SCALED_SIZE(frame->width, group->scale_denom)
+				* SCALED_SIZE(frame->height, group->scale_denom) * 2);
+			if (UNLIKELY(!decoded || decode_func(frame, decoded, group->scale_denom))) {
+				LOGW("failed to decode for callback frame");
+				if (decoded) recycle_frame(decoded);
+				return NULL;
+			}
+		}
+	}
+	uvc_frame_t *callback_frame = mCallbackBuffers[index].obtain(group->pixel_bytes);
+	if (LIKELY(callback_frame)) {
+		if (UNLIKELY(uvc_resize_frame(src, callback_frame, &group->resize, group->resize_format))) {
+			LOGW("failed to resize for callback frame");
+			recycle_frame(callback_frame);
+			callback_frame = NULL;
+		}
+	} else {
+		LOGW("all callback buffers are in use");
+	}
+	if (decoded) {
+		recycle_frame(decoded);
+	}
+	return callback_frame;
+}
+
+/**
+ * convert the frame for the callback group into one of the buffers of the group
+ * @param index index of the callback group
+ * @param converted the frame that decode worker already converted, can be NULL.
+ * 			this takes over it and set NULL if it is passed to the callbacks as it is
+ * @return NULL if failed
+ */
+uvc_frame_t *UVCPreview::convert_callback_frame(uvc_frame_t *frame, int index, const callback_group_t *group,
+	uvc_frame_t **converted, convFunc_t converted_func, int converted_scale) {
+
+	const convFunc_t convert_func = callbackConvertFunc(frame, group);
+	if (group->resize.width) {
+		return resize_callback_frame(frame, index, group, convert_func,
+			*converted, converted_func, converted_scale);
+	}
+	uvc_frame_t *src = NULL;
+	if (*converted && convert_func
+		&& (convert_func == converted_func) && (group->scale_denom == converted_scale)) {
+
+		if (CallbackBufferPool::isBufferFrame(*converted)) {
+			// decode worker already converted into the buffer
+			uvc_frame_t *result = *converted;
+			*converted = NULL;
+			return result;
+		}
+		// decode worker already converted into the frame from the pool
+		src = *converted;
+	}
+	uvc_frame_t *callback_frame = mCallbackBuffers[index].obtain(group->pixel_bytes);
+	if (UNLIKELY(!callback_frame)) {
+		LOGW("all callback buffers are in use");
+		return NULL;
+	}
+	if (group->pixel_format == PIXEL_FORMAT_MJPEG) {
+		if (UNLIKELY(copy_compressed_frame(frame, callback_frame))) {
+			LOGW("compressed frame is broken or larger than callback buffer");
+			recycle_frame(callback_frame);
+			callback_frame = NULL;
+		}
+	} else if (src) {
+		copy_callback_frame(src, callback_frame);
+	} else if (convert_func) {
+		if (UNLIKELY(convert_func(frame, callback_frame, group->scale_denom))) {
+			LOGW("failed to convert for callback frame");
+			recycle_frame(callback_frame);
+			callback_frame = NULL;
+		}
+	} else {
+		copy_callback_frame(frame, callback_frame);
+	}
+	return callback_frame;
+}
+
+/**
+* call IFrameCallback#onFrame(or ITimestampedFrameCallback#onFrame with the timestamps of the frame)
+* of each callback that wants the frame.
+* the frame is converted once for each callback group and passed through one of the buffers
+* of the group, their DirectByteBuffers are created once and reused for every frame.
+* @param consumers CONSUMER_XXX bits, callbacks whose bit is not set skip the frame
+* @param converted the frame already converted by decode worker, can be NULL
+ */
+void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame, uint32_t consumers,
+	uvc_frame_t *converted, convFunc_t converted_func, int converted_scale) {
+
 	ENTER();
 
 	if (LIKELY(frame)) {
-		uvc_frame_t *callback_frame = frame;
-		if (mFrameCallbackObj) {
-			if (mFrameCallbackFunc) {
-				callback_frame = get_frame(callbackPixelBytes);
-				if (LIKELY(callback_frame)) {
-					int b = mFrameCallbackFunc(frame, callback_frame);
-					recycle_frame(frame);
-					if (UNLIKELY(b)) {
-						LOGW("failed to convert for callback frame");
-						goto SKIP;
+		frame_callback_t callbacks[MAX_FRAME_CALLBACKS];
+		callback_group_t groups[MAX_FRAME_CALLBACKS];
+		int num_callbacks = 0, num_groups;
+		const int64_t now = monotonic_ns();
+		const int64_t arrival_ns = frame->timestamp.arrival_ns;
+		pthread_mutex_lock(&callback_mutex);
+		{
+			num_groups = mNumCallbackGroups;
+			memcpy(groups, mCallbackGroups, sizeof(callback_group_t) * num_groups);
+			for (int i = 0; i < mNumFrameCallbacks; i++) {
+				frame_callback_t *cb = &mFrameCallbacks[i];
+				// preview thread already decided by the capture time of the frame
+				if (!(consumers & CONSUMER_CALLBACK(cb->slot))) continue;
+				callbacks[num_callbacks] = *cb;
+				// keep the object even if the callback is removed while calling it
+				callbacks[num_callbacks].obj = env->NewLocalRef(cb->obj);
+				num_callbacks++;
+			}
+		}
+		pthread_mutex_unlock(&callback_mutex);
+		for (int g = num_groups; g < MAX_FRAME_CALLBACKS; g++) {
+			mCallbackBuffers[g].clear(env);
+		}
+		for (int g = 0; g < num_groups; g++) {
+			int n = 0;
+			for (int i = 0; i < num_callbacks; i++) {
+				if (callbacks[i].group == g) n++;
+			}
+			if (!n) continue;
+			mCallbackBuffers[g].resize(env,
+				DEFAULT_CALLBACK_BUFFER_NUM + (g ? 0 : decodeMaxInFlight), groups[g].pixel_bytes);
+			uvc_frame_t *callback_frame = convert_callback_frame(frame, g, &groups[g],
+				&converted, converted_func, converted_scale);
+			if (UNLIKELY(!callback_frame)) continue;
+			// limit of the ByteBuffer is the size of each compressed frame
+			const size_t frame_bytes = groups[g].pixel_format == PIXEL_FORMAT_MJPEG
+				? callback_frame->actual_bytes : groups[g].pixel_bytes;
+			for (int i = 0; i < num_callbacks; i++) {
+				if (callbacks[i].group == g) {
+					if (callbacks[i].compressed) {
+						env->CallVoidMethod(callbacks[i].obj, callbacks[i].onFrame,
+							CallbackBufferPool::prepare(env, callback_frame, frame_bytes), (jint)frame_bytes,
+							(jlong)frame->timestamp.capture_ns, (jlong)frame->timestamp.arrival_ns,
+							(jint)frame->sequence);
+					} else if (callbacks[i].timestamped) {
+						env->CallVoidMethod(callbacks[i].obj, callbacks[i].onFrame,
+							CallbackBufferPool::prepare(env, callback_frame, frame_bytes),
+							(jlong)frame->timestamp.capture_ns, (jlong)frame->timestamp.arrival_ns);
+					} else {
+						env->CallVoidMethod(callbacks[i].obj, callbacks[i].onFrame,
+							CallbackBufferPool::prepare(env, callback_frame, frame_bytes));
 					}
-				} else {
-					LOGW("failed to allocate for callback frame");
-					callback_frame = frame;
-					goto SKIP;
+					env->ExceptionClear();
 				}
 			}
-			jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-			env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-			env->ExceptionClear();
-			env->DeleteLocalRef(buf);
+			// the buffer stays out of the pool while any callback leases it
+			recycle_frame(callback_frame);
+		}
+		for (int i = 0; i < num_callbacks; i++) {
+			env->DeleteLocalRef(callbacks[i].obj);
+		}
+		recycle_frame(frame);
+		if (num_callbacks) {
+			mStatistics.count(STAT_CALLBACKS);
+			mStatistics.record(STAT_CALLBACK_ENTRY, now - arrival_ns);
+			mStatistics.record(STAT_CALLBACK, monotonic_ns() - now);
 		}
- SKIP:
-		recycle_frame(callback_frame);
 	}
+	if (converted) {
+		recycle_frame(converted);
+	}
+	check_frame_drops(env);
 	EXIT();
 }
+
+/**
+ * set the head of the pipeline that receives every frame from the camera in addition to preview/IFrameCallback.
+ * each stage of the pipeline runs on its own thread, they are started/stopped from Java side
+ * @param pipeline NULL to detach
+ */
+int UVCPreview::setPipeline(IPipeline *pipeline) {
+	ENTER();
+
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		mPipeline = pipeline;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
+
+	RETURN(0, int);
+}
+
+/**
+ * set listener that is called on capture thread when the rate of dropped frames
+ * in the interval exceeds the threshold
+ * @param drop_listener IFrameDropListener, NULL to remove
+ * @param threshold ratio of dropped frames to all frames from the camera, [0, 1]
+ * @param interval_ms interval to check the rate
+ */
+int UVCPreview::setFrameDropListener(JNIEnv *env, jobject drop_listener, float threshold, int interval_ms) {
+	ENTER();
+
+	int result = EXIT_SUCCESS;
+	if (UNLIKELY(drop_listener && ((threshold < 0) || (threshold > 1) || (interval_ms <= 0)))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	pthread_mutex_lock(&callback_mutex);
+	{
+		if (mFrameDropListener) {
+			env->DeleteGlobalRef(mFrameDropListener);
+			mFrameDropListener = NULL;
+		}
+		mOnFrameDrop = NULL;
+		if (drop_listener) {
+			jclass clazz = env->GetObjectClass(drop_listener);
+			if (LIKELY(clazz)) {
+				mOnFrameDrop = env->GetMethodID(clazz, "onFrameDrop", "(F[I)V");
+				env->DeleteLocalRef(clazz);
+			} else {
+				LOGW("failed to get object class");
+			}
+			env->ExceptionClear();
+			if (LIKELY(mOnFrameDrop)) {
+				mFrameDropListener = env->NewGlobalRef(drop_listener);
+				mDropThreshold = threshold;
+				mDropIntervalNs = interval_ms * 1000000LL;
+				mNextDropCheckNs = monotonic_ns() + mDropIntervalNs;
+				mStatistics.getCounters(mDropCheckCounters);
+			} else {
+				LOGW("Can't find IFrameDropListener#onFrameDrop");
+				result = UVC_ERROR_INVALID_PARAM;
+			}
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * check the rate of dropped frames since last check and call IFrameDropListener if it exceeds the threshold,
+ * this is called only from capture thread
+ */
+void UVCPreview::check_frame_drops(JNIEnv *env) {
+	jobject listener = NULL;
+	jmethodID onFrameDrop = NULL;
+	float rate = 0;
+	jint drops[STAT_NUM_DROPS];
+	pthread_mutex_lock(&callback_mutex);
+	{
+		const int64_t now = monotonic_ns();
+		if (mFrameDropListener && (now >= mNextDropCheckNs)) {
+			uint32_t counters[STAT_NUM_COUNTERS];
+			mStatistics.getCounters(counters);
+			uint32_t dropped = 0;
+			for (int i = 0; i < STAT_NUM_DROPS; i++) {
+				drops[i] = counters[STAT_DROP_BASE + i] - mDropCheckCounters[STAT_DROP_BASE + i];
+				dropped += drops[i];
+			}
+			// frames lost by transfer errors never reached uvc_preview_frame_callback
+			const uint32_t total = counters[STAT_RECEIVED] - mDropCheckCounters[STAT_RECEIVED]
+				+ drops[STAT_DROP_TRANSFER - STAT_DROP_BASE];
+			rate = total ? dropped / (float)total : 0;
+			if (rate > mDropThreshold) {
+				listener = env->NewLocalRef(mFrameDropListener);
+				onFrameDrop = mOnFrameDrop;
+			}
+			memcpy(mDropCheckCounters, counters, sizeof(mDropCheckCounters));
+			mNextDropCheckNs = now + mDropIntervalNs;
+		}
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	if (listener) {
+		jintArray array = env->NewIntArray(STAT_NUM_DROPS);
+		if (LIKELY(array)) {
+			env->SetIntArrayRegion(array, 0, STAT_NUM_DROPS, drops);
+			env->CallVoidMethod(listener, onFrameDrop, rate, array);
+			env->DeleteLocalRef(array);
+		}
+		env->ExceptionClear();
+		env->DeleteLocalRef(listener);
+	}
+}
+
+/**
+ * get the number of dropped frames for each cause since preview started
+ * @param drops array that has STAT_NUM_DROPS elements
+ */
+void UVCPreview::getDropCounts(uint32_t *drops) {
+	uint32_t counters[STAT_NUM_COUNTERS];
+	mStatistics.getCounters(counters);
+	memcpy(drops, &counters[STAT_DROP_BASE], sizeof(uint32_t) * STAT_NUM_DROPS);
+}
+
+/**
+ * take a snapshot of latency histograms and counters as JSON without stopping the stream
+ * @return JSON string, caller should free it
+ */
+char *UVCPreview::getStatistics() {
+	return mStatistics.getStatistics();
+}
+
+/**
+ * keep the frame passed to IFrameCallback#onFrame until #releaseFrame is called
+ * @param frame DirectByteBuffer passed to IFrameCallback#onFrame
+ */
+int UVCPreview::leaseFrame(JNIEnv *env, jobject frame) {
+	for (int i = 0; i < MAX_FRAME_CALLBACKS; i++) {
+		if (!mCallbackBuffers[i].lease(env, frame)) {
+			return EXIT_SUCCESS;
+		}
+	}
+	return EXIT_FAILURE;
+}
+
+/**
+ * return the frame leased by #leaseFrame to the pool
+ */
+int UVCPreview::releaseFrame(JNIEnv *env, jobject frame) {
+	for (int i = 0; i < MAX_FRAME_CALLBACKS; i++) {
+		if (!mCallbackBuffers[i].release(env, frame)) {
+			return EXIT_SUCCESS;
+		}
+	}
+	return EXIT_FAILURE;
+}
@@ -29,6 +29,15 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "spscring.h"
+#include "DecodePool.h"
+#include "CallbackBufferPool.h"
+#include "FrameStatistics.h"
+#include "framerate.h"
+#include "MediaCodecEncoder.h"
+#include "StillCapture.h"
+
+class IPipeline;
 
 #pragma interface
 
@@ -38,8 +47,23 @@
 #define DEFAULT_PREVIEW_FPS_MAX 30
 #define DEFAULT_PREVIEW_MODE 0
 #define DEFAULT_BANDWIDTH 1.0f
+#define DEFAULT_FRAME_QUEUE_CAPACITY 4
+#define DEFAULT_FRAME_QUEUE_POLICY SPSC_DROP_NEWEST
+#define DEFAULT_DECODE_THREADS 0		// decode MJPEG on preview thread
+#define DEFAULT_DECODE_MAX_IN_FLIGHT 4
+#define DEFAULT_SCALE_DENOM 1		// output at the stream size
+#define DEFAULT_CALLBACK_BUFFER_NUM 4	// buffers for IFrameCallback excluding ones for decode workers
+#define MAX_FRAME_CALLBACKS 8
+
+// bits of the consumers that want the frame, selected on preview thread before converting
+#define CONSUMER_CALLBACK(slot) (1u << (slot))	// slot of frame_callback_t, [0, MAX_FRAME_CALLBACKS)
+#define CONSUMER_CALLBACKS ((1u << MAX_FRAME_CALLBACKS) - 1)
+#define CONSUMER_PREVIEW (1u << MAX_FRAME_CALLBACKS)
+#define CONSUMER_CAPTURE (1u << (MAX_FRAME_CALLBACKS + 1))
+#define CONSUMER_ENCODER (1u << (MAX_FRAME_CALLBACKS + 2))
 
-typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+// scale_denom is 1, 2, 4 or 8, MJPEG frames are scaled by 1/scale_denom while decoding
+typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);
 
 #define PIXEL_FORMAT_RAW 0		// same as PIXEL_FORMAT_YUV
 #define PIXEL_FORMAT_YUV 1
@@ -47,11 +71,33 @@ typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 #define PIXEL_FORMAT_RGBX 3
 #define PIXEL_FORMAT_YUV20SP 4
 #define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
+#define PIXEL_FORMAT_Y8 6		// luminance only, GRAY8
+#define PIXEL_FORMAT_MJPEG 7	// frames as transferred from the camera without decoding
 
 // for callback to Java object
-typedef struct {
+typedef struct frame_callback {
+	jobject obj;				// global reference of IFrameCallback
 	jmethodID onFrame;
-} Fields_iframecallback;
+	bool timestamped;			// onFrame is ITimestampedFrameCallback#onFrame
+	bool compressed;			// onFrame is ICompressedFrameCallback#onFrame
+	int pixel_format;
+	int scale_denom;			// requested scale_denom
+	uvc_resize_t resize;		// crop rectangle/output size in the stream, width=0 if not resized
+	FrameRateLimiter limiter;	// selects frames at requested max fps
+	int slot;					// bit of CONSUMER_CALLBACK, does not change while the callback is added
+	int group;					// index of the callback group
+	bool legacy;				// set by #setFrameCallback
+} frame_callback_t;
+
+// callbacks that request same pixel format and scale share the conversion and the buffers
+typedef struct callback_group {
+	int pixel_format;
+	int scale_denom;			// actual scale_denom
+	convFunc_t func;			// NULL for PIXEL_FORMAT_RAW/YUV/MJPEG and resized group
+	size_t pixel_bytes;			// maximum size of the frame for PIXEL_FORMAT_MJPEG
+	uvc_resize_t resize;		// crop rectangle in the frame decoded at scale_denom, width=0 if not resized
+	enum uvc_frame_format resize_format;
+} callback_group_t;
 
 class UVCPreview {
 private:
@@ -66,10 +112,16 @@ private:
 	size_t frameBytes;
 	pthread_t preview_thread;
 	pthread_mutex_t preview_mutex;
-	pthread_cond_t preview_sync;
-	ObjectArray<uvc_frame_t *> previewFrames;
+	SPSCRing<uvc_frame_t *> previewFrames;
+	int requestQueueCapacity, requestQueuePolicy;
+	DecodePool mDecodePool;
+	int requestDecodeThreads, requestDecodeMaxInFlight;
+	int decodeMaxInFlight;
 	int previewFormat;
+	int requestPreviewScale, previewScale;
+	int previewWidth, previewHeight;
 	size_t previewBytes;
+	FrameRateLimiter mPreviewLimiter;	// guarded by preview_mutex
 //
 	volatile bool mIsCapturing;
 	ANativeWindow *mCaptureWindow;
@@ -77,16 +129,41 @@ private:
 	pthread_mutex_t capture_mutex;
 	pthread_cond_t capture_sync;
 	uvc_frame_t *captureQueu;			// keep latest frame
-	jobject mFrameCallbackObj;
-	convFunc_t mFrameCallbackFunc;
-	Fields_iframecallback iframecallback_fields;
-	int mPixelFormat;
-	size_t callbackPixelBytes;
+	uint32_t captureConsumers;			// CONSUMER_XXX bits that want captureQueu
+	FrameRateLimiter mCaptureLimiter;	// guarded by capture_mutex
+	MediaCodecEncoder mEncoder;			// encodes frames on capture thread
+	StillCapture mStill;				// reserves frames on preview thread and writes them on its workers
+	uvc_frame_t *captureConverted;		// frame for callback that decode worker already converted
+	convFunc_t captureConvertFunc;
+	int captureConvertScale;
+	pthread_mutex_t callback_mutex;
+	frame_callback_t mFrameCallbacks[MAX_FRAME_CALLBACKS];
+	int mNumFrameCallbacks;
+	callback_group_t mCallbackGroups[MAX_FRAME_CALLBACKS];
+	int mNumCallbackGroups;
+	CallbackBufferPool mCallbackBuffers[MAX_FRAME_CALLBACKS];	// for each callback group
+	FrameStatistics mStatistics;
+	pthread_mutex_t pipeline_mutex;
+	IPipeline *mPipeline;				// head of the pipeline that is composed on Java side
+	uint32_t mNextSequence;				// sequence number of the next frame from libuvc
+	jobject mFrameDropListener;			// global reference of IFrameDropListener
+	jmethodID mOnFrameDrop;
+	float mDropThreshold;
+	int64_t mDropIntervalNs;
+	int64_t mNextDropCheckNs;
+	uint32_t mDropCheckCounters[STAT_NUM_COUNTERS];	// counters at last check
 // improve performance by reducing memory allocation
 	pthread_mutex_t pool_mutex;
 	ObjectArray<uvc_frame_t *> mFramePool;
+	// frames that hold data buffers loaned from libuvc
+	ObjectArray<uvc_frame_t *> mRawFramePool;
+	int mRawFrameNum;
 	uvc_frame_t *get_frame(size_t data_bytes);
+	uvc_frame_t *get_raw_frame(size_t data_bytes);
 	void recycle_frame(uvc_frame_t *frame);
+	static void release_pool_frame(uvc_frame_t *frame, void *vptr_args);
+	static void release_raw_frame(uvc_frame_t *frame, void *vptr_args);
+	void return_frame(uvc_frame_t *frame, bool raw);
 	void init_pool(size_t data_bytes);
 	void clear_pool();
 //
@@ -98,17 +175,38 @@ private:
 	static void *preview_thread_func(void *vptr_args);
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
-	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int pixelBytes);
+	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int scale_denom);
+	int convertToSurface(uvc_frame_t *frame, ANativeWindow **window, convFunc_t convert_func, int scale_denom,
+		int64_t *convert_ns = NULL);
+	void postedPreview(uvc_frame_t *frame, int64_t convert_ns, int64_t surface_ns);
+	uint32_t select_consumers(uvc_frame_t *frame);
+	void do_preview_decode_pool();
+	static void deliver_decoded_frame(decode_job_t *job, void *vptr_args);
+	void deliver_decoded(decode_job_t *job);
 //
-	void addCaptureFrame(uvc_frame_t *frame);
-	uvc_frame_t *waitCaptureFrame();
+	void addCaptureFrame(uvc_frame_t *frame, uint32_t consumers, uvc_frame_t *converted = NULL,
+		convFunc_t converted_func = NULL, int converted_scale = DEFAULT_SCALE_DENOM);
+	uvc_frame_t *waitCaptureFrame(uint32_t *consumers,
+		uvc_frame_t **converted, convFunc_t *converted_func, int *converted_scale);
 	void clearCaptureFrame();
 	static void *capture_thread_func(void *vptr_args);
 	void do_capture(JNIEnv *env);
 	void do_capture_surface(JNIEnv *env);
 	void do_capture_idle_loop(JNIEnv *env);
-	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
-	void callbackPixelFormatChanged();
+	void do_capture_encoder(uvc_frame_t *frame);
+	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame, uint32_t consumers,
+		uvc_frame_t *converted, convFunc_t converted_func, int converted_scale);
+	void check_frame_drops(JNIEnv *env);
+	uvc_frame_t *get_callback_frame(uvc_frame_t *frame, uint32_t consumers, convFunc_t *convert_func, int *scale_denom);
+	uvc_frame_t *convert_callback_frame(uvc_frame_t *frame, int index, const callback_group_t *group,
+		uvc_frame_t **converted, convFunc_t converted_func, int converted_scale);
+	uvc_frame_t *resize_callback_frame(uvc_frame_t *frame, int index, const callback_group_t *group,
+		convFunc_t decode_func, uvc_frame_t *converted, convFunc_t converted_func, int converted_scale);
+	int add_frame_callback_locked(JNIEnv *env, jobject frame_callback_obj,
+		int pixel_format, int scale_denom, float max_fps, bool legacy, const uvc_resize_t *resize);
+	void remove_frame_callback_locked(JNIEnv *env, int index);
+	static convFunc_t callbackConvertFunc(uvc_frame_t *frame, const callback_group_t *group);
+	void updateCallbackGroups_locked();
 public:
 	UVCPreview(uvc_device_handle_t *devh);
 	~UVCPreview();
@@ -116,11 +214,30 @@ public:
 	inline const bool isRunning() const;
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom = DEFAULT_SCALE_DENOM,
+		const uvc_resize_t *resize = NULL);
+	int addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int scale_denom, float max_fps,
+		const uvc_resize_t *resize = NULL);
+	int removeFrameCallback(JNIEnv *env, jobject frame_callback_obj);
+	int setFrameQueue(int capacity, int drop_policy);
+	int setDecodeThreads(int num_threads, int max_in_flight);
+	int setPreviewScale(int scale_denom);
+	int setPreviewMaxFps(float max_fps);
+	int setCaptureMaxFps(float max_fps);
 	int startPreview();
 	int stopPreview();
 	inline const bool isCapturing() const;
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int startEncoder(const char *path, int width, int height, int frame_rate, int bitrate, int color_format);
+	int stopEncoder();
+	int captureStill(JNIEnv *env, jstring path, int quality, jobject callback);
+	int captureBurst(JNIEnv *env, jobjectArray paths, int quality, jobjectArray callbacks);
+	int leaseFrame(JNIEnv *env, jobject frame);
+	int releaseFrame(JNIEnv *env, jobject frame);
+	char *getStatistics();
+	int setPipeline(IPipeline *pipeline);
+	int setFrameDropListener(JNIEnv *env, jobject drop_listener, float threshold, int interval_ms);
+	void getDropCounts(uint32_t *drops);
 };
 
 #endif /* UVCPREVIEW_H_ */
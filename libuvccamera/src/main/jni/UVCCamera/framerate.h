@@ -0,0 +1,92 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: framerate.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMERATE_H_
+#define FRAMERATE_H_
+
+#include <stdint.h>
+
+/**
+ * decides which frames a consumer receives to keep its target frame rate.
+ * frames are selected by the capture time that is recovered from the device clock,
+ * not by the time they arrive, so bursts/jitter of USB transfer and queueing do not
+ * affect the selection and dropped frames are spread uniformly
+ * (e.g. every 6th frame for 5 fps from 30 fps).
+ * the frame nearest to each ideal time(every 1/max_fps from the first frame) is selected.
+ * this is not thread safe, callers should serialize #accept/#setMaxFps.
+ */
+class FrameRateLimiter {
+private:
+	int64_t interval_ns;		// 0 if frame rate is not limited
+	int64_t next_ns;			// ideal capture time of the next frame to accept, 0 until the first frame
+	int64_t last_ns;			// capture time of the last frame
+	int64_t period_ns;			// estimated interval of frames from the camera
+public:
+	FrameRateLimiter() : interval_ns(0), next_ns(0), last_ns(0), period_ns(0) {};
+
+	/**
+	 * @param max_fps 0 if not limited
+	 */
+	inline void setMaxFps(const float &max_fps) {
+		interval_ns = max_fps > 0.0f ? (int64_t)(1000000000LL / max_fps) : 0;
+		reset();
+	};
+	inline const bool isLimited() const { return interval_ns != 0; };
+	/**
+	 * start over from the next frame, e.g. when preview restarts
+	 */
+	inline void reset() { next_ns = last_ns = period_ns = 0; };
+
+	/**
+	 * @param capture_ns capture time of the frame, CLOCK_MONOTONIC
+	 * @return true if the consumer should receive the frame
+	 */
+	bool accept(const int64_t &capture_ns) {
+		if (!interval_ns) return true;
+		// gaps longer than the interval(lost frames) are not the frame period,
+		// they would make the limiter accept extra frames until the estimate recovers
+		if (last_ns && (capture_ns > last_ns) && (capture_ns - last_ns < interval_ns)) {
+			const int64_t d = capture_ns - last_ns;
+			period_ns = period_ns ? period_ns + ((d - period_ns) >> 3) : d;
+		}
+		last_ns = capture_ns;
+		if (!next_ns || (capture_ns < next_ns - interval_ns)) {
+			// first frame or the clock was reset
+			next_ns = capture_ns + interval_ns;
+			return true;
+		}
+		// accept if this frame is nearer to the ideal time than the next one will be
+		if (capture_ns + (period_ns >> 1) < next_ns) {
+			return false;
+		}
+		next_ns += interval_ns;
+		if (next_ns <= capture_ns) {
+			// frames were lost or the camera is slower than max_fps, keep the phase from this frame
+			next_ns = capture_ns + interval_ns;
+		}
+		return true;
+	};
+};
+
+#endif /* FRAMERATE_H_ */
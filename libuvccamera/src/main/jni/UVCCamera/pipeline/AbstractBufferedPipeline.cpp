@@ -23,10 +23,17 @@ AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, c
 	max_buffer_num(_max_buffer_num),
 	init_pool_num(_init_pool_num),
 	drop_frames(drop_frames_when_buffer_empty),
-	total_frame_num(0)
+	total_frame_num(0),
+	frame_pool(_max_buffer_num),
+	frame_buffers(_max_buffer_num)
 {
 	ENTER();
 
+	pthread_mutex_init(&pool_mutex, NULL);
+	pthread_cond_init(&pool_sync, NULL);
+	pthread_mutex_init(&buffer_mutex, NULL);
+	pthread_cond_init(&buffer_sync, NULL);
+
 	EXIT();
 }
 
@@ -36,6 +43,10 @@ AbstractBufferedPipeline::~AbstractBufferedPipeline() {
 
 	release();
 	setState(PIPELINE_STATE_UNINITIALIZED);
+	pthread_cond_destroy(&buffer_sync);
+	pthread_mutex_destroy(&buffer_mutex);
+	pthread_cond_destroy(&pool_sync);
+	pthread_mutex_destroy(&pool_mutex);
 
 	EXIT();
 }
@@ -61,21 +72,15 @@ int AbstractBufferedPipeline::start() {
 	if (!isRunning()) {
 		mIsRunning = true;
 		setState(PIPELINE_STATE_STARTING);
-		buffer_mutex.lock();
+		pthread_mutex_lock(&buffer_mutex);
 		{
 			result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
 		}
-		buffer_mutex.unlock();
+		pthread_mutex_unlock(&buffer_mutex);
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("AbstractBufferedPipeline::already running/could not create thread etc.");
 			setState(PIPELINE_STATE_INITIALIZED);
 			mIsRunning = false;
-			buffer_mutex.lock();
-			{
-				pool_sync.broadcast();
-				buffer_sync.broadcast();
-			}
-			buffer_mutex.unlock();
 		}
 	}
 	RETURN(result, int);
@@ -89,11 +94,19 @@ int AbstractBufferedPipeline::stop() {
 	if (LIKELY(b)) {
 		setState(PIPELINE_STATE_STOPPING);
 		mIsRunning = false;
-		pool_sync.broadcast();
-		buffer_sync.broadcast();
+		pthread_mutex_lock(&pool_mutex);
+		{
+			pthread_cond_broadcast(&pool_sync);
+		}
+		pthread_mutex_unlock(&pool_mutex);
+		pthread_mutex_lock(&buffer_mutex);
+		{
+			pthread_cond_broadcast(&buffer_sync);
+		}
+		pthread_mutex_unlock(&buffer_mutex);
 		LOGD("pthread_join:handler_thread");
 		if (pthread_join(handler_thread, NULL) != EXIT_SUCCESS) {
-			LOGW("PublisherPipeline::terminate publisher thread: pthread_join failed");
+			LOGW("AbstractBufferedPipeline::terminate handler thread: pthread_join failed");
 		}
 		setState(PIPELINE_STATE_INITIALIZED);
 		LOGD("handler_thread finished");
@@ -108,14 +121,14 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	ENTER();
 
 	int ret = UVC_ERROR_OTHER;
-	if (LIKELY(frame)) {
+	if (LIKELY(frame && isRunning())) {
 		// get empty frame from frame pool
-		uvc_frame_t *copy = get_frame(frame->data_bytes);
+		uvc_frame_t *copy = get_frame(frame->actual_bytes);
 		if (UNLIKELY(!copy)) {
 			LOGD("buffer pool is empty and exceeds the limit, drop frame");
 			RETURN(UVC_ERROR_NO_MEM, int);
 		}
-		// duplicate frame buffer and pass copy to publisher
+		// duplicate frame buffer and pass copy to handler thread
 		ret = uvc_duplicate_frame(frame, copy);
 		if (LIKELY(!ret)) {
 			ret = add_frame(copy);
@@ -139,34 +152,28 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
  */
 uvc_frame_t *AbstractBufferedPipeline::get_frame(const size_t &data_bytes) {
 	uvc_frame_t *frame = NULL;
-	Mutex::Autolock lock(pool_mutex);
-
-	if (UNLIKELY(frame_pool.empty() && (total_frame_num < max_buffer_num))) {
-		uint32_t n = total_frame_num * 2;
-		if (n > max_buffer_num) {
-			n = max_buffer_num;
-		}
-		n -= total_frame_num;
-		if (LIKELY(n > 0)) {
-			for (int i = 0; i < n; i++) {
-				frame = uvc_allocate_frame(data_bytes);
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (UNLIKELY(frame_pool.isEmpty() && (total_frame_num < max_buffer_num))) {
+			frame = uvc_allocate_frame(data_bytes);
+			if (LIKELY(frame)) {
 				total_frame_num++;
+				LOGW("allocate new frame:%d", total_frame_num);
+			} else {
+				LOGW("failed to allocate new frame:%d", total_frame_num);
 			}
-			LOGW("allocate new frame:%d", total_frame_num);
-		} else {
-			LOGW("number of allocated frame exceeds limit");
 		}
-	}
-	if (UNLIKELY(frame_pool.empty() && !drop_frames)) {
-		// if pool is empty and need to block(avoid dropping frames), wait frame recycling.
-		for (; mIsRunning && frame_pool.empty() ; ) {
-			pool_sync.wait(pool_mutex);
+		if (UNLIKELY(!frame && frame_pool.isEmpty() && !drop_frames)) {
+			// if pool is empty and need to block(avoid dropping frames), wait frame recycling.
+			for (; mIsRunning && frame_pool.isEmpty() ; ) {
+				pthread_cond_wait(&pool_sync, &pool_mutex);
+			}
+		}
+		if (!frame && !frame_pool.isEmpty()) {
+			frame = frame_pool.last();
 		}
 	}
-	if (!frame_pool.empty()) {
-		frame = frame_pool.front();
-		frame_pool.pop_front();
-	}
+	pthread_mutex_unlock(&pool_mutex);
 
 	return frame;
 }
@@ -175,17 +182,20 @@ void AbstractBufferedPipeline::recycle_frame(uvc_frame_t *frame) {
 	ENTER();
 
 	if (LIKELY(frame)) {
-		Mutex::Autolock lock(pool_mutex);
-		if (LIKELY(frame_pool.size() < max_buffer_num)) {
-			frame_pool.push_back(frame);
-			frame = NULL;
-		}
-		if (UNLIKELY(frame)) {
-			// if pool overflowed
-			total_frame_num--;
-			uvc_free_frame(frame);
+		pthread_mutex_lock(&pool_mutex);
+		{
+			if (LIKELY(frame_pool.size() < (int)max_buffer_num)) {
+				frame_pool.put(frame);
+				frame = NULL;
+			}
+			if (UNLIKELY(frame)) {
+				// if pool overflowed
+				total_frame_num--;
+				uvc_free_frame(frame);
+			}
+			pthread_cond_signal(&pool_sync);
 		}
-		pool_sync.signal();
+		pthread_mutex_unlock(&pool_mutex);
 	}
 
 	EXIT();
@@ -197,7 +207,7 @@ void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 	uvc_frame_t *frame = NULL;
 
 	clear_pool();
-	pool_mutex.lock();
+	pthread_mutex_lock(&pool_mutex);
 	{
 
 		size_t frame_sz = data_bytes / 4;	// expects 25%, this will be able to much lower
@@ -207,7 +217,7 @@ void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 		for (uint32_t i = 0; i < init_pool_num; i++) {
 			frame = uvc_allocate_frame(frame_sz);
 			if (LIKELY(frame)) {
-				frame_pool.push_back(frame);
+				frame_pool.put(frame);
 				total_frame_num++;
 			} else {
 				LOGW("failed to allocate new frame:%d", total_frame_num);
@@ -215,7 +225,7 @@ void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 			}
 		}
 	}
-	pool_mutex.unlock();
+	pthread_mutex_unlock(&pool_mutex);
 
 	EXIT();
 }
@@ -223,13 +233,16 @@ void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 void AbstractBufferedPipeline::clear_pool() {
 	ENTER();
 
-	Mutex::Autolock lock(pool_mutex);
-
-	for (auto iter = frame_pool.begin(); iter != frame_pool.end(); iter++) {
-		total_frame_num--;
-		uvc_free_frame(*iter);
+	pthread_mutex_lock(&pool_mutex);
+	{
+		for (uvc_frame_t *frame = frame_pool.last(); frame; frame = frame_pool.last()) {
+			total_frame_num--;
+			uvc_free_frame(frame);
+		}
+		frame_pool.clear();
 	}
-	frame_pool.clear();
+	pthread_mutex_unlock(&pool_mutex);
+
 	EXIT();
 }
 
@@ -238,37 +251,37 @@ void AbstractBufferedPipeline::clear_pool() {
 //********************************************************************************
 
 void AbstractBufferedPipeline::clear_frames() {
-	Mutex::Autolock lock(buffer_mutex);
-
-	for (auto iter = frame_buffers.begin(); iter != frame_buffers.end(); iter++) {
-		recycle_frame(*iter);
+	pthread_mutex_lock(&buffer_mutex);
+	{
+		for (int i = 0; i < frame_buffers.size(); i++) {
+			recycle_frame(frame_buffers[i]);
+		}
+		frame_buffers.clear();
 	}
-	frame_buffers.clear();
+	pthread_mutex_unlock(&buffer_mutex);
 }
 
 int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
 	ENTER();
 
-	buffer_mutex.lock();
+	uvc_frame_t *dropped = NULL;
+	pthread_mutex_lock(&buffer_mutex);
 	{
-		// FIXME as current implementation, transferring frame data on my device is slower than that coming from UVC camera... just drop them now
-		if (frame_buffers.size() > max_buffer_num) {
-			// erase old frames
-			int cnt = 0;
-			for (auto iter = frame_buffers.begin();
-				 (iter != frame_buffers.end()) && (cnt < 5); iter++, cnt++) {
-				recycle_frame(*iter);
-				iter = frame_buffers.erase(iter);
+		if (isRunning()) {
+			// when the handler thread fell behind, drop the oldest frame to keep the latency
+			if (frame_buffers.size() >= (int)max_buffer_num) {
+				dropped = frame_buffers.remove(0);
+				LOGW("droped frame data");
 			}
-			LOGW("droped frame data");
-		}
-		if (isRunning() && (frame_buffers.size() < max_buffer_num)) {
-			frame_buffers.push_back(frame);
+			frame_buffers.put(frame);
 			frame = NULL;
 		}
-		buffer_sync.signal();
+		pthread_cond_signal(&buffer_sync);
+	}
+	pthread_mutex_unlock(&buffer_mutex);
+	if (dropped) {
+		recycle_frame(dropped);
 	}
-	buffer_mutex.unlock();
 	if (frame) {
 		recycle_frame(frame);
 	}
@@ -279,23 +292,26 @@ int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
 uvc_frame_t *AbstractBufferedPipeline::wait_frame() {
 	uvc_frame_t *frame = NULL;
 
-	Mutex::Autolock lock(buffer_mutex);
-
-	if (!frame_buffers.size()) {
-		buffer_sync.wait(buffer_mutex);
-	}
-	if (LIKELY(isRunning() && frame_buffers.size() > 0)) {
-		frame = frame_buffers.front();
-		frame_buffers.pop_front();
+	pthread_mutex_lock(&buffer_mutex);
+	{
+		for (; isRunning() && frame_buffers.isEmpty() ; ) {
+			pthread_cond_wait(&buffer_sync, &buffer_mutex);
+		}
+		if (LIKELY(isRunning() && !frame_buffers.isEmpty())) {
+			frame = frame_buffers.remove(0);
+		}
 	}
+	pthread_mutex_unlock(&buffer_mutex);
+
 	return frame;
 }
 
 uint32_t AbstractBufferedPipeline::get_frame_count() {
 	ENTER();
 
-	Mutex::Autolock lock(buffer_mutex);
+	pthread_mutex_lock(&buffer_mutex);
 	uint32_t result = frame_buffers.size();
+	pthread_mutex_unlock(&buffer_mutex);
 
 	RETURN(result, uint32_t);
 }
@@ -325,12 +341,8 @@ void AbstractBufferedPipeline::do_loop() {
 	for ( ; LIKELY(isRunning()) ; ) {
 		uvc_frame_t *frame = wait_frame();
 		if ((LIKELY(frame))) {
-			try {
-				if (!handle_frame(frame)) {
-					chain_frame(frame);
-				}
-			} catch (...) {
-				LOGE("exception");
+			if (!handle_frame(frame)) {
+				chain_frame(frame);
 			}
 			recycle_frame(frame);
 		}
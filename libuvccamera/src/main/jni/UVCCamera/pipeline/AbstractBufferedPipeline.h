@@ -7,11 +7,9 @@
 
 #include <stdlib.h>
 #include <pthread.h>
-#include <list>
-#include "Mutex.h"
-#include "Condition.h"
 
 #include "libUVCCamera.h"
+#include "objectarray.h"
 #include "IPipeline.h"
 
 #pragma interface
@@ -19,8 +17,6 @@
 #define DEFAULT_INIT_FRAME_POOL_SZ 2
 #define DEFAULT_MAX_FRAME_NUM 8
 
-using namespace android;
-
 class AbstractBufferedPipeline;
 
 class AbstractBufferedPipeline : virtual public IPipeline {
@@ -31,14 +27,14 @@ private:
 	volatile uint32_t total_frame_num;
 
 // frame buffer pool to improve performance by reducing memory allocation
-	mutable Mutex pool_mutex;
-	Condition pool_sync;
-	std::list<uvc_frame_t *> frame_pool;
-// frame buffers
+	mutable pthread_mutex_t pool_mutex;
+	pthread_cond_t pool_sync;
+	ObjectArray<uvc_frame_t *> frame_pool;
+// frame buffers, each pipeline handles frames on its own handler thread
 	pthread_t handler_thread;
-	mutable Mutex buffer_mutex;
-	Condition buffer_sync;
-	std::list<uvc_frame_t *> frame_buffers;
+	mutable pthread_mutex_t buffer_mutex;
+	pthread_cond_t buffer_sync;
+	ObjectArray<uvc_frame_t *> frame_buffers;	// FIFO
 	static void *handler_thread_func(void *vptr_args);
 
 protected:
@@ -0,0 +1,302 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: AviRecorderPipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+
+#include "utilbase.h"
+
+#include "libUVCCamera.h"
+#include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "AviRecorderPipeline.h"
+
+/*public*/
+AviRecorderPipeline::AviRecorderPipeline(const int &max_buffer_num)
+:	AbstractBufferedPipeline(max_buffer_num, DEFAULT_INIT_FRAME_POOL_SZ, DEFAULT_FRAME_SZ, true)
+{
+	ENTER();
+
+	pthread_mutex_init(&record_mutex, NULL);
+	setState(PIPELINE_STATE_INITIALIZED);
+
+	EXIT();
+}
+
+/*public*/
+AviRecorderPipeline::~AviRecorderPipeline() {
+	ENTER();
+
+	release();
+	pthread_mutex_lock(&record_mutex);
+	{
+		writer.close();
+	}
+	pthread_mutex_unlock(&record_mutex);
+	pthread_mutex_destroy(&record_mutex);
+
+	EXIT();
+}
+
+void AviRecorderPipeline::on_start() {
+	ENTER();
+	EXIT();
+}
+
+void AviRecorderPipeline::on_stop() {
+	ENTER();
+
+	pthread_mutex_lock(&record_mutex);
+	{
+		writer.close();
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	EXIT();
+}
+
+int AviRecorderPipeline::handle_frame(uvc_frame_t *frame) {
+	ENTER();
+
+	pthread_mutex_lock(&record_mutex);
+	{
+		if (writer.isOpened()) {
+			writer.writeFrame(frame);
+		}
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	RETURN(0, int);
+}
+
+/**
+ * start recording into the AVI file, the file is overwritten if it exists
+ * @param record_path
+ */
+int AviRecorderPipeline::startRecording(const char *record_path) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&record_mutex);
+	if (LIKELY(record_path && !writer.isOpened())) {
+		result = writer.open(record_path);
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	RETURN(result, int);
+}
+
+int AviRecorderPipeline::stopRecording() {
+	ENTER();
+
+	pthread_mutex_lock(&record_mutex);
+	{
+		writer.close();
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	RETURN(0, int);
+}
+
+bool AviRecorderPipeline::isRecording() {
+	pthread_mutex_lock(&record_mutex);
+	const bool result = writer.isOpened();
+	pthread_mutex_unlock(&record_mutex);
+	return result;
+}
+
+/**
+ * @return the number of frames written in current(or last) recording
+ */
+int AviRecorderPipeline::getFrameCount() {
+	pthread_mutex_lock(&record_mutex);
+	const int result = writer.getFrameCount();
+	pthread_mutex_unlock(&record_mutex);
+	return result;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint max_buffer_num) {
+
+	ENTER();
+	AviRecorderPipeline *pipeline = new AviRecorderPipeline(max_buffer_num > 0 ? max_buffer_num : DEFAULT_MAX_FRAME_NUM);
+	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
+}
+
+static void nativeDestroy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	setField_long(env, thiz, "mNativePtr", 0);
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->release();
+		SAFE_DELETE(pipeline);
+	}
+	EXIT();
+}
+
+static jint nativeGetState(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (pipeline) {
+		result = pipeline->getState();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jobject pipeline_obj) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (pipeline) {
+		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
+		result = pipeline->setPipeline(target_pipeline);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStart(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+
+	int result = JNI_ERR;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->start();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStop(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stop();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStartRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jstring record_path_str) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline && record_path_str)) {
+		const char *record_path = env->GetStringUTFChars(record_path_str, JNI_FALSE);
+		result = pipeline->startRecording(record_path);
+		env->ReleaseStringUTFChars(record_path_str, record_path);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStopRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stopRecording();
+	}
+	RETURN(result, jint);
+}
+
+static jboolean nativeIsRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jboolean result = JNI_FALSE;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->isRecording();
+	}
+	RETURN(result, jboolean);
+}
+
+static jint nativeGetFrameCount(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	AviRecorderPipeline *pipeline = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->getFrameCount();
+	}
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
+	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
+
+	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+
+	{ "nativeStart",					"(J)I", (void *) nativeStart },
+	{ "nativeStop",						"(J)I", (void *) nativeStop },
+
+	{ "nativeStartRecording",			"(JLjava/lang/String;)I", (void *) nativeStartRecording },
+	{ "nativeStopRecording",			"(J)I", (void *) nativeStopRecording },
+	{ "nativeIsRecording",				"(J)Z", (void *) nativeIsRecording },
+	{ "nativeGetFrameCount",			"(J)I", (void *) nativeGetFrameCount },
+};
+
+int register_avi_recorder_pipeline(JNIEnv *env) {
+	LOGV("register_avi_recorder_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/AviRecorderPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+    return 0;
+}
@@ -0,0 +1,62 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: AviRecorderPipeline.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef AVIRECORDERPIPELINE_H_
+#define AVIRECORDERPIPELINE_H_
+
+#include <stdlib.h>
+#include <pthread.h>
+
+#include "libUVCCamera.h"
+#include "AbstractBufferedPipeline.h"
+#include "AviWriter.h"
+
+#pragma interface
+
+/**
+ * writes frames as they are into AVI file without decoding/encoding through AviWriter,
+ * MJPEG frames as Motion-JPEG and YUYV/UYVY frames as uncompressed video.
+ * the headers are updated every second while recording so that the file is playable
+ * even if the app is killed, the index is appended when recording stops.
+ * the format and size of the first frame are used for the file, frames with different ones are skipped.
+ * frames are always passed to the next pipeline.
+ */
+class AviRecorderPipeline : virtual public AbstractBufferedPipeline {
+private:
+	mutable pthread_mutex_t record_mutex;
+	AviWriter writer;
+protected:
+	virtual void on_start();
+	virtual void on_stop();
+	virtual int handle_frame(uvc_frame_t *frame);
+public:
+	AviRecorderPipeline(const int &max_buffer_num = DEFAULT_MAX_FRAME_NUM);
+	virtual ~AviRecorderPipeline();
+	int startRecording(const char *record_path);
+	int stopRecording();
+	bool isRecording();
+	int getFrameCount();
+};
+
+#endif /* AVIRECORDERPIPELINE_H_ */
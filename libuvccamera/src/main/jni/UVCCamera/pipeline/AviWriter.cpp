@@ -0,0 +1,378 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: AviWriter.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+
+#include "utilbase.h"
+
+#include "libUVCCamera.h"
+#include "AviWriter.h"
+
+#define FOURCC(a, b, c, d) ((uint32_t)(a) | ((uint32_t)(b) << 8) | ((uint32_t)(c) << 16) | ((uint32_t)(d) << 24))
+#define AVIF_HASINDEX 0x00000010
+#define AVIIF_KEYFRAME 0x00000010
+#define DEFAULT_US_PER_FRAME 33333		// used when the frame rate is unknown
+#define INIT_INDEX_CAPACITY 1024
+
+static inline uint8_t *put_le16(uint8_t *p, const uint32_t &v) {
+	p[0] = v & 0xff;
+	p[1] = (v >> 8) & 0xff;
+	return p + 2;
+}
+
+static inline uint8_t *put_le32(uint8_t *p, const uint32_t &v) {
+	p[0] = v & 0xff;
+	p[1] = (v >> 8) & 0xff;
+	p[2] = (v >> 16) & 0xff;
+	p[3] = (v >> 24) & 0xff;
+	return p + 4;
+}
+
+/**
+ * fill AVI_HEADER_BYTES of RIFF/hdrl/movi headers
+ * @param flags AVIF_HASINDEX only when idx1 chunk follows movi list
+ */
+static void build_header(uint8_t *buf, const enum uvc_frame_format &format,
+	const uint32_t &width, const uint32_t &height, const uint32_t &frames, const uint32_t &us_per_frame,
+	const uint32_t &max_frame_bytes, const uint32_t &movi_bytes, const uint32_t &idx1_bytes, const uint32_t &flags) {
+
+	const uint32_t handler = format == UVC_FRAME_FORMAT_MJPEG ? FOURCC('M', 'J', 'P', 'G')
+		: (format == UVC_FRAME_FORMAT_UYVY ? FOURCC('U', 'Y', 'V', 'Y') : FOURCC('Y', 'U', 'Y', '2'));
+	const uint32_t bit_count = format == UVC_FRAME_FORMAT_MJPEG ? 24 : 16;
+	const uint32_t bytes_per_sec = (uint32_t)((uint64_t)max_frame_bytes * 1000000 / us_per_frame);
+	uint8_t *p = buf;
+	memset(buf, 0, AVI_HEADER_BYTES);
+	// RIFF 'AVI '
+	p = put_le32(p, FOURCC('R', 'I', 'F', 'F'));
+	p = put_le32(p, AVI_HEADER_BYTES - 8 + movi_bytes + idx1_bytes);
+	p = put_le32(p, FOURCC('A', 'V', 'I', ' '));
+	// LIST 'hdrl'
+	p = put_le32(p, FOURCC('L', 'I', 'S', 'T'));
+	p = put_le32(p, 192);
+	p = put_le32(p, FOURCC('h', 'd', 'r', 'l'));
+	// avih, MainAVIHeader
+	p = put_le32(p, FOURCC('a', 'v', 'i', 'h'));
+	p = put_le32(p, 56);
+	p = put_le32(p, us_per_frame);			// dwMicroSecPerFrame
+	p = put_le32(p, bytes_per_sec);			// dwMaxBytesPerSec
+	p = put_le32(p, 0);						// dwPaddingGranularity
+	p = put_le32(p, flags);					// dwFlags
+	p = put_le32(p, frames);				// dwTotalFrames
+	p = put_le32(p, 0);						// dwInitialFrames
+	p = put_le32(p, 1);						// dwStreams
+	p = put_le32(p, max_frame_bytes);		// dwSuggestedBufferSize
+	p = put_le32(p, width);
+	p = put_le32(p, height);
+	p += 16;								// dwReserved[4]
+	// LIST 'strl'
+	p = put_le32(p, FOURCC('L', 'I', 'S', 'T'));
+	p = put_le32(p, 116);
+	p = put_le32(p, FOURCC('s', 't', 'r', 'l'));
+	// strh, AVIStreamHeader
+	p = put_le32(p, FOURCC('s', 't', 'r', 'h'));
+	p = put_le32(p, 56);
+	p = put_le32(p, FOURCC('v', 'i', 'd', 's'));	// fccType
+	p = put_le32(p, handler);				// fccHandler
+	p = put_le32(p, 0);						// dwFlags
+	p = put_le32(p, 0);						// wPriority, wLanguage
+	p = put_le32(p, 0);						// dwInitialFrames
+	p = put_le32(p, us_per_frame);			// dwScale
+	p = put_le32(p, 1000000);				// dwRate, frame rate is dwRate / dwScale
+	p = put_le32(p, 0);						// dwStart
+	p = put_le32(p, frames);				// dwLength
+	p = put_le32(p, max_frame_bytes);		// dwSuggestedBufferSize
+	p = put_le32(p, 0xffffffff);			// dwQuality
+	p = put_le32(p, 0);						// dwSampleSize
+	p = put_le16(p, 0);						// rcFrame
+	p = put_le16(p, 0);
+	p = put_le16(p, width);
+	p = put_le16(p, height);
+	// strf, BITMAPINFOHEADER
+	p = put_le32(p, FOURCC('s', 't', 'r', 'f'));
+	p = put_le32(p, 40);
+	p = put_le32(p, 40);					// biSize
+	p = put_le32(p, width);
+	p = put_le32(p, height);
+	p = put_le16(p, 1);						// biPlanes
+	p = put_le16(p, bit_count);
+	p = put_le32(p, handler);				// biCompression
+	p = put_le32(p, width * height * bit_count / 8);	// biSizeImage
+	p += 16;								// biXPelsPerMeter, biYPelsPerMeter, biClrUsed, biClrImportant
+	// LIST 'movi', chunks follow
+	p = put_le32(p, FOURCC('L', 'I', 'S', 'T'));
+	p = put_le32(p, 4 + movi_bytes);
+	p = put_le32(p, FOURCC('m', 'o', 'v', 'i'));
+}
+
+AviWriter::AviWriter()
+:	fd(-1),
+	write_buffer(NULL),
+	write_bytes(0),
+	movi_bytes(0),
+	index(NULL),
+	index_capacity(0),
+	frame_count(0),
+	skipped_count(0),
+	max_frame_bytes(0),
+	frame_width(0),
+	frame_height(0),
+	frame_format(UVC_FRAME_FORMAT_UNKNOWN),
+	first_capture_ns(0),
+	last_capture_ns(0),
+	synced_capture_ns(0),
+	write_failed(false)
+{
+}
+
+AviWriter::~AviWriter() {
+	close();
+}
+
+/**
+ * create the AVI file, the file is overwritten if it exists
+ * @param path
+ * @return EXIT_SUCCESS or EXIT_FAILURE
+ */
+int AviWriter::open(const char *path) {
+	ENTER();
+
+	if (UNLIKELY(!path || (fd >= 0))) RETURN(EXIT_FAILURE, int);
+
+	write_buffer = (uint8_t *)malloc(AVI_WRITE_BUFFER_BYTES);
+	fd = write_buffer ? ::open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644) : -1;
+	if (UNLIKELY(fd < 0)) {
+		LOGE("failed to open recording file:%s", path);
+		close();
+		RETURN(EXIT_FAILURE, int);
+	}
+	movi_bytes = frame_count = skipped_count = max_frame_bytes = 0;
+	frame_width = frame_height = 0;
+	frame_format = UVC_FRAME_FORMAT_UNKNOWN;
+	first_capture_ns = last_capture_ns = synced_capture_ns = 0;
+	write_failed = false;
+	// headers of empty movi list, updated while writing and when closing
+	uint8_t header[AVI_HEADER_BYTES];
+	build_header(header, frame_format, 0, 0, 0, DEFAULT_US_PER_FRAME, 0, 0, 0, 0);
+	if (UNLIKELY(write_data(header, AVI_HEADER_BYTES) || flush_buffer())) {
+		close();
+		RETURN(EXIT_FAILURE, int);
+	}
+
+	RETURN(EXIT_SUCCESS, int);
+}
+
+/**
+ * append the frame as a chunk of movi list and add its index entry
+ * @return 0 if the frame was written, -1 if it was skipped or failed.
+ * 		the file is closed when it reaches AVI_MAX_BYTES or failed to write, check #isOpened
+ */
+int AviWriter::writeFrame(uvc_frame_t *frame) {
+	if (UNLIKELY(fd < 0)) {
+		return -1;
+	}
+	const uint32_t bytes = uvc_frame_payload_bytes(frame);
+	if (UNLIKELY(!bytes)) {
+		return -1;
+	}
+	if (frame_format == UVC_FRAME_FORMAT_UNKNOWN) {
+		switch (frame->frame_format) {
+		case UVC_FRAME_FORMAT_MJPEG:
+		case UVC_FRAME_FORMAT_YUYV:
+		case UVC_FRAME_FORMAT_UYVY:
+			frame_format = frame->frame_format;
+			frame_width = frame->width;
+			frame_height = frame->height;
+			break;
+		default:
+			skipped_count++;
+			return -1;
+		}
+	}
+	if (UNLIKELY((frame->frame_format != frame_format)
+		|| (frame->width != frame_width) || (frame->height != frame_height))) {
+
+		skipped_count++;
+		return -1;
+	}
+	const uint32_t chunk_bytes = 8 + ((bytes + 1) & ~1u);
+	if (UNLIKELY((uint64_t)AVI_HEADER_BYTES + movi_bytes + chunk_bytes
+		+ (uint64_t)(frame_count + 1) * sizeof(avi_index_entry_t) + 8 > AVI_MAX_BYTES)) {
+
+		LOGW("reached the maximum size of AVI file, stop recording");
+		close();
+		return -1;
+	}
+	if (UNLIKELY(frame_count >= index_capacity)) {
+		const uint32_t capacity = index_capacity ? index_capacity * 2 : INIT_INDEX_CAPACITY;
+		avi_index_entry_t *new_index = (avi_index_entry_t *)realloc(index, sizeof(avi_index_entry_t) * capacity);
+		if (UNLIKELY(!new_index)) {
+			LOGE("failed to allocate index");
+			skipped_count++;
+			return -1;
+		}
+		index = new_index;
+		index_capacity = capacity;
+	}
+	const uint32_t ckid = frame_format == UVC_FRAME_FORMAT_MJPEG
+		? FOURCC('0', '0', 'd', 'c') : FOURCC('0', '0', 'd', 'b');
+	uint8_t chunk_header[8];
+	put_le32(put_le32(chunk_header, ckid), bytes);
+	static const uint8_t pad = 0;
+	if (UNLIKELY(write_data(chunk_header, sizeof(chunk_header))
+		|| write_data(frame->data, bytes)
+		|| ((bytes & 1) && write_data(&pad, 1)))) {
+
+		LOGW("failed to write recording file, stop recording");
+		close();
+		return -1;
+	}
+	avi_index_entry_t *entry = &index[frame_count];
+	entry->ckid = ckid;
+	entry->flags = AVIIF_KEYFRAME;	// all frames from UVC are intra frames
+	entry->offset = 4 + movi_bytes;
+	entry->bytes = bytes;
+	movi_bytes += chunk_bytes;
+	if (bytes > max_frame_bytes) {
+		max_frame_bytes = bytes;
+	}
+	const int64_t capture_ns = uvc_frame_capture_ns(frame);
+	if (!frame_count) {
+		first_capture_ns = synced_capture_ns = capture_ns;
+	}
+	last_capture_ns = capture_ns;
+	frame_count++;
+	// the clock may go back(e.g. the device clock was reset), sync then too
+	if ((capture_ns - synced_capture_ns >= AVI_SYNC_INTERVAL_NS) || (capture_ns < synced_capture_ns)) {
+		synced_capture_ns = capture_ns;
+		if (UNLIKELY(sync())) {
+			LOGW("failed to write recording file, stop recording");
+			close();
+			return -1;
+		}
+	}
+	return 0;
+}
+
+int AviWriter::write_data(const void *data, size_t bytes) {
+	const uint8_t *p = (const uint8_t *)data;
+	for ( ; bytes ; ) {
+		size_t n = AVI_WRITE_BUFFER_BYTES - write_bytes;
+		if (n > bytes) n = bytes;
+		memcpy(write_buffer + write_bytes, p, n);
+		write_bytes += n;
+		p += n;
+		bytes -= n;
+		if ((write_bytes >= AVI_WRITE_BUFFER_BYTES) && UNLIKELY(flush_buffer())) {
+			return -1;
+		}
+	}
+	return 0;
+}
+
+int AviWriter::flush_buffer() {
+	for (size_t written = 0; written < write_bytes; ) {
+		const ssize_t n = write(fd, write_buffer + written, write_bytes - written);
+		if (UNLIKELY(n <= 0)) {
+			write_bytes = 0;
+			write_failed = true;
+			return -1;
+		}
+		written += n;
+	}
+	write_bytes = 0;
+	return 0;
+}
+
+/**
+ * overwrite the headers at the top of the file with current values
+ * @param finished true when idx1 chunk of idx1_bytes(including its chunk header) follows movi list
+ */
+int AviWriter::write_header(const bool &finished, const uint32_t &idx1_bytes) {
+	const uint32_t us_per_frame = (frame_count > 1) && (last_capture_ns > first_capture_ns)
+		? (uint32_t)((last_capture_ns - first_capture_ns) / 1000LL / (frame_count - 1))
+		: DEFAULT_US_PER_FRAME;
+	uint8_t header[AVI_HEADER_BYTES];
+	build_header(header, frame_format, frame_width, frame_height, frame_count,
+		us_per_frame ? us_per_frame : DEFAULT_US_PER_FRAME, max_frame_bytes, movi_bytes,
+		finished ? idx1_bytes : 0, finished ? AVIF_HASINDEX : 0);
+	return pwrite(fd, header, AVI_HEADER_BYTES, 0) == AVI_HEADER_BYTES ? 0 : -1;
+}
+
+/**
+ * write the buffered chunks and update the headers so that RIFF/movi sizes cover them,
+ * the file is a valid AVI without index after this
+ */
+int AviWriter::sync() {
+	return flush_buffer() || write_header(false, 0) ? -1 : 0;
+}
+
+/**
+ * write the index and the final headers, and close the file
+ */
+void AviWriter::close() {
+	if ((fd >= 0) && UNLIKELY(write_failed)) {
+		// the headers of the last sync still cover only the chunks written before it
+		LOGW("recording file is playable up to the last update of the headers");
+		::close(fd);
+		fd = -1;
+	} else if (fd >= 0) {
+		// little endian on all ABIs, entries can be written as they are
+		uint8_t chunk_header[8];
+		const uint32_t idx1_bytes = frame_count * sizeof(avi_index_entry_t);
+		put_le32(put_le32(chunk_header, FOURCC('i', 'd', 'x', '1')), idx1_bytes);
+		if (UNLIKELY(write_data(chunk_header, sizeof(chunk_header))
+			|| (idx1_bytes && write_data(index, idx1_bytes))
+			|| flush_buffer()
+			|| write_header(true, 8 + idx1_bytes))) {
+			// the headers of the last sync are left
+			LOGW("failed to write index of recording file");
+		}
+		LOGI("recorded %u frames, %u skipped", frame_count, skipped_count);
+		::close(fd);
+		fd = -1;
+	}
+	if (write_buffer) {
+		free(write_buffer);
+		write_buffer = NULL;
+	}
+	if (index) {
+		free(index);
+		index = NULL;
+	}
+	write_bytes = 0;
+	index_capacity = 0;
+}
@@ -0,0 +1,92 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: AviWriter.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef AVIWRITER_H_
+#define AVIWRITER_H_
+
+#include <stdlib.h>
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+#define AVI_HEADER_BYTES 224					// RIFF/hdrl/movi headers before the first chunk
+#define AVI_WRITE_BUFFER_BYTES (1024 * 1024)	// frames are written in this unit
+#define AVI_MAX_BYTES (1024u * 1024u * 1024u)	// 1GB, players that don't support OpenDML can't read larger files
+#define AVI_SYNC_INTERVAL_NS 1000000000LL		// interval to update the headers while writing, in capture time
+
+/**
+ * entry of idx1 chunk, same layout as AVIINDEXENTRY
+ */
+typedef struct avi_index_entry {
+	uint32_t ckid;
+	uint32_t flags;
+	uint32_t offset;			// offset of the chunk from 'movi' fourcc
+	uint32_t bytes;
+} avi_index_entry_t;
+
+/**
+ * writes frames as they are into AVI file without decoding/encoding,
+ * MJPEG frames as Motion-JPEG and YUYV/UYVY frames as uncompressed video.
+ * frame data are written through a large buffer so that the file is written sequentially in big chunks.
+ * every AVI_SYNC_INTERVAL_NS of capture time the buffer is flushed and RIFF/movi sizes and
+ * the frame count in the headers are updated, so the file is playable(without index) up to there
+ * even if the process is killed while writing. the index is built in memory and appended by #close.
+ * when writing fails, the file is left as it was at the last update of the headers.
+ * the format and size of the first frame are used for the file, frames with different ones are skipped.
+ * this is not thread safe.
+ */
+class AviWriter {
+private:
+	int fd;
+	uint8_t *write_buffer;
+	size_t write_bytes;					// bytes in write_buffer
+	uint32_t movi_bytes;				// bytes of the chunks in movi list
+	avi_index_entry_t *index;
+	uint32_t index_capacity;
+	uint32_t frame_count;
+	uint32_t skipped_count;
+	uint32_t max_frame_bytes;
+	uint32_t frame_width, frame_height;
+	enum uvc_frame_format frame_format;	// UVC_FRAME_FORMAT_UNKNOWN until the first frame
+	int64_t first_capture_ns;
+	int64_t last_capture_ns;
+	int64_t synced_capture_ns;			// capture time of the frame when the headers were updated last time
+	bool write_failed;					// the file has unknown bytes after the chunks of the last sync
+	int write_data(const void *data, size_t bytes);
+	int flush_buffer();
+	int write_header(const bool &finished, const uint32_t &idx1_bytes);
+	int sync();
+public:
+	AviWriter();
+	~AviWriter();
+	int open(const char *path);
+	int writeFrame(uvc_frame_t *frame);
+	void close();
+	inline const bool isOpened() const { return fd >= 0; };
+	inline const uint32_t getFrameCount() const { return frame_count; };
+	inline const uint32_t getSkippedCount() const { return skipped_count; };
+};
+
+#endif /* AVIWRITER_H_ */
@@ -14,7 +14,6 @@
 #endif
 
 #include "utilbase.h"
-#include "common_utils.h"
 #include "libUVCCamera.h"
 
 #include "pipeline_helper.h"
@@ -26,7 +25,10 @@
 
 CallbackPipeline::CallbackPipeline(const size_t &_data_bytes)
 :	CaptureBasePipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
+	mFrameCallbackObj(NULL),
 	mFrameCallbackFunc(NULL),
+	mOnFrame(NULL),
+	mPixelFormat(PIXEL_FORMAT_RAW),
 	callbackPixelBytes(0)
 {
 	ENTER();
@@ -45,41 +47,47 @@ CallbackPipeline::~CallbackPipeline() {
 int CallbackPipeline::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
 
 	ENTER();
-	Mutex::Autolock lock(capture_mutex);
-
-	if (isRunning() && isCapturing()) {
-		mIsCapturing = false;
-		if (mFrameCallbackObj) {
-			capture_sync.signal();
-			capture_sync.wait(capture_mutex);	// wait finishing capturing
-		}
-	}
-	if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
-		iframecallback_fields.onFrame = NULL;
-		if (mFrameCallbackObj) {
-			env->DeleteGlobalRef(mFrameCallbackObj);
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (isRunning() && isCapturing()) {
+			mIsCapturing = false;
+			if (mFrameCallbackObj) {
+				pthread_cond_signal(&capture_sync);
+				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
+			}
 		}
-		mFrameCallbackObj = frame_callback_obj;
-		if (frame_callback_obj) {
-			// get method IDs of Java object for callback
-			jclass clazz = env->GetObjectClass(frame_callback_obj);
-			if (LIKELY(clazz)) {
-				iframecallback_fields.onFrame = env->GetMethodID(clazz,
-					"onFrame",	"(Ljava/nio/ByteBuffer;)V");
-			} else {
-				LOGW("failed to get object class");
+		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
+			mOnFrame = NULL;
+			if (mFrameCallbackObj) {
+				env->DeleteGlobalRef(mFrameCallbackObj);
+				mFrameCallbackObj = NULL;
 			}
-			env->ExceptionClear();
-			if (!iframecallback_fields.onFrame) {
-				LOGE("Can't find IFrameCallback#onFrame");
-				env->DeleteGlobalRef(frame_callback_obj);
-				mFrameCallbackObj = frame_callback_obj = NULL;
+			if (frame_callback_obj) {
+				// get method IDs of Java object for callback
+				jclass clazz = env->GetObjectClass(frame_callback_obj);
+				if (LIKELY(clazz)) {
+					mOnFrame = env->GetMethodID(clazz,
+						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					env->DeleteLocalRef(clazz);
+				} else {
+					LOGW("failed to get object class");
+				}
+				env->ExceptionClear();
+				if (LIKELY(mOnFrame)) {
+					mFrameCallbackObj = env->NewGlobalRef(frame_callback_obj);
+				} else {
+					LOGE("Can't find IFrameCallback#onFrame");
+					frame_callback_obj = NULL;
+				}
 			}
 		}
+		if (frame_callback_obj) {
+			mPixelFormat = pixel_format;
+			// force updating the convert function on next frame
+			frameWidth = frameHeight = 0;
+		}
 	}
-	if (frame_callback_obj) {
-		mPixelFormat = pixel_format;
-	}
+	pthread_mutex_unlock(&capture_mutex);
 	RETURN(0, int);
 }
 
@@ -93,27 +101,27 @@ void CallbackPipeline::callbackPixelFormatChanged(const uint32_t &width, const u
 		break;
 	  case PIXEL_FORMAT_YUV:
 		LOGI("PIXEL_FORMAT_YUV:");
-		mFrameCallbackFunc = uvc_any2yuyv;
+		mFrameCallbackFunc = uvc_any2yuyv_scaled;
 		callbackPixelBytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_RGB565:
 		LOGI("PIXEL_FORMAT_RGB565:");
-		mFrameCallbackFunc = uvc_any2rgb565;
+		mFrameCallbackFunc = uvc_any2rgb565_scaled;
 		callbackPixelBytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_RGBX:
 		LOGI("PIXEL_FORMAT_RGBX:");
-		mFrameCallbackFunc = uvc_any2rgbx;
+		mFrameCallbackFunc = uvc_any2rgbx_scaled;
 		callbackPixelBytes = sz * 4;
 		break;
 	  case PIXEL_FORMAT_YUV20SP:
 		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_any2yuv420SP;
+		mFrameCallbackFunc = uvc_any2iyuv420SP_scaled;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	  case PIXEL_FORMAT_NV21:
 		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_any2iyuv420SP;
+		mFrameCallbackFunc = uvc_any2yuv420SP_scaled;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	}
@@ -125,19 +133,17 @@ void CallbackPipeline::do_capture(JNIEnv *env) {
 	uvc_frame_t *frame;
 	uvc_frame_t *temp = get_frame(default_frame_size);
 	uvc_frame_t *callback_frame;
-	uint32_t width = 0, height = 0;
-	size_t sz = default_frame_size;
+	size_t sz;
 
 	if (LIKELY(temp)) {
 		for (; isRunning() && isCapturing();) {
 			frame = waitCaptureFrame();
 			if ((LIKELY(frame))) {
-				if (UNLIKELY((width != frame->width) || (height != frame->height))) {
-					width = frame->width;
-					height = frame->height;
-					callbackPixelFormatChanged(width, height);
+				if (UNLIKELY((frameWidth != frame->width) || (frameHeight != frame->height))) {
+					frameWidth = frame->width;
+					frameHeight = frame->height;
+					callbackPixelFormatChanged(frameWidth, frameHeight);
 					uvc_ensure_frame_size(temp, callbackPixelBytes);
-					sz = callbackPixelBytes;
 				}
 				if (mFrameCallbackObj) {
 					callback_frame = frame;
@@ -145,14 +151,14 @@ void CallbackPipeline::do_capture(JNIEnv *env) {
 					if (mFrameCallbackFunc) {
 						callback_frame = temp;
 						sz = callbackPixelBytes;
-						int b = mFrameCallbackFunc(frame, temp);
+						int b = mFrameCallbackFunc(frame, temp, DEFAULT_SCALE_DENOM);
 						if (UNLIKELY(b)) {
 							LOGW("failed to convert to callback frame");
 							goto SKIP;
 						}
 					}
-					jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-					env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+					jobject buf = env->NewDirectByteBuffer(callback_frame->data, sz);
+					env->CallVoidMethod(mFrameCallbackObj, mOnFrame, buf);
 					env->ExceptionClear();
 					env->DeleteLocalRef(buf);
 				}
@@ -185,6 +191,7 @@ static void nativeDestroy(JNIEnv *env, jobject thiz,
 	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
 		pipeline->release();
+		pipeline->setFrameCallback(env, NULL, PIXEL_FORMAT_RAW);
 		SAFE_DELETE(pipeline);
 	}
 	EXIT();
@@ -209,8 +216,8 @@ static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
 	jint result = JNI_ERR;
 	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
 	if (pipeline) {
-		IPipeline *pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(pipeline);
+		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
+		result = pipeline->setPipeline(target_pipeline);
 	}
 
 	RETURN(result, jint);
@@ -248,8 +255,7 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	ENTER();
 	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
-		jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
-		result = pipeline->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = pipeline->setFrameCallback(env, jIFrameCallback, pixel_format);
 	}
 	RETURN(result, jint);
 }
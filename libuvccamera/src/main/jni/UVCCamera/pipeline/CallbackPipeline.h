@@ -6,13 +6,14 @@
 #define PUPILMOBILE_CALLBACKPIPELINE_H
 
 #include "libUVCCamera.h"
+#include "UVCPreview.h"
 #include "CaptureBasePipeline.h"
 
 class CallbackPipeline : virtual public CaptureBasePipeline {
 private:
 	jobject mFrameCallbackObj;
 	convFunc_t mFrameCallbackFunc;
-	Fields_iframecallback iframecallback_fields;
+	jmethodID mOnFrame;
 	int mPixelFormat;
 	size_t callbackPixelBytes;
 	void callbackPixelFormatChanged(const uint32_t &width, const uint32_t &height);
@@ -14,7 +14,6 @@
 #endif
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "CaptureBasePipeline.h"
 
@@ -30,6 +29,9 @@ CaptureBasePipeline::CaptureBasePipeline(const size_t &_data_bytes)
 {
 	ENTER();
 
+	pthread_mutex_init(&capture_mutex, NULL);
+	pthread_cond_init(&capture_sync, NULL);
+
 	EXIT();
 }
 
@@ -42,6 +44,9 @@ CaptureBasePipeline::CaptureBasePipeline(const int &_max_buffer_num, const int &
 {
 	ENTER();
 
+	pthread_mutex_init(&capture_mutex, NULL);
+	pthread_cond_init(&capture_sync, NULL);
+
 	EXIT();
 }
 
@@ -50,6 +55,8 @@ CaptureBasePipeline::~CaptureBasePipeline() {
 	ENTER();
 
 	clearCaptureFrame();
+	pthread_cond_destroy(&capture_sync);
+	pthread_mutex_destroy(&capture_mutex);
 
 	EXIT();
 }
@@ -63,29 +70,33 @@ const bool CaptureBasePipeline::isCapturing() const { return mIsCapturing; }
  * clear frame data for capturing
  */
 void CaptureBasePipeline::clearCaptureFrame() {
-	Mutex::Autolock lock(capture_mutex);
-
-	if (captureQueue)
-		recycle_frame(captureQueue);
-	captureQueue = NULL;
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (captureQueue)
+			recycle_frame(captureQueue);
+		captureQueue = NULL;
+	}
+	pthread_mutex_unlock(&capture_mutex);
 }
 
 void CaptureBasePipeline::addCaptureFrame(uvc_frame_t *frame) {
 //	ENTER();
 
-	Mutex::Autolock lock(capture_mutex);
-
-	// keep only latest one
-	if (captureQueue) {
-		recycle_frame(captureQueue);
-		captureQueue = NULL;
-	}
-	if (LIKELY(isRunning())) {
-		captureQueue = frame;
-		capture_sync.signal();
-	} else {
-		recycle_frame(frame);
+	pthread_mutex_lock(&capture_mutex);
+	{
+		// keep only latest one
+		if (captureQueue) {
+			recycle_frame(captureQueue);
+			captureQueue = NULL;
+		}
+		if (LIKELY(isRunning())) {
+			captureQueue = frame;
+			pthread_cond_signal(&capture_sync);
+		} else {
+			recycle_frame(frame);
+		}
 	}
+	pthread_mutex_unlock(&capture_mutex);
 
 //	EXIT();
 }
@@ -95,15 +106,17 @@ void CaptureBasePipeline::addCaptureFrame(uvc_frame_t *frame) {
  */
 uvc_frame_t *CaptureBasePipeline::waitCaptureFrame() {
 	uvc_frame_t *frame = NULL;
-	Mutex::Autolock lock(capture_mutex);
-
-	if (!captureQueue) {
-		capture_sync.wait(capture_mutex);
-	}
-	if (LIKELY(isRunning() && captureQueue)) {
-		frame = captureQueue;
-		captureQueue = NULL;
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (!captureQueue && isRunning() && isCapturing()) {
+			pthread_cond_wait(&capture_sync, &capture_mutex);
+		}
+		if (LIKELY(isRunning() && captureQueue)) {
+			frame = captureQueue;
+			captureQueue = NULL;
+		}
 	}
+	pthread_mutex_unlock(&capture_mutex);
 	return frame;
 }
 
@@ -112,7 +125,10 @@ void CaptureBasePipeline::on_start() {
 	ENTER();
 
 	mIsCapturing = true;
-	pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this);
+	if (UNLIKELY(pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this))) {
+		LOGW("CaptureBasePipeline::could not create capture thread");
+		mIsCapturing = false;
+	}
 
 	EXIT();
 }
@@ -122,9 +138,13 @@ void CaptureBasePipeline::on_stop() {
 	ENTER();
 
 	mIsCapturing = false;
-	capture_sync.broadcast();
+	pthread_mutex_lock(&capture_mutex);
+	{
+		pthread_cond_broadcast(&capture_sync);
+	}
+	pthread_mutex_unlock(&capture_mutex);
 	if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
-		LOGW("UVCCameraControl::terminate capture thread: pthread_join failed");
+		LOGW("CaptureBasePipeline::terminate capture thread: pthread_join failed");
 	}
 	clearCaptureFrame();
 
@@ -191,7 +211,11 @@ void CaptureBasePipeline::internal_do_capture(JNIEnv *env) {
 	for (; isRunning() ;) {
 		mIsCapturing = true;
 		do_capture(env);
-		capture_sync.broadcast();
+		pthread_mutex_lock(&capture_mutex);
+		{
+			pthread_cond_broadcast(&capture_sync);
+		}
+		pthread_mutex_unlock(&capture_mutex);
 	}	// end of for (; isRunning() ;)
 
 	EXIT();
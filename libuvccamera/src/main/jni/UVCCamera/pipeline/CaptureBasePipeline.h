@@ -5,22 +5,17 @@
 #ifndef PUPILMOBILE_CAPTUREBASEPIPELINE_H
 #define PUPILMOBILE_CAPTUREBASEPIPELINE_H
 
-#include "Mutex.h"
-#include "Condition.h"
-
 #include "libUVCCamera.h"
 #include "AbstractBufferedPipeline.h"
 
-using namespace android;
-
 class CaptureBasePipeline : virtual public AbstractBufferedPipeline {
 private:
 	static void *capture_thread_func(void *vptr_args);
 	void internal_do_capture(JNIEnv *env);
 protected:
 	volatile bool mIsCapturing;
-	mutable Mutex capture_mutex;
-	Condition capture_sync;
+	mutable pthread_mutex_t capture_mutex;
+	pthread_cond_t capture_sync;
 	pthread_t capture_thread;
 	uvc_frame_t *captureQueue;			// keep latest one frame only
 	uint32_t frameWidth;
@@ -14,7 +14,6 @@
 #endif
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -48,7 +47,7 @@ ConvertPipeline::~ConvertPipeline() {
 void ConvertPipeline::updateConvFunc() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
+	pthread_mutex_lock(&pipeline_mutex);
 	mFrameConvFunc = NULL;
 	switch (target_pixel_format) {
 		case PIXEL_FORMAT_RAW:
@@ -56,25 +55,26 @@ void ConvertPipeline::updateConvFunc() {
 			break;
 		case PIXEL_FORMAT_YUV:
 			LOGI("PIXEL_FORMAT_YUV:");
-			mFrameConvFunc = uvc_any2yuyv;
+			mFrameConvFunc = uvc_any2yuyv_scaled;
 			break;
 		case PIXEL_FORMAT_RGB565:
 			LOGI("PIXEL_FORMAT_RGB565:");
-			mFrameConvFunc = uvc_any2rgb565;
+			mFrameConvFunc = uvc_any2rgb565_scaled;
 			break;
 		case PIXEL_FORMAT_RGBX:
 			LOGI("PIXEL_FORMAT_RGBX:");
-			mFrameConvFunc = uvc_any2rgbx;
+			mFrameConvFunc = uvc_any2rgbx_scaled;
 			break;
 		case PIXEL_FORMAT_YUV20SP:
 			LOGI("PIXEL_FORMAT_YUV20SP:");
-			mFrameConvFunc = uvc_any2yuv420SP;
+			mFrameConvFunc = uvc_any2iyuv420SP_scaled;
 			break;
 		case PIXEL_FORMAT_NV21:
 			LOGI("PIXEL_FORMAT_NV21:");
-			mFrameConvFunc = uvc_any2iyuv420SP;
+			mFrameConvFunc = uvc_any2yuv420SP_scaled;
 			break;
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	EXIT();
 };
@@ -96,23 +96,29 @@ void ConvertPipeline::on_stop() {
 int ConvertPipeline::handle_frame(uvc_frame_t *frame) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
+	pthread_mutex_lock(&pipeline_mutex);
 	if (next_pipeline) {
 		uvc_frame_t *copy = frame;
 		if (mFrameConvFunc) {
 			copy = get_frame(frame->actual_bytes);
 			if (LIKELY(copy)) {
-				const uvc_error_t r = mFrameConvFunc(frame, copy);
+				const uvc_error_t r = mFrameConvFunc(frame, copy, DEFAULT_SCALE_DENOM);
 				if (UNLIKELY(r)) {
 					LOGW("failed to convert:%d", r);
 					recycle_frame(copy);
-					copy = frame;
+					copy = NULL;
 				}
 			}
 		}
-		next_pipeline->queueFrame(copy);
+		if (LIKELY(copy)) {
+			// next pipeline duplicates the frame, so we can recycle it immediately
+			next_pipeline->queueFrame(copy);
+			if (copy != frame) {
+				recycle_frame(copy);
+			}
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(1, int);
 }
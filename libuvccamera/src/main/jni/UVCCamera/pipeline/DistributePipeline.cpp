@@ -3,7 +3,6 @@
 //
 
 #include "utilbase.h"
-#include "common_utils.h"
 #include "libUVCCamera.h"
 
 #include "pipeline_helper.h"
@@ -24,9 +23,11 @@ DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &in
 DistributePipeline::~DistributePipeline() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	pipelines.clear();
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		pipelines.clear();
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	EXIT();
 }
@@ -44,11 +45,14 @@ void DistributePipeline::on_stop() {
 int DistributePipeline::handle_frame(uvc_frame_t *frame) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	for (auto iter = pipelines.begin(); iter != pipelines.end(); iter++) {
-		(*iter)->queueFrame(frame);
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		// each pipeline duplicates the frame and handles it on its own thread
+		for (int i = 0; i < pipelines.size(); i++) {
+			pipelines[i]->queueFrame(frame);
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(0, int);
 }
@@ -57,8 +61,13 @@ int DistributePipeline::addPipeline(IPipeline *pipeline) {
 	ENTER();
 
 	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-		pipelines.push_back(pipeline);
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			if (pipelines.getIndex(pipeline) < 0) {
+				pipelines.put(pipeline);
+			}
+		}
+		pthread_mutex_unlock(&pipeline_mutex);
 	}
 
 	RETURN(0, int);
@@ -68,15 +77,11 @@ int DistributePipeline::removePipeline(IPipeline *pipeline) {
 	ENTER();
 
 	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-
-		for (auto iter = pipelines.begin(); iter != pipelines.end(); ) {
-			if (*iter == pipeline) {
-				iter = pipelines.erase(iter);
-			} else {
-				iter++;
-			}
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			pipelines.removeObject(pipeline);
 		}
+		pthread_mutex_unlock(&pipeline_mutex);
 	}
 
 	RETURN(0, int);
@@ -11,7 +11,7 @@
 
 class DistributePipeline : virtual public AbstractBufferedPipeline {
 private:
-	std::list<IPipeline *> pipelines;
+	ObjectArray<IPipeline *> pipelines;
 protected:
 	virtual void on_start();
 	virtual void on_stop();
@@ -16,7 +16,6 @@
 #include <stdlib.h>
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -31,6 +30,8 @@ IPipeline::IPipeline(const size_t &_default_frame_size)
 {
 	ENTER();
 
+	pthread_mutex_init(&pipeline_mutex, NULL);
+
 	EXIT();
 }
 
@@ -38,6 +39,8 @@ IPipeline::IPipeline(const size_t &_default_frame_size)
 IPipeline::~IPipeline() {
 	ENTER();
 
+	pthread_mutex_destroy(&pipeline_mutex);
+
 	EXIT();
 }
 
@@ -54,10 +57,12 @@ void IPipeline::setState(const pipeline_state_t &new_state) { state = new_state;
 int IPipeline::setPipeline(IPipeline *pipeline) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	// XXX do I need to delete next_pipeline if it is not NULL?
-	next_pipeline = pipeline;
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		// the pipeline is owned by Java side object, never delete it here
+		next_pipeline = pipeline;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(0, int);
 }
@@ -70,12 +75,14 @@ int IPipeline::chain_frame(uvc_frame_t *frame) {
 	ENTER();
 
 	int result = -1;
-	Mutex::Autolock lock(pipeline_mutex);
-
-	if (next_pipeline) {
-		next_pipeline->queueFrame(frame);
-		result = 0;
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		if (next_pipeline) {
+			next_pipeline->queueFrame(frame);
+			result = 0;
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(result, int);
 }
@@ -7,25 +7,24 @@
 
 #include <stdlib.h>
 #include <pthread.h>
-#include "Mutex.h"
 
 #include "libUVCCamera.h"
 
 #pragma interface
 
-using namespace android;
-
 #define DEFAULT_FRAME_SZ 1024
 
 typedef enum pipeline_type {
 	PIPELINE_TYPE_SIMPLE_BUFFERED = 0,
-	PIPELINE_TYPE_SQLITE_BUFFERED = 10,
+	PIPELINE_TYPE_PRE_EVENT_BUFFERED = 10,
 	PIPELINE_TYPE_UVC_CONTROL = 100,
 	PIPELINE_TYPE_CALLBACK = 200,
 	PIPELINE_TYPE_CONVERT = 300,
 	PIPELINE_TYPE_PREVIEW = 400,
 	PIPELINE_TYPE_PUBLISHER = 500,
 	PIPELINE_TYPE_DISTRIBUTE = 600,
+	PIPELINE_TYPE_SHARED_MEMORY = 700,
+	PIPELINE_TYPE_AVI_RECORDER = 800,
 } pipeline_type_t;
 
 typedef enum _pipeline_state {
@@ -48,7 +47,7 @@ private:
 protected:
 	volatile bool mIsRunning;
 	const size_t default_frame_size;
-	mutable Mutex pipeline_mutex;
+	mutable pthread_mutex_t pipeline_mutex;
 	IPipeline *next_pipeline;
 	void setState(const pipeline_state_t &new_state);
 	/**
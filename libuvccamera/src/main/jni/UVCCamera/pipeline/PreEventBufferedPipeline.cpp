@@ -0,0 +1,553 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: PreEventBufferedPipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+#include "utilbase.h"
+
+#include "libUVCCamera.h"
+#include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "PreEventBufferedPipeline.h"
+
+#define RING_ALIGN 16
+#define PAGE_ALIGN 4096
+#define ALIGN(v, a) (((v) + (a) - 1) & ~((a) - 1))
+
+/*public*/
+PreEventBufferedPipeline::PreEventBufferedPipeline(const char *ring_path, const size_t &capacity_bytes, const int &duration_ms)
+:	AbstractBufferedPipeline(DEFAULT_MAX_FRAME_NUM, DEFAULT_INIT_FRAME_POOL_SZ, DEFAULT_FRAME_SZ, true),
+	duration_ns(duration_ms * 1000000LL),
+	map_bytes(0),
+	map(NULL),
+	header(NULL),
+	entries(NULL),
+	ring_data(NULL),
+	flush_requested(false),
+	pre_ns(0),
+	post_ns(0),
+	record_end_ns(0),
+	last_capture_ns(0)
+{
+	ENTER();
+
+	pthread_mutex_init(&ring_mutex, NULL);
+	pthread_mutex_init(&record_mutex, NULL);
+	const uint32_t max_entries = duration_ms * PRE_EVENT_MAX_FPS / 1000 + DEFAULT_MAX_FRAME_NUM;
+	const size_t data_offset = ALIGN(sizeof(pre_event_header_t) + sizeof(pre_event_entry_t) * max_entries, PAGE_ALIGN);
+	const size_t data_bytes = ALIGN(capacity_bytes, PAGE_ALIGN);
+	const int fd = ring_path && (duration_ms > 0) && (capacity_bytes > 0)
+		? open(ring_path, O_RDWR | O_CREAT, 0600) : -1;
+	if (LIKELY(fd >= 0)) {
+		if (LIKELY(!ftruncate(fd, data_offset + data_bytes))) {
+			void *addr = mmap(NULL, data_offset + data_bytes, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+			if (LIKELY(addr != MAP_FAILED)) {
+				map = (uint8_t *)addr;
+				map_bytes = data_offset + data_bytes;
+				header = (pre_event_header_t *)map;
+				entries = (pre_event_entry_t *)(map + sizeof(pre_event_header_t));
+				ring_data = map + data_offset;
+				header->magic = PRE_EVENT_MAGIC;
+				header->version = PRE_EVENT_VERSION;
+				header->max_entries = max_entries;
+				header->data_offset = data_offset;
+				header->data_bytes = data_bytes;
+				header->head = header->count = header->write_pos = 0;
+				setState(PIPELINE_STATE_INITIALIZED);
+			} else {
+				LOGE("failed to map ring file:%s", ring_path);
+			}
+		} else {
+			LOGE("failed to resize ring file:%s", ring_path);
+		}
+		// the mapping is still valid after closing the file descriptor
+		close(fd);
+	} else {
+		LOGE("failed to open ring file:%s", ring_path);
+	}
+
+	EXIT();
+}
+
+/*public*/
+PreEventBufferedPipeline::~PreEventBufferedPipeline() {
+	ENTER();
+
+	release();
+	pthread_mutex_lock(&record_mutex);
+	{
+		close_record();
+	}
+	pthread_mutex_unlock(&record_mutex);
+	if (map) {
+		munmap(map, map_bytes);
+		map = NULL;
+	}
+	pthread_mutex_destroy(&record_mutex);
+	pthread_mutex_destroy(&ring_mutex);
+
+	EXIT();
+}
+
+void PreEventBufferedPipeline::on_start() {
+	ENTER();
+
+	pthread_mutex_lock(&ring_mutex);
+	{
+		// frames of the previous session are not continuous with new ones
+		header->head = header->count = header->write_pos = 0;
+		last_capture_ns = 0;
+	}
+	pthread_mutex_unlock(&ring_mutex);
+
+	EXIT();
+}
+
+void PreEventBufferedPipeline::on_stop() {
+	ENTER();
+
+	pthread_mutex_lock(&record_mutex);
+	{
+		close_record();
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	EXIT();
+}
+
+int PreEventBufferedPipeline::handle_frame(uvc_frame_t *frame) {
+	ENTER();
+
+	const int64_t capture_ns = uvc_frame_capture_ns(frame);
+	pthread_mutex_lock(&record_mutex);
+	{
+		int stored;
+		bool flush = false, finish = false;
+		uint32_t flush_start = 0, flush_count = 0;
+		pthread_mutex_lock(&ring_mutex);
+		{
+			stored = write_ring(frame, capture_ns);
+			last_capture_ns = capture_ns;
+			if (writer.isOpened()) {
+				if (flush_requested) {
+					flush_requested = false;
+					record_end_ns = post_ns > 0 ? capture_ns + post_ns : 0;
+					flush = true;
+					flush_start = find_flush_start(capture_ns);
+					flush_count = header->count - flush_start;
+				}
+				if (record_end_ns && (capture_ns >= record_end_ns)) {
+					LOGI("post-event time elapsed");
+					record_end_ns = 0;
+					finish = true;
+				}
+			}
+		}
+		pthread_mutex_unlock(&ring_mutex);
+		// write into the file without ring_mutex,
+		// the entries to flush are not changed until the next frame comes to this thread
+		if (flush) {
+			flush_ring(flush_start, flush_count);
+			if (UNLIKELY(stored)) {
+				// frame was too large for the ring
+				output_frame(frame);
+			}
+		} else {
+			output_frame(frame);
+		}
+		if (finish) {
+			writer.close();
+		}
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	// frames are passed to the next pipeline only while recording
+	RETURN(1, int);
+}
+
+/**
+ * copy the frame into the ring and evict the entries that are overwritten or expired
+ * ring_mutex should be locked
+ * @return 0 if the frame is stored
+ */
+int PreEventBufferedPipeline::write_ring(uvc_frame_t *frame, const int64_t &capture_ns) {
+	const uint32_t bytes = uvc_frame_payload_bytes(frame);
+	if (UNLIKELY(!bytes || (bytes > header->data_bytes))) {
+		return -1;
+	}
+	const uint32_t max_entries = header->max_entries;
+	uint32_t pos = header->write_pos;
+	if (pos + bytes > header->data_bytes) {
+		// wrap around, entries behind the write position are the oldest ones
+		for ( ; header->count && (entries[header->head].offset >= pos) ; ) {
+			header->head = (header->head + 1) % max_entries;
+			header->count--;
+		}
+		pos = 0;
+	}
+	for ( ; header->count ; ) {
+		const pre_event_entry_t *oldest = &entries[header->head];
+		if ((header->count >= max_entries)
+			|| ((oldest->offset < pos + bytes) && (oldest->offset + oldest->bytes > pos))
+			|| (oldest->capture_ns < capture_ns - duration_ns)) {
+
+			header->head = (header->head + 1) % max_entries;
+			header->count--;
+		} else {
+			break;
+		}
+	}
+	memcpy(ring_data + pos, frame->data, bytes);
+	pre_event_entry_t *entry = &entries[(header->head + header->count) % max_entries];
+	entry->capture_ns = capture_ns;
+	entry->offset = pos;
+	entry->bytes = bytes;
+	entry->sequence = frame->sequence;
+	entry->step = frame->step;
+	entry->width = frame->width;
+	entry->height = frame->height;
+	entry->format = frame->frame_format;
+	// all formats from UVC are intra frames
+	entry->flags = PRE_EVENT_FLAG_KEY_FRAME;
+	entry->reserved = 0;
+	header->write_pos = ALIGN(pos + bytes, RING_ALIGN);
+	// update the count last so that the index in the file is consistent if the process died
+	header->count++;
+	return 0;
+}
+
+/**
+ * find the first key frame in the pre-event window
+ * ring_mutex should be locked
+ * @return position of the entry from the oldest one, header->count if there is no such frame
+ */
+uint32_t PreEventBufferedPipeline::find_flush_start(const int64_t &capture_ns) {
+	const uint32_t max_entries = header->max_entries;
+	const int64_t start_ns = pre_ns > 0 ? capture_ns - pre_ns : capture_ns;
+	uint32_t i = 0;
+	for ( ; i < header->count ; i++) {
+		const pre_event_entry_t *entry = &entries[(header->head + i) % max_entries];
+		if ((entry->capture_ns >= start_ns) && (entry->flags & PRE_EVENT_FLAG_KEY_FRAME)) break;
+	}
+	return i;
+}
+
+/**
+ * output count frames in the ring from start-th entry from the oldest one.
+ * this is called on the handler thread that is the only writer of the ring,
+ * so ring_mutex is not needed to read the entries and their data here.
+ * record_mutex should be locked
+ */
+void PreEventBufferedPipeline::flush_ring(const uint32_t &start, const uint32_t &count) {
+	const uint32_t max_entries = header->max_entries;
+	const uint32_t head = header->head;
+	LOGI("flush %u frames", count);
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	for (uint32_t i = start; writer.isOpened() && (i < start + count) ; i++) {
+		const pre_event_entry_t *entry = &entries[(head + i) % max_entries];
+		// wrap the data in the ring without copying, the next pipeline duplicates it
+		frame.data = ring_data + entry->offset;
+		frame.data_bytes = frame.actual_bytes = entry->bytes;
+		frame.width = entry->width;
+		frame.height = entry->height;
+		frame.frame_format = (enum uvc_frame_format)entry->format;
+		frame.step = entry->step;
+		frame.sequence = entry->sequence;
+		frame.timestamp.capture_ns = entry->capture_ns;
+		frame.capture_time.tv_sec = entry->capture_ns / 1000000000LL;
+		frame.capture_time.tv_usec = (entry->capture_ns % 1000000000LL) / 1000;
+		output_frame(&frame);
+	}
+}
+
+/**
+ * write the frame into the recording file and pass it to the next pipeline,
+ * frames that AviWriter does not support are only passed to the next pipeline
+ * record_mutex should be locked
+ */
+void PreEventBufferedPipeline::output_frame(uvc_frame_t *frame) {
+	if (UNLIKELY(!writer.isOpened())) return;
+	writer.writeFrame(frame);
+	chain_frame(frame);
+}
+
+/**
+ * record_mutex should be locked
+ */
+void PreEventBufferedPipeline::close_record() {
+	writer.close();
+	pthread_mutex_lock(&ring_mutex);
+	{
+		flush_requested = false;
+		record_end_ns = 0;
+	}
+	pthread_mutex_unlock(&ring_mutex);
+}
+
+/**
+ * start recording from the frames in the pre-event window,
+ * if this is called while recording, only the post-event time is extended
+ * @param record_path AVI file that receives the frames
+ * @param pre_ms frames newer than pre_ms from the trigger are flushed
+ * @param post_ms recording stops after post_ms from the trigger, 0 to record until #stopRecording
+ */
+int PreEventBufferedPipeline::startRecording(const char *record_path, const int &pre_ms, const int &post_ms) {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&record_mutex);
+	{
+		const bool recording = writer.isOpened();
+		if (!recording && LIKELY(record_path && isMapped())) {
+			result = writer.open(record_path);
+		}
+		pthread_mutex_lock(&ring_mutex);
+		{
+			post_ns = post_ms > 0 ? post_ms * 1000000LL : 0;
+			if (recording) {
+				if (!flush_requested) {
+					record_end_ns = post_ns ? last_capture_ns + post_ns : 0;
+				}
+				result = EXIT_SUCCESS;
+			} else if (result == EXIT_SUCCESS) {
+				pre_ns = pre_ms > 0 ? pre_ms * 1000000LL : 0;
+				record_end_ns = 0;
+				flush_requested = true;
+			}
+		}
+		pthread_mutex_unlock(&ring_mutex);
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	RETURN(result, int);
+}
+
+int PreEventBufferedPipeline::stopRecording() {
+	ENTER();
+
+	pthread_mutex_lock(&record_mutex);
+	{
+		close_record();
+	}
+	pthread_mutex_unlock(&record_mutex);
+
+	RETURN(0, int);
+}
+
+bool PreEventBufferedPipeline::isRecording() {
+	pthread_mutex_lock(&record_mutex);
+	const bool result = writer.isOpened();
+	pthread_mutex_unlock(&record_mutex);
+	return result;
+}
+
+/**
+ * @return duration of the frames in the ring in milliseconds
+ */
+int PreEventBufferedPipeline::getBufferedMs() {
+	int result = 0;
+	pthread_mutex_lock(&ring_mutex);
+	{
+		if (header && header->count) {
+			result = (int)((last_capture_ns - entries[header->head].capture_ns) / 1000000LL);
+		}
+	}
+	pthread_mutex_unlock(&ring_mutex);
+	return result;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jstring ring_path_str, jint capacity_bytes, jint duration_ms) {
+
+	ENTER();
+	const char *ring_path = env->GetStringUTFChars(ring_path_str, JNI_FALSE);
+	PreEventBufferedPipeline *pipeline = new PreEventBufferedPipeline(ring_path, capacity_bytes, duration_ms);
+	env->ReleaseStringUTFChars(ring_path_str, ring_path);
+	if (UNLIKELY(!pipeline->isMapped())) {
+		SAFE_DELETE(pipeline);
+	}
+	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
+}
+
+static void nativeDestroy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	setField_long(env, thiz, "mNativePtr", 0);
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->release();
+		SAFE_DELETE(pipeline);
+	}
+	EXIT();
+}
+
+static jint nativeGetState(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (pipeline) {
+		result = pipeline->getState();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jobject pipeline_obj) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (pipeline) {
+		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
+		result = pipeline->setPipeline(target_pipeline);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStart(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+
+	int result = JNI_ERR;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->start();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStop(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stop();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStartRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jstring record_path_str, jint pre_ms, jint post_ms) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline && record_path_str)) {
+		const char *record_path = env->GetStringUTFChars(record_path_str, JNI_FALSE);
+		result = pipeline->startRecording(record_path, pre_ms, post_ms);
+		env->ReleaseStringUTFChars(record_path_str, record_path);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStopRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stopRecording();
+	}
+	RETURN(result, jint);
+}
+
+static jboolean nativeIsRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jboolean result = JNI_FALSE;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->isRecording();
+	}
+	RETURN(result, jboolean);
+}
+
+static jint nativeGetBufferedMs(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	PreEventBufferedPipeline *pipeline = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->getBufferedMs();
+	}
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(Ljava/lang/String;II)J", (void *) nativeCreate },
+	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
+
+	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+
+	{ "nativeStart",					"(J)I", (void *) nativeStart },
+	{ "nativeStop",						"(J)I", (void *) nativeStop },
+
+	{ "nativeStartRecording",			"(JLjava/lang/String;II)I", (void *) nativeStartRecording },
+	{ "nativeStopRecording",			"(J)I", (void *) nativeStopRecording },
+	{ "nativeIsRecording",				"(J)Z", (void *) nativeIsRecording },
+	{ "nativeGetBufferedMs",			"(J)I", (void *) nativeGetBufferedMs },
+};
+
+int register_pre_event_buffered_pipeline(JNIEnv *env) {
+	LOGV("register_pre_event_buffered_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/PreEventBufferedPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+    return 0;
+}
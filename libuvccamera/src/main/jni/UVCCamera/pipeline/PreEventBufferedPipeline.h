@@ -0,0 +1,116 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: PreEventBufferedPipeline.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef PREEVENTBUFFEREDPIPELINE_H_
+#define PREEVENTBUFFEREDPIPELINE_H_
+
+#include <stdlib.h>
+#include <pthread.h>
+
+#include "libUVCCamera.h"
+#include "AbstractBufferedPipeline.h"
+#include "AviWriter.h"
+
+#pragma interface
+
+#define PRE_EVENT_MAGIC 0x42564550		// "PEVB"
+#define PRE_EVENT_VERSION 1
+#define PRE_EVENT_MAX_FPS 60			// used to estimate the number of index entries
+
+#define PRE_EVENT_FLAG_KEY_FRAME 0x01	// decoding can start from this frame
+
+/**
+ * header at the top of the ring file, followed by the index entries and the data area
+ */
+typedef struct pre_event_header {
+	uint32_t magic;
+	uint32_t version;
+	uint32_t max_entries;
+	uint32_t data_offset;		// offset of the data area from the top of the file
+	uint32_t data_bytes;		// size of the data area
+	uint32_t head;				// index of the oldest entry
+	uint32_t count;				// number of valid entries
+	uint32_t write_pos;			// offset in the data area to write the next frame
+} pre_event_header_t;
+
+typedef struct pre_event_entry {
+	int64_t capture_ns;			// CLOCK_MONOTONIC
+	uint32_t offset;			// offset in the data area, each frame is stored contiguously
+	uint32_t bytes;
+	uint32_t sequence;
+	uint32_t step;				// 0 for compressed frames
+	uint16_t width;
+	uint16_t height;
+	uint8_t format;				// uvc_frame_format
+	uint8_t flags;				// PRE_EVENT_FLAG_XXX
+	uint16_t reserved;
+} pre_event_entry_t;
+
+/**
+ * keeps the last frames(raw MJPEG etc.) in a fixed size memory-mapped ring file with an index,
+ * nothing is passed to the next pipeline until #startRecording is called.
+ * when triggered, the frames in the pre-event window are flushed into the recording file
+ * (and the next pipeline) and then live frames follow until the post-event time elapsed.
+ * the recording file is AVI written through AviWriter(Motion-JPEG for MJPEG frames).
+ * the ring is written only on the handler thread, so the frames are written into the file
+ * without holding ring_mutex and #getBufferedMs etc. never wait for file I/O.
+ */
+class PreEventBufferedPipeline : virtual public AbstractBufferedPipeline {
+private:
+	const int64_t duration_ns;
+	size_t map_bytes;
+	uint8_t *map;						// mapped ring file
+	pre_event_header_t *header;
+	pre_event_entry_t *entries;
+	uint8_t *ring_data;
+	// ring index and trigger state, protected by ring_mutex
+	mutable pthread_mutex_t ring_mutex;
+	bool flush_requested;
+	int64_t pre_ns;
+	int64_t post_ns;
+	int64_t record_end_ns;				// 0: until #stopRecording
+	int64_t last_capture_ns;
+	// recording file, protected by record_mutex, lock it before ring_mutex when both are needed
+	mutable pthread_mutex_t record_mutex;
+	AviWriter writer;
+	int write_ring(uvc_frame_t *frame, const int64_t &capture_ns);
+	uint32_t find_flush_start(const int64_t &capture_ns);
+	void flush_ring(const uint32_t &start, const uint32_t &count);
+	void output_frame(uvc_frame_t *frame);
+	void close_record();
+protected:
+	virtual void on_start();
+	virtual void on_stop();
+	virtual int handle_frame(uvc_frame_t *frame);
+public:
+	PreEventBufferedPipeline(const char *ring_path, const size_t &capacity_bytes, const int &duration_ms);
+	virtual ~PreEventBufferedPipeline();
+	inline const bool isMapped() const { return map != NULL; };
+	int startRecording(const char *record_path, const int &pre_ms, const int &post_ms);
+	int stopRecording();
+	bool isRecording();
+	int getBufferedMs();
+};
+
+#endif /* PREEVENTBUFFEREDPIPELINE_H_ */
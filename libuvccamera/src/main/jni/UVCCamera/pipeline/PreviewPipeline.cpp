@@ -13,10 +13,10 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
+#include <string.h>
 #include <android/native_window_jni.h>
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -119,24 +119,27 @@ int PreviewPipeline::setCaptureDisplay(ANativeWindow *capture_window) {
 	ENTER();
 	LOGI("setCaptureDisplay:%p", capture_window);
 
-	Mutex::Autolock lock(capture_mutex);
-
-	if (isRunning() && isCapturing()) {
-		mIsCapturing = false;
-		if (mCaptureWindow) {
-			LOGD("wait for finishing capture loop");
-			capture_sync.broadcast();
-			capture_sync.wait(capture_mutex);	// wait finishing capturing
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (isRunning() && isCapturing()) {
+			mIsCapturing = false;
+			if (mCaptureWindow) {
+				LOGD("wait for finishing capture loop");
+				pthread_cond_broadcast(&capture_sync);
+				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
+			}
 		}
-	}
-	if (mCaptureWindow != capture_window) {
-		// release current Surface if already assigned.
-		if (UNLIKELY(mCaptureWindow)) {
-			LOGD("ANativeWindow_release");
-			ANativeWindow_release(mCaptureWindow);
+		if (mCaptureWindow != capture_window) {
+			// release current Surface if already assigned.
+			if (UNLIKELY(mCaptureWindow)) {
+				LOGD("ANativeWindow_release");
+				ANativeWindow_release(mCaptureWindow);
+			}
+			mCaptureWindow = capture_window;
+			frameWidth = frameHeight = 0;
 		}
-		mCaptureWindow = capture_window;
 	}
+	pthread_mutex_unlock(&capture_mutex);
 
 	RETURN(0, int);
 }
@@ -157,7 +160,7 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 			if (LIKELY(frame)) {
 				if (LIKELY(isCapturing())) {
 					const bool need_update_geometry = (frame->width != frameWidth) || (frame->height != frameHeight);
-					capture_mutex.lock();
+					pthread_mutex_lock(&capture_mutex);
 					{
 						ANativeWindow *window = mCaptureWindow;	// local cache
 						if (LIKELY(window)) {
@@ -181,7 +184,7 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 								}
 							}
 							if (LIKELY(window)) {
-								int b = uvc_any2rgb565(frame, rgb565);
+								int b = uvc_any2rgb565_scaled(frame, rgb565, 1);
 								if (LIKELY(!b)) {
 									copyToSurface(rgb565, &window);
 								} else {
@@ -190,7 +193,7 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 							}
 						}
 					}
-					capture_mutex.unlock();
+					pthread_mutex_unlock(&capture_mutex);
 				}
 				recycle_frame(frame);
 			}
@@ -199,14 +202,14 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 	if (rgb565) {
 		recycle_frame(rgb565);
 	}
-	capture_mutex.lock();
+	pthread_mutex_lock(&capture_mutex);
 	{
 		if (mCaptureWindow) {
 			ANativeWindow_release(mCaptureWindow);
 			mCaptureWindow = NULL;
 		}
 	}
-	capture_mutex.unlock();
+	pthread_mutex_unlock(&capture_mutex);
 //	EXIT();
 }
 
@@ -0,0 +1,553 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedMemoryPipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+#include <limits.h>
+#include <time.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/ioctl.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+#include "utilbase.h"
+
+#include "libUVCCamera.h"
+#include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "SharedMemoryPipeline.h"
+
+// same as linux/ashmem.h, that is not available on some platform versions
+#ifndef ASHMEM_SET_NAME
+	#define ASHMEM_NAME_LEN 256
+	#define __ASHMEMIOC 0x77
+	#define ASHMEM_SET_NAME _IOW(__ASHMEMIOC, 1, char[ASHMEM_NAME_LEN])
+	#define ASHMEM_SET_SIZE _IOW(__ASHMEMIOC, 3, size_t)
+#endif
+#ifndef MFD_CLOEXEC
+	#define MFD_CLOEXEC 0x0001U
+#endif
+
+#define ALIGN(v, a) (((v) + (a) - 1) & ~((a) - 1))
+#define PAGE_ALIGN 4096
+
+/**
+ * create anonymous shared memory that can be passed to other processes as a file descriptor,
+ * memfd if the kernel supports it, otherwise ashmem
+ */
+static int create_shared_memory(const char *name, const size_t &bytes) {
+	int fd = -1;
+#if defined(__NR_memfd_create)
+	fd = syscall(__NR_memfd_create, name, MFD_CLOEXEC);
+	if ((fd >= 0) && UNLIKELY(ftruncate(fd, bytes))) {
+		close(fd);
+		fd = -1;
+	}
+#endif
+	if (fd < 0) {
+		fd = open("/dev/ashmem", O_RDWR | O_CLOEXEC);
+		if (LIKELY(fd >= 0)) {
+			char buf[ASHMEM_NAME_LEN];
+			strncpy(buf, name, sizeof(buf) - 1);
+			buf[sizeof(buf) - 1] = '\0';
+			ioctl(fd, ASHMEM_SET_NAME, buf);
+			if (UNLIKELY(ioctl(fd, ASHMEM_SET_SIZE, bytes) < 0)) {
+				close(fd);
+				fd = -1;
+			}
+		}
+	}
+	return fd;
+}
+
+// without FUTEX_PRIVATE_FLAG because the futex word is shared between processes
+static inline void futex_wake_all(volatile uint32_t *addr) {
+	syscall(__NR_futex, addr, FUTEX_WAKE, INT_MAX, NULL, NULL, 0);
+}
+
+static inline void futex_wait(volatile uint32_t *addr, const uint32_t &val, const struct timespec *timeout) {
+	syscall(__NR_futex, addr, FUTEX_WAIT, val, timeout, NULL, 0);
+}
+
+/*public*/
+SharedMemoryPipeline::SharedMemoryPipeline(const int &slot_num, const size_t &slot_bytes)
+:	AbstractBufferedPipeline(DEFAULT_MAX_FRAME_NUM, DEFAULT_INIT_FRAME_POOL_SZ, DEFAULT_FRAME_SZ, true),
+	shm_fd(-1),
+	shm_bytes(0),
+	shm(NULL),
+	header(NULL),
+	metas(NULL)
+{
+	ENTER();
+
+	// at least 2 slots so that the newest frame is not overwritten by the frame being written
+	if (LIKELY((slot_num >= 2) && slot_bytes)) {
+		const size_t slot_offset = ALIGN(sizeof(shared_frame_header_t) + sizeof(shared_frame_meta_t) * slot_num, PAGE_ALIGN);
+		const size_t bytes = ALIGN(slot_bytes, SHARED_FRAME_ALIGN);
+		const size_t total = slot_offset + bytes * slot_num;
+		shm_fd = create_shared_memory("UVCCamera-frames", total);
+		if (LIKELY(shm_fd >= 0)) {
+			void *addr = mmap(NULL, total, PROT_READ | PROT_WRITE, MAP_SHARED, shm_fd, 0);
+			if (LIKELY(addr != MAP_FAILED)) {
+				shm = (uint8_t *)addr;
+				shm_bytes = total;
+				header = (shared_frame_header_t *)shm;
+				metas = (shared_frame_meta_t *)(shm + sizeof(shared_frame_header_t));
+				memset(shm, 0, slot_offset);
+				header->magic = SHARED_FRAME_MAGIC;
+				header->version = SHARED_FRAME_VERSION;
+				header->slot_num = slot_num;
+				header->slot_bytes = bytes;
+				header->slot_offset = slot_offset;
+				header->write_seq = 0;
+				setState(PIPELINE_STATE_INITIALIZED);
+			} else {
+				LOGE("failed to map shared memory");
+				close(shm_fd);
+				shm_fd = -1;
+			}
+		} else {
+			LOGE("failed to create shared memory");
+		}
+	}
+
+	EXIT();
+}
+
+/*public*/
+SharedMemoryPipeline::~SharedMemoryPipeline() {
+	ENTER();
+
+	release();
+	if (shm) {
+		munmap(shm, shm_bytes);
+		shm = NULL;
+	}
+	if (shm_fd >= 0) {
+		close(shm_fd);
+		shm_fd = -1;
+	}
+
+	EXIT();
+}
+
+void SharedMemoryPipeline::on_start() {
+	ENTER();
+
+	__atomic_store_n(&header->magic, SHARED_FRAME_MAGIC, __ATOMIC_RELEASE);
+
+	EXIT();
+}
+
+void SharedMemoryPipeline::on_stop() {
+	ENTER();
+
+	// clear magic so that consumers can notice this shared memory is closed
+	// and then wake them up so that they do not wait for the next frame
+	__atomic_store_n(&header->magic, 0, __ATOMIC_RELEASE);
+	futex_wake_all(&header->write_seq);
+
+	EXIT();
+}
+
+int SharedMemoryPipeline::handle_frame(uvc_frame_t *frame) {
+	ENTER();
+
+	const size_t bytes = uvc_frame_payload_bytes(frame);
+	if (UNLIKELY(bytes > header->slot_bytes)) {
+		LOGW("frame is larger than slot:%zu", bytes);
+		RETURN(0, int);
+	}
+	// this thread is the only writer
+	const uint32_t n = header->write_seq;
+	shared_frame_meta_t *meta = &metas[n % header->slot_num];
+	__atomic_store_n(&meta->lock, 2 * n + 1, __ATOMIC_RELAXED);
+	// readers that see the odd lock or the changed lock discard the slot
+	__sync_synchronize();
+	memcpy(shm + header->slot_offset + (n % header->slot_num) * header->slot_bytes, frame->data, bytes);
+	meta->bytes = bytes;
+	meta->width = frame->width;
+	meta->height = frame->height;
+	meta->step = frame->step;
+	meta->format = frame->frame_format;
+	meta->sequence = frame->sequence;
+	meta->capture_ns = uvc_frame_capture_ns(frame);
+	__atomic_store_n(&meta->lock, 2 * (n + 1), __ATOMIC_RELEASE);
+	__atomic_store_n(&header->write_seq, n + 1, __ATOMIC_RELEASE);
+	futex_wake_all(&header->write_seq);
+
+	// pass the frame to the next pipeline if exists
+	RETURN(0, int);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+SharedFrameReader::SharedFrameReader(const int &fd)
+:	shm_bytes(0),
+	shm(NULL),
+	header(NULL),
+	metas(NULL),
+	read_seq(0),
+	current(0),
+	skipped(0)
+{
+	ENTER();
+
+	// map the header first to know the whole size
+	void *addr = mmap(NULL, PAGE_ALIGN, PROT_READ, MAP_SHARED, fd, 0);
+	if (LIKELY(addr != MAP_FAILED)) {
+		const shared_frame_header_t *hdr = (const shared_frame_header_t *)addr;
+		const bool valid = (hdr->magic == SHARED_FRAME_MAGIC) && (hdr->version == SHARED_FRAME_VERSION)
+			&& (hdr->slot_num >= 2);
+		const size_t total = hdr->slot_offset + (size_t)hdr->slot_bytes * hdr->slot_num;
+		munmap(addr, PAGE_ALIGN);
+		addr = valid ? mmap(NULL, total, PROT_READ, MAP_SHARED, fd, 0) : MAP_FAILED;
+		if (LIKELY(addr != MAP_FAILED)) {
+			shm = (uint8_t *)addr;
+			shm_bytes = total;
+			header = (const shared_frame_header_t *)shm;
+			metas = (const shared_frame_meta_t *)(shm + sizeof(shared_frame_header_t));
+			// start from the next frame
+			read_seq = __atomic_load_n(&header->write_seq, __ATOMIC_ACQUIRE);
+		} else {
+			LOGE("failed to map shared memory:valid=%d", valid);
+		}
+	} else {
+		LOGE("failed to map shared memory header");
+	}
+
+	EXIT();
+}
+
+SharedFrameReader::~SharedFrameReader() {
+	ENTER();
+
+	if (shm) {
+		munmap(shm, shm_bytes);
+		shm = NULL;
+	}
+
+	EXIT();
+}
+
+uint8_t *SharedFrameReader::getSlot(const int &slot) const {
+	return LIKELY(shm && (slot >= 0) && (slot < (int)header->slot_num))
+		? shm + header->slot_offset + slot * header->slot_bytes : NULL;
+}
+
+/**
+ * wait for the next frame, skip to the newest one if this reader fell behind
+ * @param timeout_ms
+ * @param meta metadata of the frame
+ * @return slot index of the frame, -1 if timed out, -2 if the producer closed the shared memory
+ */
+int SharedFrameReader::waitFrame(const int &timeout_ms, const shared_frame_meta_t **meta) {
+	ENTER();
+
+	if (UNLIKELY(!shm)) RETURN(-1, int);
+
+	const uint32_t slot_num = header->slot_num;
+	struct timespec deadline, ts;
+	clock_gettime(CLOCK_MONOTONIC, &deadline);
+	deadline.tv_sec += timeout_ms / 1000;
+	deadline.tv_nsec += (timeout_ms % 1000) * 1000000L;
+	if (deadline.tv_nsec >= 1000000000L) {
+		deadline.tv_sec++;
+		deadline.tv_nsec -= 1000000000L;
+	}
+	for ( ; ; ) {
+		if (UNLIKELY(__atomic_load_n(&header->magic, __ATOMIC_ACQUIRE) != SHARED_FRAME_MAGIC)) {
+			RETURN(-2, int);
+		}
+		const uint32_t written = __atomic_load_n(&header->write_seq, __ATOMIC_ACQUIRE);
+		if (written == read_seq) {
+			clock_gettime(CLOCK_MONOTONIC, &ts);
+			ts.tv_sec = deadline.tv_sec - ts.tv_sec;
+			ts.tv_nsec = deadline.tv_nsec - ts.tv_nsec;
+			if (ts.tv_nsec < 0) {
+				ts.tv_sec--;
+				ts.tv_nsec += 1000000000L;
+			}
+			if (ts.tv_sec < 0) break;
+			futex_wait(const_cast<volatile uint32_t *>(&header->write_seq), written, &ts);
+			continue;
+		}
+		if (UNLIKELY(written - read_seq > slot_num)) {
+			// older frames were already overwritten
+			skipped += written - read_seq - 1;
+			read_seq = written - 1;
+		}
+		const shared_frame_meta_t *m = &metas[read_seq % slot_num];
+		if (LIKELY(__atomic_load_n(&m->lock, __ATOMIC_ACQUIRE) == 2 * (read_seq + 1))) {
+			current = read_seq++;
+			*meta = m;
+			RETURN(current % slot_num, int);
+		}
+		// the slot is being overwritten
+		skipped++;
+		read_seq++;
+	}
+
+	RETURN(-1, int);
+}
+
+/**
+ * @return true if the frame that #waitFrame returned was not overwritten while reading it
+ */
+bool SharedFrameReader::releaseFrame() {
+	if (UNLIKELY(!shm)) return false;
+	__atomic_thread_fence(__ATOMIC_ACQUIRE);
+	return metas[current % header->slot_num].lock == 2 * (current + 1);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint slot_num, jint slot_bytes) {
+
+	ENTER();
+	SharedMemoryPipeline *pipeline = new SharedMemoryPipeline(slot_num, slot_bytes);
+	if (UNLIKELY(!pipeline->isMapped())) {
+		SAFE_DELETE(pipeline);
+	}
+	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
+}
+
+static void nativeDestroy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	setField_long(env, thiz, "mNativePtr", 0);
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->release();
+		SAFE_DELETE(pipeline);
+	}
+	EXIT();
+}
+
+static jint nativeGetState(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (pipeline) {
+		result = pipeline->getState();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jobject pipeline_obj) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (pipeline) {
+		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
+		result = pipeline->setPipeline(target_pipeline);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStart(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+
+	int result = JNI_ERR;
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->start();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStop(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stop();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetFd(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = -1;
+	SharedMemoryPipeline *pipeline = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->getFd();
+	}
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeReaderCreate(JNIEnv *env, jobject thiz,
+	jint fd) {
+
+	ENTER();
+	SharedFrameReader *reader = new SharedFrameReader(fd);
+	if (UNLIKELY(!reader->isMapped())) {
+		SAFE_DELETE(reader);
+	}
+	RETURN(reinterpret_cast<ID_TYPE>(reader), ID_TYPE);
+}
+
+static void nativeReaderDestroy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader) {
+
+	ENTER();
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	SAFE_DELETE(reader);
+	EXIT();
+}
+
+static jint nativeGetSlotNum(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader) {
+
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	return LIKELY(reader) ? reader->getSlotNum() : 0;
+}
+
+static jobject nativeGetSlotBuffer(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader, jint slot) {
+
+	ENTER();
+	jobject result = NULL;
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	uint8_t *p = LIKELY(reader) ? reader->getSlot(slot) : NULL;
+	if (LIKELY(p)) {
+		result = env->NewDirectByteBuffer(p, reader->getSlotBytes());
+	}
+	RETURN(result, jobject);
+}
+
+/**
+ * @param info slot, bytes, width, height, step, format, sequence, capture_ns
+ * @return slot index, -1 if timed out
+ */
+static jint nativeWaitFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader, jint timeout_ms, jlongArray info_array) {
+
+	jint result = -1;
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	if (LIKELY(reader && info_array && (env->GetArrayLength(info_array) >= 8))) {
+		const shared_frame_meta_t *meta = NULL;
+		result = reader->waitFrame(timeout_ms, &meta);
+		if (result >= 0) {
+			jlong info[8];
+			info[0] = result;
+			info[1] = meta->bytes;
+			info[2] = meta->width;
+			info[3] = meta->height;
+			info[4] = meta->step;
+			info[5] = meta->format;
+			info[6] = meta->sequence;
+			info[7] = meta->capture_ns;
+			env->SetLongArrayRegion(info_array, 0, 8, info);
+		}
+	}
+	return result;
+}
+
+static jboolean nativeReleaseFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader) {
+
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	return LIKELY(reader) && reader->releaseFrame();
+}
+
+static jint nativeGetSkipped(JNIEnv *env, jobject thiz,
+	ID_TYPE id_reader) {
+
+	SharedFrameReader *reader = reinterpret_cast<SharedFrameReader *>(id_reader);
+	return LIKELY(reader) ? reader->getSkipped() : 0;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(II)J", (void *) nativeCreate },
+	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
+
+	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+
+	{ "nativeStart",					"(J)I", (void *) nativeStart },
+	{ "nativeStop",						"(J)I", (void *) nativeStop },
+
+	{ "nativeGetFd",					"(J)I", (void *) nativeGetFd },
+};
+
+static JNINativeMethod reader_methods[] = {
+	{ "nativeCreate",					"(I)J", (void *) nativeReaderCreate },
+	{ "nativeDestroy",					"(J)V", (void *) nativeReaderDestroy },
+
+	{ "nativeGetSlotNum",				"(J)I", (void *) nativeGetSlotNum },
+	{ "nativeGetSlotBuffer",			"(JI)Ljava/nio/ByteBuffer;", (void *) nativeGetSlotBuffer },
+	{ "nativeWaitFrame",				"(JI[J)I", (void *) nativeWaitFrame },
+	{ "nativeReleaseFrame",				"(J)Z", (void *) nativeReleaseFrame },
+	{ "nativeGetSkipped",				"(J)I", (void *) nativeGetSkipped },
+};
+
+int register_shared_memory_pipeline(JNIEnv *env) {
+	LOGV("register_shared_memory_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/SharedMemoryPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/SharedFrameReader",
+		reader_methods, NUM_ARRAY_ELEMENTS(reader_methods)) < 0) {
+		return -1;
+	}
+    return 0;
+}
@@ -0,0 +1,112 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedMemoryPipeline.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SHAREDMEMORYPIPELINE_H_
+#define SHAREDMEMORYPIPELINE_H_
+
+#include <stdlib.h>
+#include <pthread.h>
+
+#include "libUVCCamera.h"
+#include "AbstractBufferedPipeline.h"
+
+#pragma interface
+
+#define SHARED_FRAME_MAGIC 0x4d465353		// "SSFM"
+#define SHARED_FRAME_VERSION 1
+#define SHARED_FRAME_ALIGN 64
+
+/**
+ * header at the top of the shared memory, followed by the slot metadata and the slots.
+ * consumers map the memory read only and wait on write_seq with futex,
+ * so no system call is needed except wake up/wait and no binder transaction per frame.
+ */
+typedef struct shared_frame_header {
+	uint32_t magic;
+	uint32_t version;
+	uint32_t slot_num;
+	uint32_t slot_bytes;
+	uint32_t slot_offset;			// offset of the first slot from the top of the memory
+	volatile uint32_t write_seq;	// number of frames written so far, futex word
+} shared_frame_header_t;
+
+typedef struct shared_frame_meta {
+	volatile uint32_t lock;			// seqlock, odd while writing, 2 * (index + 1) after written
+	uint32_t bytes;
+	uint32_t width;
+	uint32_t height;
+	uint32_t step;
+	uint32_t format;				// uvc_frame_format
+	uint32_t sequence;				// sequence number of the frame from UVC
+	uint32_t reserved;
+	int64_t capture_ns;				// CLOCK_MONOTONIC
+} shared_frame_meta_t;
+
+/**
+ * copies every frame into the next slot of a ring in shared memory(memfd or ashmem)
+ * that several processes can map once and read without copying
+ */
+class SharedMemoryPipeline : virtual public AbstractBufferedPipeline {
+private:
+	int shm_fd;
+	size_t shm_bytes;
+	uint8_t *shm;
+	shared_frame_header_t *header;
+	shared_frame_meta_t *metas;
+protected:
+	virtual void on_start();
+	virtual void on_stop();
+	virtual int handle_frame(uvc_frame_t *frame);
+public:
+	SharedMemoryPipeline(const int &slot_num, const size_t &slot_bytes);
+	virtual ~SharedMemoryPipeline();
+	inline const bool isMapped() const { return shm != NULL; };
+	inline const int getFd() const { return shm_fd; };
+};
+
+/**
+ * consumer side of SharedMemoryPipeline
+ */
+class SharedFrameReader {
+private:
+	size_t shm_bytes;
+	uint8_t *shm;
+	const shared_frame_header_t *header;
+	const shared_frame_meta_t *metas;
+	uint32_t read_seq;				// index of the next frame to read
+	uint32_t current;				// index of the frame that is acquired
+	uint32_t skipped;				// number of frames that were overwritten before reading
+public:
+	SharedFrameReader(const int &fd);
+	~SharedFrameReader();
+	inline const bool isMapped() const { return shm != NULL; };
+	inline const int getSlotNum() const { return header ? header->slot_num : 0; };
+	inline const uint32_t getSlotBytes() const { return header ? header->slot_bytes : 0; };
+	inline const uint32_t getSkipped() const { return skipped; };
+	uint8_t *getSlot(const int &slot) const;
+	int waitFrame(const int &timeout_ms, const shared_frame_meta_t **meta);
+	bool releaseFrame();
+};
+
+#endif /* SHAREDMEMORYPIPELINE_H_ */
@@ -3,7 +3,6 @@
 //
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -3,17 +3,51 @@
 //
 
 #include "utilbase.h"
-#include "Timers.h"
 #include "SimpleBufferedPipeline.h"
-#include "SQLiteBufferedPipeline.h"
-#include "UVCCameraControl.h"
 #include "CallbackPipeline.h"
 #include "ConvertPipeline.h"
 #include "PreviewPipeline.h"
-#include "PublisherPipeline.h"
 #include "DistributePipeline.h"
+#include "PreEventBufferedPipeline.h"
+#include "SharedMemoryPipeline.h"
+#include "AviRecorderPipeline.h"
 #include "pipeline_helper.h"
 
+extern int register_simple_buffered_pipeline(JNIEnv *env);
+extern int register_callback_pipeline(JNIEnv *env);
+extern int register_convert_pipeline(JNIEnv *env);
+extern int register_preview_pipeline(JNIEnv *env);
+extern int register_distribute_pipeline(JNIEnv *env);
+extern int register_pre_event_buffered_pipeline(JNIEnv *env);
+extern int register_shared_memory_pipeline(JNIEnv *env);
+extern int register_avi_recorder_pipeline(JNIEnv *env);
+
+static jlong getField_long(JNIEnv *env, jobject java_obj, const char *field_name) {
+	jlong result = 0;
+	jclass clazz = env->GetObjectClass(java_obj);
+	jfieldID field = env->GetFieldID(clazz, field_name, "J");
+	if (LIKELY(field)) {
+		result = env->GetLongField(java_obj, field);
+	} else {
+		LOGE("getField_long:field '%s' not found", field_name);
+	}
+	env->DeleteLocalRef(clazz);
+	return result;
+}
+
+static jint getField_int(JNIEnv *env, jobject java_obj, const char *field_name) {
+	jint result = 0;
+	jclass clazz = env->GetObjectClass(java_obj);
+	jfieldID field = env->GetFieldID(clazz, field_name, "I");
+	if (LIKELY(field)) {
+		result = env->GetIntField(java_obj, field);
+	} else {
+		LOGE("getField_int:field '%s' not found", field_name);
+	}
+	env->DeleteLocalRef(clazz);
+	return result;
+}
+
 IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 	ENTER();
 
@@ -22,16 +56,11 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 	jint type = getField_int(env, pipeline_obj, "mType");
 	env->ExceptionClear();
 	IPipeline *result = NULL;
+	// IPipeline is a virtual base class, cast to the actual class first
 	switch (type) {
 		case PIPELINE_TYPE_SIMPLE_BUFFERED:
 			result = reinterpret_cast<SimpleBufferedPipeline *>(id_pipeline);
 			break;
-		case PIPELINE_TYPE_SQLITE_BUFFERED:
-			result = reinterpret_cast<SQLiteBufferedPipeline *>(id_pipeline);
-			break;
-		case PIPELINE_TYPE_UVC_CONTROL:
-			result = reinterpret_cast<UVCCameraControl *>(id_pipeline);
-			break;
 		case PIPELINE_TYPE_CALLBACK:
 			result = reinterpret_cast<CallbackPipeline *>(id_pipeline);
 			break;
@@ -41,12 +70,18 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 		case PIPELINE_TYPE_PREVIEW:
 			result = reinterpret_cast<PreviewPipeline *>(id_pipeline);
 			break;
-		case PIPELINE_TYPE_PUBLISHER:
-			result = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-			break;
 		case PIPELINE_TYPE_DISTRIBUTE:
 			result = reinterpret_cast<DistributePipeline *>(id_pipeline);
 			break;
+		case PIPELINE_TYPE_PRE_EVENT_BUFFERED:
+			result = reinterpret_cast<PreEventBufferedPipeline *>(id_pipeline);
+			break;
+		case PIPELINE_TYPE_SHARED_MEMORY:
+			result = reinterpret_cast<SharedMemoryPipeline *>(id_pipeline);
+			break;
+		case PIPELINE_TYPE_AVI_RECORDER:
+			result = reinterpret_cast<AviRecorderPipeline *>(id_pipeline);
+			break;
 		default:
 			result = NULL;
 			break;
@@ -54,3 +89,18 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 
 	RETURN(result, IPipeline *);
 }
+
+int register_pipelines(JNIEnv *env) {
+	if (register_simple_buffered_pipeline(env)
+		|| register_callback_pipeline(env)
+		|| register_convert_pipeline(env)
+		|| register_preview_pipeline(env)
+		|| register_distribute_pipeline(env)
+		|| register_pre_event_buffered_pipeline(env)
+		|| register_shared_memory_pipeline(env)
+		|| register_avi_recorder_pipeline(env)) {
+
+		return -1;
+	}
+	return 0;
+}
@@ -5,10 +5,15 @@
 #ifndef PUPILMOBILE_PIPELINE_HELPER_H_H
 #define PUPILMOBILE_PIPELINE_HELPER_H_H
 
-#include "common_utils.h"
+#include <jni.h>
 
 #include "IPipeline.h"
 
+// defined in serenegiant_usb_UVCCamera.cpp
+jlong setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val);
+jint registerNativeMethods(JNIEnv* env, const char *class_name, JNINativeMethod *methods, int num_methods);
+
 IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj);
+int register_pipelines(JNIEnv *env);
 
 #endif //PUPILMOBILE_PIPELINE_HELPER_H_H
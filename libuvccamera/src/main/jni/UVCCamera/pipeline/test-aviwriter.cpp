@@ -0,0 +1,234 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: test-aviwriter.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+/**
+ * test for the file layout of AviWriter.
+ * this is not a part of the android build, build it with the compiler of NDK in jni folder like
+ *   $CXX -O2 -I. -IUVCCamera -Ilibusb -Ilibusb/libusb -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     UVCCamera/pipeline/test-aviwriter.cpp UVCCamera/pipeline/AviWriter.cpp -llog -o test-aviwriter
+ * and run it on the device with a writable directory as the argument(/data/local/tmp by default).
+ * exit status is non zero when any check fails.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "AviWriter.h"
+
+#define NS_PER_SEC 1000000000LL
+#define FRAME_WIDTH 4
+#define FRAME_HEIGHT 2
+#define MOVI_OFFSET 220				// offset of 'movi' fourcc in the file, index entries are relative to this
+
+static int failed = 0;
+static char path[256];
+
+#define CHECK_TRUE(name, cond) \
+	if (!(cond)) { printf("%-24s NG (%s:%d)\n", name, #cond, __LINE__); failed++; return; }
+
+static uint32_t get_le32(const uint8_t *p) {
+	return p[0] | (p[1] << 8) | (p[2] << 16) | ((uint32_t)p[3] << 24);
+}
+
+static bool is_fourcc(const uint8_t *p, const char *fourcc) {
+	return !memcmp(p, fourcc, 4);
+}
+
+/**
+ * read whole file into newly allocated buffer
+ */
+static uint8_t *read_file(size_t &bytes) {
+	bytes = 0;
+	FILE *fp = fopen(path, "rb");
+	if (!fp) return NULL;
+	fseek(fp, 0, SEEK_END);
+	const long n = ftell(fp);
+	fseek(fp, 0, SEEK_SET);
+	uint8_t *buf = (uint8_t *)malloc(n > 0 ? n : 1);
+	if (buf && (n > 0) && (fread(buf, 1, n, fp) == (size_t)n)) {
+		bytes = n;
+	}
+	fclose(fp);
+	return buf;
+}
+
+/**
+ * set up a frame on the data, the frame does not own the data
+ */
+static void init_frame(uvc_frame_t &frame, uint8_t *data, const size_t &bytes,
+	const enum uvc_frame_format &format, const int64_t &capture_ns) {
+
+	memset(&frame, 0, sizeof(frame));
+	frame.data = data;
+	frame.data_bytes = frame.actual_bytes = bytes;
+	frame.width = FRAME_WIDTH;
+	frame.height = FRAME_HEIGHT;
+	frame.frame_format = format;
+	frame.timestamp.capture_ns = capture_ns;
+}
+
+/**
+ * check RIFF/hdrl/movi headers
+ * @return offset of the end of movi list or 0 if the headers are broken
+ */
+static size_t check_header(const uint8_t *buf, const size_t &bytes, const bool &indexed,
+	const uint32_t &frames, const uint32_t &us_per_frame) {
+
+	if (bytes < AVI_HEADER_BYTES) return 0;
+	if (!is_fourcc(buf, "RIFF") || !is_fourcc(buf + 8, "AVI ")) return 0;
+	// hdrl list and its avih/strl
+	if (!is_fourcc(buf + 12, "LIST") || (get_le32(buf + 16) != 192) || !is_fourcc(buf + 20, "hdrl")) return 0;
+	if (!is_fourcc(buf + 24, "avih") || (get_le32(buf + 28) != 56)) return 0;
+	if (get_le32(buf + 32) != us_per_frame) return 0;
+	if (((get_le32(buf + 44) & 0x10) != 0) != indexed) return 0;	// AVIF_HASINDEX
+	if (get_le32(buf + 48) != frames) return 0;
+	// the size is unknown until the first frame
+	if (frames && ((get_le32(buf + 64) != FRAME_WIDTH) || (get_le32(buf + 68) != FRAME_HEIGHT))) return 0;
+	if (!is_fourcc(buf + 88, "LIST") || (get_le32(buf + 92) != 116) || !is_fourcc(buf + 96, "strl")) return 0;
+	if (!is_fourcc(buf + 100, "strh") || !is_fourcc(buf + 108, "vids")) return 0;
+	if (get_le32(buf + 140) != frames) return 0;					// dwLength
+	if (!is_fourcc(buf + 164, "strf") || (get_le32(buf + 168) != 40)) return 0;
+	// movi list follows hdrl list
+	if (!is_fourcc(buf + MOVI_OFFSET - 8, "LIST") || !is_fourcc(buf + MOVI_OFFSET, "movi")) return 0;
+	const size_t movi_end = MOVI_OFFSET + get_le32(buf + MOVI_OFFSET - 4);
+	// RIFF covers movi list and idx1 chunk(if any)
+	const size_t riff_end = 8 + get_le32(buf + 4);
+	if ((riff_end > bytes) || (movi_end > riff_end)) return 0;
+	if (indexed ? (riff_end != movi_end + 8 + get_le32(buf + movi_end + 4)) : (riff_end != movi_end)) return 0;
+	return movi_end;
+}
+
+static void test_layout() {
+	static uint8_t data[3][FRAME_WIDTH * FRAME_HEIGHT * 2];
+	static const size_t sizes[3] = { 7, 16, 9 };	// odd sizes are padded
+	for (int i = 0; i < 3; i++) {
+		memset(data[i], 'a' + i, sizeof(data[i]));
+	}
+	AviWriter writer;
+	CHECK_TRUE("layout", writer.open(path) == EXIT_SUCCESS);
+	CHECK_TRUE("layout", writer.isOpened());
+	for (int i = 0; i < 3; i++) {
+		uvc_frame_t frame;
+		// 40ms interval
+		init_frame(frame, data[i], sizes[i], UVC_FRAME_FORMAT_MJPEG, NS_PER_SEC + i * 40000000LL);
+		CHECK_TRUE("layout", writer.writeFrame(&frame) == 0);
+	}
+	CHECK_TRUE("layout", writer.getFrameCount() == 3);
+	writer.close();
+	CHECK_TRUE("layout", !writer.isOpened());
+
+	size_t bytes;
+	uint8_t *buf = read_file(bytes);
+	CHECK_TRUE("layout", buf);
+	const size_t movi_end = check_header(buf, bytes, true, 3, 40000);
+	const bool header_ok = movi_end == AVI_HEADER_BYTES + (8 + 8) + (8 + 16) + (8 + 10);
+	const uint8_t *idx1 = buf + movi_end;
+	bool chunks_ok = header_ok && is_fourcc(idx1, "idx1") && (get_le32(idx1 + 4) == 3 * 16)
+		&& (movi_end + 8 + 3 * 16 == bytes);
+	// each index entry points the chunk by the offset from 'movi' fourcc
+	for (int i = 0; chunks_ok && (i < 3); i++) {
+		const uint8_t *entry = idx1 + 8 + i * 16;
+		const uint8_t *chunk = buf + MOVI_OFFSET + get_le32(entry + 8);
+		chunks_ok = is_fourcc(entry, "00dc") && (get_le32(entry + 4) == 0x10)	// AVIIF_KEYFRAME
+			&& (get_le32(entry + 12) == sizes[i])
+			&& is_fourcc(chunk, "00dc") && (get_le32(chunk + 4) == sizes[i])
+			&& !memcmp(chunk + 8, data[i], sizes[i]);
+	}
+	free(buf);
+	CHECK_TRUE("layout", header_ok);
+	CHECK_TRUE("layout", chunks_ok);
+	printf("%-24s OK\n", "layout");
+}
+
+static void test_skip() {
+	static uint8_t data[FRAME_WIDTH * FRAME_HEIGHT * 2];
+	AviWriter writer;
+	CHECK_TRUE("skip", writer.open(path) == EXIT_SUCCESS);
+	uvc_frame_t frame;
+	// unsupported format before the first frame
+	init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_RGB, NS_PER_SEC);
+	CHECK_TRUE("skip", writer.writeFrame(&frame) < 0);
+	// the first frame decides the format and size of the file
+	init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_YUYV, NS_PER_SEC);
+	CHECK_TRUE("skip", writer.writeFrame(&frame) == 0);
+	init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_MJPEG, NS_PER_SEC + 33000000LL);
+	CHECK_TRUE("skip", writer.writeFrame(&frame) < 0);
+	init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_YUYV, NS_PER_SEC + 66000000LL);
+	frame.width = FRAME_WIDTH * 2;
+	CHECK_TRUE("skip", writer.writeFrame(&frame) < 0);
+	init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_YUYV, NS_PER_SEC + 100000000LL);
+	CHECK_TRUE("skip", writer.writeFrame(&frame) == 0);
+	CHECK_TRUE("skip", (writer.getFrameCount() == 2) && (writer.getSkippedCount() == 3));
+	writer.close();
+
+	size_t bytes;
+	uint8_t *buf = read_file(bytes);
+	CHECK_TRUE("skip", buf);
+	const size_t movi_end = check_header(buf, bytes, true, 2, 100000);
+	const bool ok = (movi_end == AVI_HEADER_BYTES + 2 * (8 + sizeof(data)))
+		&& is_fourcc(buf + AVI_HEADER_BYTES, "00db")
+		&& is_fourcc(buf + 164 + 24, "YUY2");	// biCompression
+	free(buf);
+	CHECK_TRUE("skip", ok);
+	printf("%-24s OK\n", "skip");
+}
+
+static void test_sync() {
+	static uint8_t data[FRAME_WIDTH * FRAME_HEIGHT * 2];
+	AviWriter writer;
+	CHECK_TRUE("sync", writer.open(path) == EXIT_SUCCESS);
+	size_t bytes;
+	uint8_t *buf = read_file(bytes);
+	// the file is valid AVI without frames just after opening
+	const size_t empty_end = check_header(buf, bytes, false, 0, 33333);
+	free(buf);
+	CHECK_TRUE("sync", empty_end == AVI_HEADER_BYTES);
+	// 25 fps for 1.6 seconds, the headers are updated at 1 second(26th frame)
+	const int64_t period_ns = NS_PER_SEC / 25;
+	for (int i = 0; i < 40; i++) {
+		uvc_frame_t frame;
+		init_frame(frame, data, sizeof(data), UVC_FRAME_FORMAT_YUYV, NS_PER_SEC + i * period_ns);
+		CHECK_TRUE("sync", writer.writeFrame(&frame) == 0);
+	}
+	// as if the process was killed here
+	buf = read_file(bytes);
+	const size_t movi_end = check_header(buf, bytes, false, 26, 40000);
+	free(buf);
+	writer.close();
+	CHECK_TRUE("sync", movi_end == AVI_HEADER_BYTES + 26 * (8 + sizeof(data)));
+	CHECK_TRUE("sync", bytes >= movi_end);
+	buf = read_file(bytes);
+	const size_t closed_end = check_header(buf, bytes, true, 40, 40000);
+	free(buf);
+	CHECK_TRUE("sync", closed_end == AVI_HEADER_BYTES + 40 * (8 + sizeof(data)));
+	printf("%-24s OK\n", "sync");
+}
+
+int main(int argc, char *argv[]) {
+	snprintf(path, sizeof(path), "%s/test-aviwriter.avi", argc > 1 ? argv[1] : "/data/local/tmp");
+	test_layout();
+	test_skip();
+	test_sync();
+	remove(path);
+	return failed ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -38,6 +38,7 @@
 
 #include "libUVCCamera.h"
 #include "UVCCamera.h"
+#include "pipeline/pipeline_helper.h"
 
 /**
  * set the value into the long field
@@ -46,7 +47,7 @@
  * @param field_name
  * @params val
  */
-static jlong setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val) {
+jlong setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val) {
 #if LOCAL_DEBUG
 	LOGV("setField_long:");
 #endif
@@ -226,6 +227,38 @@ static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
 	RETURN(JNI_ERR, jint);
 }
 
+//======================================================================
+// ストリームに必要な帯域とaltsettingごとの帯域を取得
+// info: [speed, isochronous, dwMaxPayloadTransferSize, required rate, num_alt,
+//		bytes per packet of altsetting#0, rate of altsetting#0, bytes per packet of altsetting#1,...]
+static jint nativeGetStreamBandwidth(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint width, jint height, jint min_fps, jint max_fps, jint mode, jintArray info) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && info)) {
+		uvc_stream_bandwidth_t bandwidth;
+		result = camera->getStreamBandwidth(width, height, min_fps, max_fps, mode, &bandwidth);
+		if (LIKELY(!result)) {
+			jint values[5 + UVC_MAX_ALTSETTINGS * 2];
+			values[0] = bandwidth.speed;
+			values[1] = bandwidth.isochronous;
+			values[2] = bandwidth.max_payload;
+			values[3] = bandwidth.required_rate;
+			values[4] = bandwidth.num_alt;
+			for (int i = 0; i < UVC_MAX_ALTSETTINGS; i++) {
+				values[5 + i * 2] = bandwidth.alt_bytes[i];
+				values[6 + i * 2] = bandwidth.alt_rate[i];
+			}
+			jsize n = env->GetArrayLength(info);
+			if (n > (jsize)NUM_ARRAY_ELEMENTS(values)) n = NUM_ARRAY_ELEMENTS(values);
+			env->SetIntArrayRegion(info, 0, n, values);
+		}
+	}
+	RETURN(result, jint);
+}
+
 static jint nativeStartPreview(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera) {
 
@@ -263,15 +296,126 @@ static jint nativeSetPreviewDisplay(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+/**
+ * @return NULL if width is 0(not resized)
+ */
+static const uvc_resize_t *setup_resize(uvc_resize_t *resize,
+	jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+	jint width, jint height, jint filter) {
+
+	if (!width) return NULL;
+	resize->crop_x = crop_x;
+	resize->crop_y = crop_y;
+	resize->crop_width = crop_width;
+	resize->crop_height = crop_height;
+	resize->width = width;
+	resize->height = height;
+	resize->filter = (enum uvc_resize_filter)filter;
+	return resize;
+}
+
 static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
-	ID_TYPE id_camera, jobject jIFrameCallback, jint pixel_format) {
+	ID_TYPE id_camera, jobject jIFrameCallback, jint pixel_format, jint scale_denom,
+	jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+	jint width, jint height, jint filter) {
 
 	jint result = JNI_ERR;
 	ENTER();
 	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
 	if (LIKELY(camera)) {
+		uvc_resize_t resize;
 		jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
-		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format, scale_denom,
+			setup_resize(&resize, crop_x, crop_y, crop_width, crop_height, width, height, filter));
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeAddFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIFrameCallback, jint pixel_format, jint scale_denom, jfloat max_fps,
+	jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+	jint width, jint height, jint filter) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && jIFrameCallback)) {
+		uvc_resize_t resize;
+		jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
+		result = camera->addFrameCallback(env, frame_callback_obj, pixel_format, scale_denom, max_fps,
+			setup_resize(&resize, crop_x, crop_y, crop_width, crop_height, width, height, filter));
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeRemoveFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIFrameCallback) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->removeFrameCallback(env, jIFrameCallback);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetFrameQueue(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint capacity, jint drop_policy) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setFrameQueue(capacity, drop_policy);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetDecodeThreads(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint num_threads, jint max_in_flight) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setDecodeThreads(num_threads, max_in_flight);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPreviewScale(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint scale_denom) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setPreviewScale(scale_denom);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPreviewMaxFps(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jfloat max_fps) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setPreviewMaxFps(max_fps);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetCaptureMaxFps(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jfloat max_fps) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setCaptureMaxFps(max_fps);
 	}
 	RETURN(result, jint);
 }
@@ -289,6 +433,139 @@ static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeLeaseFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jFrame) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->leaseFrame(env, jFrame);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeReleaseFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jFrame) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->releaseFrame(env, jFrame);
+	}
+	RETURN(result, jint);
+}
+
+static jobject nativeGetStatistics(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	ENTER();
+	jstring result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		char *c_str = camera->getStatistics();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+	RETURN(result, jobject);
+}
+
+static jint nativeStartEncoder(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jstring path_str, jint width, jint height, jint frame_rate, jint bitrate, jint color_format) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && path_str)) {
+		const char *path = env->GetStringUTFChars(path_str, JNI_FALSE);
+		result = camera->startEncoder(path, width, height, frame_rate, bitrate, color_format);
+		env->ReleaseStringUTFChars(path_str, path);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStopEncoder(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->stopEncoder();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeCaptureStill(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jstring path_str, jint quality, jobject callback) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && path_str && callback)) {
+		result = camera->captureStill(env, path_str, quality, callback);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeCaptureBurst(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobjectArray paths, jint quality, jobjectArray callbacks) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && paths && callbacks)) {
+		result = camera->captureBurst(env, paths, quality, callbacks);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject pipeline_obj) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		IPipeline *pipeline = getPipeline(env, pipeline_obj);
+		result = camera->setPipeline(pipeline);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetFrameDropListener(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIFrameDropListener, jfloat threshold, jint interval_ms) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setFrameDropListener(env, jIFrameDropListener, threshold, interval_ms);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetDropCounts(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jintArray drops) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && drops)) {
+		uint32_t counts[STAT_NUM_DROPS];
+		result = camera->getDropCounts(counts);
+		if (LIKELY(!result)) {
+			jsize n = env->GetArrayLength(drops);
+			if (n > STAT_NUM_DROPS) n = STAT_NUM_DROPS;
+			env->SetIntArrayRegion(drops, 0, n, (const jint *)counts);
+		}
+	}
+	RETURN(result, jint);
+}
+
 //======================================================================
 // カメラコントロールでサポートしている機能を取得する
 static jlong nativeGetCtrlSupports(JNIEnv *env, jobject thiz,
@@ -2027,9 +2304,27 @@ static JNINativeMethod methods[] = {
 	{ "nativeStartPreview",				"(J)I", (void *) nativeStartPreview },
 	{ "nativeStopPreview",				"(J)I", (void *) nativeStopPreview },
 	{ "nativeSetPreviewDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetPreviewDisplay },
-	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
+	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;IIIIIIIII)I", (void *) nativeSetFrameCallback },
+	{ "nativeAddFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;IIFIIIIIII)I", (void *) nativeAddFrameCallback },
+	{ "nativeRemoveFrameCallback",		"(JLcom/serenegiant/usb/IFrameCallback;)I", (void *) nativeRemoveFrameCallback },
+	{ "nativeSetFrameQueue",			"(JII)I", (void *) nativeSetFrameQueue },
+	{ "nativeSetDecodeThreads",			"(JII)I", (void *) nativeSetDecodeThreads },
+	{ "nativeSetPreviewScale",			"(JI)I", (void *) nativeSetPreviewScale },
+	{ "nativeSetPreviewMaxFps",			"(JF)I", (void *) nativeSetPreviewMaxFps },
+	{ "nativeSetCaptureMaxFps",			"(JF)I", (void *) nativeSetCaptureMaxFps },
 
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
+	{ "nativeStartEncoder",				"(JLjava/lang/String;IIIII)I", (void *) nativeStartEncoder },
+	{ "nativeStopEncoder",				"(J)I", (void *) nativeStopEncoder },
+	{ "nativeCaptureStill",				"(JLjava/lang/String;ILcom/serenegiant/usb/StillCaptureFuture;)I", (void *) nativeCaptureStill },
+	{ "nativeCaptureBurst",				"(J[Ljava/lang/String;I[Lcom/serenegiant/usb/StillCaptureFuture;)I", (void *) nativeCaptureBurst },
+	{ "nativeLeaseFrame",				"(JLjava/nio/ByteBuffer;)I", (void *) nativeLeaseFrame },
+	{ "nativeReleaseFrame",				"(JLjava/nio/ByteBuffer;)I", (void *) nativeReleaseFrame },
+	{ "nativeGetStatistics",			"(J)Ljava/lang/String;", (void *) nativeGetStatistics },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	{ "nativeSetFrameDropListener",		"(JLcom/serenegiant/usb/IFrameDropListener;FI)I", (void *) nativeSetFrameDropListener },
+	{ "nativeGetDropCounts",			"(J[I)I", (void *) nativeGetDropCounts },
+	{ "nativeGetStreamBandwidth",		"(JIIIII[I)I", (void *) nativeGetStreamBandwidth },
 
 	{ "nativeGetCtrlSupports",			"(J)J", (void *) nativeGetCtrlSupports },
 	{ "nativeGetProcSupports",			"(J)J", (void *) nativeGetProcSupports },
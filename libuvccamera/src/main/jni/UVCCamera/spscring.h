@@ -0,0 +1,205 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: spscring.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SPSCRING_H_
+#define SPSCRING_H_
+
+#include <errno.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+#include "utilbase.h"
+
+#define SPSC_DROP_NEWEST 0	// discard the incoming item when the ring is full
+#define SPSC_DROP_OLDEST 1	// discard the oldest queued item when the ring is full
+
+/**
+ * bounded lock-free ring buffer for single producer/single consumer
+ * the consumer sleeps on a futex only while it is parked and
+ * the producer issues FUTEX_WAKE only when the consumer is actually parked.
+ * with SPSC_DROP_OLDEST, the producer may steal the oldest item,
+ * so the head index is always advanced with compare-and-swap.
+ * resize/policy must be changed only while neither producer nor consumer is running.
+ */
+template <class T>
+class SPSCRing {
+private:
+	T *m_slots;
+	uint32_t m_mask;
+	int m_capacity;
+	int m_policy;
+	volatile uint32_t m_head;		// next index to read, advanced by consumer (and producer on drop oldest)
+	volatile uint32_t m_tail;		// next index to write, advanced only by producer
+	volatile int32_t m_futex;		// futex word, bumped before every wake up
+	volatile int32_t m_parked;		// non-zero while consumer is sleeping on m_futex
+	volatile uint32_t m_enqueued;
+	volatile uint32_t m_dropped;
+	volatile uint32_t m_wakeups;
+
+	static inline int futex_wait(volatile int32_t *addr, int32_t val, const struct timespec *timeout) {
+		return syscall(__NR_futex, addr, FUTEX_WAIT_PRIVATE, val, timeout, NULL, 0);
+	}
+	static inline int futex_wake(volatile int32_t *addr, int n) {
+		return syscall(__NR_futex, addr, FUTEX_WAKE_PRIVATE, n, NULL, NULL, 0);
+	}
+
+	/** take the oldest item, return false if ring is empty */
+	bool take(T &item) {
+		for ( ; ; ) {
+			const uint32_t head = __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+			const uint32_t tail = __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE);
+			if (head == tail) return false;
+			const T value = __atomic_load_n(&m_slots[head & m_mask], __ATOMIC_RELAXED);
+			uint32_t expected = head;
+			if (LIKELY(__atomic_compare_exchange_n(&m_head, &expected, head + 1,
+				false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))) {
+				item = value;
+				return true;
+			}
+			// the producer stole the oldest item, retry
+		}
+	}
+
+	void wake() {
+		if (__atomic_load_n(&m_parked, __ATOMIC_SEQ_CST)) {
+			__atomic_add_fetch(&m_futex, 1, __ATOMIC_SEQ_CST);
+			futex_wake(&m_futex, 1);
+			__atomic_add_fetch(&m_wakeups, 1, __ATOMIC_RELAXED);
+		}
+	}
+public:
+	SPSCRing(int capacity = 4, int policy = SPSC_DROP_NEWEST)
+	:	m_slots(NULL), m_mask(0), m_capacity(0), m_policy(policy),
+		m_head(0), m_tail(0), m_futex(0), m_parked(0),
+		m_enqueued(0), m_dropped(0), m_wakeups(0) {
+		resize(capacity);
+	}
+
+	~SPSCRing() { SAFE_DELETE_ARRAY(m_slots); }
+
+	/**
+	 * change capacity of this ring, queued items are discarded without deleting.
+	 * caller should clear this ring before calling this
+	 */
+	void resize(int capacity) {
+		if (capacity < 1) capacity = 1;
+		uint32_t sz = 1;
+		while (sz < (uint32_t)capacity) sz <<= 1;
+		if (!m_slots || (sz != m_mask + 1)) {
+			SAFE_DELETE_ARRAY(m_slots);
+			m_slots = new T[sz];
+			m_mask = sz - 1;
+		}
+		m_capacity = capacity;
+		m_head = m_tail = 0;
+	}
+
+	inline int capacity() const { return m_capacity; }
+	inline int policy() const { return m_policy; }
+	inline void policy(int policy) { m_policy = policy; }
+	inline int size() const {
+		return (int)(__atomic_load_n(&m_tail, __ATOMIC_ACQUIRE) - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE));
+	}
+	inline bool isEmpty() const { return size() <= 0; }
+	inline uint32_t enqueued() const { return __atomic_load_n(&m_enqueued, __ATOMIC_RELAXED); }
+	inline uint32_t dropped() const { return __atomic_load_n(&m_dropped, __ATOMIC_RELAXED); }
+	inline uint32_t wakeups() const { return __atomic_load_n(&m_wakeups, __ATOMIC_RELAXED); }
+	inline void resetCounters() {
+		__atomic_store_n(&m_enqueued, 0, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_dropped, 0, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_wakeups, 0, __ATOMIC_RELAXED);
+	}
+
+	/**
+	 * add item to this ring, call only from producer thread.
+	 * @return item that was discarded due to drop policy(caller should recycle it), NULL if nothing was discarded
+	 */
+	T put(T item) {
+		T dropped = NULL;
+		uint32_t tail = m_tail;	// only producer writes m_tail
+		if (UNLIKELY((int)(tail - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE)) >= m_capacity)) {
+			if (m_policy != SPSC_DROP_OLDEST) {
+				__atomic_add_fetch(&m_dropped, 1, __ATOMIC_RELAXED);
+				return item;
+			}
+			// take could fail only when the consumer drained the ring meanwhile
+			if (take(dropped)) {
+				__atomic_add_fetch(&m_dropped, 1, __ATOMIC_RELAXED);
+			}
+		}
+		__atomic_store_n(&m_slots[tail & m_mask], item, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_SEQ_CST);
+		__atomic_add_fetch(&m_enqueued, 1, __ATOMIC_RELAXED);
+		wake();
+		return dropped;
+	}
+
+	/**
+	 * get the oldest item without blocking, call only from consumer thread
+	 * @return NULL if ring is empty
+	 */
+	T poll() {
+		T item = NULL;
+		return take(item) ? item : NULL;
+	}
+
+	/**
+	 * get the oldest item, if ring is empty, park until producer adds item,
+	 * #interrupt is called or timeout elapsed. call only from consumer thread
+	 * @param timeout_ns zero or negative value means waiting forever
+	 * @return NULL if interrupted or timeout
+	 */
+	T wait(const int64_t timeout_ns = 0) {
+		T item = NULL;
+		if (take(item)) return item;
+		const int32_t seq = __atomic_load_n(&m_futex, __ATOMIC_SEQ_CST);
+		__atomic_store_n(&m_parked, 1, __ATOMIC_SEQ_CST);
+		// need to check again after parked to avoid losing wake up
+		if (!take(item)) {
+			struct timespec ts;
+			if (timeout_ns > 0) {
+				ts.tv_sec = timeout_ns / 1000000000LL;
+				ts.tv_nsec = timeout_ns % 1000000000LL;
+			}
+			futex_wait(&m_futex, seq, timeout_ns > 0 ? &ts : NULL);
+			if (!take(item)) {
+				item = NULL;
+			}
+		}
+		__atomic_store_n(&m_parked, 0, __ATOMIC_SEQ_CST);
+		return item;
+	}
+
+	/**
+	 * wake up parked consumer unconditionally, e.g. when terminating
+	 */
+	void interrupt() {
+		__atomic_add_fetch(&m_futex, 1, __ATOMIC_SEQ_CST);
+		futex_wake(&m_futex, INT32_MAX);
+	}
+};
+
+#endif /* SPSCRING_H_ */
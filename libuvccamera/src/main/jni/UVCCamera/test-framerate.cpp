@@ -0,0 +1,161 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: test-framerate.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+/**
+ * host test for FrameRateLimiter in framerate.h.
+ * this is not a part of the android build, build it on host like
+ *   g++ -O2 test-framerate.cpp -o test-framerate
+ * exit status is non zero when any check fails.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "framerate.h"
+
+#define NS_PER_SEC 1000000000LL
+
+static int failed = 0;
+
+#define CHECK_TRUE(name, cond) \
+	if (!(cond)) { printf("%-24s NG (%s:%d)\n", name, #cond, __LINE__); failed++; return; }
+
+/**
+ * feed frames of the camera fps into the limiter
+ * @param jitter_ns capture time of each frame is shifted by +-jitter_ns alternately
+ * @param accepted number of accepted frames
+ * @param min_gap/max_gap minimum/maximum number of frames between accepted frames
+ */
+static void run(const float &max_fps, const double &camera_fps, const int &frames,
+	const int64_t &jitter_ns, int &accepted, int &min_gap, int &max_gap) {
+
+	FrameRateLimiter limiter;
+	limiter.setMaxFps(max_fps);
+	const double period_ns = NS_PER_SEC / camera_fps;
+	int last = -1;
+	accepted = 0;
+	min_gap = frames;
+	max_gap = 0;
+	for (int i = 0; i < frames; i++) {
+		const int64_t capture_ns = NS_PER_SEC + (int64_t)(i * period_ns) + ((i & 1) ? jitter_ns : -jitter_ns);
+		if (limiter.accept(capture_ns)) {
+			if (last >= 0) {
+				const int gap = i - last;
+				if (gap < min_gap) min_gap = gap;
+				if (gap > max_gap) max_gap = gap;
+			}
+			last = i;
+			accepted++;
+		}
+	}
+}
+
+static void test_not_limited() {
+	int accepted, min_gap, max_gap;
+	run(0.0f, 30.0, 300, 0, accepted, min_gap, max_gap);
+	CHECK_TRUE("not limited", accepted == 300);
+	printf("%-24s OK\n", "not limited");
+}
+
+static void test_integer_ratio() {
+	static const struct { float max_fps; int gap; } cases[] = {
+		{ 15.0f, 2 }, { 10.0f, 3 }, { 5.0f, 6 }, { 1.0f, 30 },
+	};
+	for (int i = 0; i < (int)(sizeof(cases) / sizeof(cases[0])); i++) {
+		int accepted, min_gap, max_gap;
+		// frames are selected uniformly
+		run(cases[i].max_fps, 30.0, 300, 0, accepted, min_gap, max_gap);
+		CHECK_TRUE("integer ratio", accepted == 300 / cases[i].gap);
+		CHECK_TRUE("integer ratio", (min_gap == cases[i].gap) && (max_gap == cases[i].gap));
+		// jitter less than half of the frame interval does not change the selection
+		run(cases[i].max_fps, 30.0, 300, 4000000LL, accepted, min_gap, max_gap);
+		CHECK_TRUE("integer ratio+jitter", (min_gap == cases[i].gap) && (max_gap == cases[i].gap));
+	}
+	printf("%-24s OK\n", "integer ratio");
+}
+
+static void test_fractional_ratio() {
+	int accepted, min_gap, max_gap;
+	// 12 fps from 30 fps, every 2.5 frames
+	run(12.0f, 30.0, 300, 0, accepted, min_gap, max_gap);
+	CHECK_TRUE("fractional ratio", (accepted >= 119) && (accepted <= 121));
+	CHECK_TRUE("fractional ratio", (min_gap == 2) && (max_gap == 3));
+	printf("%-24s OK\n", "fractional ratio");
+}
+
+static void test_slow_camera() {
+	int accepted, min_gap, max_gap;
+	// the camera is slower than max_fps, all frames pass
+	run(30.0f, 15.0, 150, 0, accepted, min_gap, max_gap);
+	CHECK_TRUE("slow camera", accepted == 150);
+	printf("%-24s OK\n", "slow camera");
+}
+
+static void test_lost_frames() {
+	FrameRateLimiter limiter;
+	limiter.setMaxFps(10.0f);
+	const int64_t period_ns = NS_PER_SEC / 30;
+	int64_t t = NS_PER_SEC;
+	CHECK_TRUE("lost frames", limiter.accept(t));
+	CHECK_TRUE("lost frames", !limiter.accept(t += period_ns));
+	CHECK_TRUE("lost frames", !limiter.accept(t += period_ns));
+	CHECK_TRUE("lost frames", limiter.accept(t += period_ns));
+	// frames for 1 second were lost, the first frame after that passes
+	// and the phase starts over from it
+	CHECK_TRUE("lost frames", limiter.accept(t += NS_PER_SEC));
+	CHECK_TRUE("lost frames", !limiter.accept(t += period_ns));
+	CHECK_TRUE("lost frames", !limiter.accept(t += period_ns));
+	CHECK_TRUE("lost frames", limiter.accept(t += period_ns));
+	printf("%-24s OK\n", "lost frames");
+}
+
+static void test_clock_reset() {
+	FrameRateLimiter limiter;
+	limiter.setMaxFps(10.0f);
+	const int64_t period_ns = NS_PER_SEC / 30;
+	int64_t t = 100 * NS_PER_SEC;
+	CHECK_TRUE("clock reset", limiter.accept(t));
+	CHECK_TRUE("clock reset", !limiter.accept(t += period_ns));
+	// the capture time went back, e.g. the device clock was reset
+	t = NS_PER_SEC;
+	CHECK_TRUE("clock reset", limiter.accept(t));
+	CHECK_TRUE("clock reset", !limiter.accept(t += period_ns));
+	CHECK_TRUE("clock reset", !limiter.accept(t += period_ns));
+	CHECK_TRUE("clock reset", limiter.accept(t += period_ns));
+	// reset/setMaxFps start over from the next frame
+	limiter.reset();
+	CHECK_TRUE("clock reset", limiter.accept(t += period_ns));
+	limiter.setMaxFps(0.0f);
+	CHECK_TRUE("clock reset", !limiter.isLimited());
+	CHECK_TRUE("clock reset", limiter.accept(t += period_ns));
+	printf("%-24s OK\n", "clock reset");
+}
+
+int main(int argc, char *argv[]) {
+	test_not_limited();
+	test_integer_ratio();
+	test_fractional_ratio();
+	test_slow_camera();
+	test_lost_frames();
+	test_clock_reset();
+	return failed ? EXIT_FAILURE : EXIT_SUCCESS;
+}
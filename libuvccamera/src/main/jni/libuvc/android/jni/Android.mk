@@ -70,6 +70,20 @@ LOCAL_SRC_FILES := \
 	src/init.c \
 	src/stream.c
 
+# SIMD kernels for frame.c, NEON is optional on armeabi-v7a and checked at runtime
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES += src/frame-neon.c.neon
+LOCAL_CFLAGS += -DUVC_HAS_NEON
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+LOCAL_SRC_FILES += src/frame-neon.c
+LOCAL_CFLAGS += -DUVC_HAS_NEON
+endif
+ifneq ($(filter x86 x86_64,$(TARGET_ARCH_ABI)),)
+LOCAL_SRC_FILES += src/frame-sse2.c
+LOCAL_CFLAGS += -DUVC_HAS_SSE2
+endif
+
 LOCAL_MODULE := libuvc_static
 include $(BUILD_STATIC_LIBRARY)
 
@@ -105,6 +105,10 @@ enum uvc_frame_format {
 	UVC_FRAME_FORMAT_MJPEG,
 	UVC_FRAME_FORMAT_GRAY8,
 	UVC_FRAME_FORMAT_BY8,
+	/** yuv420 semi planar, Y plane followed by interleaved U/V plane(host side only) */
+	UVC_FRAME_FORMAT_NV12,		// XXX
+	/** yuv420 semi planar, Y plane followed by interleaved V/U plane(host side only) */
+	UVC_FRAME_FORMAT_NV21,		// XXX
 	/** Number of formats understood */
 	UVC_FRAME_FORMAT_COUNT,
 };
@@ -449,6 +453,37 @@ typedef struct uvc_device_descriptor {
 	const char *product;
 } uvc_device_descriptor_t;
 
+/** XXX flags of uvc_frame_timestamp
+ * @ingroup streaming
+ */
+enum uvc_frame_timestamp_flags {
+	/** the device sent dwPresentationTime */
+	UVC_FRAME_TS_PTS = 0x01,
+	/** the device sent dwSourceTimeClock and SOF token counter */
+	UVC_FRAME_TS_SCR = 0x02,
+	/** capture_ns is recovered from the device clock, otherwise it is same as arrival_ns */
+	UVC_FRAME_TS_SYNCED = 0x04,
+};
+
+/** XXX timestamps of the frame, times on the host are CLOCK_MONOTONIC(same as System.nanoTime on Android)
+ * @ingroup streaming
+ */
+typedef struct uvc_frame_timestamp {
+	/** Estimate of host time in nanoseconds when the device captured the image,
+	 * PTS is mapped onto host time through SCR with clock drift correction */
+	int64_t capture_ns;
+	/** Host time in nanoseconds when the last payload of the frame arrived */
+	int64_t arrival_ns;
+	/** dwPresentationTime of the payload header in device clock */
+	uint32_t pts;
+	/** dwSourceTimeClock of the last SCR in the frame in device clock */
+	uint32_t scr_stc;
+	/** 11-bit USB SOF token counter of the last SCR in the frame */
+	uint16_t scr_sof;
+	/** bitwise-or of uvc_frame_timestamp_flags */
+	uint8_t flags;
+} uvc_frame_timestamp_t;
+
 /** An image frame received from the UVC device
  * @ingroup streaming
  */
@@ -470,8 +505,11 @@ typedef struct uvc_frame {
 	size_t step;
 	/** Frame number (may skip, but is strictly monotonically increasing) */
 	uint32_t sequence;
-	/** Estimate of system time when the device started capturing the image */
+	/** Estimate of system time when the device started capturing the image
+	 * XXX this is CLOCK_MONOTONIC, same as timestamp.capture_ns */
 	struct timeval capture_time;
+	/** XXX device and host timestamps of the frame */
+	uvc_frame_timestamp_t timestamp;
 	/** Handle on the device that produced the image.
 	 * @warning You must not call any uvc_* functions during a callback. */
 	uvc_device_handle_t *source;
@@ -482,6 +520,14 @@ typedef struct uvc_frame {
 	 * Set this field to zero if you are supplying the buffer.
 	 */
 	uint8_t library_owns_data;
+	/** XXX reference counter, see uvc_ref_frame/uvc_unref_frame.
+	 * frames from uvc_allocate_frame start with 1 */
+	volatile int32_t ref_count;
+	/** XXX called instead of uvc_free_frame when reference counter becomes zero
+	 * so that the owner can recycle the frame, NULL means uvc_free_frame */
+	void (*release)(struct uvc_frame *frame, void *release_ptr);
+	/** XXX user pointer passed to release */
+	void *release_ptr;
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -521,6 +567,26 @@ typedef struct uvc_stream_ctrl {
 	uint8_t bInterfaceNumber;
 } uvc_stream_ctrl_t;
 
+#define UVC_MAX_ALTSETTINGS 16
+/** Bandwidth that a negotiated stream needs and that each altsetting of its interface reserves,
+ * rates are bytes per millisecond so that streams with different speed/bInterval can be summed up */
+typedef struct uvc_stream_bandwidth {
+	/** libusb_speed of the device, LIBUSB_SPEED_HIGH is assumed if libusb does not know it */
+	int speed;
+	/** 0 if the interface uses bulk transfer, bulk transfer does not reserve bandwidth */
+	int isochronous;
+	/** dwMaxPayloadTransferSize of the negotiated stream control */
+	uint32_t max_payload;
+	/** estimated rate to sustain the format/frame interval(compressed formats are estimated) */
+	uint32_t required_rate;
+	int num_alt;
+	/** bytes per packet of each altsetting, this is compared with
+	 * dwMaxPayloadTransferSize * bandwidth_factor by uvc_start_streaming_bandwidth */
+	uint32_t alt_bytes[UVC_MAX_ALTSETTINGS];
+	/** rate reserved by each altsetting, 0 for zero bandwidth altsetting */
+	uint32_t alt_rate[UVC_MAX_ALTSETTINGS];
+} uvc_stream_bandwidth_t;
+
 uvc_error_t uvc_init(uvc_context_t **ctx, struct libusb_context *usb_ctx);
 uvc_error_t uvc_init2(uvc_context_t **ctx, struct libusb_context *usb_ctx, const char *usbfs);
 void uvc_exit(uvc_context_t *ctx);
@@ -587,6 +653,8 @@ uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr,
 		float bandwidth,
 		uint8_t flags);	// XXX added saki
+uvc_error_t uvc_get_stream_bandwidth(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, uvc_stream_bandwidth_t *bandwidth);
 
 uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr);
@@ -784,8 +852,31 @@ void uvc_print_stream_ctrl(uvc_stream_ctrl_t *ctrl, FILE *stream);
 
 uvc_frame_t *uvc_allocate_frame(size_t data_bytes);
 void uvc_free_frame(uvc_frame_t *frame);
+uvc_frame_t *uvc_ref_frame(uvc_frame_t *frame);
+void uvc_unref_frame(uvc_frame_t *frame);
+uvc_error_t uvc_loan_frame(uvc_frame_t *in, uvc_frame_t *out);
 
 uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out);
+
+/** XXX number of bytes of the image data in the frame,
+ * the data buffer of a frame from the stream can be much larger than the image data
+ * and compressed frame has no step, its image data size is actual_bytes
+ * @ingroup frame
+ */
+static inline size_t uvc_frame_payload_bytes(const uvc_frame_t *frame) {
+	const size_t bytes = frame->step
+		? frame->step * frame->height
+		: ((frame->actual_bytes && (frame->actual_bytes <= frame->data_bytes)) ? frame->actual_bytes : frame->data_bytes);
+	return bytes < frame->data_bytes ? bytes : frame->data_bytes;
+}
+
+/** XXX capture time of the frame in CLOCK_MONOTONIC nanoseconds,
+ * falls back to arrival time when the frame has no capture time
+ * @ingroup frame
+ */
+static inline int64_t uvc_frame_capture_ns(const uvc_frame_t *frame) {
+	return frame->timestamp.capture_ns ? frame->timestamp.capture_ns : frame->timestamp.arrival_ns;
+}
 //----------------------------------------------------------------------
 uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out);
 uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out);
@@ -801,6 +892,14 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_mjpeg2yuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
+uvc_error_t uvc_mjpeg2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
+uvc_error_t uvc_mjpeg2rgb565_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);	// XXX
+uvc_error_t uvc_mjpeg2rgbx_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_mjpeg2yuyv_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_mjpeg2yuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);	// XXX
+uvc_error_t uvc_mjpeg2iyuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);	// XXX
+uvc_error_t uvc_mjpeg2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
 #endif
 
 uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out);		// XXX
@@ -823,6 +922,37 @@ uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 
 uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 
+uvc_error_t uvc_any2rgb565_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_any2rgbx_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_any2yuyv_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_any2yuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);	// XXX
+uvc_error_t uvc_any2iyuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);	// XXX
+
+uvc_error_t uvc_yuyv2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);		// XXX
+uvc_error_t uvc_any2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom);			// XXX
+
+/** Filter to sample pixels while resizing, see uvc_resize_frame */
+enum uvc_resize_filter {
+	/** nearest pixel, fastest */
+	UVC_RESIZE_NEAREST = 0,
+	/** interpolate 2x2 pixels, good for scaling up or down to 1/2 */
+	UVC_RESIZE_BILINEAR = 1,
+	/** average of all pixels that each output pixel covers, best for large downscale */
+	UVC_RESIZE_AREA = 2,
+};
+
+/** Crop rectangle and output size for uvc_resize_frame */
+typedef struct uvc_resize {
+	/** crop rectangle in the input frame, crop_width/crop_height=0 for the rest of the frame */
+	int crop_x, crop_y, crop_width, crop_height;
+	/** output size */
+	int width, height;
+	enum uvc_resize_filter filter;
+} uvc_resize_t;
+
+uvc_error_t uvc_resize_frame(uvc_frame_t *in, uvc_frame_t *out,
+	const uvc_resize_t *resize, enum uvc_frame_format format);
+
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes); // XXX
 
 //**********************************************************************
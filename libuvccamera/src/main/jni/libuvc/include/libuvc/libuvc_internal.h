@@ -217,6 +217,7 @@ typedef struct uvc_control_interface {
   struct uvc_processing_unit *processing_unit_descs;
   struct uvc_extension_unit *extension_unit_descs;
   uint16_t bcdUVC;
+  uint32_t dwClockFrequency;	// XXX device clock frequency for UVC 1.0 devices
   uint8_t bEndpointAddress;
   /** Interface number */
   uint8_t bInterfaceNumber;
@@ -224,6 +225,32 @@ typedef struct uvc_control_interface {
 
 struct uvc_stream_ctrl;
 
+/** XXX number of samples to recover the device clock,
+ * each sample is the least delayed one in UVC_CLOCK_BIN_NS */
+#define UVC_CLOCK_SAMPLES 32
+#define UVC_CLOCK_BIN_NS 1000000000LL
+/** XXX the clock rate is measured only after the samples span this time */
+#define UVC_CLOCK_MIN_SPAN_NS 4000000000LL
+/** XXX number of newest samples to find the offset of the device clock */
+#define UVC_CLOCK_ENVELOPE_SAMPLES 4
+
+typedef struct uvc_clock_sample {
+  int64_t dev;		// device clock unwrapped into 64 bits
+  int64_t host_ns;	// host monotonic time when the sample arrived
+} uvc_clock_sample_t;
+
+/** XXX recovers the device clock on host monotonic time from SCR(or PTS) */
+typedef struct uvc_clock {
+  uint32_t frequency;	// nominal device clock frequency[Hz], 0 if unknown
+  int64_t last_dev;
+  int64_t last_capture_ns;
+  uvc_clock_sample_t bin;	// least delayed sample in the current bin
+  int64_t bin_start_ns;
+  uint8_t has_bin;
+  int head, count;
+  uvc_clock_sample_t samples[UVC_CLOCK_SAMPLES];
+} uvc_clock_t;
+
 struct uvc_device {
   struct uvc_context *ctx;
   int ref;
@@ -268,6 +295,10 @@ struct uvc_stream_handle {
   uint32_t seq, hold_seq;
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
+  uint16_t last_sof, hold_last_sof;	// XXX
+  uint8_t ts_flags, hold_ts_flags;	// XXX uvc_frame_timestamp_flags
+  int64_t hold_arrival_ns, hold_capture_ns;	// XXX
+  uvc_clock_t clock;	// XXX
   size_t got_bytes, hold_bytes;
   size_t size_buf;	// XXX add for boundary check
   uint8_t *outbuf, *holdbuf;
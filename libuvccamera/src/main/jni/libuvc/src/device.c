@@ -988,6 +988,7 @@ uvc_error_t uvc_parse_vc_header(uvc_device_t *dev, uvc_device_info_t *info,
 	 */
 
 	info->ctrl_if.bcdUVC = SW_TO_SHORT(&block[3]);
+	info->ctrl_if.dwClockFrequency = block_size >= 11 ? DW_TO_INT(&block[7]) : 0;	// XXX
 
 	switch (info->ctrl_if.bcdUVC) {
 	case 0x0100:
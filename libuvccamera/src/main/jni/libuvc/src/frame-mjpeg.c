@@ -158,86 +158,70 @@ static inline void insert_huff_tables(j_decompress_ptr dinfo) {
 #define MAX_READLINE 1
 #endif
 
-/** @brief Convert an MJPEG frame to RGB
- * @ingroup frame
- *
- * @param in MJPEG frame
- * @param out RGB frame
+/** @internal
+ * prepare decompressor for MJPEG frame and read the header
+ * caller should call setjmp before calling this
+ * @param scale_denom 1, 2, 4 or 8, the image is scaled by 1/scale_denom while IDCT
  */
-uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
-	struct jpeg_decompress_struct dinfo;
-	struct error_mgr jerr;
-	size_t lines_read;
-	// local copy
-	uint8_t *data = out->data;
-	const int out_step = out->step;
+static inline void _uvc_mjpeg_read_header(j_decompress_ptr dinfo, uvc_frame_t *in, const int scale_denom) {
+	jpeg_create_decompress(dinfo);
+	jpeg_mem_src(dinfo, in->data, in->actual_bytes/*in->data_bytes*/);	// XXX
+	jpeg_read_header(dinfo, TRUE);
 
-	int num_scanlines, i;
-	lines_read = 0;
-	unsigned char *buffer[MAX_READLINE];
+	if (dinfo->dc_huff_tbl_ptrs[0] == NULL) {
+		/* This frame is missing the Huffman tables: fill in the standard ones */
+		insert_huff_tables(dinfo);
+	}
+	dinfo->dct_method = JDCT_IFAST;
+	dinfo->scale_num = 1;
+	dinfo->scale_denom = scale_denom;
+}
 
-	out->actual_bytes = 0;	// XXX
-	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
-		return UVC_ERROR_INVALID_PARAM;
+/** @internal
+ * whether libjpeg-turbo can scale by 1/scale_denom while IDCT
+ */
+static inline int _uvc_mjpeg_valid_scale(const int scale_denom) {
+	return (scale_denom == 1) || (scale_denom == 2) || (scale_denom == 4) || (scale_denom == 8);
+}
 
-	if (uvc_ensure_frame_size(out, in->width * in->height * 3) < 0)
-		return UVC_ERROR_NO_MEM;
+/** @internal
+ * image size after scaling by 1/scale_denom, same as libjpeg-turbo's output_width/output_height
+ */
+#define SCALED_SIZE(sz, scale_denom) (((sz) + (scale_denom) - 1) / (scale_denom))
 
-	out->width = in->width;
-	out->height = in->height;
-	out->frame_format = UVC_FRAME_FORMAT_RGB;
-	out->step = in->width * 3;
+/** @internal
+ * copy frame information from MJPEG frame to output frame
+ */
+static inline void _uvc_mjpeg_setup_frame(uvc_frame_t *in, uvc_frame_t *out,
+	const uint32_t width, const uint32_t height,
+	enum uvc_frame_format frame_format, size_t step) {
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = frame_format;
+	// keep the step when the caller supplied the buffer(e.g. locked buffer of ANativeWindow)
+	if (out->library_owns_data || !out->step)
+		out->step = step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
-
-	dinfo.err = jpeg_std_error(&jerr.super);
-	jerr.super.error_exit = _error_exit;
-
-	if (setjmp(jerr.jmp)) {
-		goto fail;
-	}
-
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
-
-	dinfo.out_color_space = JCS_RGB;
-	dinfo.dct_method = JDCT_IFAST;
-
-	jpeg_start_decompress(&dinfo);
-
-	if (LIKELY(dinfo.output_height == out->height)) {
-		for (; dinfo.output_scanline < dinfo.output_height ;) {
-			buffer[0] = data + (lines_read) * out_step;
-			for (i = 1; i < MAX_READLINE; i++)
-				buffer[i] = buffer[i-1] + out_step;
-			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
-			lines_read += num_scanlines;
-		}
-		out->actual_bytes = in->width * in->height * 3;	// XXX
-	}
-	jpeg_finish_decompress(&dinfo);
-	jpeg_destroy_decompress(&dinfo);
-	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;	// XXX
-
-fail:
-	jpeg_destroy_decompress(&dinfo);
-	return UVC_ERROR_OTHER+1;
 }
 
-/** @brief Convert an MJPEG frame to BGR
- * @ingroup frame
- *
+/** @internal
+ * decode MJPEG frame directly into packed pixel format
+ * using libjpeg-turbo's output colour space
  * @param in MJPEG frame
- * @param out BGR frame
+ * @param out output frame, the step is kept if the caller owns the buffer
+ * @param color_space output colour space of libjpeg-turbo
+ * @param frame_format frame format of out
+ * @param pixel_bytes bytes per pixel of out
+ * @param scale_denom 1, 2, 4 or 8
  */
-uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
+static uvc_error_t _uvc_mjpeg2packed(uvc_frame_t *in, uvc_frame_t *out,
+	J_COLOR_SPACE color_space, enum uvc_frame_format frame_format, const int pixel_bytes,
+	const int scale_denom) {
+
 	struct jpeg_decompress_struct dinfo;
 	struct error_mgr jerr;
 	size_t lines_read;
@@ -247,19 +231,22 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	unsigned char *buffer[MAX_READLINE];
 
 	out->actual_bytes = 0;	// XXX
-	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
+	if (UNLIKELY((in->frame_format != UVC_FRAME_FORMAT_MJPEG) || !_uvc_mjpeg_valid_scale(scale_denom)))
 		return UVC_ERROR_INVALID_PARAM;
 
-	if (uvc_ensure_frame_size(out, in->width * in->height * 3) < 0)
+	const uint32_t width = SCALED_SIZE(in->width, scale_denom);
+	const uint32_t height = SCALED_SIZE(in->height, scale_denom);
+	if (uvc_ensure_frame_size(out, width * height * pixel_bytes) < 0)
 		return UVC_ERROR_NO_MEM;
 
-	out->width = in->width;
-	out->height = in->height;
-	out->frame_format = UVC_FRAME_FORMAT_BGR;
-	out->step = in->width * 3;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
-	out->source = in->source;
+	_uvc_mjpeg_setup_frame(in, out, width, height, frame_format, width * pixel_bytes);
+	if (UNLIKELY((out->step < width * pixel_bytes)
+		|| (out->step * out->height > out->data_bytes)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	// local copy, these should be taken after uvc_ensure_frame_size because it may reallocate the buffer
+	uint8_t *data = out->data;
+	const int out_step = out->step;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
 	jerr.super.error_exit = _error_exit;
@@ -268,25 +255,13 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		goto fail;
 	}
 
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
-
-	dinfo.out_color_space = JCS_EXT_BGR;
-	dinfo.dct_method = JDCT_IFAST;
+	_uvc_mjpeg_read_header(&dinfo, in, scale_denom);
+	dinfo.out_color_space = color_space;
 
 	jpeg_start_decompress(&dinfo);
 
-	// local copy
-	uint8_t *data = out->data;
-	const int out_step = out->step;
-
-	if (LIKELY(dinfo.output_height == out->height)) {
+	if (LIKELY((dinfo.output_height == out->height)
+		&& (dinfo.output_width == out->width))) {
 		for (; dinfo.output_scanline < dinfo.output_height ;) {
 			buffer[0] = data + (lines_read) * out_step;
 			for (i = 1; i < MAX_READLINE; i++)
@@ -294,7 +269,7 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
 			lines_read += num_scanlines;
 		}
-		out->actual_bytes = in->width * in->height * 3;	// XXX
+		out->actual_bytes = width * height * pixel_bytes;	// XXX
 	}
 	jpeg_finish_decompress(&dinfo);
 	jpeg_destroy_decompress(&dinfo);
@@ -305,78 +280,45 @@ fail:
 	return UVC_ERROR_OTHER+1;
 }
 
-/** @brief Convert an MJPEG frame to RGB565
+/** @brief Convert an MJPEG frame to RGB
  * @ingroup frame
  *
  * @param in MJPEG frame
  * @param out RGB frame
  */
-uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
-	struct jpeg_decompress_struct dinfo;
-	struct error_mgr jerr;
-	size_t lines_read;
-
-	int num_scanlines, i;
-	lines_read = 0;
-	unsigned char *buffer[MAX_READLINE];
-
-	out->actual_bytes = 0;	// XXX
-	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
-		return UVC_ERROR_INVALID_PARAM;
-
-	if (uvc_ensure_frame_size(out, in->width * in->height * 2) < 0)
-		return UVC_ERROR_NO_MEM;
-
-	out->width = in->width;
-	out->height = in->height;
-	out->frame_format = UVC_FRAME_FORMAT_RGB565;
-	out->step = in->width * 2;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
-	out->source = in->source;
-
-	dinfo.err = jpeg_std_error(&jerr.super);
-	jerr.super.error_exit = _error_exit;
-
-	if (setjmp(jerr.jmp)) {
-		goto fail;
-	}
-
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
-
-	dinfo.out_color_space = JCS_RGB565;
-	dinfo.dct_method = JDCT_IFAST;
-
-	jpeg_start_decompress(&dinfo);
+uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
+	return _uvc_mjpeg2packed(in, out, JCS_RGB, UVC_FRAME_FORMAT_RGB, 3, 1);
+}
 
-	// local copy
-	uint8_t *data = out->data;
-	const int out_step = out->step;
+/** @brief Convert an MJPEG frame to BGR
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out BGR frame
+ */
+uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
+	return _uvc_mjpeg2packed(in, out, JCS_EXT_BGR, UVC_FRAME_FORMAT_BGR, 3, 1);
+}
 
-	if (LIKELY(dinfo.output_height == out->height)) {
-		for (; dinfo.output_scanline < dinfo.output_height ;) {
-			buffer[0] = data + (lines_read) * out_step;
-			for (i = 1; i < MAX_READLINE; i++)
-				buffer[i] = buffer[i-1] + out_step;
-			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
-			lines_read += num_scanlines;
-		}
-		out->actual_bytes = in->width * in->height * 2;	// XXX
-	}
-	jpeg_finish_decompress(&dinfo);
-	jpeg_destroy_decompress(&dinfo);
-	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;	// XXX
+/** @brief Convert an MJPEG frame to RGB565
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out RGB frame
+ */
+uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
+	return _uvc_mjpeg2packed(in, out, JCS_RGB565, UVC_FRAME_FORMAT_RGB565, 2, 1);
+}
 
-fail:
-	jpeg_destroy_decompress(&dinfo);
-	return UVC_ERROR_OTHER+1;
+/** @brief Convert an MJPEG frame to RGB565 scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out RGB565 frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg2rgb565_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return _uvc_mjpeg2packed(in, out, JCS_RGB565, UVC_FRAME_FORMAT_RGB565, 2, scale_denom);
 }
 
 /** @brief Convert an MJPEG frame to RGBX
@@ -386,70 +328,31 @@ fail:
  * @param out RGBX frame
  */
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
-	struct jpeg_decompress_struct dinfo;
-	struct error_mgr jerr;
-	size_t lines_read;
-	// local copy
-	uint8_t *data = out->data;
-	const int out_step = out->step;
-
-	int num_scanlines, i;
-	lines_read = 0;
-	unsigned char *buffer[MAX_READLINE];
-
-	out->actual_bytes = 0;	// XXX
-	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
-		return UVC_ERROR_INVALID_PARAM;
-
-	if (uvc_ensure_frame_size(out, in->width * in->height * 4) < 0)
-		return UVC_ERROR_NO_MEM;
-
-	out->width = in->width;
-	out->height = in->height;
-	out->frame_format = UVC_FRAME_FORMAT_RGBX;	// XXX
-	out->step = in->width * 4;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
-	out->source = in->source;
-
-	dinfo.err = jpeg_std_error(&jerr.super);
-	jerr.super.error_exit = _error_exit;
-
-	if (setjmp(jerr.jmp)) {
-		goto fail;
-	}
-
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);	// XXX
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
-
-	dinfo.out_color_space = JCS_EXT_RGBA;
-	dinfo.dct_method = JDCT_IFAST;
-
-	jpeg_start_decompress(&dinfo);
+	return _uvc_mjpeg2packed(in, out, JCS_EXT_RGBA, UVC_FRAME_FORMAT_RGBX, 4, 1);	// XXX
+}
 
-	if (LIKELY(dinfo.output_height == out->height)) {
-		for (; dinfo.output_scanline < dinfo.output_height ;) {
-			buffer[0] = data + (lines_read) * out_step;
-			for (i = 1; i < MAX_READLINE; i++)
-				buffer[i] = buffer[i-1] + out_step;
-			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
-			lines_read += num_scanlines;
-		}
-		out->actual_bytes = in->width * in->height * 4;	// XXX
-	}
-	jpeg_finish_decompress(&dinfo);
-	jpeg_destroy_decompress(&dinfo);
-	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;	// XXX
+/** @brief Convert an MJPEG frame to RGBX scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out RGBX frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg2rgbx_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return _uvc_mjpeg2packed(in, out, JCS_EXT_RGBA, UVC_FRAME_FORMAT_RGBX, 4, scale_denom);
+}
 
-fail:
-	jpeg_destroy_decompress(&dinfo);
-	return UVC_ERROR_OTHER+1;
+/** @brief Convert an MJPEG frame to 8 bit luminance(GRAY8) scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * libjpeg-turbo skips IDCT and upsampling of chroma components for grayscale output
+ * so this costs much less than decoding colour images.
+ * @param in MJPEG frame
+ * @param out GRAY8 frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return _uvc_mjpeg2packed(in, out, JCS_GRAYSCALE, UVC_FRAME_FORMAT_GRAY8, 1, scale_denom);
 }
 
 static inline unsigned char sat(int i) {
@@ -464,13 +367,24 @@ static inline unsigned char sat(int i) {
 		*(yuyv++) = (*(YCbCr+2) + *(YCbCr+5)) >> 1; \
 	}
 
-uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+/** @brief Convert an MJPEG frame to yuyv scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out yuyv frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8, the width after scaling should be even
+ */
+uvc_error_t uvc_mjpeg2yuyv_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
 
 	out->actual_bytes = 0;	// XXX
-	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
+	if (UNLIKELY((in->frame_format != UVC_FRAME_FORMAT_MJPEG) || !_uvc_mjpeg_valid_scale(scale_denom)))
 		return UVC_ERROR_INVALID_PARAM;
 
-	if (uvc_ensure_frame_size(out, in->width * in->height * 2) < 0)
+	const uint32_t width = SCALED_SIZE(in->width, scale_denom);
+	const uint32_t height = SCALED_SIZE(in->height, scale_denom);
+	if (UNLIKELY(width & 1))
+		return UVC_ERROR_INVALID_PARAM;
+	if (uvc_ensure_frame_size(out, width * height * 2) < 0)
 		return UVC_ERROR_NO_MEM;
 
 	size_t lines_read = 0;
@@ -478,13 +392,17 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 	int num_scanlines;
 	register uint8_t *yuyv, *ycbcr;
 
-	out->width = in->width;
-	out->height = in->height;
+	out->width = width;
+	out->height = height;
 	out->frame_format = UVC_FRAME_FORMAT_YUYV;
-	out->step = in->width * 2;
+	out->step = width * 2;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
+	// local copy, these should be taken after uvc_ensure_frame_size because it may reallocate the buffer
+	uint8_t *data = out->data;
+	const int out_step = out->step;
 
 	struct jpeg_decompress_struct dinfo;
 	struct error_mgr jerr;
@@ -495,17 +413,8 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 		goto fail;
 	}
 
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);	// XXX
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
-
+	_uvc_mjpeg_read_header(&dinfo, in, scale_denom);
 	dinfo.out_color_space = JCS_YCbCr;
-	dinfo.dct_method = JDCT_IFAST;
 
 	// start decompressor
 	jpeg_start_decompress(&dinfo);
@@ -517,11 +426,8 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 	register JSAMPARRAY buffer = (*dinfo.mem->alloc_sarray)
 		((j_common_ptr) &dinfo, JPOOL_IMAGE, row_stride, MAX_READLINE);
 
-	// local copy
-	uint8_t *data = out->data;
-	const int out_step = out->step;
-
-	if (LIKELY(dinfo.output_height == out->height)) {
+	if (LIKELY((dinfo.output_height == out->height)
+		&& (dinfo.output_width == out->width))) {
 		for (; dinfo.output_scanline < dinfo.output_height ;) {
 			// convert lines of mjpeg data to YCbCr
 			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
@@ -529,16 +435,20 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 			for (j = 0; j < num_scanlines; j++) {
 				yuyv = data + (lines_read + j) * out_step;
 				ycbcr = buffer[j];
-				for (i = 0; i < row_stride; i += 24) {	// step by YCbCr x 8 pixels = 3 x 8 bytes
+				for (i = 0; i + 24 <= row_stride; i += 24) {	// step by YCbCr x 8 pixels = 3 x 8 bytes
 					YCbCr_YUYV_2(ycbcr + i, yuyv);
 					YCbCr_YUYV_2(ycbcr + i + 6, yuyv);
 					YCbCr_YUYV_2(ycbcr + i + 12, yuyv);
 					YCbCr_YUYV_2(ycbcr + i + 18, yuyv);
 				}
+				// remaining pixels when the width is not multiple of 8(e.g. after scaling)
+				for (; i < row_stride; i += 6) {
+					YCbCr_YUYV_2(ycbcr + i, yuyv);
+				}
 			}
 			lines_read += num_scanlines;
 		}
-		out->actual_bytes = in->width * in->height * 2;	// XXX
+		out->actual_bytes = width * height * 2;	// XXX
 	}
 
 	jpeg_finish_decompress(&dinfo);
@@ -550,3 +460,278 @@ fail:
 	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER+1;
 }
 
+uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+	return uvc_mjpeg2yuyv_scaled(in, out, 1);
+}
+
+/** @internal
+ * interleave one row of chroma samples
+ * pass cr as u and cb as v to make VU order(NV21)
+ */
+static inline void _interleave_uv(const JSAMPLE *u, const JSAMPLE *v, uint8_t *uv, const int n) {
+	int i;
+	for (i = 0; i < n; i++) {
+		*(uv++) = u[i];
+		*(uv++) = v[i];
+	}
+}
+
+/** @internal
+ * interleave two rows of chroma samples with vertical averaging
+ */
+static inline void _interleave_uv_avg(const JSAMPLE *u0, const JSAMPLE *u1,
+	const JSAMPLE *v0, const JSAMPLE *v1, uint8_t *uv, const int n) {
+
+	int i;
+	for (i = 0; i < n; i++) {
+		*(uv++) = (u0[i] + u1[i] + 1) >> 1;
+		*(uv++) = (v0[i] + v1[i] + 1) >> 1;
+	}
+}
+
+/** @internal
+ * interleave one row of chroma samples with horizontal averaging
+ */
+static inline void _interleave_uv_havg(const JSAMPLE *u, const JSAMPLE *v, uint8_t *uv, const int n) {
+	int i;
+	for (i = 0; i < n; i++, u += 2, v += 2) {
+		*(uv++) = (u[0] + u[1] + 1) >> 1;
+		*(uv++) = (v[0] + v[1] + 1) >> 1;
+	}
+}
+
+/** @internal
+ * interleave two rows of chroma samples with 2x2 averaging
+ */
+static inline void _interleave_uv_box(const JSAMPLE *u0, const JSAMPLE *u1,
+	const JSAMPLE *v0, const JSAMPLE *v1, uint8_t *uv, const int n) {
+
+	int i;
+	for (i = 0; i < n; i++, u0 += 2, u1 += 2, v0 += 2, v1 += 2) {
+		*(uv++) = (u0[0] + u0[1] + u1[0] + u1[1] + 2) >> 2;
+		*(uv++) = (v0[0] + v0[1] + v1[0] + v1[1] + 2) >> 2;
+	}
+}
+
+/** @internal
+ * whether we can decode the frame with jpeg_read_raw_data into yuv420sp,
+ * i.e. the frame is YCbCr 4:2:2 or 4:2:0 that most UVC devices send
+ * and each iMCU row has even number of Y rows after scaling(4:2:2 at 1/8 scale has only one row)
+ */
+static inline int _uvc_mjpeg_can_read_raw_420(j_decompress_ptr dinfo, uvc_frame_t *in, const int scale_denom) {
+	return (dinfo->num_components == 3)
+		&& (dinfo->jpeg_color_space == JCS_YCbCr)
+		&& (dinfo->image_width == in->width)
+		&& (dinfo->image_height == in->height)
+		&& !(in->width % DCTSIZE)
+		&& (dinfo->comp_info[0].h_samp_factor == 2)
+		&& ((dinfo->comp_info[0].v_samp_factor == 1) || (dinfo->comp_info[0].v_samp_factor == 2))
+		&& !((dinfo->comp_info[0].v_samp_factor * DCTSIZE / scale_denom) & 1)
+		&& (dinfo->comp_info[1].h_samp_factor == 1) && (dinfo->comp_info[1].v_samp_factor == 1)
+		&& (dinfo->comp_info[2].h_samp_factor == 1) && (dinfo->comp_info[2].v_samp_factor == 1);
+}
+
+#if JPEG_LIB_VERSION >= 70
+#define DCT_SCALED_SIZE(comp) ((comp).DCT_v_scaled_size)
+#else
+#define DCT_SCALED_SIZE(comp) ((comp).DCT_scaled_size)
+#endif
+
+/** @internal
+ * decode MJPEG frame into yuv420sp(NV12) or iyuv420sp(NV21) without YUYV intermediate frame.
+ * 4:2:2/4:2:0 frames are decoded with jpeg_read_raw_data so colour conversion
+ * and upsampling are skipped, Y plane is written directly into out.
+ * other frames are decoded as YCbCr scanlines.
+ * when the width or height is odd, the last chroma column/row covers only one pixel
+ * @param vu 0: UV order(same as uvc_yuyv2yuv420SP), 1: VU order(same as uvc_yuyv2iyuv420SP)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+static uvc_error_t _uvc_mjpeg2yuv420sp(uvc_frame_t *in, uvc_frame_t *out, const int vu, const int scale_denom) {
+	struct jpeg_decompress_struct dinfo;
+	struct error_mgr jerr;
+	size_t lines_read;
+	int num_scanlines, i, j;
+	JSAMPROW y_rows[2 * DCTSIZE];
+	JSAMPARRAY planes[3];
+
+	lines_read = 0;
+	out->actual_bytes = 0;
+	if (UNLIKELY((in->frame_format != UVC_FRAME_FORMAT_MJPEG) || !_uvc_mjpeg_valid_scale(scale_denom)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const int width = SCALED_SIZE(in->width, scale_denom);
+	const int height = SCALED_SIZE(in->height, scale_denom);
+	const int chroma_width = (width + 1) >> 1;
+	const int chroma_height = (height + 1) >> 1;
+	const int uv_step = chroma_width * 2;
+	const size_t frame_bytes = width * height + uv_step * chroma_height;
+	if (UNLIKELY(uvc_ensure_frame_size(out, frame_bytes) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = vu ? UVC_FRAME_FORMAT_NV21 : UVC_FRAME_FORMAT_NV12;
+	out->step = width;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
+	out->source = in->source;
+	// local copy, these should be taken after uvc_ensure_frame_size because it may reallocate the buffer
+	uint8_t *y_plane = out->data;
+	uint8_t *uv_plane = y_plane + width * height;
+
+	dinfo.err = jpeg_std_error(&jerr.super);
+	jerr.super.error_exit = _error_exit;
+
+	if (setjmp(jerr.jmp)) {
+		goto fail;
+	}
+
+	_uvc_mjpeg_read_header(&dinfo, in, scale_denom);
+
+	if (_uvc_mjpeg_can_read_raw_420(&dinfo, in, scale_denom)) {
+		dinfo.raw_data_out = TRUE;
+		jpeg_start_decompress(&dinfo);
+
+		// libjpeg-turbo may scale chroma with IDCT instead of downsampling, so the ratio of
+		// luma/chroma resolution depends on the scale and we may need to downsample chroma.
+		const int y_lines = dinfo.comp_info[0].v_samp_factor * DCT_SCALED_SIZE(dinfo.comp_info[0]);
+		const int c_lines = dinfo.comp_info[1].v_samp_factor * DCT_SCALED_SIZE(dinfo.comp_info[1]);
+		const int h_ratio = (dinfo.comp_info[0].h_samp_factor * DCT_SCALED_SIZE(dinfo.comp_info[0]))
+			/ (dinfo.comp_info[1].h_samp_factor * DCT_SCALED_SIZE(dinfo.comp_info[1]));	// 1 or 2
+		const int v_ratio = y_lines / c_lines;	// 1 or 2
+		// libjpeg-turbo writes whole DCT blocks, so rows beyond the frame go to this dummy row
+		JSAMPARRAY dummy = (*dinfo.mem->alloc_sarray)
+			((j_common_ptr) &dinfo, JPOOL_IMAGE,
+				dinfo.comp_info[0].width_in_blocks * DCT_SCALED_SIZE(dinfo.comp_info[0]), 1);
+		const JDIMENSION cw = dinfo.comp_info[1].width_in_blocks * DCT_SCALED_SIZE(dinfo.comp_info[1]) + 1;
+		JSAMPARRAY cb = (*dinfo.mem->alloc_sarray)
+			((j_common_ptr) &dinfo, JPOOL_IMAGE, cw, c_lines + 1);
+		JSAMPARRAY cr = (*dinfo.mem->alloc_sarray)
+			((j_common_ptr) &dinfo, JPOOL_IMAGE, cw, c_lines + 1);
+		planes[0] = y_rows;
+		planes[1] = cb;
+		planes[2] = cr;
+		const JSAMPARRAY u = vu ? cr : cb;
+		const JSAMPARRAY v = vu ? cb : cr;
+		if (UNLIKELY((y_lines > 2 * DCTSIZE) || (h_ratio < 1) || (h_ratio > 2) || (v_ratio < 1) || (v_ratio > 2)))
+			goto fail;
+
+		for (; dinfo.output_scanline < dinfo.output_height ;) {
+			const int top = dinfo.output_scanline;
+			for (i = 0; i < y_lines; i++) {
+				y_rows[i] = (top + i < height) ? y_plane + (top + i) * width : dummy[0];
+			}
+			num_scanlines = jpeg_read_raw_data(&dinfo, planes, y_lines);
+			if (UNLIKELY(!num_scanlines)) break;
+			// output chroma rows that this iMCU row covers
+			const int c_top = top >> 1;
+			const int c_num = y_lines >> 1;
+			for (j = 0, i = c_top; (j < c_num) && (i < chroma_height); j++, i++) {
+				uint8_t *uv = uv_plane + i * uv_step;
+				if (v_ratio == 2) {
+					if (h_ratio == 2)
+						_interleave_uv(u[j], v[j], uv, chroma_width);
+					else
+						_interleave_uv_havg(u[j], v[j], uv, chroma_width);
+				} else {
+					if (h_ratio == 2)
+						_interleave_uv_avg(u[j*2], u[j*2+1], v[j*2], v[j*2+1], uv, chroma_width);
+					else
+						_interleave_uv_box(u[j*2], u[j*2+1], v[j*2], v[j*2+1], uv, chroma_width);
+				}
+			}
+			lines_read += num_scanlines;
+		}
+	} else {
+		dinfo.out_color_space = JCS_YCbCr;
+		jpeg_start_decompress(&dinfo);
+
+		if (LIKELY((dinfo.output_height == out->height)
+			&& (dinfo.output_width == out->width))) {
+			const int row_stride = dinfo.output_width * dinfo.output_components;
+			JSAMPARRAY buffer = (*dinfo.mem->alloc_sarray)
+				((j_common_ptr) &dinfo, JPOOL_IMAGE, row_stride + 3, MAX_READLINE);
+			const int u_ix = vu ? 2 : 1;
+			const int v_ix = vu ? 1 : 2;
+			for (; dinfo.output_scanline < dinfo.output_height ;) {
+				num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
+				for (j = 0; j < num_scanlines; j++) {
+					const size_t row = lines_read + j;
+					register uint8_t *ycbcr = buffer[j];
+					register uint8_t *y = y_plane + row * width;
+					for (i = 0; i < width; i++, ycbcr += 3) {
+						*(y++) = ycbcr[0];
+					}
+					if (!(row & 1)) {
+						// chroma of even rows, average horizontally adjacent pixels
+						register uint8_t *uv = uv_plane + (row >> 1) * uv_step;
+						ycbcr = buffer[j];
+						if (width & 1) {
+							// duplicate the last pixel for the last chroma sample
+							memcpy(ycbcr + row_stride, ycbcr + row_stride - 3, 3);
+						}
+						for (i = 0; i < chroma_width; i++, ycbcr += 6) {
+							*(uv++) = (ycbcr[u_ix] + ycbcr[u_ix + 3]) >> 1;
+							*(uv++) = (ycbcr[v_ix] + ycbcr[v_ix + 3]) >> 1;
+						}
+					}
+				}
+				lines_read += num_scanlines;
+			}
+		}
+	}
+	if (lines_read >= out->height) {
+		lines_read = out->height;
+		out->actual_bytes = frame_bytes;
+	}
+	jpeg_finish_decompress(&dinfo);
+	jpeg_destroy_decompress(&dinfo);
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+
+fail:
+	jpeg_destroy_decompress(&dinfo);
+	return UVC_ERROR_OTHER+1;
+}
+
+/** @brief Convert an MJPEG frame to yuv420sp(NV12, same layout as uvc_yuyv2yuv420SP)
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out yuv420sp frame
+ */
+uvc_error_t uvc_mjpeg2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+	return _uvc_mjpeg2yuv420sp(in, out, 0, 1);
+}
+
+/** @brief Convert an MJPEG frame to yuv420sp(NV12) scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out yuv420sp frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg2yuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return _uvc_mjpeg2yuv420sp(in, out, 0, scale_denom);
+}
+
+/** @brief Convert an MJPEG frame to iyuv420sp(NV21, same layout as uvc_yuyv2iyuv420SP)
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out iyuv420sp frame
+ */
+uvc_error_t uvc_mjpeg2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+	return _uvc_mjpeg2yuv420sp(in, out, 1, 1);
+}
+
+/** @brief Convert an MJPEG frame to iyuv420sp(NV21) scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out iyuv420sp frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg2iyuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return _uvc_mjpeg2yuv420sp(in, out, 1, scale_denom);
+}
@@ -0,0 +1,189 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * @internal
+ * NEON row kernels for colour conversion, see frame-simd.h.
+ * all the kernels use same fixed point arithmetic as the scalar macros in frame.c
+ * r = (22987 * (v - 128)) >> 14
+ * g = (-5636 * (u - 128) - 11698 * (v - 128)) >> 14
+ * b = (29049 * (u - 128)) >> 14
+ * so that the results are bit exact.
+ * On armeabi-v7a this file should be compiled with -mfpu=neon(.neon suffix on ndk-build).
+ */
+#include "frame-simd.h"
+
+#if defined(UVC_HAS_NEON) && (defined(__ARM_NEON__) || defined(__ARM_NEON))
+#include <arm_neon.h>
+
+/** @internal
+ * calculate r/g/b offsets of 8 pixel pairs from 8 u and 8 v values
+ */
+static inline void _uv2rgb_offset(const uint8x8_t u8, const uint8x8_t v8,
+	int16x8_t *r, int16x8_t *g, int16x8_t *b) {
+
+	const uint8x8_t c128 = vdup_n_u8(128);
+	// modulo subtraction then reinterpret as signed gives u - 128 in [-128, 127]
+	const int16x8_t u = vreinterpretq_s16_u16(vsubl_u8(u8, c128));
+	const int16x8_t v = vreinterpretq_s16_u16(vsubl_u8(v8, c128));
+	const int16x4_t ul = vget_low_s16(u), uh = vget_high_s16(u);
+	const int16x4_t vl = vget_low_s16(v), vh = vget_high_s16(v);
+	*r = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(vl, 22987), 14),
+		vshrn_n_s32(vmull_n_s16(vh, 22987), 14));
+	*g = vcombine_s16(
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(ul, -5636), vl, -11698), 14),
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(uh, -5636), vh, -11698), 14));
+	*b = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(ul, 29049), 14),
+		vshrn_n_s32(vmull_n_s16(uh, 29049), 14));
+}
+
+/** @internal
+ * add same offset to two adjacent pixels and saturate,
+ * val[0] has pixels 0-7 and val[1] has pixels 8-15
+ */
+static inline uint8x8x2_t _add_offset(const uint8x8_t y_even, const uint8x8_t y_odd, const int16x8_t offset) {
+	const uint8x8_t even = vqmovun_s16(vaddq_s16(vreinterpretq_s16_u16(vmovl_u8(y_even)), offset));
+	const uint8x8_t odd = vqmovun_s16(vaddq_s16(vreinterpretq_s16_u16(vmovl_u8(y_odd)), offset));
+	return vzip_u8(even, odd);
+}
+
+/** @internal
+ * convert 16 pixels of yuv422 into r, g and b
+ * @param uyvy 0: YUYV, 1: UYVY
+ */
+static inline void _yuv422_to_rgb(const uint8_t *src, const int uyvy,
+	uint8x8x2_t *r, uint8x8x2_t *g, uint8x8x2_t *b) {
+
+	// YUYV: val[0]=y even, val[1]=u, val[2]=y odd, val[3]=v
+	// UYVY: val[0]=u, val[1]=y even, val[2]=v, val[3]=y odd
+	const uint8x8x4_t s = vld4_u8(src);
+	const uint8x8_t y_even = uyvy ? s.val[1] : s.val[0];
+	const uint8x8_t y_odd = uyvy ? s.val[3] : s.val[2];
+	int16x8_t ro, go, bo;
+	_uv2rgb_offset(uyvy ? s.val[0] : s.val[1], uyvy ? s.val[2] : s.val[3], &ro, &go, &bo);
+	*r = _add_offset(y_even, y_odd, ro);
+	*g = _add_offset(y_even, y_odd, go);
+	*b = _add_offset(y_even, y_odd, bo);
+}
+
+static inline void _store_rgbx(uint8_t *dest, const uint8x8x2_t r, const uint8x8x2_t g, const uint8x8x2_t b) {
+	const uint8x8_t x = vdup_n_u8(0xff);
+	uint8x8x4_t rgbx;
+	rgbx.val[0] = r.val[0]; rgbx.val[1] = g.val[0]; rgbx.val[2] = b.val[0]; rgbx.val[3] = x;
+	vst4_u8(dest, rgbx);
+	rgbx.val[0] = r.val[1]; rgbx.val[1] = g.val[1]; rgbx.val[2] = b.val[1];
+	vst4_u8(dest + 32, rgbx);
+}
+
+/** @internal
+ * pack 8 pixels into rgb565, same bit layout as RGB2RGB565_2 in frame.c
+ */
+static inline uint16x8_t _pack_rgb565(const uint8x8_t r, const uint8x8_t g, const uint8x8_t b) {
+	return vorrq_u16(
+		vorrq_u16(
+			vshll_n_u8(vand_u8(r, vdup_n_u8(0xf8)), 8),
+			vshll_n_u8(vand_u8(g, vdup_n_u8(0xfc)), 3)),
+		vmovl_u8(vshr_n_u8(b, 3)));
+}
+
+static inline void _store_rgb565(uint8_t *dest, const uint8x8x2_t r, const uint8x8x2_t g, const uint8x8x2_t b) {
+	// rgb565 is little endian as the scalar version writes low byte first
+	vst1q_u8(dest, vreinterpretq_u8_u16(_pack_rgb565(r.val[0], g.val[0], b.val[0])));
+	vst1q_u8(dest + 16, vreinterpretq_u8_u16(_pack_rgb565(r.val[1], g.val[1], b.val[1])));
+}
+
+void _uvc_yuyv2rgbx_neon(const uint8_t *src, uint8_t *dest, int pixels) {
+	uint8x8x2_t r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 0, &r, &g, &b);
+		_store_rgbx(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 4;
+	}
+}
+
+void _uvc_uyvy2rgbx_neon(const uint8_t *src, uint8_t *dest, int pixels) {
+	uint8x8x2_t r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 1, &r, &g, &b);
+		_store_rgbx(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 4;
+	}
+}
+
+void _uvc_yuyv2rgb565_neon(const uint8_t *src, uint8_t *dest, int pixels) {
+	uint8x8x2_t r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 0, &r, &g, &b);
+		_store_rgb565(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 2;
+	}
+}
+
+void _uvc_uyvy2rgb565_neon(const uint8_t *src, uint8_t *dest, int pixels) {
+	uint8x8x2_t r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 1, &r, &g, &b);
+		_store_rgb565(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 2;
+	}
+}
+
+/**
+ * @param vu 0: UV order(NV12), 1: VU order(NV21)
+ */
+void _uvc_yuyv2yuv420sp_neon(const uint8_t *src0, const uint8_t *src1,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int pixels, int vu) {
+
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		// val[0]=y, val[1]=chroma(u v u v...)
+		const uint8x16x2_t a = vld2q_u8(src0);
+		const uint8x16x2_t b = vld2q_u8(src1);
+		vst1q_u8(y0, a.val[0]);
+		vst1q_u8(y1, b.val[0]);
+		// chroma of the first row, swap u and v for NV21
+		vst1q_u8(uv, vu ? vrev16q_u8(a.val[1]) : a.val[1]);
+		src0 += UVC_SIMD_PIXELS * 2;
+		src1 += UVC_SIMD_PIXELS * 2;
+		y0 += UVC_SIMD_PIXELS;
+		y1 += UVC_SIMD_PIXELS;
+		uv += UVC_SIMD_PIXELS;
+	}
+}
+
+#endif // defined(UVC_HAS_NEON) && (defined(__ARM_NEON__) || defined(__ARM_NEON))
@@ -0,0 +1,104 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * @internal
+ * SIMD row kernels for colour conversion in frame.c.
+ * Each kernel converts pixels that is multiple of UVC_SIMD_PIXELS and
+ * gives exactly same result as the scalar macros in frame.c,
+ * frame.c converts remaining pixels with the scalar macros.
+ */
+#ifndef FRAME_SIMD_H_
+#define FRAME_SIMD_H_
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/** number of pixels each kernel converts at once */
+#define UVC_SIMD_PIXELS 16
+
+/** instruction sets, pass to _uvc_simd_select */
+#define UVC_SIMD_NONE 0
+#define UVC_SIMD_NEON 0x01
+#define UVC_SIMD_SSE2 0x02
+
+/** convert a row of packed yuv422(YUYV/UYVY) pixels */
+typedef void (*uvc_simd_row_func_t)(const uint8_t *src, uint8_t *dest, int pixels);
+/** split two rows of YUYV pixels into two Y rows and one interleaved chroma row */
+typedef void (*uvc_simd_420sp_func_t)(const uint8_t *src0, const uint8_t *src1,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int pixels, int vu);
+
+typedef struct uvc_simd_kernels {
+	uvc_simd_row_func_t yuyv2rgbx;
+	uvc_simd_row_func_t uyvy2rgbx;
+	uvc_simd_row_func_t yuyv2rgb565;
+	uvc_simd_row_func_t uyvy2rgb565;
+	uvc_simd_420sp_func_t yuyv2yuv420sp;
+} uvc_simd_kernels_t;
+
+/** kernels in use, members are NULL if there is no SIMD kernel for the conversion */
+const uvc_simd_kernels_t *_uvc_simd_kernels(void);
+/** instruction sets that this build and the cpu support */
+unsigned int _uvc_simd_detect(void);
+/**
+ * select kernels, UVC_SIMD_NONE forces scalar conversion(for tests and benchmarks)
+ * @return instruction sets actually selected
+ */
+unsigned int _uvc_simd_select(unsigned int flags);
+
+#if defined(UVC_HAS_NEON)
+void _uvc_yuyv2rgbx_neon(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_uyvy2rgbx_neon(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_yuyv2rgb565_neon(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_uyvy2rgb565_neon(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_yuyv2yuv420sp_neon(const uint8_t *src0, const uint8_t *src1,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int pixels, int vu);
+#endif
+
+#if defined(UVC_HAS_SSE2)
+void _uvc_yuyv2rgbx_sse2(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_uyvy2rgbx_sse2(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_yuyv2rgb565_sse2(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_uyvy2rgb565_sse2(const uint8_t *src, uint8_t *dest, int pixels);
+void _uvc_yuyv2yuv420sp_sse2(const uint8_t *src0, const uint8_t *src1,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int pixels, int vu);
+#endif
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* FRAME_SIMD_H_ */
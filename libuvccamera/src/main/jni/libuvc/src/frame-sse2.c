@@ -0,0 +1,214 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * @internal
+ * SSE2 row kernels for colour conversion, see frame-simd.h.
+ * all the kernels use same fixed point arithmetic as the scalar macros in frame.c
+ * r = (22987 * (v - 128)) >> 14
+ * g = (-5636 * (u - 128) - 11698 * (v - 128)) >> 14
+ * b = (29049 * (u - 128)) >> 14
+ * so that the results are bit exact.
+ */
+#include "frame-simd.h"
+
+#if defined(UVC_HAS_SSE2) && defined(__SSE2__)
+#include <emmintrin.h>
+
+/** @internal
+ * calculate r/g/b offsets of 8 pixel pairs from chroma values.
+ * @param uv0 u0 v0 u1 v1 u2 v2 u3 v3 as 16-bit, already subtracted 128
+ * @param uv1 next 4 pairs
+ */
+static inline void _uv2rgb_offset(const __m128i uv0, const __m128i uv1,
+	__m128i *r, __m128i *g, __m128i *b) {
+
+	// madd multiplies each 16-bit lane and adds the adjacent pair(u, v) as 32-bit
+	const __m128i coef_r = _mm_setr_epi16(0, 22987, 0, 22987, 0, 22987, 0, 22987);
+	const __m128i coef_g = _mm_setr_epi16(-5636, -11698, -5636, -11698, -5636, -11698, -5636, -11698);
+	const __m128i coef_b = _mm_setr_epi16(29049, 0, 29049, 0, 29049, 0, 29049, 0);
+	*r = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(uv0, coef_r), 14),
+		_mm_srai_epi32(_mm_madd_epi16(uv1, coef_r), 14));
+	*g = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(uv0, coef_g), 14),
+		_mm_srai_epi32(_mm_madd_epi16(uv1, coef_g), 14));
+	*b = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(uv0, coef_b), 14),
+		_mm_srai_epi32(_mm_madd_epi16(uv1, coef_b), 14));
+}
+
+/** @internal
+ * add same offset to two adjacent pixels and saturate into 16 x 8-bit values
+ * @param y0 pixels 0-7 as 16-bit
+ * @param y1 pixels 8-15 as 16-bit
+ * @param offset 8 offsets for pixel pairs as 16-bit
+ */
+static inline __m128i _add_offset(const __m128i y0, const __m128i y1, const __m128i offset) {
+	return _mm_packus_epi16(
+		_mm_add_epi16(y0, _mm_unpacklo_epi16(offset, offset)),
+		_mm_add_epi16(y1, _mm_unpackhi_epi16(offset, offset)));
+}
+
+/** @internal
+ * convert 16 pixels of yuv422 into 16 x 8-bit r, g and b
+ * @param uyvy 0: YUYV, 1: UYVY
+ */
+static inline void _yuv422_to_rgb(const uint8_t *src, const int uyvy,
+	__m128i *r, __m128i *g, __m128i *b) {
+
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	const __m128i c128 = _mm_set1_epi16(128);
+	const __m128i s0 = _mm_loadu_si128((const __m128i *)src);
+	const __m128i s1 = _mm_loadu_si128((const __m128i *)(src + 16));
+	__m128i y0, y1, uv0, uv1;
+	if (uyvy) {
+		y0 = _mm_srli_epi16(s0, 8);
+		y1 = _mm_srli_epi16(s1, 8);
+		uv0 = _mm_and_si128(s0, mask);
+		uv1 = _mm_and_si128(s1, mask);
+	} else {
+		y0 = _mm_and_si128(s0, mask);
+		y1 = _mm_and_si128(s1, mask);
+		uv0 = _mm_srli_epi16(s0, 8);
+		uv1 = _mm_srli_epi16(s1, 8);
+	}
+	__m128i ro, go, bo;
+	_uv2rgb_offset(_mm_sub_epi16(uv0, c128), _mm_sub_epi16(uv1, c128), &ro, &go, &bo);
+	*r = _add_offset(y0, y1, ro);
+	*g = _add_offset(y0, y1, go);
+	*b = _add_offset(y0, y1, bo);
+}
+
+static inline void _store_rgbx(uint8_t *dest, const __m128i r, const __m128i g, const __m128i b) {
+	const __m128i x = _mm_set1_epi8((char)0xff);
+	const __m128i rg0 = _mm_unpacklo_epi8(r, g);
+	const __m128i rg1 = _mm_unpackhi_epi8(r, g);
+	const __m128i bx0 = _mm_unpacklo_epi8(b, x);
+	const __m128i bx1 = _mm_unpackhi_epi8(b, x);
+	_mm_storeu_si128((__m128i *)dest, _mm_unpacklo_epi16(rg0, bx0));
+	_mm_storeu_si128((__m128i *)(dest + 16), _mm_unpackhi_epi16(rg0, bx0));
+	_mm_storeu_si128((__m128i *)(dest + 32), _mm_unpacklo_epi16(rg1, bx1));
+	_mm_storeu_si128((__m128i *)(dest + 48), _mm_unpackhi_epi16(rg1, bx1));
+}
+
+/** @internal
+ * pack 8 pixels into rgb565, same bit layout as RGB2RGB565_2 in frame.c
+ */
+static inline __m128i _pack_rgb565(const __m128i r, const __m128i g, const __m128i b) {
+	return _mm_or_si128(
+		_mm_or_si128(
+			_mm_slli_epi16(_mm_and_si128(r, _mm_set1_epi16(0xf8)), 8),
+			_mm_slli_epi16(_mm_and_si128(g, _mm_set1_epi16(0xfc)), 3)),
+		_mm_srli_epi16(b, 3));
+}
+
+static inline void _store_rgb565(uint8_t *dest, const __m128i r, const __m128i g, const __m128i b) {
+	const __m128i zero = _mm_setzero_si128();
+	_mm_storeu_si128((__m128i *)dest, _pack_rgb565(
+		_mm_unpacklo_epi8(r, zero), _mm_unpacklo_epi8(g, zero), _mm_unpacklo_epi8(b, zero)));
+	_mm_storeu_si128((__m128i *)(dest + 16), _pack_rgb565(
+		_mm_unpackhi_epi8(r, zero), _mm_unpackhi_epi8(g, zero), _mm_unpackhi_epi8(b, zero)));
+}
+
+void _uvc_yuyv2rgbx_sse2(const uint8_t *src, uint8_t *dest, int pixels) {
+	__m128i r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 0, &r, &g, &b);
+		_store_rgbx(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 4;
+	}
+}
+
+void _uvc_uyvy2rgbx_sse2(const uint8_t *src, uint8_t *dest, int pixels) {
+	__m128i r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 1, &r, &g, &b);
+		_store_rgbx(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 4;
+	}
+}
+
+void _uvc_yuyv2rgb565_sse2(const uint8_t *src, uint8_t *dest, int pixels) {
+	__m128i r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 0, &r, &g, &b);
+		_store_rgb565(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 2;
+	}
+}
+
+void _uvc_uyvy2rgb565_sse2(const uint8_t *src, uint8_t *dest, int pixels) {
+	__m128i r, g, b;
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		_yuv422_to_rgb(src, 1, &r, &g, &b);
+		_store_rgb565(dest, r, g, b);
+		src += UVC_SIMD_PIXELS * 2;
+		dest += UVC_SIMD_PIXELS * 2;
+	}
+}
+
+/**
+ * @param vu 0: UV order(NV12), 1: VU order(NV21)
+ */
+void _uvc_yuyv2yuv420sp_sse2(const uint8_t *src0, const uint8_t *src1,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int pixels, int vu) {
+
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	for (; pixels > 0; pixels -= UVC_SIMD_PIXELS) {
+		const __m128i a0 = _mm_loadu_si128((const __m128i *)src0);
+		const __m128i a1 = _mm_loadu_si128((const __m128i *)(src0 + 16));
+		const __m128i b0 = _mm_loadu_si128((const __m128i *)src1);
+		const __m128i b1 = _mm_loadu_si128((const __m128i *)(src1 + 16));
+		_mm_storeu_si128((__m128i *)y0,
+			_mm_packus_epi16(_mm_and_si128(a0, mask), _mm_and_si128(a1, mask)));
+		_mm_storeu_si128((__m128i *)y1,
+			_mm_packus_epi16(_mm_and_si128(b0, mask), _mm_and_si128(b1, mask)));
+		// chroma of the first row
+		__m128i c0 = _mm_srli_epi16(a0, 8);
+		__m128i c1 = _mm_srli_epi16(a1, 8);
+		if (vu) {
+			// swap u and v in each 32-bit lane
+			c0 = _mm_or_si128(_mm_slli_epi32(c0, 16), _mm_srli_epi32(c0, 16));
+			c1 = _mm_or_si128(_mm_slli_epi32(c1, 16), _mm_srli_epi32(c1, 16));
+		}
+		_mm_storeu_si128((__m128i *)uv, _mm_packus_epi16(c0, c1));
+		src0 += UVC_SIMD_PIXELS * 2;
+		src1 += UVC_SIMD_PIXELS * 2;
+		y0 += UVC_SIMD_PIXELS;
+		y1 += UVC_SIMD_PIXELS;
+		uv += UVC_SIMD_PIXELS;
+	}
+}
+
+#endif // defined(UVC_HAS_SSE2) && defined(__SSE2__)
@@ -50,6 +50,10 @@
  */
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
+#include "frame-simd.h"
+#if defined(UVC_HAS_SSE2)
+#include <cpuid.h>
+#endif
 
 #define USE_STRIDE 1
 /** @internal */
@@ -88,6 +92,9 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes) {
 #endif
 //	frame->library_owns_data = 1;	// XXX moved to lower
 
+	frame->ref_count = 1;
+	frame->release = NULL;
+	frame->release_ptr = NULL;
 	if (LIKELY(data_bytes > 0)) {
 		frame->library_owns_data = 1;
 		frame->actual_bytes = frame->data_bytes = data_bytes;	// XXX
@@ -114,10 +121,173 @@ void uvc_free_frame(uvc_frame_t *frame) {
 	free(frame);
 }
 
+/** @brief Increment reference counter of a frame
+ * @ingroup frame
+ *
+ * @param frame Frame that is shared with other owner
+ * @return same frame
+ */
+uvc_frame_t *uvc_ref_frame(uvc_frame_t *frame) {
+	if (LIKELY(frame))
+		__atomic_add_fetch(&frame->ref_count, 1, __ATOMIC_RELAXED);
+	return frame;
+}
+
+/** @brief Decrement reference counter of a frame and release it when the counter becomes zero
+ * @ingroup frame
+ *
+ * The frame is passed to frame->release if it is set, otherwise freed with uvc_free_frame
+ * @param frame Frame to release
+ */
+void uvc_unref_frame(uvc_frame_t *frame) {
+	if (UNLIKELY(!frame)) return;
+	if (__atomic_sub_fetch(&frame->ref_count, 1, __ATOMIC_ACQ_REL) <= 0) {
+		if (frame->release) {
+			frame->ref_count = 1;	// for next use
+			frame->release(frame, frame->release_ptr);
+		} else {
+			uvc_free_frame(frame);
+		}
+	}
+}
+
 static inline unsigned char sat(int i) {
 	return (unsigned char) (i >= 255 ? 255 : (i < 0 ? 0 : i));
 }
 
+// XXX SIMD kernels, selected at runtime. the scalar macros below are used
+// when the cpu/build does not support SIMD and for remaining pixels of each row
+static uvc_simd_kernels_t simd_kernels;
+static unsigned int simd_selected = UVC_SIMD_NONE;
+static pthread_once_t simd_once = PTHREAD_ONCE_INIT;
+
+#if defined(UVC_HAS_NEON) && defined(__arm__)
+/** @internal
+ * whether the cpu has NEON, NEON is optional on armeabi-v7a.
+ * parse /proc/cpuinfo like libjpeg-turbo does because getauxval is not available on android-14
+ */
+static int _uvc_cpu_has_neon(void) {
+	char buf[512];
+	int result = 0;
+	FILE *fp = fopen("/proc/cpuinfo", "r");
+	if (LIKELY(fp)) {
+		for (; !result && fgets(buf, sizeof(buf), fp) ;) {
+			if (!strncmp(buf, "Features", 8)) {
+				result = strstr(buf, " neon") != NULL;
+			}
+		}
+		fclose(fp);
+	}
+	return result;
+}
+#elif defined(UVC_HAS_NEON)
+// NEON is mandatory on arm64-v8a
+#define _uvc_cpu_has_neon() (1)
+#endif
+
+#if defined(UVC_HAS_SSE2)
+static int _uvc_cpu_has_sse2(void) {
+	unsigned int eax, ebx, ecx, edx;
+	if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx))
+		return 0;
+	return (edx & bit_SSE2) != 0;
+}
+#endif
+
+/** @internal
+ * instruction sets that this build and the cpu support
+ */
+unsigned int _uvc_simd_detect(void) {
+	unsigned int result = UVC_SIMD_NONE;
+#if defined(UVC_HAS_NEON)
+	if (_uvc_cpu_has_neon())
+		result |= UVC_SIMD_NEON;
+#endif
+#if defined(UVC_HAS_SSE2)
+	if (_uvc_cpu_has_sse2())
+		result |= UVC_SIMD_SSE2;
+#endif
+	return result;
+}
+
+static void _uvc_simd_set(unsigned int flags) {
+	memset(&simd_kernels, 0, sizeof(simd_kernels));
+	flags &= _uvc_simd_detect();
+#if defined(UVC_HAS_NEON)
+	if (flags & UVC_SIMD_NEON) {
+		simd_kernels.yuyv2rgbx = _uvc_yuyv2rgbx_neon;
+		simd_kernels.uyvy2rgbx = _uvc_uyvy2rgbx_neon;
+		simd_kernels.yuyv2rgb565 = _uvc_yuyv2rgb565_neon;
+		simd_kernels.uyvy2rgb565 = _uvc_uyvy2rgb565_neon;
+		simd_kernels.yuyv2yuv420sp = _uvc_yuyv2yuv420sp_neon;
+		flags = UVC_SIMD_NEON;
+	}
+#endif
+#if defined(UVC_HAS_SSE2)
+	if (flags & UVC_SIMD_SSE2) {
+		simd_kernels.yuyv2rgbx = _uvc_yuyv2rgbx_sse2;
+		simd_kernels.uyvy2rgbx = _uvc_uyvy2rgbx_sse2;
+		simd_kernels.yuyv2rgb565 = _uvc_yuyv2rgb565_sse2;
+		simd_kernels.uyvy2rgb565 = _uvc_uyvy2rgb565_sse2;
+		simd_kernels.yuyv2yuv420sp = _uvc_yuyv2yuv420sp_sse2;
+		flags = UVC_SIMD_SSE2;
+	}
+#endif
+	simd_selected = flags;
+}
+
+static void _uvc_simd_init(void) {
+	_uvc_simd_set(_uvc_simd_detect());
+	LOGI("simd:%s", simd_selected == UVC_SIMD_NEON ? "NEON"
+		: (simd_selected == UVC_SIMD_SSE2 ? "SSE2" : "none"));
+}
+
+/** @internal
+ * kernels in use
+ */
+const uvc_simd_kernels_t *_uvc_simd_kernels(void) {
+	pthread_once(&simd_once, _uvc_simd_init);
+	return &simd_kernels;
+}
+
+/** @internal
+ * select kernels, this is not thread safe against running conversion
+ * @return instruction sets actually selected
+ */
+unsigned int _uvc_simd_select(unsigned int flags) {
+	pthread_once(&simd_once, _uvc_simd_init);
+	_uvc_simd_set(flags);
+	return simd_selected;
+}
+
+/** @internal
+ * convert pixels with SIMD kernel as many as the scalar loop would convert by 8 pixels
+ * (rounded down to UVC_SIMD_PIXELS) and advance the pointers, the scalar loop converts the rest.
+ * @param src_end/dest_end same as the bounds of the scalar loop, i.e. end of buffer - 8 pixels
+ * @param max_pixels width of the row, negative for whole buffer
+ * @return number of converted pixels
+ */
+static inline int _uvc_simd_row(uvc_simd_row_func_t func,
+	uint8_t **src, const uint8_t *src_end, const int src_pixel_bytes,
+	uint8_t **dest, const uint8_t *dest_end, const int dest_pixel_bytes, const int max_pixels) {
+
+	if (!func || (*src > src_end) || (*dest > dest_end))
+		return 0;
+	int chunks = (src_end - *src) / (src_pixel_bytes * 8) + 1;
+	const int dest_chunks = (dest_end - *dest) / (dest_pixel_bytes * 8) + 1;
+	if (dest_chunks < chunks)
+		chunks = dest_chunks;
+	if ((max_pixels >= 0) && (((max_pixels + 7) >> 3) < chunks))
+		chunks = (max_pixels + 7) >> 3;
+	const int pixels = (chunks * 8) & ~(UVC_SIMD_PIXELS - 1);
+	if (pixels > 0) {
+		func(*src, *dest, pixels);
+		*src += pixels * src_pixel_bytes;
+		*dest += pixels * dest_pixel_bytes;
+	}
+	return pixels;
+}
+
 /** @brief Duplicate a frame, preserving color format
  * @ingroup frame
  *
@@ -125,7 +295,8 @@ static inline unsigned char sat(int i) {
  * @param out Duplicate frame
  */
 uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
-	if (UNLIKELY(uvc_ensure_frame_size(out, in->data_bytes) < 0))
+	// the data buffer of a frame from the stream can be much larger than the image data
+	if (UNLIKELY(uvc_ensure_frame_size(out, uvc_frame_payload_bytes(in)) < 0))
 		return UVC_ERROR_NO_MEM;
 
 	out->width = in->width;
@@ -135,6 +306,7 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 	out->actual_bytes = in->actual_bytes;	// XXX
 
@@ -241,6 +413,7 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -323,6 +496,7 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -426,6 +600,7 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -490,7 +665,9 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
@@ -508,6 +685,7 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgb565 = out->data + out->step * h;
+			w = _uvc_simd_row(kernels->yuyv2rgb565, &pyuv, pyuv_end, PIXEL_YUYV, &prgb565, prgb565_end, PIXEL_RGB565, ww);
 			for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IYUYV2RGB_8(pyuv, tmp, 0, 0);
 				RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -519,6 +697,7 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		_uvc_simd_row(kernels->yuyv2rgb565, &pyuv, pyuv_end, PIXEL_YUYV, &prgb565, prgb565_end, PIXEL_RGB565, -1);
 		for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 			IYUYV2RGB_8(pyuv, tmp, 0, 0);
 			RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -528,6 +707,7 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	_uvc_simd_row(kernels->yuyv2rgb565, &pyuv, pyuv_end, PIXEL_YUYV, &prgb565, prgb565_end, PIXEL_RGB565, -1);
 	// YUYV => RGB565
 	for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 		IYUYV2RGB_8(pyuv, tmp, 0, 0);
@@ -586,7 +766,9 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
@@ -603,6 +785,7 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
+			w = _uvc_simd_row(kernels->yuyv2rgbx, &pyuv, pyuv_end, PIXEL_YUYV, &prgbx, prgbx_end, PIXEL_RGBX, ww);
 			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -613,6 +796,7 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		_uvc_simd_row(kernels->yuyv2rgbx, &pyuv, pyuv_end, PIXEL_YUYV, &prgbx, prgbx_end, PIXEL_RGBX, -1);
 		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 			IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -621,6 +805,7 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	_uvc_simd_row(kernels->yuyv2rgbx, &pyuv, pyuv_end, PIXEL_YUYV, &prgbx, prgbx_end, PIXEL_RGBX, -1);
 	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 		IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -676,6 +861,7 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -765,6 +951,7 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -829,7 +1016,9 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_UYVY;
@@ -848,6 +1037,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgb565 = out->data + out->step * h;
+			w = _uvc_simd_row(kernels->uyvy2rgb565, &pyuv, pyuv_end, PIXEL_UYVY, &prgb565, prgb565_end, PIXEL_RGB565, ww);
 			for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IUYVY2RGB_8(pyuv, tmp, 0, 0);
 				RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -859,6 +1049,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		_uvc_simd_row(kernels->uyvy2rgb565, &pyuv, pyuv_end, PIXEL_UYVY, &prgb565, prgb565_end, PIXEL_RGB565, -1);
 		for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 			IUYVY2RGB_8(pyuv, tmp, 0, 0);
 			RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -868,6 +1059,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	_uvc_simd_row(kernels->uyvy2rgb565, &pyuv, pyuv_end, PIXEL_UYVY, &prgb565, prgb565_end, PIXEL_RGB565, -1);
 	for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 		IUYVY2RGB_8(pyuv, tmp, 0, 0);
 		RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -925,7 +1117,9 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_UYVY;
@@ -942,6 +1136,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
+			w = _uvc_simd_row(kernels->uyvy2rgbx, &pyuv, pyuv_end, PIXEL_UYVY, &prgbx, prgbx_end, PIXEL_RGBX, ww);
 			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -952,6 +1147,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		_uvc_simd_row(kernels->uyvy2rgbx, &pyuv, pyuv_end, PIXEL_UYVY, &prgbx, prgbx_end, PIXEL_RGBX, -1);
 		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 			IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -960,6 +1156,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	_uvc_simd_row(kernels->uyvy2rgbx, &pyuv, pyuv_end, PIXEL_UYVY, &prgbx, prgbx_end, PIXEL_RGBX, -1);
 	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 		IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -1014,6 +1211,7 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -1163,15 +1361,25 @@ uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	const int32_t src_height = in->height;
 	const int32_t dest_width = out->width = out->step = in->width;
 	const int32_t dest_height = out->height = in->height;
+	out->frame_format = UVC_FRAME_FORMAT_NV12;
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
 	int h, w;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
+	const int simd_width = kernels->yuyv2yuv420sp ? width & ~(UVC_SIMD_PIXELS - 1) : 0;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
 		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
+		if (simd_width) {
+			kernels->yuyv2yuv420sp(yuv, yuv + src_width, y0, y1, uv, simd_width, 0);
+			yuv += simd_width * 2;
+			y0 += simd_width;
+			y1 += simd_width;
+			uv += simd_width;
+		}
+		for (w = simd_width; w < width; w += 4) {
 			*(y0++) = yuv[0];	// y
 			*(y0++) = yuv[2];	// y'
 			*(y0++) = yuv[4];	// y''
@@ -1208,15 +1416,25 @@ uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	const int32_t src_height = in->height;
 	const int32_t dest_width = out->width = out->step = in->width;
 	const int32_t dest_height = out->height = in->height;
+	out->frame_format = UVC_FRAME_FORMAT_NV21;
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
 	int h, w;
+	const uvc_simd_kernels_t *kernels = _uvc_simd_kernels();
+	const int simd_width = kernels->yuyv2yuv420sp ? width & ~(UVC_SIMD_PIXELS - 1) : 0;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
 		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
+		if (simd_width) {
+			kernels->yuyv2yuv420sp(yuv, yuv + src_width, y0, y1, uv, simd_width, 1);
+			yuv += simd_width * 2;
+			y0 += simd_width;
+			y1 += simd_width;
+			uv += simd_width;
+		}
+		for (w = simd_width; w < width; w += 4) {
 			*(y0++) = yuv[0];	// y
 			*(y0++) = yuv[2];	// y'
 			*(y0++) = yuv[4];	// y''
@@ -1363,16 +1581,17 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out yuv420sp frame
  */
 uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-	uvc_error_t result = UVC_ERROR_NO_MEM;
-	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
-	if (yuv) {
-		result = uvc_any2yuyv(in, yuv);
-		if (LIKELY(!result)) {
-			result = uvc_yuyv2yuv420SP(yuv, out);
-		}
-		uvc_free_frame(yuv);
+
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2yuv420SP(in, out);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+		return uvc_yuyv2yuv420SP(in, out);
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
 	}
-	return result;
 }
 
 /** @brief Convert a frame to iyuv420sp(NV21)
@@ -1382,14 +1601,494 @@ uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out iyuv420SP(NV21) frame
  */
 uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-	uvc_error_t result = UVC_ERROR_NO_MEM;
-	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
-	if (yuv) {
-		result = uvc_any2yuyv(in, yuv);
-		if (LIKELY(!result)) {
-			result = uvc_yuyv2iyuv420SP(yuv, out);
+
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2iyuv420SP(in, out);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+		return uvc_yuyv2iyuv420SP(in, out);
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+}
+
+/** @internal
+ * dispatch to the scaled MJPEG decoder, other formats can only be converted at full scale
+ */
+#ifdef LIBUVC_HAS_JPEG
+#define ANY2_SCALED(in, out, scale_denom, mjpeg_func, any_func) \
+	(((in)->frame_format == UVC_FRAME_FORMAT_MJPEG) ? mjpeg_func(in, out, scale_denom) \
+		: ((scale_denom) == 1 ? any_func(in, out) : UVC_ERROR_NOT_SUPPORTED))
+#else
+#define ANY2_SCALED(in, out, scale_denom, mjpeg_func, any_func) \
+	((scale_denom) == 1 ? any_func(in, out) : UVC_ERROR_NOT_SUPPORTED)
+#endif
+
+/** @brief Convert a frame to RGBX8888 scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * scaling is done while decoding MJPEG, other formats only accept scale_denom=1
+ * @param in non-rgbx frame
+ * @param out rgbx frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2rgbx_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return ANY2_SCALED(in, out, scale_denom, uvc_mjpeg2rgbx_scaled, uvc_any2rgbx);
+}
+
+/** @brief Convert a frame to RGB565 scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * scaling is done while decoding MJPEG, other formats only accept scale_denom=1
+ * @param in non-rgb565 frame
+ * @param out rgb565 frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2rgb565_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return ANY2_SCALED(in, out, scale_denom, uvc_mjpeg2rgb565_scaled, uvc_any2rgb565);
+}
+
+/** @brief Convert a frame to yuyv scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * scaling is done while decoding MJPEG, other formats only accept scale_denom=1
+ * @param in non-yuyv frame
+ * @param out yuyv frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2yuyv_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return ANY2_SCALED(in, out, scale_denom, uvc_mjpeg2yuyv_scaled, uvc_any2yuyv);
+}
+
+/** @brief Convert a frame to yuv420sp scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * scaling is done while decoding MJPEG, other formats only accept scale_denom=1
+ * @param in non-yuv420sp frame
+ * @param out yuv420sp frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2yuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return ANY2_SCALED(in, out, scale_denom, uvc_mjpeg2yuv420SP_scaled, uvc_any2yuv420SP);
+}
+
+/** @brief Convert a frame to iyuv420sp(NV21) scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * scaling is done while decoding MJPEG, other formats only accept scale_denom=1
+ * @param in non-iyuv420SP(NV21) frame
+ * @param out iyuv420SP(NV21) frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2iyuv420SP_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	return ANY2_SCALED(in, out, scale_denom, uvc_mjpeg2iyuv420SP_scaled, uvc_any2iyuv420SP);
+}
+
+/** @brief Extract 8 bit luminance(GRAY8) from a yuv422 frame with subsampling
+ * @ingroup frame
+ *
+ * Y of every scale_denom-th pixel of every scale_denom-th row is picked without any conversion
+ * @param in YUYV or UYVY frame
+ * @param out GRAY8 frame, the size is ceil(width/scale_denom) x ceil(height/scale_denom)
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_yuyv2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+	int offset;
+	switch (in->frame_format) {
+	case UVC_FRAME_FORMAT_YUYV:
+		offset = 0;
+		break;
+	case UVC_FRAME_FORMAT_UYVY:
+		offset = 1;
+		break;
+	default:
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	if (UNLIKELY((scale_denom != 1) && (scale_denom != 2) && (scale_denom != 4) && (scale_denom != 8)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const int width = (in->width + scale_denom - 1) / scale_denom;
+	const int height = (in->height + scale_denom - 1) / scale_denom;
+	const int in_step = in->step ? in->step : in->width * PIXEL_YUYV;
+	if (UNLIKELY(in->data_bytes < (size_t)(in_step * (in->height - 1) + in->width * PIXEL_YUYV)))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(uvc_ensure_frame_size(out, width * height) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = UVC_FRAME_FORMAT_GRAY8;
+	out->step = width;
+	out->actual_bytes = width * height;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
+	out->source = in->source;
+
+	// distance between picked Y in bytes
+	const int pitch = PIXEL_YUYV * scale_denom;
+	uint8_t *y = out->data;
+	int h, w;
+	for (h = 0; h < height; h++) {
+		const uint8_t *yuv = (const uint8_t *)in->data + in_step * h * scale_denom + offset;
+		for (w = 0; w + 8 <= width; w += 8) {
+			y[0] = yuv[0];
+			y[1] = yuv[pitch];
+			y[2] = yuv[pitch * 2];
+			y[3] = yuv[pitch * 3];
+			y[4] = yuv[pitch * 4];
+			y[5] = yuv[pitch * 5];
+			y[6] = yuv[pitch * 6];
+			y[7] = yuv[pitch * 7];
+			y += 8;
+			yuv += pitch * 8;
+		}
+		for (; w < width; w++) {
+			*(y++) = *yuv;
+			yuv += pitch;
 		}
-		uvc_free_frame(yuv);
 	}
-	return result;
+	return UVC_SUCCESS;
+}
+
+/** @brief Convert a frame to 8 bit luminance(GRAY8) scaled by 1/scale_denom
+ * @ingroup frame
+ *
+ * unlike other conversions, uncompressed frames can also be scaled(subsampled)
+ * @param in MJPEG, YUYV, UYVY or GRAY8(scale_denom=1 only) frame
+ * @param out GRAY8 frame
+ * @param scale_denom 1, 2, 4 or 8
+ */
+uvc_error_t uvc_any2y8_scaled(uvc_frame_t *in, uvc_frame_t *out, int scale_denom) {
+
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2y8_scaled(in, out, scale_denom);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+	case UVC_FRAME_FORMAT_UYVY:
+		return uvc_yuyv2y8_scaled(in, out, scale_denom);
+	case UVC_FRAME_FORMAT_GRAY8:
+		return scale_denom == 1 ? uvc_duplicate_frame(in, out) : UVC_ERROR_NOT_SUPPORTED;
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+}
+
+/** @internal
+ * positions of Y/U/V in a macro pixel(2 pixels, 4 bytes) of packed yuv422
+ */
+typedef struct _uvc_yuv422_layout {
+	int y, u, v;
+} _uvc_yuv422_layout_t;
+
+static const _uvc_yuv422_layout_t YUYV_LAYOUT = { 0, 1, 3 };
+static const _uvc_yuv422_layout_t UYVY_LAYOUT = { 1, 0, 2 };
+
+#define Y422(row, x, l) ((row)[((x) << 1) + (l)->y])
+#define U422(row, x, l) ((row)[(((x) >> 1) << 2) + (l)->u])
+#define V422(row, x, l) ((row)[(((x) >> 1) << 2) + (l)->v])
+
+/** @internal
+ * sample one output row from packed yuv422 source rows into planar y/u/v rows,
+ * u/v have a sample for every output pixel.
+ * xs has 2 entries(start and end/fraction) for each output pixel, see uvc_resize_frame
+ */
+static void _uvc_resize_row(const uint8_t *src, const int step,
+	const int sy0, const int sy1, const int fy,
+	const int *xs, const int width, const enum uvc_resize_filter filter,
+	const _uvc_yuv422_layout_t *l, uint8_t *py, uint8_t *pu, uint8_t *pv) {
+
+	const uint8_t *row0 = src + step * sy0;
+	const uint8_t *row1 = src + step * sy1;
+	int x, sx, xx, yy;
+	switch (filter) {
+	case UVC_RESIZE_BILINEAR:
+	{
+		const int fy0 = 256 - fy;
+		for (x = 0; x < width; x++) {
+			sx = xs[x << 1];
+			const int fx = xs[(x << 1) + 1];
+			const int fx0 = 256 - fx;
+			const int sx1 = sx + (fx ? 1 : 0);
+#define BILINEAR(P) ((((P(row0, sx, l) * fx0 + P(row0, sx1, l) * fx) * fy0 \
+	+ (P(row1, sx, l) * fx0 + P(row1, sx1, l) * fx) * fy) + 32768) >> 16)
+			py[x] = BILINEAR(Y422);
+			pu[x] = BILINEAR(U422);
+			pv[x] = BILINEAR(V422);
+#undef BILINEAR
+		}
+		break;
+	}
+	case UVC_RESIZE_AREA:
+		for (x = 0; x < width; x++) {
+			const int sx0 = xs[x << 1];
+			const int sx1 = xs[(x << 1) + 1];
+			uint32_t sum_y = 0, sum_u = 0, sum_v = 0;
+			for (yy = sy0; yy < sy1; yy++) {
+				const uint8_t *row = src + step * yy;
+				for (xx = sx0; xx < sx1; xx++) {
+					sum_y += Y422(row, xx, l);
+					sum_u += U422(row, xx, l);
+					sum_v += V422(row, xx, l);
+				}
+			}
+			const uint32_t n = (sx1 - sx0) * (sy1 - sy0);
+			py[x] = (sum_y + (n >> 1)) / n;
+			pu[x] = (sum_u + (n >> 1)) / n;
+			pv[x] = (sum_v + (n >> 1)) / n;
+		}
+		break;
+	case UVC_RESIZE_NEAREST:
+	default:
+		for (x = 0; x < width; x++) {
+			sx = xs[x << 1];
+			py[x] = Y422(row0, sx, l);
+			pu[x] = U422(row0, sx, l);
+			pv[x] = V422(row0, sx, l);
+		}
+		break;
+	}
+}
+
+#undef Y422
+#undef U422
+#undef V422
+
+/** @internal
+ * write one row of planar y/u/v into the output frame
+ * @param h output row
+ */
+static void _uvc_resize_pack(uvc_frame_t *out, const int h,
+	const uint8_t *py, const uint8_t *pu, const uint8_t *pv) {
+
+	const int width = out->width;
+	int x;
+	switch (out->frame_format) {
+	case UVC_FRAME_FORMAT_RGBX:
+	case UVC_FRAME_FORMAT_RGB565:
+	{
+		const int rgbx = out->frame_format == UVC_FRAME_FORMAT_RGBX;
+		uint8_t *dest = (uint8_t *)out->data + out->step * h;
+		for (x = 0; x < width; x++) {
+			const int d1 = pu[x] - 128;
+			const int d3 = pv[x] - 128;
+			const int y = py[x];
+			const int r = sat(y + ((22987 * d3) >> 14));
+			const int g = sat(y + ((-5636 * d1 - 11698 * d3) >> 14));
+			const int b = sat(y + ((29049 * d1) >> 14));
+			if (rgbx) {
+				dest[0] = r;
+				dest[1] = g;
+				dest[2] = b;
+				dest[3] = 0xff;
+				dest += PIXEL_RGBX;
+			} else {
+				// same as RGB2RGB565_2
+				dest[0] = ((g << 3) & 0b11100000) | ((b >> 3) & 0b00011111);
+				dest[1] = (r & 0b11111000) | ((g >> 5) & 0b00000111);
+				dest += PIXEL_RGB565;
+			}
+		}
+		break;
+	}
+	case UVC_FRAME_FORMAT_YUYV:
+	{
+		uint8_t *dest = (uint8_t *)out->data + out->step * h;
+		for (x = 0; x < width - 1; x += 2) {
+			dest[0] = py[x];
+			dest[1] = (pu[x] + pu[x + 1] + 1) >> 1;
+			dest[2] = py[x + 1];
+			dest[3] = (pv[x] + pv[x + 1] + 1) >> 1;
+			dest += PIXEL2_YUYV;
+		}
+		break;
+	}
+	case UVC_FRAME_FORMAT_GRAY8:
+		memcpy((uint8_t *)out->data + out->step * h, py, width);
+		break;
+	case UVC_FRAME_FORMAT_NV12:
+	case UVC_FRAME_FORMAT_NV21:
+	{
+		// y plane has no padding, chroma plane of odd width/height covers the last column/row
+		uint8_t *dest = (uint8_t *)out->data + width * h;
+		memcpy(dest, py, width);
+		if (!(h & 1)) {
+			const int vu = out->frame_format == UVC_FRAME_FORMAT_NV21;
+			uint8_t *uv = (uint8_t *)out->data + width * out->height + ((width + 1) >> 1) * 2 * (h >> 1);
+			for (x = 0; x < width; x += 2) {
+				const int x1 = x + 1 < width ? x + 1 : x;
+				const uint8_t u = (pu[x] + pu[x1] + 1) >> 1;
+				const uint8_t v = (pv[x] + pv[x1] + 1) >> 1;
+				*(uv++) = vu ? v : u;
+				*(uv++) = vu ? u : v;
+			}
+		}
+		break;
+	}
+	default:
+		break;
+	}
+}
+
+/** @brief Crop and resize a yuv422 frame while converting it
+ * @ingroup frame
+ *
+ * every output pixel is sampled from the crop rectangle of the source and converted
+ * at once, so no intermediate frame of the source size is needed.
+ * @param in YUYV or UYVY frame, decode MJPEG frames with uvc_any2yuyv_scaled first
+ * @param out frame to write, its data should have enough size if the library does not own it
+ * @param resize crop rectangle in the source and the output size
+ * @param format UVC_FRAME_FORMAT_RGBX, RGB565, YUYV(even width only), NV12, NV21 or GRAY8
+ */
+uvc_error_t uvc_resize_frame(uvc_frame_t *in, uvc_frame_t *out,
+	const uvc_resize_t *resize, enum uvc_frame_format format) {
+
+	const _uvc_yuv422_layout_t *l;
+	switch (in->frame_format) {
+	case UVC_FRAME_FORMAT_YUYV:
+		l = &YUYV_LAYOUT;
+		break;
+	case UVC_FRAME_FORMAT_UYVY:
+		l = &UYVY_LAYOUT;
+		break;
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+	const int crop_x = resize->crop_x;
+	const int crop_y = resize->crop_y;
+	const int crop_w = resize->crop_width ? resize->crop_width : in->width - crop_x;
+	const int crop_h = resize->crop_height ? resize->crop_height : in->height - crop_y;
+	const int width = resize->width;
+	const int height = resize->height;
+	if (UNLIKELY((width <= 0) || (height <= 0) || (crop_x < 0) || (crop_y < 0)
+		|| (crop_w <= 0) || (crop_h <= 0)
+		|| (crop_x + crop_w > in->width) || (crop_y + crop_h > in->height)))
+		return UVC_ERROR_INVALID_PARAM;
+	const int in_step = in->step ? in->step : in->width * PIXEL_YUYV;
+	if (UNLIKELY(in->data_bytes < (size_t)(in_step * (crop_y + crop_h - 1) + (crop_x + crop_w) * PIXEL_YUYV)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	size_t bytes;
+	int step;
+	switch (format) {
+	case UVC_FRAME_FORMAT_RGBX:
+		step = width * PIXEL_RGBX;
+		bytes = step * height;
+		break;
+	case UVC_FRAME_FORMAT_RGB565:
+		step = width * PIXEL_RGB565;
+		bytes = step * height;
+		break;
+	case UVC_FRAME_FORMAT_YUYV:
+		if (UNLIKELY(width & 1))
+			return UVC_ERROR_INVALID_PARAM;
+		step = width * PIXEL_YUYV;
+		bytes = step * height;
+		break;
+	case UVC_FRAME_FORMAT_GRAY8:
+		step = width;
+		bytes = step * height;
+		break;
+	case UVC_FRAME_FORMAT_NV12:
+	case UVC_FRAME_FORMAT_NV21:
+		step = width;
+		bytes = width * height + ((width + 1) >> 1) * ((height + 1) >> 1) * 2;
+		break;
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+	if (UNLIKELY(uvc_ensure_frame_size(out, bytes) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = format;
+	out->step = step;
+	out->actual_bytes = bytes;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
+	out->source = in->source;
+
+	// columns of the source for each output column, and planar y/u/v of one output row
+	int *xs = malloc(sizeof(int) * 2 * width + width * 3);
+	if (UNLIKELY(!xs))
+		return UVC_ERROR_NO_MEM;
+	uint8_t *py = (uint8_t *)(xs + 2 * width);
+	uint8_t *pu = py + width;
+	uint8_t *pv = pu + width;
+	const enum uvc_resize_filter filter = resize->filter;
+	int x, h;
+	for (x = 0; x < width; x++) {
+		switch (filter) {
+		case UVC_RESIZE_BILINEAR:
+		{
+			// align centers of the pixels, 8 bits fraction
+			// (calculate in 64 bits, this overflows 32 bits on 4K input)
+			int fx = (int)(((2 * x + 1) * (int64_t)crop_w * 256) / (2 * width)) - 128;
+			if (fx < 0) fx = 0;
+			int sx = fx >> 8;
+			fx &= 0xff;
+			if (sx >= crop_w - 1) {
+				sx = crop_w - 1;
+				fx = 0;
+			}
+			xs[x << 1] = crop_x + sx;
+			xs[(x << 1) + 1] = fx;
+			break;
+		}
+		case UVC_RESIZE_AREA:
+		{
+			const int sx0 = (x * crop_w) / width;
+			int sx1 = ((x + 1) * crop_w) / width;
+			if (sx1 <= sx0) sx1 = sx0 + 1;
+			xs[x << 1] = crop_x + sx0;
+			xs[(x << 1) + 1] = crop_x + sx1;
+			break;
+		}
+		case UVC_RESIZE_NEAREST:
+		default:
+			xs[x << 1] = crop_x + ((2 * x + 1) * crop_w) / (2 * width);
+			xs[(x << 1) + 1] = 0;
+			break;
+		}
+	}
+	for (h = 0; h < height; h++) {
+		int sy0, sy1, fy = 0;
+		switch (filter) {
+		case UVC_RESIZE_BILINEAR:
+			fy = (int)(((2 * h + 1) * (int64_t)crop_h * 256) / (2 * height)) - 128;
+			if (fy < 0) fy = 0;
+			sy0 = fy >> 8;
+			fy &= 0xff;
+			if (sy0 >= crop_h - 1) {
+				sy0 = crop_h - 1;
+				fy = 0;
+			}
+			sy1 = fy ? sy0 + 1 : sy0;
+			sy0 += crop_y;
+			sy1 += crop_y;
+			break;
+		case UVC_RESIZE_AREA:
+			sy0 = (h * crop_h) / height;
+			sy1 = ((h + 1) * crop_h) / height;
+			if (sy1 <= sy0) sy1 = sy0 + 1;
+			sy0 += crop_y;
+			sy1 += crop_y;
+			break;
+		case UVC_RESIZE_NEAREST:
+		default:
+			sy0 = sy1 = crop_y + ((2 * h + 1) * crop_h) / (2 * height);
+			break;
+		}
+		_uvc_resize_row(in->data, in_step, sy0, sy1, fy, xs, width, filter, l, py, pu, pv);
+		_uvc_resize_pack(out, h, py, pu, pv);
+	}
+	free(xs);
+
+	return UVC_SUCCESS;
 }
@@ -596,11 +596,129 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 }
 
+static inline int64_t _uvc_monotonic_ns(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/** @internal
+ * @brief Reset the device clock recovery
+ * @param frequency nominal device clock frequency[Hz], 0 if unknown
+ */
+static void _uvc_clock_reset(uvc_clock_t *clock, uint32_t frequency) {
+	const int64_t last_capture_ns = clock->last_capture_ns;
+	memset(clock, 0, sizeof(uvc_clock_t));
+	clock->frequency = frequency;
+	clock->last_capture_ns = last_capture_ns;
+}
+
+/** @internal
+ * @brief Host nanoseconds per device clock tick, least squares fit of the samples
+ * to follow the drift of the device crystal
+ * @return 0 if the rate is unknown yet
+ */
+static double _uvc_clock_rate(const uvc_clock_t *clock) {
+	if (clock->count >= 2) {
+		const uvc_clock_sample_t *first
+			= &clock->samples[(clock->head - clock->count + UVC_CLOCK_SAMPLES) % UVC_CLOCK_SAMPLES];
+		const uvc_clock_sample_t *last
+			= &clock->samples[(clock->head - 1 + UVC_CLOCK_SAMPLES) % UVC_CLOCK_SAMPLES];
+		if ((last->host_ns - first->host_ns >= UVC_CLOCK_MIN_SPAN_NS) && (last->dev > first->dev)) {
+			double mean_dev = 0.0, mean_host = 0.0, sxy = 0.0, sxx = 0.0;
+			int i;
+			// relative to the first sample to keep precision of double
+			for (i = 0; i < clock->count; i++) {
+				mean_dev += clock->samples[i].dev - first->dev;
+				mean_host += clock->samples[i].host_ns - first->host_ns;
+			}
+			mean_dev /= clock->count;
+			mean_host /= clock->count;
+			for (i = 0; i < clock->count; i++) {
+				const double dx = clock->samples[i].dev - first->dev - mean_dev;
+				const double dy = clock->samples[i].host_ns - first->host_ns - mean_host;
+				sxy += dx * dy;
+				sxx += dx * dx;
+			}
+			if (sxx > 0.0 && sxy > 0.0)
+				return sxy / sxx;
+		}
+	}
+	return clock->frequency ? 1e9 / clock->frequency : 0.0;
+}
+
+/** @internal
+ * @brief Estimate the capture time of the frame on host monotonic time
+ * SCR(or PTS if the device doesn't send SCR) and the arrival time make a sample of the device clock.
+ * The arrival time is later than the true time by USB and scheduling latency,
+ * so only the least delayed sample in each UVC_CLOCK_BIN_NS is kept and
+ * PTS is mapped through the lower envelope of the newest samples.
+ * @param now arrival time of the frame
+ * @return capture time, monotonically increasing, arrival time if the device doesn't send PTS
+ */
+static int64_t _uvc_clock_update(uvc_clock_t *clock, uint8_t *flags,
+		uint32_t pts, uint32_t stc, int64_t now) {
+
+	int64_t result = now;
+	if (*flags & UVC_FRAME_TS_PTS) {
+		const uint32_t ref = (*flags & UVC_FRAME_TS_SCR) ? stc : pts;
+		int64_t dev = clock->has_bin ? clock->last_dev + (int32_t)(ref - (uint32_t)clock->last_dev) : ref;
+		double rate = _uvc_clock_rate(clock);
+		if (clock->has_bin) {
+			const int64_t diff = rate > 0.0
+				? now - (clock->bin.host_ns + (int64_t)((dev - clock->bin.dev) * rate)) : 0;
+			if ((dev < clock->last_dev) || (diff > 1000000000LL) || (diff < -1000000000LL)) {
+				// the device clock was reset or the samples went wrong, restart from this sample
+				_uvc_clock_reset(clock, clock->frequency);
+				dev = ref;
+			}
+		}
+		if (!clock->has_bin) {
+			clock->bin.dev = dev;
+			clock->bin.host_ns = clock->bin_start_ns = now;
+			clock->has_bin = 1;
+		} else if (now - clock->bin.host_ns < (int64_t)((dev - clock->bin.dev) * rate)) {
+			// less delayed than the current one
+			clock->bin.dev = dev;
+			clock->bin.host_ns = now;
+		}
+		if (now - clock->bin_start_ns >= UVC_CLOCK_BIN_NS) {
+			clock->samples[clock->head] = clock->bin;
+			clock->head = (clock->head + 1) % UVC_CLOCK_SAMPLES;
+			if (clock->count < UVC_CLOCK_SAMPLES) clock->count++;
+			clock->bin.dev = dev;
+			clock->bin.host_ns = clock->bin_start_ns = now;
+			rate = _uvc_clock_rate(clock);
+		}
+		clock->last_dev = dev;
+		if (rate > 0.0) {
+			const int64_t pts_dev = dev + (int32_t)(pts - (uint32_t)dev);
+			int i;
+			result = clock->bin.host_ns + (int64_t)((pts_dev - clock->bin.dev) * rate);
+			for (i = 1; (i <= UVC_CLOCK_ENVELOPE_SAMPLES) && (i <= clock->count); i++) {
+				const uvc_clock_sample_t *sample
+					= &clock->samples[(clock->head - i + UVC_CLOCK_SAMPLES) % UVC_CLOCK_SAMPLES];
+				const int64_t t = sample->host_ns + (int64_t)((pts_dev - sample->dev) * rate);
+				if (t < result) result = t;
+			}
+			if (result > now) result = now;
+			*flags |= UVC_FRAME_TS_SYNCED;
+		}
+	}
+	if (result <= clock->last_capture_ns)
+		result = clock->last_capture_ns + 1;
+	clock->last_capture_ns = result;
+	return result;
+}
+
 /** @internal
  * @brief Swap the working buffer with the presented buffer and notify consumers
  */
 static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
+	const int64_t now = _uvc_monotonic_ns();
+	const int64_t capture_ns = _uvc_clock_update(&strmh->clock, &strmh->ts_flags,
+		strmh->pts, strmh->last_scr, now);
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
@@ -613,6 +731,10 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 		strmh->hold_last_scr = strmh->last_scr;
 		strmh->hold_pts = strmh->pts;
 		strmh->hold_seq = strmh->seq;
+		strmh->hold_last_sof = strmh->last_sof;
+		strmh->hold_ts_flags = strmh->ts_flags;
+		strmh->hold_arrival_ns = now;
+		strmh->hold_capture_ns = capture_ns;
 
 		pthread_cond_broadcast(&strmh->cb_cond);
 	}
@@ -621,7 +743,9 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	strmh->seq++;
 	strmh->got_bytes = 0;
 	strmh->last_scr = 0;
+	strmh->last_sof = 0;
 	strmh->pts = 0;
+	strmh->ts_flags = 0;
 	strmh->bfh_err = 0;	// XXX
 }
 
@@ -745,6 +869,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 			// XXX saki some camera may send broken packet or failed to receive all data
 			if (LIKELY(variable_offset + 4 <= header_len)) {
 				strmh->pts = DW_TO_INT(payload + variable_offset);
+				strmh->ts_flags |= UVC_FRAME_TS_PTS;
 				variable_offset += 4;
 			} else {
 				MARK("bogus packet: header info has UVC_STREAM_PTS, but no data");
@@ -753,11 +878,12 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 		}
 
 		if (header_info & UVC_STREAM_SCR) {
-			// @todo read the SOF token counter
 			// XXX saki some camera may send broken packet or failed to receive all data
-			if (LIKELY(variable_offset + 4 <= header_len)) {
+			if (LIKELY(variable_offset + 6 <= header_len)) {
 				strmh->last_scr = DW_TO_INT(payload + variable_offset);
-				variable_offset += 4;
+				strmh->last_sof = SW_TO_SHORT(payload + variable_offset + 4) & 0x07ff;
+				strmh->ts_flags |= UVC_FRAME_TS_SCR;
+				variable_offset += 6;
 			} else {
 				MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 				strmh->last_scr = 0;
@@ -885,10 +1011,13 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 					strmh->fid = header_info & UVC_STREAM_FID;
 				}
 #endif
+				size_t variable_offset = 2;	// XXX SCR follows PTS only when PTS exists
 				if (header_info & UVC_STREAM_PTS) {
 					// XXX saki some camera may send broken packet or failed to receive all data
-					if (LIKELY(header_len >= 6)) {
-						strmh->pts = DW_TO_INT(pktbuf + 2);
+					if (LIKELY(header_len >= variable_offset + 4)) {
+						strmh->pts = DW_TO_INT(pktbuf + variable_offset);
+						strmh->ts_flags |= UVC_FRAME_TS_PTS;
+						variable_offset += 4;
 					} else {
 						MARK("bogus packet: header info has UVC_STREAM_PTS, but no data");
 						strmh->pts = 0;
@@ -897,8 +1026,10 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 
 				if (header_info & UVC_STREAM_SCR) {
 					// XXX saki some camera may send broken packet or failed to receive all data
-					if (LIKELY(header_len >= 10)) {
-						strmh->last_scr = DW_TO_INT(pktbuf + 6);
+					if (LIKELY(header_len >= variable_offset + 6)) {
+						strmh->last_scr = DW_TO_INT(pktbuf + variable_offset);
+						strmh->last_sof = SW_TO_SHORT(pktbuf + variable_offset + 4) & 0x07ff;
+						strmh->ts_flags |= UVC_FRAME_TS_SCR;
 					} else {
 						MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 						strmh->last_scr = 0;
@@ -1287,6 +1418,132 @@ static uvc_streaming_interface_t *_uvc_get_stream_if(uvc_device_handle_t *devh,
 	return NULL;
 }
 
+/* most devices report the size of uncompressed frame as dwMaxVideoFrameSize of MJPEG,
+ * actual MJPEG frames are less than 1/4 of it even on high quality */
+#define UVC_COMPRESSED_RATIO 4
+/* payload header that precedes the data of each (micro)frame */
+#define UVC_PAYLOAD_HEADER_BYTES 12
+
+/** Get the bandwidth that the stream needs and the bandwidth that each altsetting reserves.
+ * This does not claim the interface nor change the altsetting, so this can be called
+ * while other cameras on the same bus are streaming.
+ * @ingroup streaming
+ *
+ * @param devh UVC device
+ * @param ctrl Control block, processed using {uvc_probe_stream_ctrl} or
+ *             {uvc_get_stream_ctrl_format_size}
+ * @param bandwidth [out]
+ */
+uvc_error_t uvc_get_stream_bandwidth(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, uvc_stream_bandwidth_t *bandwidth) {
+
+	uvc_streaming_interface_t *stream_if;
+	uvc_frame_desc_t *frame_desc;
+	const struct libusb_interface *interface;
+	const struct libusb_interface_descriptor *altsetting;
+	const struct libusb_endpoint_descriptor *endpoint;
+	int alt_idx, ep_idx;
+
+	UVC_ENTER();
+
+	if (UNLIKELY(!ctrl || !bandwidth)) {
+		UVC_EXIT(UVC_ERROR_INVALID_PARAM);
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	stream_if = _uvc_get_stream_if(devh, ctrl->bInterfaceNumber);
+	frame_desc = stream_if
+		? _uvc_find_frame_desc_stream_if(stream_if, ctrl->bFormatIndex, ctrl->bFrameIndex)
+		: NULL;
+	if (UNLIKELY(!frame_desc || !ctrl->dwFrameInterval)) {
+		UVC_EXIT(UVC_ERROR_INVALID_PARAM);
+		return UVC_ERROR_INVALID_PARAM;
+	}
+
+	memset(bandwidth, 0, sizeof(uvc_stream_bandwidth_t));
+	bandwidth->speed = libusb_get_device_speed(devh->dev->usb_dev);
+	if (bandwidth->speed == LIBUSB_SPEED_UNKNOWN) {
+		// XXX speed is not available for some devices that are opened with file descriptor
+		bandwidth->speed = LIBUSB_SPEED_HIGH;
+	}
+	// number of (micro)frames per millisecond
+	const uint32_t units_per_ms = bandwidth->speed >= LIBUSB_SPEED_HIGH ? 8 : 1;
+	bandwidth->max_payload = ctrl->dwMaxPayloadTransferSize;
+
+	interface = &devh->info->config->interface[stream_if->bInterfaceNumber];
+	bandwidth->isochronous = interface->num_altsetting > 1;
+	if (bandwidth->isochronous) {
+		bandwidth->num_alt = interface->num_altsetting < UVC_MAX_ALTSETTINGS
+			? interface->num_altsetting : UVC_MAX_ALTSETTINGS;
+		for (alt_idx = 0; alt_idx < bandwidth->num_alt; alt_idx++) {
+			altsetting = interface->altsetting + alt_idx;
+			for (ep_idx = 0; ep_idx < altsetting->bNumEndpoints; ep_idx++) {
+				endpoint = altsetting->endpoint + ep_idx;
+				if (endpoint->bEndpointAddress == stream_if->bEndpointAddress) {
+					// wMaxPacketSize: [unused:2 (multiplier-1):3 size:11]
+					const uint32_t bytes = (endpoint->wMaxPacketSize & 0x07ff)
+						* (((endpoint->wMaxPacketSize >> 11) & 3) + 1);
+					// isochronous endpoint is serviced every 2^(bInterval-1) (micro)frames
+					const int exp = endpoint->bInterval < 1 ? 0
+						: (endpoint->bInterval > 16 ? 15 : endpoint->bInterval - 1);
+					bandwidth->alt_bytes[alt_idx] = bytes;
+					bandwidth->alt_rate[alt_idx] = (bytes * units_per_ms) >> exp;
+					break;
+				}
+			}
+		}
+	}
+
+	uint32_t frame_bytes = ctrl->dwMaxVideoFrameSize;
+	if (frame_desc->dwMaxVideoFrameBufferSize
+		&& (!frame_bytes || (frame_bytes > frame_desc->dwMaxVideoFrameBufferSize))) {
+		frame_bytes = frame_desc->dwMaxVideoFrameBufferSize;
+	}
+	if (!frame_bytes) {
+		frame_bytes = frame_desc->wWidth * frame_desc->wHeight * 2;
+	}
+	if ((frame_desc->parent->bDescriptorSubtype == UVC_VS_FORMAT_MJPEG)
+		|| (frame_desc->parent->bDescriptorSubtype == UVC_VS_FORMAT_FRAME_BASED)) {
+		frame_bytes /= UVC_COMPRESSED_RATIO;
+	}
+	// dwFrameInterval is in 100ns unit
+	uint64_t rate = (uint64_t)frame_bytes * 10000 / ctrl->dwFrameInterval
+		+ UVC_PAYLOAD_HEADER_BYTES * units_per_ms;
+	// device never sends more than dwMaxPayloadTransferSize per (micro)frame
+	if (bandwidth->max_payload && (rate > (uint64_t)bandwidth->max_payload * units_per_ms)) {
+		rate = (uint64_t)bandwidth->max_payload * units_per_ms;
+	}
+	bandwidth->required_rate = (uint32_t)rate;
+
+	UVC_EXIT(UVC_SUCCESS);
+	return UVC_SUCCESS;
+}
+
+/** @internal
+ * @brief Capacity of the buffers that circulate between outbuf/holdbuf/frame.
+ * This is the negotiated frame size instead of LIBUVC_XFER_BUF_SIZE so that frames that
+ * the user keeps with uvc_loan_frame do not hold much more memory than a frame.
+ * Uncompressed size of the frame is the minimum because some devices report too small dwMaxVideoFrameSize.
+ */
+static size_t _uvc_stream_buf_size(uvc_stream_handle_t *strmh) {
+	const uvc_stream_ctrl_t *ctrl = &strmh->cur_ctrl;
+	size_t bytes = ctrl->dwMaxVideoFrameSize;
+	uvc_frame_desc_t *frame_desc = _uvc_find_frame_desc_stream_if(strmh->stream_if,
+		ctrl->bFormatIndex, ctrl->bFrameIndex);
+	if (frame_desc) {
+		const size_t raw_bytes = (size_t)frame_desc->wWidth * frame_desc->wHeight * 2;
+		if (frame_desc->dwMaxVideoFrameBufferSize > bytes)
+			bytes = frame_desc->dwMaxVideoFrameBufferSize;
+		if (raw_bytes > bytes)
+			bytes = raw_bytes;
+	}
+	if (UNLIKELY(!bytes))
+		return LIBUVC_XFER_BUF_SIZE;
+	// room for the last payload, boundary check requires got_bytes + data_len < size_buf
+	bytes += ctrl->dwMaxPayloadTransferSize;
+	bytes = (bytes + 4095) & ~((size_t)4095);
+	return bytes < LIBUVC_XFER_BUF_SIZE ? bytes : LIBUVC_XFER_BUF_SIZE;
+}
+
 /** Open a new video stream.
  * @ingroup streaming
  *
@@ -1333,10 +1590,9 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 
 	// Set up the streaming status and data space
 	strmh->running = 0;
-	/** @todo take only what we need */
-	strmh->outbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->holdbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->size_buf = LIBUVC_XFER_BUF_SIZE;	// xxx for boundary check
+	strmh->size_buf = _uvc_stream_buf_size(strmh);	// xxx for boundary check
+	strmh->outbuf = malloc(strmh->size_buf);
+	strmh->holdbuf = malloc(strmh->size_buf);
 
 	pthread_mutex_init(&strmh->cb_mutex, NULL);
 	pthread_cond_init(&strmh->cb_cond, NULL);
@@ -1406,7 +1662,13 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	strmh->fid = 0;
 	strmh->pts = 0;
 	strmh->last_scr = 0;
+	strmh->last_sof = 0;
+	strmh->ts_flags = 0;
 	strmh->bfh_err = 0;	// XXX
+	// XXX dwClockFrequency of the stream control is only available on UVC 1.1 or later
+	_uvc_clock_reset(&strmh->clock, ctrl->dwClockFrequency
+		? ctrl->dwClockFrequency : strmh->devh->info->ctrl_if.dwClockFrequency);
+	strmh->clock.last_capture_ns = 0;
 
 	frame_desc = uvc_find_frame_desc_stream(strmh, ctrl->bFormatIndex, ctrl->bFrameIndex);
 	if (UNLIKELY(!frame_desc)) {
@@ -1677,6 +1939,16 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 			strmh->cur_ctrl.bFrameIndex);
 
 	frame->frame_format = strmh->frame_format;
+	frame->source = strmh->devh;
+	frame->sequence = strmh->hold_seq;
+	frame->timestamp.capture_ns = strmh->hold_capture_ns;
+	frame->timestamp.arrival_ns = strmh->hold_arrival_ns;
+	frame->timestamp.pts = strmh->hold_pts;
+	frame->timestamp.scr_stc = strmh->hold_last_scr;
+	frame->timestamp.scr_sof = strmh->hold_last_sof;
+	frame->timestamp.flags = strmh->hold_ts_flags;
+	frame->capture_time.tv_sec = strmh->hold_capture_ns / 1000000000LL;
+	frame->capture_time.tv_usec = (strmh->hold_capture_ns % 1000000000LL) / 1000;
 
 	frame->width = frame_desc->wWidth;
 	frame->height = frame_desc->wHeight;
@@ -1695,16 +1967,80 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		break;
 	}
 
-	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
-	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
-		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
-		frame->data_bytes = strmh->hold_bytes;
+	/* hand the hold buffer to the frame without copying, the buffer that the frame had
+	 * becomes the next hold buffer. every buffer that circulates between
+	 * outbuf/holdbuf/frame has the same capacity(size_buf) */
+	if (UNLIKELY(!frame->data || (frame->data_bytes < strmh->size_buf))) {
+		void *buf = realloc(frame->data, strmh->size_buf);
+		if (LIKELY(buf)) {
+			frame->data = buf;
+			frame->data_bytes = strmh->size_buf;
+		}
+	}
+	if (LIKELY(frame->data && (frame->data_bytes >= strmh->size_buf))) {
+		uint8_t *tmp_buf = strmh->holdbuf;
+		strmh->holdbuf = frame->data;
+		frame->data = tmp_buf;
+	} else {
+		// fallback to copying
+		if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
+			frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
+			frame->data_bytes = strmh->hold_bytes;
+		}
+		memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
 	}
-	memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
 
 	/** @todo set the frame time */
 }
 
+/** Take over the data buffer of the frame that was passed to the frame callback
+ * without copying it. The data buffer of out is given back to the stream
+ * in exchange and will be used for receiving following frames.
+ * @ingroup streaming
+ *
+ * @param in frame that was passed to the frame callback, call this only while in the callback
+ * @param out frame to receive the data buffer, its data buffer must be owned by library
+ * and must be equal or larger than in->data_bytes, otherwise you need uvc_duplicate_frame
+ * @return UVC_ERROR_NO_MEM if the data buffer of out is too small
+ */
+uvc_error_t uvc_loan_frame(uvc_frame_t *in, uvc_frame_t *out) {
+	uvc_stream_handle_t *strmh;
+	uvc_error_t ret = UVC_ERROR_INVALID_PARAM;
+
+	if (UNLIKELY(!in || !out || !in->source || !in->data))
+		return ret;
+
+	DL_FOREACH(in->source->streams, strmh) {
+		if (&strmh->frame == in) {
+			ret = UVC_SUCCESS;
+			break;
+		}
+	}
+	if (UNLIKELY(ret))
+		return ret;
+	if (UNLIKELY(!out->library_owns_data || !out->data
+		|| (out->data_bytes < in->data_bytes) || (out->data_bytes < strmh->size_buf)))
+		return UVC_ERROR_NO_MEM;
+
+	void *tmp_buf = out->data;
+	const size_t tmp_bytes = out->data_bytes;
+	out->data = in->data;
+	out->data_bytes = in->data_bytes;
+	out->actual_bytes = in->actual_bytes;
+	out->width = in->width;
+	out->height = in->height;
+	out->frame_format = in->frame_format;
+	out->step = in->step;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->timestamp = in->timestamp;
+	out->source = in->source;
+	in->data = tmp_buf;
+	in->data_bytes = tmp_bytes;
+
+	return UVC_SUCCESS;
+}
+
 /** Poll for a frame
  * @ingroup streaming
  *
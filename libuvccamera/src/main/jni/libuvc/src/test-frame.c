@@ -0,0 +1,191 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * host test and benchmark for SIMD kernels in frame.c.
+ * checks that SIMD kernels give exactly same result as the scalar conversion
+ * and shows the time of each conversion with/without SIMD.
+ * this is not a part of the android build, build it on x86/x86_64 host like
+ *   gcc -O2 -DUVC_HAS_SSE2 -DLIBUVC_HAS_JPEG -I<jni> -I<jni>/libusb -I<jni>/libuvc/include \
+ *     -I<jni>/libuvc/include/libuvc -I<jdk>/include -I<jdk>/include/linux \
+ *     test-frame.c frame.c frame-sse2.c frame-mjpeg.c -ljpeg -lpthread -o test-frame
+ * or enable BUILD_FRAME_TEST of CMakeLists.txt. (use -DUVC_HAS_NEON and frame-neon.c on arm host)
+ * exit status is non zero when any result differs.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "libuvc/libuvc.h"
+#include "frame-simd.h"
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+typedef struct test_conv {
+	const char *name;
+	convert_func_t func;
+	enum uvc_frame_format in_format;
+	int out_bytes_num;		// output bytes per pixel * 2
+	int width_align;		// scalar conversion requires width of multiple of this
+} test_conv_t;
+
+static const test_conv_t convs[] = {
+	{ "yuyv2rgbx", uvc_yuyv2rgbx, UVC_FRAME_FORMAT_YUYV, 8, 2 },
+	{ "uyvy2rgbx", uvc_uyvy2rgbx, UVC_FRAME_FORMAT_UYVY, 8, 2 },
+	{ "yuyv2rgb565", uvc_yuyv2rgb565, UVC_FRAME_FORMAT_YUYV, 4, 2 },
+	{ "uyvy2rgb565", uvc_uyvy2rgb565, UVC_FRAME_FORMAT_UYVY, 4, 2 },
+	{ "yuyv2yuv420SP", uvc_yuyv2yuv420SP, UVC_FRAME_FORMAT_YUYV, 3, 4 },
+	{ "yuyv2iyuv420SP", uvc_yuyv2iyuv420SP, UVC_FRAME_FORMAT_YUYV, 3, 4 },
+};
+#define NUM_CONVS (sizeof(convs) / sizeof(convs[0]))
+
+static const int widths[] = { 2, 8, 16, 24, 36, 40, 52, 62, 100, 176, 322, 640, 1280 };
+static const int heights[] = { 1, 2, 3, 7, 16 };
+#define NUM_WIDTHS (sizeof(widths) / sizeof(widths[0]))
+#define NUM_HEIGHTS (sizeof(heights) / sizeof(heights[0]))
+
+static uvc_frame_t *create_input(enum uvc_frame_format format, int width, int height, int padding) {
+	const int step = width * 2 + padding;
+	uvc_frame_t *frame = uvc_allocate_frame(step * height);
+	if (!frame) return NULL;
+	frame->frame_format = format;
+	frame->width = width;
+	frame->height = height;
+	frame->step = step;
+	frame->sequence = 0;
+	memset(&frame->capture_time, 0, sizeof(frame->capture_time));
+	frame->source = NULL;
+	size_t i;
+	for (i = 0; i < frame->data_bytes; i++) {
+		((uint8_t *)frame->data)[i] = (uint8_t)rand();
+	}
+	return frame;
+}
+
+static uvc_frame_t *create_output(const test_conv_t *conv, int width, int height) {
+	const size_t bytes = (size_t)width * height * conv->out_bytes_num / 2;
+	uvc_frame_t *frame = uvc_allocate_frame(bytes);
+	if (!frame) return NULL;
+	frame->width = width;
+	frame->height = height;
+	frame->step = 0;
+	memset(frame->data, 0xa5, bytes);
+	return frame;
+}
+
+static int convert(const test_conv_t *conv, unsigned int simd, uvc_frame_t *in, uvc_frame_t *out) {
+	_uvc_simd_select(simd);
+	memset(out->data, 0xa5, out->data_bytes);
+	return conv->func(in, out);
+}
+
+static int check(const test_conv_t *conv, unsigned int simd) {
+	int errors = 0;
+	size_t w, h;
+	int padding;
+	for (padding = 0; padding <= 32; padding += 32) {
+		for (w = 0; w < NUM_WIDTHS; w++) {
+			for (h = 0; h < NUM_HEIGHTS; h++) {
+				const int width = widths[w], height = heights[h];
+				if (width % conv->width_align) continue;
+				uvc_frame_t *in = create_input(conv->in_format, width, height, padding);
+				uvc_frame_t *expected = create_output(conv, width, height);
+				uvc_frame_t *actual = create_output(conv, width, height);
+				if (!in || !expected || !actual) {
+					fprintf(stderr, "failed to allocate frame\n");
+					exit(EXIT_FAILURE);
+				}
+				const int r0 = convert(conv, UVC_SIMD_NONE, in, expected);
+				const int r1 = convert(conv, simd, in, actual);
+				if ((r0 != r1) || (expected->data_bytes != actual->data_bytes)
+					|| memcmp(expected->data, actual->data, expected->data_bytes)) {
+
+					fprintf(stderr, "%s:mismatch at %dx%d, padding=%d\n", conv->name, width, height, padding);
+					errors++;
+				}
+				uvc_free_frame(in);
+				uvc_free_frame(expected);
+				uvc_free_frame(actual);
+			}
+		}
+	}
+	return errors;
+}
+
+static double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static double benchmark(const test_conv_t *conv, unsigned int simd, int width, int height, int loops) {
+	uvc_frame_t *in = create_input(conv->in_format, width, height, 0);
+	uvc_frame_t *out = create_output(conv, width, height);
+	_uvc_simd_select(simd);
+	conv->func(in, out);	// warm up
+	const double start = now_ms();
+	int i;
+	for (i = 0; i < loops; i++) {
+		conv->func(in, out);
+	}
+	const double result = (now_ms() - start) / loops;
+	uvc_free_frame(in);
+	uvc_free_frame(out);
+	return result;
+}
+
+int main(int argc, char **argv) {
+	const unsigned int simd = _uvc_simd_detect();
+	int errors = 0;
+	size_t i;
+
+	printf("simd:%s\n", simd & UVC_SIMD_NEON ? "NEON" : (simd & UVC_SIMD_SSE2 ? "SSE2" : "none"));
+	if (simd == UVC_SIMD_NONE) {
+		printf("no SIMD kernel available, nothing to test\n");
+		return EXIT_SUCCESS;
+	}
+	srand(1);
+	for (i = 0; i < NUM_CONVS; i++) {
+		const int err = check(&convs[i], simd);
+		printf("%-16s %s\n", convs[i].name, err ? "NG" : "OK");
+		errors += err;
+	}
+	printf("\n1280x720, ms/frame   scalar     simd\n");
+	for (i = 0; i < NUM_CONVS; i++) {
+		const double t0 = benchmark(&convs[i], UVC_SIMD_NONE, 1280, 720, 100);
+		const double t1 = benchmark(&convs[i], simd, 1280, 720, 100);
+		printf("%-16s %9.3f %8.3f (x%.1f)\n", convs[i].name, t0, t1, t0 / t1);
+	}
+	return errors ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,351 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * host test for uvc_resize_frame and uvc_yuyv2y8_scaled in frame.c.
+ * this is not a part of the android build, build it on x86/x86_64 host like
+ *   gcc -O2 -DUVC_HAS_SSE2 -DLIBUVC_HAS_JPEG -I<jni> -I<jni>/libusb -I<jni>/libuvc/include \
+ *     -I<jni>/libuvc/include/libuvc -I<jdk>/include -I<jdk>/include/linux \
+ *     test-resize.c frame.c frame-sse2.c frame-mjpeg.c -ljpeg -lpthread -lm -o test-resize
+ * or enable BUILD_FRAME_TEST of CMakeLists.txt.
+ * exit status is non zero when any check fails.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+
+#include "libuvc/libuvc.h"
+
+static int failed = 0;
+
+#define CHECK_TRUE(name, cond) \
+	if (!(cond)) { printf("%-24s NG (%s:%d)\n", name, #cond, __LINE__); failed++; goto end; }
+
+/**
+ * luminance of the test pattern, linear in both directions so that bilinear sampling
+ * of it can be calculated exactly
+ */
+static inline double pattern_y(int x, int y, int width, int height) {
+	return (x * 200.0) / (width - 1) + (y * 55.0) / (height - 1);
+}
+
+static uvc_frame_t *create_input(enum uvc_frame_format format, int width, int height, int padding) {
+	const int step = width * 2 + padding;
+	uvc_frame_t *frame = uvc_allocate_frame(step * height);
+	if (!frame) return NULL;
+	frame->frame_format = format;
+	frame->width = width;
+	frame->height = height;
+	frame->step = step;
+	frame->sequence = 0;
+	memset(&frame->capture_time, 0, sizeof(frame->capture_time));
+	memset(&frame->timestamp, 0, sizeof(frame->timestamp));
+	frame->source = NULL;
+	const int yo = format == UVC_FRAME_FORMAT_UYVY ? 1 : 0;
+	int x, y;
+	for (y = 0; y < height; y++) {
+		uint8_t *row = (uint8_t *)frame->data + step * y;
+		for (x = 0; x < width; x++) {
+			row[x * 2 + yo] = (uint8_t)lround(pattern_y(x, y, width, height));
+			// chroma differs in each macro pixel
+			row[x * 2 + 1 - yo] = (uint8_t)((x & 2) ? 64 + (x >> 2) + y : 192 - (x >> 2) - y);
+		}
+	}
+	return frame;
+}
+
+/**
+ * output frame that the library can resize
+ * (uvc_allocate_frame(0) does not own data and can not be resized)
+ */
+static uvc_frame_t *create_output(void) {
+	return uvc_allocate_frame(1);
+}
+
+/**
+ * 3840 wide source resized to 1280 overflowed 32 bits while calculating the source column
+ * and the right side of the output sampled the first column.
+ * compare with bilinear sampling calculated in double
+ */
+static void test_bilinear_4k(void) {
+	static const char *name = "bilinear 4K";
+	const int in_w = 3840, in_h = 2160;
+	uvc_frame_t *in = create_input(UVC_FRAME_FORMAT_YUYV, in_w, in_h, 0);
+	uvc_frame_t *out = create_output();
+	const uvc_resize_t resize = { 0, 0, 0, 0, 1280, 720, UVC_RESIZE_BILINEAR };
+	int x, y, max_diff = 0;
+	CHECK_TRUE(name, in && out);
+	CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_SUCCESS);
+	CHECK_TRUE(name, (out->width == 1280) && (out->height == 720) && (out->step == 1280));
+	for (y = 0; y < 720; y++) {
+		double sy = (y + 0.5) * in_h / 720 - 0.5;
+		if (sy < 0) sy = 0;
+		for (x = 0; x < 1280; x++) {
+			double sx = (x + 0.5) * in_w / 1280 - 0.5;
+			if (sx < 0) sx = 0;
+			// the pattern is linear, so bilinear sampling is same as the value at (sx, sy)
+			const double expected = (sx * 200.0) / (in_w - 1) + (sy * 55.0) / (in_h - 1);
+			const int diff = abs(((uint8_t *)out->data)[out->step * y + x] - (int)lround(expected));
+			if (diff > max_diff) max_diff = diff;
+		}
+	}
+	CHECK_TRUE(name, max_diff <= 1);
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+/**
+ * resizing to the same size gives the source as it is with any filter
+ */
+static void test_identity(void) {
+	static const char *name = "identity";
+	static const enum uvc_resize_filter filters[] = { UVC_RESIZE_NEAREST, UVC_RESIZE_BILINEAR, UVC_RESIZE_AREA };
+	// padding checks that in->step is respected
+	uvc_frame_t *yuyv = create_input(UVC_FRAME_FORMAT_YUYV, 62, 17, 32);
+	uvc_frame_t *uyvy = create_input(UVC_FRAME_FORMAT_UYVY, 62, 17, 32);
+	uvc_frame_t *out = create_output();
+	int i, x, y;
+	CHECK_TRUE(name, yuyv && uyvy && out);
+	for (i = 0; i < 3; i++) {
+		const uvc_resize_t resize = { 0, 0, 0, 0, 62, 17, filters[i] };
+		CHECK_TRUE(name, uvc_resize_frame(yuyv, out, &resize, UVC_FRAME_FORMAT_YUYV) == UVC_SUCCESS);
+		for (y = 0; y < 17; y++) {
+			CHECK_TRUE(name, !memcmp((uint8_t *)out->data + out->step * y,
+				(uint8_t *)yuyv->data + yuyv->step * y, 62 * 2));
+		}
+		// there is no UYVY output, compare luminance
+		CHECK_TRUE(name, uvc_resize_frame(uyvy, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_SUCCESS);
+		for (y = 0; y < 17; y++) {
+			const uint8_t *src = (const uint8_t *)uyvy->data + uyvy->step * y;
+			const uint8_t *dst = (const uint8_t *)out->data + out->step * y;
+			for (x = 0; x < 62; x++) {
+				CHECK_TRUE(name, dst[x] == src[x * 2 + 1]);
+			}
+		}
+	}
+	printf("%-24s OK\n", name);
+end:
+	if (yuyv) uvc_free_frame(yuyv);
+	if (uyvy) uvc_free_frame(uyvy);
+	if (out) uvc_free_frame(out);
+}
+
+/**
+ * cropping without resizing gives the crop rectangle of the source
+ */
+static void test_crop(void) {
+	static const char *name = "crop";
+	uvc_frame_t *in = create_input(UVC_FRAME_FORMAT_YUYV, 640, 480, 0);
+	uvc_frame_t *out = create_output();
+	const uvc_resize_t resize = { 100, 50, 320, 240, 320, 240, UVC_RESIZE_NEAREST };
+	int y;
+	CHECK_TRUE(name, in && out);
+	CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_YUYV) == UVC_SUCCESS);
+	CHECK_TRUE(name, (out->width == 320) && (out->height == 240) && (out->step == 640));
+	for (y = 0; y < 240; y++) {
+		CHECK_TRUE(name, !memcmp((uint8_t *)out->data + out->step * y,
+			(uint8_t *)in->data + in->step * (50 + y) + 100 * 2, 320 * 2));
+	}
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+/**
+ * area filter gives the rounded average of the source pixels
+ */
+static void test_area(void) {
+	static const char *name = "area";
+	uvc_frame_t *in = create_input(UVC_FRAME_FORMAT_YUYV, 64, 48, 0);
+	uvc_frame_t *out = create_output();
+	const uvc_resize_t resize = { 0, 0, 0, 0, 16, 16, UVC_RESIZE_AREA };
+	int x, y, xx, yy;
+	CHECK_TRUE(name, in && out);
+	CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_SUCCESS);
+	for (y = 0; y < 16; y++) {
+		for (x = 0; x < 16; x++) {
+			// 4x3 pixels of the source for each output pixel
+			int sum = 0;
+			for (yy = y * 3; yy < y * 3 + 3; yy++) {
+				for (xx = x * 4; xx < x * 4 + 4; xx++) {
+					sum += ((uint8_t *)in->data)[in->step * yy + xx * 2];
+				}
+			}
+			CHECK_TRUE(name, ((uint8_t *)out->data)[out->step * y + x] == (sum + 6) / 12);
+		}
+	}
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+/**
+ * size of each output format, chroma plane of NV12/NV21 covers the last column/row of odd size
+ */
+static void test_output_size(void) {
+	static const char *name = "output size";
+	static const struct {
+		enum uvc_frame_format format;
+		int width, height;
+		size_t step, bytes;
+	} cases[] = {
+		{ UVC_FRAME_FORMAT_RGBX, 33, 21, 33 * 4, 33 * 4 * 21 },
+		{ UVC_FRAME_FORMAT_RGB565, 33, 21, 33 * 2, 33 * 2 * 21 },
+		{ UVC_FRAME_FORMAT_YUYV, 34, 21, 34 * 2, 34 * 2 * 21 },
+		{ UVC_FRAME_FORMAT_GRAY8, 33, 21, 33, 33 * 21 },
+		{ UVC_FRAME_FORMAT_NV12, 33, 21, 33, 33 * 21 + 17 * 11 * 2 },
+		{ UVC_FRAME_FORMAT_NV21, 33, 21, 33, 33 * 21 + 17 * 11 * 2 },
+	};
+	uvc_frame_t *in = create_input(UVC_FRAME_FORMAT_YUYV, 320, 240, 0);
+	uvc_frame_t *out = create_output();
+	size_t i;
+	CHECK_TRUE(name, in && out);
+	for (i = 0; i < sizeof(cases) / sizeof(cases[0]); i++) {
+		const uvc_resize_t resize = { 0, 0, 0, 0, cases[i].width, cases[i].height, UVC_RESIZE_BILINEAR };
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, cases[i].format) == UVC_SUCCESS);
+		CHECK_TRUE(name, (out->frame_format == cases[i].format)
+			&& (out->step == cases[i].step) && (out->actual_bytes == cases[i].bytes));
+	}
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+static void test_invalid(void) {
+	static const char *name = "invalid params";
+	uvc_frame_t *in = create_input(UVC_FRAME_FORMAT_YUYV, 320, 240, 0);
+	uvc_frame_t *out = create_output();
+	CHECK_TRUE(name, in && out);
+	{	// crop rectangle outside of the source
+		const uvc_resize_t resize = { 200, 0, 160, 120, 160, 120, UVC_RESIZE_NEAREST };
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_ERROR_INVALID_PARAM);
+	}
+	{	// odd width of YUYV output
+		const uvc_resize_t resize = { 0, 0, 0, 0, 161, 120, UVC_RESIZE_NEAREST };
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_YUYV) == UVC_ERROR_INVALID_PARAM);
+	}
+	{	// empty output
+		const uvc_resize_t resize = { 0, 0, 0, 0, 0, 120, UVC_RESIZE_NEAREST };
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_ERROR_INVALID_PARAM);
+	}
+	{	// source buffer smaller than its size
+		const uvc_resize_t resize = { 0, 0, 0, 0, 160, 120, UVC_RESIZE_NEAREST };
+		in->data_bytes -= 1;
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_ERROR_INVALID_PARAM);
+		in->data_bytes += 1;
+		// compressed source
+		in->frame_format = UVC_FRAME_FORMAT_MJPEG;
+		CHECK_TRUE(name, uvc_resize_frame(in, out, &resize, UVC_FRAME_FORMAT_GRAY8) == UVC_ERROR_NOT_SUPPORTED);
+	}
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+/**
+ * uvc_yuyv2y8_scaled picks Y of every scale_denom-th pixel of every scale_denom-th row
+ */
+static void test_y8_scaled(void) {
+	static const char *name = "y8 scaled";
+	static const enum uvc_frame_format formats[] = { UVC_FRAME_FORMAT_YUYV, UVC_FRAME_FORMAT_UYVY };
+	// includes sizes that are not multiple of scale_denom and widths that are not multiple of 8
+	static const struct { int width, height, padding; } sizes[] = {
+		{ 640, 480, 0 }, { 642, 13, 32 }, { 38, 7, 0 }, { 2, 1, 0 },
+	};
+	static const int denoms[] = { 1, 2, 4, 8 };
+	uvc_frame_t *in = NULL, *out = create_output();
+	size_t f, i, j;
+	int x, y;
+	CHECK_TRUE(name, out);
+	for (f = 0; f < 2; f++) {
+		const int yo = formats[f] == UVC_FRAME_FORMAT_UYVY ? 1 : 0;
+		for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+			in = create_input(formats[f], sizes[i].width, sizes[i].height, sizes[i].padding);
+			CHECK_TRUE(name, in);
+			for (x = 0; x < (int)in->data_bytes; x++) {
+				((uint8_t *)in->data)[x] = (uint8_t)rand();
+			}
+			for (j = 0; j < sizeof(denoms) / sizeof(denoms[0]); j++) {
+				const int d = denoms[j];
+				const int w = (sizes[i].width + d - 1) / d, h = (sizes[i].height + d - 1) / d;
+				CHECK_TRUE(name, uvc_any2y8_scaled(in, out, d) == UVC_SUCCESS);
+				CHECK_TRUE(name, (out->frame_format == UVC_FRAME_FORMAT_GRAY8)
+					&& ((int)out->width == w) && ((int)out->height == h)
+					&& ((int)out->step == w) && ((int)out->actual_bytes == w * h));
+				for (y = 0; y < h; y++) {
+					const uint8_t *src = (const uint8_t *)in->data + in->step * y * d;
+					const uint8_t *dst = (const uint8_t *)out->data + out->step * y;
+					for (x = 0; x < w; x++) {
+						CHECK_TRUE(name, dst[x] == src[x * d * 2 + yo]);
+					}
+				}
+			}
+			uvc_free_frame(in);
+			in = NULL;
+		}
+	}
+	in = create_input(UVC_FRAME_FORMAT_YUYV, 64, 48, 0);
+	CHECK_TRUE(name, in);
+	CHECK_TRUE(name, uvc_yuyv2y8_scaled(in, out, 3) == UVC_ERROR_INVALID_PARAM);
+	CHECK_TRUE(name, uvc_yuyv2y8_scaled(in, out, 0) == UVC_ERROR_INVALID_PARAM);
+	in->data_bytes -= 1;
+	CHECK_TRUE(name, uvc_yuyv2y8_scaled(in, out, 2) == UVC_ERROR_INVALID_PARAM);
+	in->data_bytes += 1;
+	// GRAY8 frame can not be subsampled
+	CHECK_TRUE(name, uvc_yuyv2y8_scaled(in, out, 2) == UVC_SUCCESS);
+	CHECK_TRUE(name, uvc_any2y8_scaled(out, in, 1) == UVC_SUCCESS);
+	CHECK_TRUE(name, uvc_any2y8_scaled(out, in, 2) == UVC_ERROR_NOT_SUPPORTED);
+	printf("%-24s OK\n", name);
+end:
+	if (in) uvc_free_frame(in);
+	if (out) uvc_free_frame(out);
+}
+
+int main(int argc, char **argv) {
+	test_bilinear_4k();
+	test_identity();
+	test_crop();
+	test_area();
+	test_output_size();
+	test_invalid();
+	srand(1);
+	test_y8_scaled();
+	return failed ? EXIT_FAILURE : EXIT_SUCCESS;
+}
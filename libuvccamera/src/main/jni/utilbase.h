@@ -31,6 +31,8 @@
 #endif
 #include <unistd.h>
 #include <libgen.h>
+#include <stdint.h>
+#include <time.h>
 #include "localdefines.h"
 
 #define		SAFE_FREE(p)				{ if (p) { free((p)); (p) = NULL; } }
@@ -223,6 +225,15 @@
 			__FILE__ ":" LITERAL_TO_STRING(__LINE__)            \
 			" Should not be here.");
 
+/**
+ * current time of CLOCK_MONOTONIC in nanoseconds, same clock as capture_ns/arrival_ns of frames
+ */
+static inline int64_t monotonic_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
 void setVM(JavaVM *);
 JavaVM *getVM();
 JNIEnv *getEnv();
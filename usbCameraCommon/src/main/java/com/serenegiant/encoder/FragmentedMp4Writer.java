@@ -0,0 +1,807 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * writes fragmented MP4(ftyp + moov + (moof + mdat)*) files.
+ * unlike MediaMuxer, nothing is written back at the end of the file,
+ * so the file is playable up to the last fragment even if the app is killed while recording.
+ * supports H.264(video/avc) and AAC(audio/mp4a-latm) output of MediaCodec.
+ * tracks are kept over files, so #close and #open start the next file with the same tracks.
+ * writing into the file and fsync at #close run on the writer thread of this class,
+ * so the caller only waits for creating the file and never for the storage.
+ * pending data is kept in memory until the writer thread writes it.
+ * this class is not thread safe, call its methods from single thread.
+ */
+/*package*/ final class FragmentedMp4Writer {
+	private static final int MOVIE_TIMESCALE = 1000;
+	private static final int VIDEO_TIMESCALE = 90000;
+	private static final long DEFAULT_VIDEO_DURATION_US = 33333;	// 30fps
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	private static final int INITIAL_SAMPLES = 64;
+	private static final int INITIAL_DATA_BYTES = 256 * 1024;
+
+	private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+	// data-offset-present, sample-duration-present, sample-size-present, sample-flags-present
+	private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;		// sample_depends_on=2(depends on no other sample)
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;	// sample_depends_on=1, sample_is_non_sync_sample=1
+
+	private static final int NAL_TYPE_SPS = 7;
+	private static final int NAL_TYPE_PPS = 8;
+
+	/**
+	 * track and samples of the fragment that is not written yet
+	 */
+	private static final class Track {
+		private final int id;
+		private final MediaFormat format;
+		private final boolean isVideo;
+		private final int timescale;
+		private byte[] data = new byte[INITIAL_DATA_BYTES];
+		private int dataBytes;
+		private int[] sizes = new int[INITIAL_SAMPLES];
+		private long[] ptsUs = new long[INITIAL_SAMPLES];
+		private boolean[] isSync = new boolean[INITIAL_SAMPLES];
+		private int count;
+		private long lastDurationUs;
+		/** decode time of the end of the last fragment in current file, [timescale] */
+		private long endTime;
+
+		private Track(final int id, final MediaFormat format) {
+			this(id, format, format.getString(MediaFormat.KEY_MIME).startsWith("video/"),
+				format.getString(MediaFormat.KEY_MIME).startsWith("video/")
+					? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+		}
+
+		/**
+		 * @param format null only for test, the track can't be written into ftyp/moov then
+		 */
+		private Track(final int id, final MediaFormat format, final boolean isVideo, final int timescale) {
+			this.id = id;
+			this.format = format;
+			this.isVideo = isVideo;
+			this.timescale = timescale;
+			lastDurationUs = isVideo ? DEFAULT_VIDEO_DURATION_US : AAC_SAMPLES_PER_FRAME * 1000000L / timescale;
+		}
+
+		private void ensureData(final int bytes) {
+			if (dataBytes + bytes > data.length) {
+				final byte[] temp = new byte[Math.max(data.length * 2, dataBytes + bytes)];
+				System.arraycopy(data, 0, temp, 0, dataBytes);
+				data = temp;
+			}
+		}
+
+		private void addSample(final int size, final long pts, final boolean sync) {
+			if (count >= sizes.length) {
+				final int n = count * 2;
+				final int[] s = new int[n];
+				final long[] p = new long[n];
+				final boolean[] f = new boolean[n];
+				System.arraycopy(sizes, 0, s, 0, count);
+				System.arraycopy(ptsUs, 0, p, 0, count);
+				System.arraycopy(isSync, 0, f, 0, count);
+				sizes = s; ptsUs = p; isSync = f;
+			}
+			sizes[count] = size;
+			ptsUs[count] = pts;
+			isSync[count] = sync;
+			count++;
+		}
+	}
+
+	/**
+	 * ISO BMFF box that is built in memory
+	 */
+	private static final class Box {
+		private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(mBytes);
+		private final String mType;
+
+		private Box(final String type) {
+			mType = type;
+		}
+
+		/**
+		 * full box
+		 */
+		private Box(final String type, final int version, final int flags) throws IOException {
+			this(type);
+			out.writeInt((version << 24) | flags);
+		}
+
+		private Box add(final Box child) throws IOException {
+			out.write(child.toByteArray());
+			return this;
+		}
+
+		private byte[] toByteArray() throws IOException {
+			final byte[] payload = mBytes.toByteArray();
+			final ByteArrayOutputStream result = new ByteArrayOutputStream(payload.length + 8);
+			final DataOutputStream o = new DataOutputStream(result);
+			o.writeInt(payload.length + 8);
+			o.writeBytes(mType);
+			o.write(payload);
+			return result.toByteArray();
+		}
+	}
+
+	/**
+	 * data to write into the file or request to close the file, handled on the writer thread
+	 */
+	private static final class Request {
+		private final FileOutputStream out;
+		private final byte[] data;		// null: sync and close the file
+		private final String path;		// notified to Callback after closing, may be null
+
+		private Request(final FileOutputStream out, final byte[] data, final String path) {
+			this.out = out;
+			this.data = data;
+			this.path = path;
+		}
+	}
+
+	/*package*/ interface Callback {
+		/**
+		 * called on the writer thread when the file that was closed by #close is written and synced
+		 * @param path path of the closed file
+		 */
+		public void onClosed(final String path);
+	}
+
+	private final Callback mCallback;
+	private final List<Track> mTracks = new ArrayList<Track>();
+	private final LinkedList<Request> mQueue = new LinkedList<Request>();
+	private Thread mWriterThread;
+	private boolean mQuit;
+	private volatile IOException mError;
+	private FileOutputStream mOut;
+	private String mPath;
+	private byte[] mWork = new byte[INITIAL_DATA_BYTES];
+	private long mStartUs = -1;
+	private int mSequenceNumber;
+
+	public FragmentedMp4Writer() {
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 * @param callback may be null
+	 */
+	public FragmentedMp4Writer(final Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * add track, all tracks should be added before the first #open
+	 * @param format output format of MediaCodec that has codec specific data
+	 * @return track index
+	 */
+	public int addTrack(final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if (!"video/avc".equals(mime) && !"audio/mp4a-latm".equals(mime)) {
+			throw new IllegalArgumentException("unsupported mime type:" + mime);
+		}
+		if (mOut != null) {
+			throw new IllegalStateException("file already opened");
+		}
+		final int trackIx = mTracks.size();
+		mTracks.add(new Track(trackIx + 1, format));
+		return trackIx;
+	}
+
+	/**
+	 * add track without MediaFormat for test, #open can't be called after this.
+	 * use #writeFragment instead of #flushFragment to get fragments
+	 * @param timescale sample rate of audio track, ignored for video track
+	 * @return track index
+	 */
+	/*package*/ int addTrack(final boolean isVideo, final int timescale) {
+		if (mOut != null) {
+			throw new IllegalStateException("file already opened");
+		}
+		final int trackIx = mTracks.size();
+		mTracks.add(new Track(trackIx + 1, null, isVideo, isVideo ? VIDEO_TIMESCALE : timescale));
+		return trackIx;
+	}
+
+	public boolean isOpened() {
+		return mOut != null;
+	}
+
+	/**
+	 * start new file and write ftyp and moov, time of the file starts from the next sample
+	 * @throws IOException if the file can't be created or writing of previous file failed
+	 */
+	public void open(final String path) throws IOException {
+		if (mOut != null) {
+			throw new IllegalStateException("file already opened");
+		}
+		checkError();
+		final byte[] header = createInitSegment();
+		mOut = new FileOutputStream(path);
+		mPath = path;
+		if (mWriterThread == null) {
+			mQuit = false;
+			mWriterThread = new Thread(mWriterTask, "FragmentedMp4Writer");
+			mWriterThread.start();
+		}
+		queue(new Request(mOut, header, null));
+		mStartUs = -1;
+		mSequenceNumber = 0;
+		for (final Track track: mTracks) {
+			track.endTime = 0;
+		}
+	}
+
+	/**
+	 * write the fragment that is not written yet and close the file,
+	 * the file is synced and closed on the writer thread and then notified to Callback
+	 */
+	public void close() throws IOException {
+		finish(mPath);
+	}
+
+	/**
+	 * close the file without notifying Callback and wait until all pending data is written,
+	 * #open can be called again after this
+	 */
+	public void release() throws IOException {
+		try {
+			finish(null);
+		} finally {
+			final Thread thread = mWriterThread;
+			mWriterThread = null;
+			if (thread != null) {
+				synchronized (mQueue) {
+					mQuit = true;
+					mQueue.notifyAll();
+				}
+				try {
+					thread.join();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		}
+		checkError();
+	}
+
+	private void finish(final String notifyPath) throws IOException {
+		if (mOut == null) return;
+		try {
+			flushFragment();
+		} finally {
+			queue(new Request(mOut, null, notifyPath));
+			mOut = null;
+			mPath = null;
+		}
+	}
+
+	/**
+	 * add encoded data to the current fragment, this does not write anything to the file.
+	 * H.264 NAL units are converted from Annex-B byte stream to 4 bytes length prefixed ones.
+	 */
+	@SuppressWarnings("deprecation")
+	public void writeSample(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		writeSample(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs,
+			(bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+	}
+
+	/**
+	 * same as #writeSample(int, ByteBuffer, MediaCodec.BufferInfo) with the values of BufferInfo
+	 * @param isKeyFrame ignored for audio track, all audio samples are sync samples
+	 */
+	/*package*/ void writeSample(final int trackIndex, final ByteBuffer byteBuf,
+		final int offset, final int size, final long ptsUs, final boolean isKeyFrame) {
+
+		final Track track = mTracks.get(trackIndex);
+		if (mWork.length < size) {
+			mWork = new byte[size];
+		}
+		final ByteBuffer buf = byteBuf.duplicate();
+		buf.limit(offset + size);
+		buf.position(offset);
+		buf.get(mWork, 0, size);
+		if (mStartUs < 0) {
+			mStartUs = ptsUs;
+		}
+		final int start = track.dataBytes;
+		if (track.isVideo) {
+			appendNalUnits(track, mWork, size);
+		} else {
+			track.ensureData(size);
+			System.arraycopy(mWork, 0, track.data, track.dataBytes, size);
+			track.dataBytes += size;
+		}
+		track.addSample(track.dataBytes - start, ptsUs, !track.isVideo || isKeyFrame);
+	}
+
+	/**
+	 * pass samples that were added by #writeSample to the writer thread as a fragment(moof + mdat)
+	 * @throws IOException if writing on the writer thread failed, the file keeps the fragments before it
+	 */
+	public void flushFragment() throws IOException {
+		checkError();
+		if (mOut == null) return;
+		final ByteArrayOutputStream fragment = new ByteArrayOutputStream(INITIAL_DATA_BYTES);
+		writeFragment(fragment);
+		if (fragment.size() > 0) {
+			queue(new Request(mOut, fragment.toByteArray(), null));
+		}
+	}
+
+	private void checkError() throws IOException {
+		final IOException e = mError;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private void queue(final Request request) {
+		synchronized (mQueue) {
+			mQueue.addLast(request);
+			mQueue.notifyAll();
+		}
+	}
+
+	/**
+	 * write queued requests until #release, nothing is written into the files after an error
+	 */
+	private final Runnable mWriterTask = new Runnable() {
+		@Override
+		public void run() {
+			for ( ; ; ) {
+				final Request request;
+				synchronized (mQueue) {
+					while (mQueue.isEmpty() && !mQuit) {
+						try {
+							mQueue.wait();
+						} catch (final InterruptedException e) {
+							mQuit = true;
+						}
+					}
+					if (mQueue.isEmpty()) break;
+					request = mQueue.removeFirst();
+				}
+				handleRequest(request);
+			}
+		}
+	};
+
+	private void handleRequest(final Request request) {
+		try {
+			if (request.data != null) {
+				if (mError == null) {
+					request.out.write(request.data);
+				}
+			} else {
+				try {
+					if (mError == null) {
+						request.out.getFD().sync();
+					}
+				} finally {
+					request.out.close();
+				}
+				if ((request.path != null) && (mError == null) && (mCallback != null)) {
+					mCallback.onClosed(request.path);
+				}
+			}
+		} catch (final IOException e) {
+			if (mError == null) {
+				mError = e;
+			}
+		}
+	}
+
+	/**
+	 * write samples that were added by #writeSample as a fragment(moof + mdat) into out,
+	 * nothing is written if there is no sample
+	 */
+	/*package*/ void writeFragment(final OutputStream out) throws IOException {
+		int moofBytes = 24;	// moof header + mfhd
+		int mdatBytes = 8;
+		for (final Track track: mTracks) {
+			if (track.count > 0) {
+				// traf + tfhd + tfdt(version 1) + trun
+				moofBytes += 64 + 12 * track.count;
+				mdatBytes += track.dataBytes;
+			}
+		}
+		if (mdatBytes == 8) return;
+		mSequenceNumber++;
+		final Box moof = new Box("moof");
+		final Box mfhd = new Box("mfhd", 0, 0);
+		mfhd.out.writeInt(mSequenceNumber);
+		moof.add(mfhd);
+		int dataOffset = moofBytes + 8;	// from the start of moof to the data in mdat
+		for (final Track track: mTracks) {
+			final int n = track.count;
+			if (n == 0) continue;
+			if (n > 1) {
+				track.lastDurationUs = Math.max(track.ptsUs[n - 1] - track.ptsUs[n - 2], 1);
+			}
+			final long base = Math.max(toTimescale(track, track.ptsUs[0]), track.endTime);
+			final long lastDuration = Math.max(track.lastDurationUs * track.timescale / 1000000L, 1);
+			final Box traf = new Box("traf");
+			final Box tfhd = new Box("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+			tfhd.out.writeInt(track.id);
+			final Box tfdt = new Box("tfdt", 1, 0);
+			tfdt.out.writeLong(base);
+			final Box trun = new Box("trun", 0, TRUN_FLAGS);
+			trun.out.writeInt(n);
+			trun.out.writeInt(dataOffset);
+			long time = base;
+			for (int i = 0; i < n; i++) {
+				final long end = (i + 1 < n)
+					? Math.max(toTimescale(track, track.ptsUs[i + 1]), time) : time + lastDuration;
+				trun.out.writeInt((int)(end - time));
+				trun.out.writeInt(track.sizes[i]);
+				trun.out.writeInt(track.isSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+				time = end;
+			}
+			track.endTime = time;
+			moof.add(traf.add(tfhd).add(tfdt).add(trun));
+			dataOffset += track.dataBytes;
+		}
+		final byte[] header = moof.toByteArray();
+		if (header.length != moofBytes) {
+			throw new IllegalStateException("unexpected moof size:" + header.length);
+		}
+		final ByteArrayOutputStream mdat = new ByteArrayOutputStream(8);
+		final DataOutputStream mdatOut = new DataOutputStream(mdat);
+		mdatOut.writeInt(mdatBytes);
+		mdatOut.writeBytes("mdat");
+		out.write(header);
+		out.write(mdat.toByteArray());
+		for (final Track track: mTracks) {
+			if (track.count > 0) {
+				out.write(track.data, 0, track.dataBytes);
+				track.count = track.dataBytes = 0;
+			}
+		}
+	}
+
+	private long toTimescale(final Track track, final long ptsUs) {
+		return Math.max(ptsUs - mStartUs, 0) * track.timescale / 1000000L;
+	}
+
+	/**
+	 * @return index of the next start code(00 00 01) at or after from, or length if not found
+	 */
+	private static int findStartCode(final byte[] src, final int from, final int length) {
+		for (int i = from; i + 2 < length; i++) {
+			if ((src[i] == 0) && (src[i + 1] == 0) && (src[i + 2] == 1)) {
+				return i;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * append NAL units in Annex-B byte stream with 4 bytes length instead of start code
+	 */
+	private static void appendNalUnits(final Track track, final byte[] src, final int length) {
+		int start = findStartCode(src, 0, length);
+		if (start == length) {
+			// no start code, this should be a single NAL unit
+			appendNalUnit(track, src, 0, length);
+			return;
+		}
+		while (start < length) {
+			final int nalStart = start + 3;
+			final int next = findStartCode(src, nalStart, length);
+			int nalEnd = next;
+			// remove trailing zero and leading zero of 4 bytes start code
+			while ((next < length) && (nalEnd > nalStart) && (src[nalEnd - 1] == 0)) {
+				nalEnd--;
+			}
+			if (nalEnd > nalStart) {
+				appendNalUnit(track, src, nalStart, nalEnd - nalStart);
+			}
+			start = next;
+		}
+	}
+
+	private static void appendNalUnit(final Track track, final byte[] src, final int offset, final int length) {
+		track.ensureData(length + 4);
+		final byte[] data = track.data;
+		int ix = track.dataBytes;
+		data[ix++] = (byte)(length >>> 24);
+		data[ix++] = (byte)(length >>> 16);
+		data[ix++] = (byte)(length >>> 8);
+		data[ix++] = (byte)length;
+		System.arraycopy(src, offset, data, ix, length);
+		track.dataBytes = ix + length;
+	}
+
+	/**
+	 * @return NAL units in the codec specific data without start code
+	 */
+	private static List<byte[]> splitNalUnits(final ByteBuffer csd) {
+		final List<byte[]> result = new ArrayList<byte[]>();
+		final ByteBuffer buf = csd.duplicate();
+		buf.rewind();
+		final byte[] src = new byte[buf.remaining()];
+		buf.get(src);
+		int start = findStartCode(src, 0, src.length);
+		if (start == src.length) {
+			result.add(src);
+			return result;
+		}
+		while (start < src.length) {
+			final int nalStart = start + 3;
+			final int next = findStartCode(src, nalStart, src.length);
+			int nalEnd = next;
+			while ((next < src.length) && (nalEnd > nalStart) && (src[nalEnd - 1] == 0)) {
+				nalEnd--;
+			}
+			if (nalEnd > nalStart) {
+				final byte[] nal = new byte[nalEnd - nalStart];
+				System.arraycopy(src, nalStart, nal, 0, nal.length);
+				result.add(nal);
+			}
+			start = next;
+		}
+		return result;
+	}
+
+//********************************************************************************
+//********************************************************************************
+	private byte[] createInitSegment() throws IOException {
+		final Box ftyp = new Box("ftyp");
+		ftyp.out.writeBytes("isom");		// major brand
+		ftyp.out.writeInt(0x200);			// minor version
+		ftyp.out.writeBytes("isom");
+		ftyp.out.writeBytes("iso6");
+		ftyp.out.writeBytes("avc1");
+		ftyp.out.writeBytes("mp41");
+
+		final Box moov = new Box("moov");
+		final Box mvhd = new Box("mvhd", 0, 0);
+		mvhd.out.writeInt(0);				// creation_time
+		mvhd.out.writeInt(0);				// modification_time
+		mvhd.out.writeInt(MOVIE_TIMESCALE);
+		mvhd.out.writeInt(0);				// duration, unknown for fragmented file
+		mvhd.out.writeInt(0x00010000);		// rate = 1.0
+		mvhd.out.writeShort(0x0100);		// volume = 1.0
+		mvhd.out.writeShort(0);				// reserved
+		mvhd.out.writeLong(0);				// reserved
+		writeMatrix(mvhd.out);
+		for (int i = 0; i < 6; i++) {
+			mvhd.out.writeInt(0);			// pre_defined
+		}
+		mvhd.out.writeInt(mTracks.size() + 1);	// next_track_ID
+		moov.add(mvhd);
+
+		final Box mvex = new Box("mvex");
+		for (final Track track: mTracks) {
+			moov.add(createTrak(track));
+			final Box trex = new Box("trex", 0, 0);
+			trex.out.writeInt(track.id);
+			trex.out.writeInt(1);			// default_sample_description_index
+			trex.out.writeInt(0);			// default_sample_duration
+			trex.out.writeInt(0);			// default_sample_size
+			trex.out.writeInt(0);			// default_sample_flags
+			mvex.add(trex);
+		}
+		moov.add(mvex);
+
+		final byte[] header = ftyp.toByteArray();
+		final byte[] body = moov.toByteArray();
+		final byte[] result = new byte[header.length + body.length];
+		System.arraycopy(header, 0, result, 0, header.length);
+		System.arraycopy(body, 0, result, header.length, body.length);
+		return result;
+	}
+
+	private static void writeMatrix(final DataOutputStream out) throws IOException {
+		out.writeInt(0x00010000); out.writeInt(0); out.writeInt(0);
+		out.writeInt(0); out.writeInt(0x00010000); out.writeInt(0);
+		out.writeInt(0); out.writeInt(0); out.writeInt(0x40000000);
+	}
+
+	private static Box createTrak(final Track track) throws IOException {
+		final int width = track.isVideo ? track.format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+		final int height = track.isVideo ? track.format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+
+		final Box tkhd = new Box("tkhd", 0, 0x000003);	// track_enabled | track_in_movie
+		tkhd.out.writeInt(0);				// creation_time
+		tkhd.out.writeInt(0);				// modification_time
+		tkhd.out.writeInt(track.id);
+		tkhd.out.writeInt(0);				// reserved
+		tkhd.out.writeInt(0);				// duration
+		tkhd.out.writeLong(0);				// reserved
+		tkhd.out.writeShort(0);				// layer
+		tkhd.out.writeShort(0);				// alternate_group
+		tkhd.out.writeShort(track.isVideo ? 0 : 0x0100);	// volume
+		tkhd.out.writeShort(0);				// reserved
+		writeMatrix(tkhd.out);
+		tkhd.out.writeInt(width << 16);
+		tkhd.out.writeInt(height << 16);
+
+		final Box mdhd = new Box("mdhd", 0, 0);
+		mdhd.out.writeInt(0);				// creation_time
+		mdhd.out.writeInt(0);				// modification_time
+		mdhd.out.writeInt(track.timescale);
+		mdhd.out.writeInt(0);				// duration
+		mdhd.out.writeShort(0x55c4);		// language = 'und'
+		mdhd.out.writeShort(0);				// pre_defined
+
+		final Box hdlr = new Box("hdlr", 0, 0);
+		hdlr.out.writeInt(0);				// pre_defined
+		hdlr.out.writeBytes(track.isVideo ? "vide" : "soun");
+		hdlr.out.writeInt(0);				// reserved
+		hdlr.out.writeInt(0);
+		hdlr.out.writeInt(0);
+		hdlr.out.writeBytes(track.isVideo ? "VideoHandler" : "SoundHandler");
+		hdlr.out.writeByte(0);
+
+		final Box mediaHeader;
+		if (track.isVideo) {
+			mediaHeader = new Box("vmhd", 0, 1);
+			mediaHeader.out.writeShort(0);	// graphicsmode
+			mediaHeader.out.writeShort(0);	// opcolor
+			mediaHeader.out.writeShort(0);
+			mediaHeader.out.writeShort(0);
+		} else {
+			mediaHeader = new Box("smhd", 0, 0);
+			mediaHeader.out.writeShort(0);	// balance
+			mediaHeader.out.writeShort(0);	// reserved
+		}
+
+		final Box dref = new Box("dref", 0, 0);
+		dref.out.writeInt(1);				// entry_count
+		dref.add(new Box("url ", 0, 1));	// media data is in the same file
+
+		final Box stsd = new Box("stsd", 0, 0);
+		stsd.out.writeInt(1);				// entry_count
+		stsd.add(track.isVideo ? createAvc1(track, width, height) : createMp4a(track));
+		// sample tables are empty, samples are in fragments
+		final Box stts = new Box("stts", 0, 0);
+		stts.out.writeInt(0);
+		final Box stsc = new Box("stsc", 0, 0);
+		stsc.out.writeInt(0);
+		final Box stsz = new Box("stsz", 0, 0);
+		stsz.out.writeInt(0);				// sample_size
+		stsz.out.writeInt(0);				// sample_count
+		final Box stco = new Box("stco", 0, 0);
+		stco.out.writeInt(0);
+
+		final Box stbl = new Box("stbl").add(stsd).add(stts).add(stsc).add(stsz).add(stco);
+		final Box minf = new Box("minf").add(mediaHeader).add(new Box("dinf").add(dref)).add(stbl);
+		final Box mdia = new Box("mdia").add(mdhd).add(hdlr).add(minf);
+		return new Box("trak").add(tkhd).add(mdia);
+	}
+
+	private static Box createAvc1(final Track track, final int width, final int height) throws IOException {
+		byte[] sps = null;
+		final List<byte[]> ppsList = new ArrayList<byte[]>();
+		for (final String key: new String[] { "csd-0", "csd-1" }) {
+			final ByteBuffer csd = track.format.getByteBuffer(key);
+			if (csd == null) continue;
+			for (final byte[] nal: splitNalUnits(csd)) {
+				final int type = nal[0] & 0x1f;
+				if ((type == NAL_TYPE_SPS) && (sps == null)) {
+					sps = nal;
+				} else if (type == NAL_TYPE_PPS) {
+					ppsList.add(nal);
+				}
+			}
+		}
+		if ((sps == null) || (sps.length < 4) || ppsList.isEmpty()) {
+			throw new IOException("no SPS/PPS in output format");
+		}
+
+		final Box avcC = new Box("avcC");
+		avcC.out.writeByte(1);				// configurationVersion
+		avcC.out.writeByte(sps[1]);			// AVCProfileIndication
+		avcC.out.writeByte(sps[2]);			// profile_compatibility
+		avcC.out.writeByte(sps[3]);			// AVCLevelIndication
+		avcC.out.writeByte(0xff);			// lengthSizeMinusOne = 3
+		avcC.out.writeByte(0xe1);			// numOfSequenceParameterSets = 1
+		avcC.out.writeShort(sps.length);
+		avcC.out.write(sps);
+		avcC.out.writeByte(ppsList.size());
+		for (final byte[] pps: ppsList) {
+			avcC.out.writeShort(pps.length);
+			avcC.out.write(pps);
+		}
+
+		final Box avc1 = new Box("avc1");
+		avc1.out.write(new byte[6]);		// reserved
+		avc1.out.writeShort(1);				// data_reference_index
+		avc1.out.writeShort(0);				// pre_defined
+		avc1.out.writeShort(0);				// reserved
+		avc1.out.write(new byte[12]);		// pre_defined
+		avc1.out.writeShort(width);
+		avc1.out.writeShort(height);
+		avc1.out.writeInt(0x00480000);		// horizresolution = 72dpi
+		avc1.out.writeInt(0x00480000);		// vertresolution = 72dpi
+		avc1.out.writeInt(0);				// reserved
+		avc1.out.writeShort(1);				// frame_count
+		avc1.out.write(new byte[32]);		// compressorname
+		avc1.out.writeShort(0x0018);		// depth
+		avc1.out.writeShort(-1);			// pre_defined
+		return avc1.add(avcC);
+	}
+
+	private static Box createMp4a(final Track track) throws IOException {
+		final ByteBuffer csd = track.format.getByteBuffer("csd-0");
+		if (csd == null) {
+			throw new IOException("no AudioSpecificConfig in output format");
+		}
+		final ByteBuffer buf = csd.duplicate();
+		buf.rewind();
+		final byte[] asc = new byte[buf.remaining()];
+		buf.get(asc);
+		final int channels = track.format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+		final Box esds = new Box("esds", 0, 0);
+		esds.out.writeByte(0x03);			// ES_DescrTag
+		esds.out.writeByte(23 + asc.length);
+		esds.out.writeShort(0);				// ES_ID
+		esds.out.writeByte(0);				// flags
+		esds.out.writeByte(0x04);			// DecoderConfigDescrTag
+		esds.out.writeByte(15 + asc.length);
+		esds.out.writeByte(0x40);			// objectTypeIndication = MPEG-4 audio
+		esds.out.writeByte(0x15);			// streamType = audio, upStream = 0, reserved = 1
+		esds.out.writeByte(0);				// bufferSizeDB
+		esds.out.writeShort(0);
+		esds.out.writeInt(0);				// maxBitrate
+		esds.out.writeInt(0);				// avgBitrate
+		esds.out.writeByte(0x05);			// DecSpecificInfoTag
+		esds.out.writeByte(asc.length);
+		esds.out.write(asc);
+		esds.out.writeByte(0x06);			// SLConfigDescrTag
+		esds.out.writeByte(1);
+		esds.out.writeByte(0x02);			// predefined = MP4
+
+		final Box mp4a = new Box("mp4a");
+		mp4a.out.write(new byte[6]);		// reserved
+		mp4a.out.writeShort(1);				// data_reference_index
+		mp4a.out.writeLong(0);				// reserved
+		mp4a.out.writeShort(channels);
+		mp4a.out.writeShort(16);			// samplesize
+		mp4a.out.writeShort(0);				// pre_defined
+		mp4a.out.writeShort(0);				// reserved
+		mp4a.out.writeInt(track.timescale << 16);	// samplerate
+		return mp4a.add(esds);
+	}
+}
@@ -27,8 +27,11 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 public abstract class MediaEncoder implements Runnable {
@@ -205,6 +208,30 @@ public abstract class MediaEncoder implements Runnable {
 		}
 	}
 
+	/**
+	 * request the encoder to output a key frame as soon as possible.
+	 * this is ignored on API<19, key frames come only every KEY_I_FRAME_INTERVAL then
+	 */
+	/*package*/ void requestSyncFrame() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			internalRequestSyncFrame();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void internalRequestSyncFrame() {
+		final MediaCodec codec = mMediaCodec;
+		if (codec != null) {
+			try {
+				final Bundle params = new Bundle();
+				params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+				codec.setParameters(params);
+			} catch (final Exception e) {
+				Log.w(TAG, "failed to request sync frame", e);
+			}
+		}
+	}
+
 //********************************************************************************
 //********************************************************************************
     /**
@@ -413,7 +440,7 @@ LOOP:	while (mIsCapturing) {
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
                     // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
+                   	mBufferInfo.presentationTimeUs = getOutputPTSUs(mBufferInfo.presentationTimeUs);
                    	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
 					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
@@ -431,7 +458,7 @@ LOOP:	while (mIsCapturing) {
     /**
      * previous presentationTimeUs for writing
      */
-	private long prevOutputPTSUs = 0;
+	protected long prevOutputPTSUs = 0;
 	/**
 	 * get next encoding presentationTimeUs
 	 * @return
@@ -445,4 +472,13 @@ LOOP:	while (mIsCapturing) {
 		return result;
     }
 
+	/**
+	 * get presentationTimeUs for writing encoded data
+	 * @param encodedPTSUs presentationTimeUs that the encoder output with the encoded data
+	 * @return
+	 */
+    protected long getOutputPTSUs(final long encodedPTSUs) {
+    	return getPTSUs();
+    }
+
 }
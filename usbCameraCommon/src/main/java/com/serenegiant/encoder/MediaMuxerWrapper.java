@@ -45,7 +45,7 @@ public class MediaMuxerWrapper {
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
 	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	private final MediaMuxer mMediaMuxer;	// API >= 18, null if sub class writes the file by itself
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
 	private MediaEncoder mVideoEncoder, mAudioEncoder;
@@ -55,14 +55,26 @@ public class MediaMuxerWrapper {
 	 * @param ext extension of output file
 	 * @throws IOException
 	 */
-	public MediaMuxerWrapper(String ext) throws IOException {
+	public MediaMuxerWrapper(final String ext) throws IOException {
+		this(ext, true);
+	}
+
+	/**
+	 * Constructor for sub class
+	 * @param ext extension of output file
+	 * @param useMediaMuxer false if sub class writes the file by itself,
+	 * it should override #internalAddTrack, #internalStart, #internalStop and #internalWriteSampleData then
+	 * @throws IOException
+	 */
+	protected MediaMuxerWrapper(String ext, final boolean useMediaMuxer) throws IOException {
 		if (TextUtils.isEmpty(ext)) ext = ".mp4";
 		try {
 			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
 		} catch (final NullPointerException e) {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
-		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		mMediaMuxer = useMediaMuxer
+			? new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) : null;
 		mEncoderCount = mStatredCount = 0;
 		mIsStarted = false;
 	}
@@ -134,7 +146,7 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "start:");
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-			mMediaMuxer.start();
+			internalStart();
 			mIsStarted = true;
 			notifyAll();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
@@ -150,7 +162,7 @@ public class MediaMuxerWrapper {
 		mStatredCount--;
 		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
 			try {
-				mMediaMuxer.stop();
+				internalStop();
 			} catch (final Exception e) {
 				Log.w(TAG, e);
 			}
@@ -167,7 +179,7 @@ public class MediaMuxerWrapper {
 	/*package*/ synchronized int addTrack(final MediaFormat format) {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
-		final int trackIx = mMediaMuxer.addTrack(format);
+		final int trackIx = internalAddTrack(format);
 		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
 		return trackIx;
 	}
@@ -180,7 +192,48 @@ public class MediaMuxerWrapper {
 	 */
 	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
 		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			internalWriteSampleData(trackIndex, byteBuf, bufferInfo);
+	}
+
+	/**
+	 * request the video encoder to output a key frame as soon as possible
+	 */
+	protected void requestSyncFrame() {
+		final MediaEncoder encoder = mVideoEncoder;
+		if (encoder != null) {
+			encoder.requestSyncFrame();
+		}
+	}
+
+//**********************************************************************
+//**********************************************************************
+	/**
+	 * called when all encoders added their track
+	 */
+	protected void internalStart() {
+		mMediaMuxer.start();
+	}
+
+	/**
+	 * called when all encoders received EOS
+	 */
+	protected void internalStop() {
+		mMediaMuxer.stop();
+	}
+
+	/**
+	 * @param format output format of encoder
+	 * @return track index
+	 */
+	protected int internalAddTrack(final MediaFormat format) {
+		return mMediaMuxer.addTrack(format);
+	}
+
+	/**
+	 * write encoded data to file, called while holding the lock of this instance
+	 */
+	protected void internalWriteSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
 	}
 
 //**********************************************************************
@@ -67,6 +67,27 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 		encode(buffer, buffer.capacity(), getPTSUs());
     }
 
+	/**
+	 * encode the frame with its capture time,
+	 * use this with ITimestampedFrameCallback so that queueing jitter does not affect the recorded movie
+	 * @param buffer
+	 * @param captureTimeNs capture time of the frame that ITimestampedFrameCallback#onFrame received
+	 */
+	public void encode(final ByteBuffer buffer, final long captureTimeNs) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) return;
+		}
+		encode(buffer, buffer.capacity(), captureTimeNs / 1000L);
+	}
+
+	/**
+	 * keep presentationTimeUs of the input frame because it is the capture time of the frame
+	 */
+	@Override
+	protected long getOutputPTSUs(final long encodedPTSUs) {
+		return encodedPTSUs > prevOutputPTSUs ? encodedPTSUs : prevOutputPTSUs + 1;
+	}
+
 	@Override
 	protected void prepare() throws IOException {
 		if (DEBUG) Log.i(TAG, "prepare: ");
@@ -139,6 +160,32 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
         return null;
     }
 
+    /**
+     * color format of the first h.264 encoder that we can use,
+     * e.g. for UVCCamera#startEncoder that receives frames in the same format as this class
+     * @return 0 if no encoder is available
+     */
+    @SuppressWarnings("deprecation")
+    public static final int selectColorFormat() {
+        final int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            final String[] types = codecInfo.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+                if (types[j].equalsIgnoreCase(MIME_TYPE)) {
+            		final int format = selectColorFormat(codecInfo, MIME_TYPE);
+                	if (format > 0) {
+                		return format;
+                	}
+                }
+            }
+        }
+        return 0;
+    }
+
     /**
      * select color format available on specific codec and we can use.
      * @return 0 if no colorFormat is matched
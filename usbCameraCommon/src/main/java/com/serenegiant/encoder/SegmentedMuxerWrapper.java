@@ -0,0 +1,198 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * MediaMuxerWrapper that splits recording into fixed duration segments of fragmented MP4
+ * while encoders keep running, so there is no codec restart nor gap between segments.
+ * a segment ends at the first key frame after the segment duration elapses
+ * (the video encoder is requested to output a key frame then), so every segment starts with a key frame.
+ * samples are written as a fragment every FRAGMENT_DURATION_US, each segment is playable
+ * up to the last fragment even if the app is killed while recording.
+ * the files are written and synced on the writer thread of FragmentedMp4Writer,
+ * so the drain threads of the encoders never wait for the storage at fragment and segment boundaries.
+ * file names are the name of MediaMuxerWrapper with the sequence number of segment, e.g. "2017-01-01-00-00-00-001.mp4"
+ */
+public class SegmentedMuxerWrapper extends MediaMuxerWrapper {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "SegmentedMuxerWrapper";
+
+	private static final long FRAGMENT_DURATION_US = 1000000L;
+
+	public interface SegmentListener {
+		/**
+		 * called on the writer thread when a segment is finished and synced to the storage
+		 * while the next segment is being recorded.
+		 * the last segment is not notified here, it is #getOutputPath when the encoder stopped.
+		 * @param path path of the finished segment
+		 */
+		public void onSegmentFinished(final String path);
+	}
+
+	private final FragmentedMp4Writer mWriter;
+	private final long mSegmentDurationUs;
+	private final SegmentListener mListener;
+	private final String mBasePath, mExt;
+	private String mSegmentPath;
+	private int mSegmentCount;
+	private int mVideoTrackIndex = -1;
+	private long mSegmentStartUs = -1, mFragmentStartUs = -1;
+	private boolean mSyncFrameRequested;
+	private boolean mFailed;
+
+	/**
+	 * Constructor
+	 * @param ext extension of output file, should be ".mp4"(or ".m4a" for audio only)
+	 * @param segmentDurationUs duration of each segment
+	 * @param listener may be null
+	 * @throws IOException
+	 */
+	public SegmentedMuxerWrapper(final String ext,
+		final long segmentDurationUs, final SegmentListener listener) throws IOException {
+
+		super(ext, false);
+		if (segmentDurationUs <= 0) {
+			throw new IllegalArgumentException("segment duration should be positive");
+		}
+		mSegmentDurationUs = segmentDurationUs;
+		mListener = listener;
+		mWriter = new FragmentedMp4Writer(mWriterCallback);
+		final String path = super.getOutputPath();
+		final int ix = path.lastIndexOf('.');
+		mBasePath = ix > 0 ? path.substring(0, ix) : path;
+		mExt = ix > 0 ? path.substring(ix) : "";
+	}
+
+	/**
+	 * @return path of current segment
+	 */
+	@Override
+	public synchronized String getOutputPath() {
+		return mSegmentPath != null ? mSegmentPath : super.getOutputPath();
+	}
+
+	@Override
+	protected int internalAddTrack(final MediaFormat format) {
+		final int trackIx = mWriter.addTrack(format);
+		if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+			mVideoTrackIndex = trackIx;
+		}
+		return trackIx;
+	}
+
+	@Override
+	protected void internalStart() {
+		try {
+			openSegment();
+		} catch (final IOException e) {
+			throw new IllegalStateException("failed to start segment", e);
+		}
+	}
+
+	@Override
+	protected void internalStop() {
+		try {
+			// wait for the last segment so that it is complete when the encoder stopped
+			mWriter.release();
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+		}
+		if (DEBUG) Log.v(TAG, "internalStop:segments=" + mSegmentCount);
+	}
+
+	/**
+	 * samples of video track(or audio track when recording audio only) decide the timing of
+	 * fragments and segments, samples of the other track just go into the current fragment
+	 */
+	@SuppressWarnings("deprecation")
+	@Override
+	protected void internalWriteSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		if (mFailed) return;
+		try {
+			if ((trackIndex == mVideoTrackIndex) || (mVideoTrackIndex < 0)) {
+				final long ptsUs = bufferInfo.presentationTimeUs;
+				final boolean isKeyFrame = (mVideoTrackIndex < 0)
+					|| ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+				if (mSegmentStartUs < 0) {
+					mSegmentStartUs = mFragmentStartUs = ptsUs;
+				}
+				if (ptsUs - mSegmentStartUs >= mSegmentDurationUs) {
+					if (isKeyFrame) {
+						rollover();
+						mSegmentStartUs = mFragmentStartUs = ptsUs;
+					} else if (!mSyncFrameRequested) {
+						mSyncFrameRequested = true;
+						requestSyncFrame();
+					}
+				} else if (ptsUs - mFragmentStartUs >= FRAGMENT_DURATION_US) {
+					mWriter.flushFragment();
+					mFragmentStartUs = ptsUs;
+				}
+			}
+			mWriter.writeSample(trackIndex, byteBuf, bufferInfo);
+		} catch (final IOException e) {
+			// stop writing but keep the segments that were already written
+			Log.e(TAG, "failed to write segment:" + mSegmentPath, e);
+			mFailed = true;
+		}
+	}
+
+	/**
+	 * finish current segment and start next one
+	 */
+	private void rollover() throws IOException {
+		if (DEBUG) Log.v(TAG, "rollover:finished " + mSegmentPath);
+		mWriter.close();
+		openSegment();
+	}
+
+	private void openSegment() throws IOException {
+		mSegmentCount++;
+		mSegmentPath = String.format(Locale.US, "%s-%03d%s", mBasePath, mSegmentCount, mExt);
+		mWriter.open(mSegmentPath);
+		mSyncFrameRequested = false;
+	}
+
+	private final FragmentedMp4Writer.Callback mWriterCallback = new FragmentedMp4Writer.Callback() {
+		@Override
+		public void onClosed(final String path) {
+			if (DEBUG) Log.v(TAG, "onClosed:" + path);
+			if (mListener != null) {
+				try {
+					mListener.onSegmentFinished(path);
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	};
+}
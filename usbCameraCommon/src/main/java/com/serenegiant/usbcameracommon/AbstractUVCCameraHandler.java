@@ -46,8 +46,12 @@ import com.serenegiant.encoder.MediaMuxerWrapper;
 import com.serenegiant.encoder.MediaSurfaceEncoder;
 import com.serenegiant.encoder.MediaVideoBufferEncoder;
 import com.serenegiant.encoder.MediaVideoEncoder;
+import com.serenegiant.encoder.SegmentedMuxerWrapper;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.ITimestampedFrameCallback;
+import com.serenegiant.usb.StillCaptureFuture;
 import com.serenegiant.usb.USBMonitor;
+import com.serenegiant.usb.UVCBandwidthAllocator;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.widget.CameraViewInterface;
 
@@ -61,8 +65,12 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 abstract class AbstractUVCCameraHandler extends Handler {
 	private static final boolean DEBUG = true;	// TODO set false on release
@@ -78,6 +86,23 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		public void onError(final Exception e);
 	}
 
+	/**
+	 * callback interface of #captureBurst, called from a private worker thread
+	 */
+	public interface BurstCallback {
+		/**
+		 * called for each still in the order of frames
+		 * @param index [0, number of stills)
+		 * @param still result of the still, its file is already written if #isDone and no error
+		 */
+		public void onStill(final int index, final StillCaptureFuture still);
+		/**
+		 * @param captured number of stills that were written
+		 * @param elapsedNs time from the request until the last still was written
+		 */
+		public void onFinished(final int captured, final long elapsedNs);
+	}
+
 	private static final int MSG_OPEN = 0;
 	private static final int MSG_CLOSE = 1;
 	private static final int MSG_PREVIEW_START = 2;
@@ -86,7 +111,9 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	private static final int MSG_CAPTURE_START = 5;
 	private static final int MSG_CAPTURE_STOP = 6;
 	private static final int MSG_MEDIA_UPDATE = 7;
+	private static final int MSG_PREVIEW_REALLOCATE = 8;
 	private static final int MSG_RELEASE = 9;
+	private static final int MSG_CAPTURE_BURST = 10;
 
 	private final WeakReference<AbstractUVCCameraHandler.CameraThread> mWeakThread;
 	private volatile boolean mReleased;
@@ -196,16 +223,54 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		sendEmptyMessage(MSG_CAPTURE_STILL);
 	}
 
+	/**
+	 * capture still image into the path,
+	 * full size JPEG is encoded from the raw frame only when the path ends with ".jpg" or ".jpeg",
+	 * otherwise PNG of the preview is written as before
+	 * @param path if empty, JPEG file is created in DCIM
+	 */
 	protected void captureStill(final String path) {
 		checkReleased();
 		sendMessage(obtainMessage(MSG_CAPTURE_STILL, path));
 	}
 
+	/**
+	 * capture consecutive full size stills while previewing
+	 * @param count [1, UVCCamera.MAX_STILL_BURST]
+	 * @param callback may be null
+	 */
+	protected void captureBurst(final int count, final BurstCallback callback) {
+		checkReleased();
+		if ((count <= 0) || (count > UVCCamera.MAX_STILL_BURST)) {
+			throw new IllegalArgumentException("count should be [1, " + UVCCamera.MAX_STILL_BURST + "]");
+		}
+		sendMessage(obtainMessage(MSG_CAPTURE_BURST, count, 0, callback));
+	}
+
 	public void startRecording() {
 		checkReleased();
 		sendEmptyMessage(MSG_CAPTURE_START);
 	}
 
+	/**
+	 * start recording into fragmented MP4 segments of segmentDurationSec each,
+	 * encoders keep running over segments. each finished segment is added to MediaStore.
+	 * the native encoder(encoderType=3) does not support segments.
+	 * @param segmentDurationSec duration of each segment, segments end at key frame after this duration
+	 * @throws UnsupportedOperationException encoderType is 3
+	 */
+	public void startSegmentedRecording(final int segmentDurationSec) {
+		checkReleased();
+		if (segmentDurationSec <= 0) {
+			throw new IllegalArgumentException("segment duration should be positive");
+		}
+		final CameraThread thread = mWeakThread.get();
+		if ((thread != null) && (thread.mEncoderType == 3)) {
+			throw new UnsupportedOperationException("segmented recording is not supported with the native encoder");
+		}
+		sendMessage(obtainMessage(MSG_CAPTURE_START, segmentDurationSec, 0));
+	}
+
 	public void stopRecording() {
 		sendEmptyMessage(MSG_CAPTURE_STOP);
 	}
@@ -311,8 +376,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		case MSG_CAPTURE_STILL:
 			thread.handleCaptureStill((String)msg.obj);
 			break;
+		case MSG_CAPTURE_BURST:
+			thread.handleCaptureBurst(msg.arg1, (BurstCallback)msg.obj);
+			break;
 		case MSG_CAPTURE_START:
-			thread.handleStartRecording();
+			thread.handleStartRecording(msg.arg1);
 			break;
 		case MSG_CAPTURE_STOP:
 			thread.handleStopRecording();
@@ -320,6 +388,9 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		case MSG_MEDIA_UPDATE:
 			thread.handleUpdateMedia((String)msg.obj);
 			break;
+		case MSG_PREVIEW_REALLOCATE:
+			thread.handleReallocate((Float)msg.obj);
+			break;
 		case MSG_RELEASE:
 			thread.handleRelease();
 			break;
@@ -330,6 +401,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
 	static final class CameraThread extends Thread {
 		private static final String TAG_THREAD = "CameraThread";
+		private static final long REALLOCATE_TIMEOUT_MS = 1000;
+		// parameters for recording with UVCCamera#startEncoder, same bitrate as MediaVideoBufferEncoder
+		private static final int NATIVE_ENCODER_FRAME_RATE = 30;
+		private static final float NATIVE_ENCODER_BPP = 0.25f;
+		private static final int STILL_JPEG_QUALITY = 90;
 		private final Object mSync = new Object();
 		private final Class<? extends AbstractUVCCameraHandler> mHandlerClass;
 		private final WeakReference<Activity> mWeakParent;
@@ -338,6 +414,13 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		private final Set<CameraCallback> mCallbacks = new CopyOnWriteArraySet<CameraCallback>();
 		private int mWidth, mHeight, mPreviewMode;
 		private float mBandwidthFactor;
+		/**
+		 * frame format/surfaces that preview actually uses,
+		 * kept to restart preview when UVCBandwidthAllocator re-balances the bus
+		 */
+		private int mCurrentPreviewMode;
+		private Object mPreviewSurface;
+		private Surface mCaptureSurface;
 		private boolean mIsPreviewing;
 		private boolean mIsRecording;
 		/**
@@ -355,17 +438,22 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		private MediaMuxerWrapper mMuxer;
 		private MediaVideoBufferEncoder mVideoEncoder;
+		/**
+		 * output file of UVCCamera#startEncoder, null if not recording with it
+		 */
+		private String mNativeEncoderPath;
 
 		/**
 		 *
 		 * @param clazz Class extends AbstractUVCCameraHandler
 		 * @param parent parent Activity
 		 * @param cameraView for still capturing
-		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+		 * 3: use native MediaCodec of UVCCamera#startEncoder(API>=21, video only)
 		 * @param width
 		 * @param height
 		 * @param format either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
-		 * @param bandwidthFactor
+		 * @param bandwidthFactor UVCCamera.AUTO_BANDWIDTH to share the bus with other cameras by UVCBandwidthAllocator
 		 */
 		CameraThread(final Class<? extends AbstractUVCCameraHandler> clazz,
 			final Activity parent, final CameraViewInterface cameraView,
@@ -428,7 +516,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
 		public boolean isRecording() {
 			synchronized (mSync) {
-				return (mUVCCamera != null) && (mMuxer != null);
+				return (mUVCCamera != null) && ((mMuxer != null) || (mNativeEncoderPath != null));
 			}
 		}
 
@@ -462,6 +550,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 			if (camera != null) {
 				camera.stopPreview();
+				releaseBandwidth(camera);
 				camera.destroy();
 				callOnClose();
 			}
@@ -471,23 +560,24 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartPreview:");
 			if ((mUVCCamera == null) || mIsPreviewing) return;
 			try {
-				mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, mPreviewMode, mBandwidthFactor);
+				setPreviewSize(mPreviewMode);
 			} catch (final IllegalArgumentException e) {
 				try {
 					// fallback to YUV mode
-					mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, UVCCamera.DEFAULT_PREVIEW_MODE, mBandwidthFactor);
-				} catch (final IllegalArgumentException e1) {
+					setPreviewSize(UVCCamera.DEFAULT_PREVIEW_MODE);
+				} catch (final RuntimeException e1) {
+					releaseBandwidth(mUVCCamera);
 					callOnError(e1);
 					return;
 				}
+			} catch (final IllegalStateException e) {
+				// no bandwidth left on the bus
+				releaseBandwidth(mUVCCamera);
+				callOnError(e);
+				return;
 			}
-			if (surface instanceof SurfaceHolder) {
-				mUVCCamera.setPreviewDisplay((SurfaceHolder)surface);
-			} if (surface instanceof Surface) {
-				mUVCCamera.setPreviewDisplay((Surface)surface);
-			} else {
-				mUVCCamera.setPreviewTexture((SurfaceTexture)surface);
-			}
+			mPreviewSurface = surface;
+			setPreviewDisplay(surface);
 			mUVCCamera.startPreview();
 			mUVCCamera.updateCameraParams();
 			synchronized (mSync) {
@@ -501,7 +591,9 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (mIsPreviewing) {
 				if (mUVCCamera != null) {
 					mUVCCamera.stopPreview();
+					releaseBandwidth(mUVCCamera);
 				}
+				mPreviewSurface = null;
 				synchronized (mSync) {
 					mIsPreviewing = false;
 					mSync.notifyAll();
@@ -511,12 +603,114 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopPreview:finished");
 		}
 
+		/**
+		 * restart preview with the bandwidthFactor re-balanced by UVCBandwidthAllocator
+		 * while keeping the preview/capture surfaces and the frame callback for recording
+		 * @param bandwidthFactor
+		 */
+		public void handleReallocate(final float bandwidthFactor) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleReallocate:bandwidthFactor=" + bandwidthFactor);
+			try {
+				if ((mUVCCamera == null) || !mIsPreviewing) return;
+				mUVCCamera.stopPreview();
+				try {
+					mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, mCurrentPreviewMode, bandwidthFactor);
+				} catch (final IllegalArgumentException e) {
+					releaseBandwidth(mUVCCamera);
+					mPreviewSurface = null;
+					synchronized (mSync) {
+						mIsPreviewing = false;
+					}
+					callOnError(e);
+					callOnStopPreview();
+					return;
+				}
+				setPreviewDisplay(mPreviewSurface);
+				mUVCCamera.startPreview();
+				if (mVideoEncoder != null) {
+					mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
+				}
+				if (mCaptureSurface != null) {
+					mUVCCamera.startCapture(mCaptureSurface);
+				}
+			} finally {
+				synchronized (mSync) {
+					mSync.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * @param mode either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+		 * @throws IllegalArgumentException the camera does not support the size/format
+		 * @throws IllegalStateException no bandwidth left on the bus
+		 */
+		private void setPreviewSize(final int mode) {
+			float bandwidthFactor = mBandwidthFactor;
+			if (bandwidthFactor == UVCCamera.AUTO_BANDWIDTH) {
+				bandwidthFactor = UVCBandwidthAllocator.getInstance().allocate(
+					mUVCCamera, mWidth, mHeight, 1, 31, mode, mOnReallocateListener);
+			}
+			mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, mode, bandwidthFactor);
+			mCurrentPreviewMode = mode;
+		}
+
+		private void setPreviewDisplay(final Object surface) {
+			if (surface instanceof SurfaceHolder) {
+				mUVCCamera.setPreviewDisplay((SurfaceHolder)surface);
+			} else if (surface instanceof Surface) {
+				mUVCCamera.setPreviewDisplay((Surface)surface);
+			} else {
+				mUVCCamera.setPreviewTexture((SurfaceTexture)surface);
+			}
+		}
+
+		private void releaseBandwidth(final UVCCamera camera) {
+			if (mBandwidthFactor == UVCCamera.AUTO_BANDWIDTH) {
+				UVCBandwidthAllocator.getInstance().release(camera);
+			}
+		}
+
+		/**
+		 * called on the camera thread of another camera that joined/left the same bus,
+		 * wait until preview restarts so that the bandwidth is released before the other camera starts
+		 */
+		private final UVCBandwidthAllocator.OnReallocateListener mOnReallocateListener
+			= new UVCBandwidthAllocator.OnReallocateListener() {
+
+			@Override
+			public void onReallocate(final UVCCamera camera, final float bandwidthFactor) {
+				final AbstractUVCCameraHandler handler = mHandler;
+				if ((handler == null) || handler.mReleased) return;
+				if (Thread.currentThread().getId() == getId()) {
+					handleReallocate(bandwidthFactor);
+				} else {
+					synchronized (mSync) {
+						handler.sendMessage(handler.obtainMessage(MSG_PREVIEW_REALLOCATE, bandwidthFactor));
+						try {
+							// limit the wait in case the camera thread is waiting for this thread
+							mSync.wait(REALLOCATE_TIMEOUT_MS);
+						} catch (final InterruptedException e) {
+						}
+					}
+				}
+			}
+		};
+
 		public void handleCaptureStill(final String path) {
 			if (DEBUG) Log.v(TAG_THREAD, "handleCaptureStill:");
 			final Activity parent = mWeakParent.get();
 			if (parent == null) return;
 			mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
 			try {
+				if ((mUVCCamera != null) && mIsPreviewing && isJpegPath(path)) {
+					// full size still from the raw frame, encoded on native worker thread
+					final File outputFile = TextUtils.isEmpty(path)
+						? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, ".jpg")
+						: new File(path);
+					waitStill(mUVCCamera.captureStill(outputFile.getPath(), STILL_JPEG_QUALITY));
+					return;
+				}
 				final Bitmap bitmap = mWeakCameraView.get().captureStillImage();
 				// get buffered output stream for saving a captured still image as a file on external storage.
 				// the file name is came from current time.
@@ -540,11 +734,109 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
-		public void handleStartRecording() {
-			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
+		/**
+		 * native still capture writes JPEG, other paths(e.g. ".png") keep the format of their extension
+		 */
+		private boolean isJpegPath(final String path) {
+			if (TextUtils.isEmpty(path)) return true;
+			final String lower = path.toLowerCase(Locale.US);
+			return lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+		}
+
+		/**
+		 * wait for the still on its own thread so that camera thread keeps handling messages
+		 */
+		private void waitStill(final Future<String> future) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, future.get()));
+					} catch (final ExecutionException e) {
+						callOnError(e);
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+			}, "StillCapture").start();
+		}
+
+		public void handleCaptureBurst(final int count, final BurstCallback callback) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleCaptureBurst:count=" + count);
+			if ((mUVCCamera == null) || !mIsPreviewing) {
+				callOnError(new IllegalStateException("burst capture needs preview"));
+				return;
+			}
+			mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound only once for the burst
+			try {
+				final File first = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, ".jpg");
+				final String base = first.getPath().substring(0, first.getPath().length() - 4);
+				final String[] paths = new String[count];
+				for (int i = 0; i < count; i++) {
+					paths[i] = base + "-" + (i + 1) + ".jpg";
+				}
+				final long startNs = System.nanoTime();
+				waitBurst(mUVCCamera.captureBurst(paths, STILL_JPEG_QUALITY), startNs, callback);
+			} catch (final Exception e) {
+				callOnError(e);
+			}
+		}
+
+		/**
+		 * wait for the stills of a burst in order on its own thread,
+		 * stills that failed are reported by #callOnError and the rest still continue
+		 */
+		private void waitBurst(final List<StillCaptureFuture> stills,
+			final long startNs, final BurstCallback callback) {
+
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final int n = stills.size();
+					int captured = 0;
+					for (int i = 0; i < n; i++) {
+						final StillCaptureFuture still = stills.get(i);
+						try {
+							mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, still.get()));
+							captured++;
+							if (DEBUG) Log.v(TAG_THREAD, String.format("burst %d/%d:wait=%dus,encode=%dus",
+								i + 1, n, still.getWaitNs() / 1000, still.getEncodeNs() / 1000));
+						} catch (final ExecutionException e) {
+							callOnError(e);
+						} catch (final InterruptedException e) {
+							return;
+						}
+						if (callback != null) {
+							callback.onStill(i, still);
+						}
+					}
+					final long elapsedNs = System.nanoTime() - startNs;
+					if (DEBUG) Log.v(TAG_THREAD, "burst finished:" + captured + "/" + n + "," + (elapsedNs / 1000000) + "ms");
+					if (callback != null) {
+						callback.onFinished(captured, elapsedNs);
+					}
+				}
+			}, "BurstCapture").start();
+		}
+
+		/**
+		 * @param segmentDurationSec 0 to record into a single file
+		 */
+		public void handleStartRecording(final int segmentDurationSec) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:segmentDurationSec=" + segmentDurationSec);
 			try {
-				if ((mUVCCamera == null) || (mMuxer != null)) return;
-				final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4");	// if you record audio only, ".m4a" is also OK.
+				if ((mUVCCamera == null) || (mMuxer != null) || (mNativeEncoderPath != null)) return;
+				if (mEncoderType == 3) {
+					if (segmentDurationSec > 0) {
+						Log.w(TAG_THREAD, "segmented recording is not supported with the native encoder");
+						return;
+					}
+					handleStartNativeRecording();
+					return;
+				}
+				final MediaMuxerWrapper muxer = segmentDurationSec > 0
+					? new SegmentedMuxerWrapper(".mp4", segmentDurationSec * 1000000L, mSegmentListener)
+					: new MediaMuxerWrapper(".mp4");	// if you record audio only, ".m4a" is also OK.
 				MediaVideoBufferEncoder videoEncoder = null;
 				switch (mEncoderType) {
 				case 1:	// for video capturing using MediaVideoEncoder
@@ -578,13 +870,53 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * record video only with the encoder on the native side,
+		 * frames never come to Java side while recording
+		 */
+		private void handleStartNativeRecording() throws IOException {
+			final int colorFormat = MediaVideoBufferEncoder.selectColorFormat();
+			if (colorFormat == 0) {
+				throw new IOException("no encoder is available");
+			}
+			final int width = getWidth();
+			final int height = getHeight();
+			final String path = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4").toString();
+			try {
+				mUVCCamera.startEncoder(path, width, height, NATIVE_ENCODER_FRAME_RATE,
+					(int)(NATIVE_ENCODER_BPP * NATIVE_ENCODER_FRAME_RATE * width * height), colorFormat);
+			} catch (final IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+			synchronized (mSync) {
+				mNativeEncoderPath = path;
+			}
+			mIsRecording = true;
+			callOnStartRecording();
+		}
+
 		public void handleStopRecording() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopRecording:mMuxer=" + mMuxer);
+			final String nativeEncoderPath;
+			synchronized (mSync) {
+				nativeEncoderPath = mNativeEncoderPath;
+				mNativeEncoderPath = null;
+			}
+			if (nativeEncoderPath != null) {
+				if (mUVCCamera != null) {
+					mUVCCamera.stopEncoder();
+				}
+				mIsRecording = false;
+				callOnStopRecording();
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, nativeEncoderPath));
+				return;
+			}
 			final MediaMuxerWrapper muxer;
 			synchronized (mSync) {
 				muxer = mMuxer;
 				mMuxer = null;
 				mVideoEncoder = null;
+				mCaptureSurface = null;
 				if (mUVCCamera != null) {
 					mUVCCamera.stopCapture();
 				}
@@ -602,16 +934,21 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
-		private final IFrameCallback mIFrameCallback = new IFrameCallback() {
+		private final IFrameCallback mIFrameCallback = new ITimestampedFrameCallback() {
 			@Override
 			public void onFrame(final ByteBuffer frame) {
+				// never called because #onFrame(ByteBuffer, long, long) is called instead
+			}
+
+			@Override
+			public void onFrame(final ByteBuffer frame, final long captureTimeNs, final long arrivalTimeNs) {
 				final MediaVideoBufferEncoder videoEncoder;
 				synchronized (mSync) {
 					videoEncoder = mVideoEncoder;
 				}
 				if (videoEncoder != null) {
 					videoEncoder.frameAvailableSoon();
-					videoEncoder.encode(frame);
+					videoEncoder.encode(frame, captureTimeNs);
 				}
 			}
 		};
@@ -648,6 +985,17 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (DEBUG) Log.v(TAG_THREAD, "handleRelease:finished");
 		}
 
+		/**
+		 * add each finished segment to MediaStore while recording continues
+		 */
+		private final SegmentedMuxerWrapper.SegmentListener mSegmentListener = new SegmentedMuxerWrapper.SegmentListener() {
+			@Override
+			public void onSegmentFinished(final String path) {
+				if (DEBUG) Log.v(TAG_THREAD, "onSegmentFinished:path=" + path);
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, path));
+			}
+		};
+
 		private final MediaEncoder.MediaEncoderListener mMediaEncoderListener = new MediaEncoder.MediaEncoderListener() {
 			@Override
 			public void onPrepared(final MediaEncoder encoder) {
@@ -662,7 +1010,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				if (encoder instanceof MediaSurfaceEncoder)
 				try {
 					mWeakCameraView.get().setVideoEncoder((MediaSurfaceEncoder)encoder);
-					mUVCCamera.startCapture(((MediaSurfaceEncoder)encoder).getInputSurface());
+					mCaptureSurface = ((MediaSurfaceEncoder)encoder).getInputSurface();
+					mUVCCamera.startCapture(mCaptureSurface);
 				} catch (final Exception e) {
 					Log.e(TAG, "onPrepared:", e);
 				}
@@ -678,6 +1027,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 					final Activity parent = mWeakParent.get();
 					mWeakCameraView.get().setVideoEncoder(null);
 					synchronized (mSync) {
+						mCaptureSurface = null;
 						if (mUVCCamera != null) {
 							mUVCCamera.stopCapture();
 						}
@@ -65,7 +65,8 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler, try MJPEG, default bandwidth
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+	 * 3: use native MediaCodec of UVCCamera#startEncoder(API>=21, video only)
 	 * @param width
 	 * @param height
 	 * @return
@@ -81,7 +82,8 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler, default bandwidth
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+	 * 3: use native MediaCodec of UVCCamera#startEncoder(API>=21, video only)
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)
@@ -98,7 +100,8 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+	 * 3: use native MediaCodec of UVCCamera#startEncoder(API>=21, video only)
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)
@@ -132,4 +135,9 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	public void captureStill(final String path) {
 		super.captureStill(path);
 	}
+
+	@Override
+	public void captureBurst(final int count, final BurstCallback callback) {
+		super.captureBurst(count, callback);
+	}
 }
@@ -99,7 +99,8 @@ public class UVCCameraHandlerMultiSurface extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandlerMultiSurface
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+	 * 3: use native MediaCodec of UVCCamera#startEncoder(API>=21, video only)
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)
@@ -162,6 +163,12 @@ public class UVCCameraHandlerMultiSurface extends AbstractUVCCameraHandler {
 		super.captureStill();
 	}
 
+	@Override
+	public void captureBurst(final int count, final BurstCallback callback) {
+		checkReleased();
+		super.captureBurst(count, callback);
+	}
+
 	@Override
 	public void captureStill(final String path) {
 		checkReleased();
@@ -0,0 +1,263 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * local unit test of moof/mdat that FragmentedMp4Writer writes,
+ * tracks are added without MediaFormat so that this runs on the host.
+ */
+public class FragmentedMp4WriterTest {
+	private static final int AUDIO_SAMPLE_RATE = 44100;
+	private static final int TRUN_FLAGS = 0x000701;
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+	private static byte[] bytes(final int... values) {
+		final byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (byte)values[i];
+		}
+		return result;
+	}
+
+	private static void writeVideo(final FragmentedMp4Writer writer, final int track,
+		final byte[] sample, final long ptsUs, final boolean isKeyFrame) {
+
+		// put the sample at non zero offset like output buffers of MediaCodec
+		final ByteBuffer buf = ByteBuffer.allocate(sample.length + 5);
+		buf.position(5);
+		buf.put(sample);
+		writer.writeSample(track, buf, 5, sample.length, ptsUs, isKeyFrame);
+	}
+
+	private static byte[] fragment(final FragmentedMp4Writer writer) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeFragment(out);
+		return out.toByteArray();
+	}
+
+	private static String type(final ByteBuffer buf, final int offset) {
+		return new String(new byte[] {
+			buf.get(offset + 4), buf.get(offset + 5), buf.get(offset + 6), buf.get(offset + 7) });
+	}
+
+	/**
+	 * @return mdat payload of the fragment that has single video track
+	 */
+	private static byte[] videoPayload(final byte[] sample) throws IOException {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer();
+		final int track = writer.addTrack(true, 0);
+		writeVideo(writer, track, sample, 0, true);
+		final ByteBuffer buf = ByteBuffer.wrap(fragment(writer));
+		final int moofBytes = buf.getInt(0);
+		assertEquals("mdat", type(buf, moofBytes));
+		final int mdatBytes = buf.getInt(moofBytes);
+		assertEquals(buf.capacity(), moofBytes + mdatBytes);
+		// sample size in trun is the size after conversion
+		assertEquals(mdatBytes - 8, buf.getInt(moofBytes - 8));
+		final byte[] result = new byte[mdatBytes - 8];
+		System.arraycopy(buf.array(), moofBytes + 8, result, 0, result.length);
+		return result;
+	}
+
+	@Test
+	public void annexBIsConvertedToLengthPrefixed() throws Exception {
+		// 4 bytes and 3 bytes start codes
+		assertArrayEquals(
+			bytes(0, 0, 0, 3, 0x67, 0xaa, 0xbb,  0, 0, 0, 2, 0x68, 0xcc,  0, 0, 0, 4, 0x65, 0x11, 0x22, 0x33),
+			videoPayload(bytes(0, 0, 0, 1, 0x67, 0xaa, 0xbb,  0, 0, 1, 0x68, 0xcc,  0, 0, 0, 1, 0x65, 0x11, 0x22, 0x33)));
+		// zero of 4 bytes start code is not a part of the previous NAL unit
+		assertArrayEquals(
+			bytes(0, 0, 0, 2, 0x65, 0xaa,  0, 0, 0, 2, 0x41, 0xbb),
+			videoPayload(bytes(0, 0, 0, 1, 0x65, 0xaa,  0, 0, 0, 1, 0x41, 0xbb)));
+		// sample without start code is a single NAL unit
+		assertArrayEquals(
+			bytes(0, 0, 0, 3, 0x41, 0x01, 0x02),
+			videoPayload(bytes(0x41, 0x01, 0x02)));
+	}
+
+	@Test
+	public void moofAndTrunSizes() throws Exception {
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer();
+		final int video = writer.addTrack(true, 0);
+		final int audio = writer.addTrack(false, AUDIO_SAMPLE_RATE);
+		final byte[][] videoSamples = {
+			bytes(0, 0, 0, 1, 0x65, 1, 2, 3),
+			bytes(0, 0, 0, 1, 0x41, 4),
+			bytes(0, 0, 0, 1, 0x41, 5, 6),
+		};
+		final long[] videoPts = { 0, 33333, 66666 };
+		final byte[][] audioSamples = { bytes(0x21, 0x10, 0x04), bytes(0x21, 0x11) };
+		final long[] audioPts = { 0, 23219 };
+		for (int i = 0; i < videoSamples.length; i++) {
+			writeVideo(writer, video, videoSamples[i], videoPts[i], i == 0);
+			if (i < audioSamples.length) {
+				writer.writeSample(audio, ByteBuffer.wrap(audioSamples[i]), 0, audioSamples[i].length, audioPts[i], false);
+			}
+		}
+		final ByteBuffer buf = ByteBuffer.wrap(fragment(writer));
+
+		// moof header + mfhd, traf + tfhd + tfdt + trun for each track
+		final int moofBytes = 24 + (64 + 12 * 3) + (64 + 12 * 2);
+		assertEquals(moofBytes, buf.getInt(0));
+		assertEquals("moof", type(buf, 0));
+		assertEquals("mfhd", type(buf, 8));
+		assertEquals(1, buf.getInt(20));		// sequence_number
+
+		final int[] videoSizes = { 4 + 4, 4 + 2, 4 + 3 };
+		final int[] videoDurations = { 2999, 3000, 2999 };
+		final int[] videoFlags = { SAMPLE_FLAGS_SYNC, SAMPLE_FLAGS_NON_SYNC, SAMPLE_FLAGS_NON_SYNC };
+		final int videoBytes = videoSizes[0] + videoSizes[1] + videoSizes[2];
+		int traf = 24;
+		traf = checkTraf(buf, traf, 1, 0, moofBytes + 8, videoSizes, videoDurations, videoFlags);
+		traf = checkTraf(buf, traf, 2, 0, moofBytes + 8 + videoBytes,
+			new int[] { 3, 2 }, new int[] { 1023, 1023 }, new int[] { SAMPLE_FLAGS_SYNC, SAMPLE_FLAGS_SYNC });
+		assertEquals(moofBytes, traf);
+
+		// mdat has samples of the tracks in the order of tracks
+		assertEquals("mdat", type(buf, moofBytes));
+		assertEquals(8 + videoBytes + 5, buf.getInt(moofBytes));
+		assertEquals(buf.capacity(), moofBytes + 8 + videoBytes + 5);
+		assertEquals(0x65, buf.get(moofBytes + 8 + 4));
+		assertEquals(0x21, buf.get(moofBytes + 8 + videoBytes));
+
+		// next fragment starts at pts of its first sample(never before the end of previous one)
+		// and single sample takes the duration of the last sample in previous one
+		writeVideo(writer, video, bytes(0, 0, 0, 1, 0x41, 7), 100000, false);
+		final ByteBuffer next = ByteBuffer.wrap(fragment(writer));
+		final int nextMoofBytes = 24 + (64 + 12);
+		assertEquals(nextMoofBytes, next.getInt(0));
+		assertEquals(2, next.getInt(20));
+		checkTraf(next, 24, 1, 9000, nextMoofBytes + 8,
+			new int[] { 4 + 2 }, new int[] { 2999 }, new int[] { SAMPLE_FLAGS_NON_SYNC });
+
+		// nothing is written without samples
+		assertEquals(0, fragment(writer).length);
+	}
+
+	private static byte[] readFile(final File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final byte[] result = new byte[(int)file.length()];
+			int n = 0;
+			while (n < result.length) {
+				final int bytes = in.read(result, n, result.length - n);
+				if (bytes < 0) break;
+				n += bytes;
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void filesAreClosedOnWriterThread() throws Exception {
+		final List<String> closed = new ArrayList<String>();
+		final FragmentedMp4Writer writer = new FragmentedMp4Writer(new FragmentedMp4Writer.Callback() {
+			@Override
+			public void onClosed(final String path) {
+				synchronized (closed) {
+					closed.add(path);
+					closed.notifyAll();
+				}
+			}
+		});
+		final File first = File.createTempFile("fmp4", ".mp4");
+		final File second = File.createTempFile("fmp4", ".mp4");
+		try {
+			writer.open(first.getPath());
+			assertTrue(writer.isOpened());
+			writer.close();
+			assertFalse(writer.isOpened());
+			synchronized (closed) {
+				final long timeout = System.currentTimeMillis() + 5000;
+				while (closed.isEmpty() && (System.currentTimeMillis() < timeout)) {
+					closed.wait(100);
+				}
+				assertEquals(1, closed.size());
+				assertEquals(first.getPath(), closed.get(0));
+			}
+			final byte[] header = readFile(first);
+			assertEquals("ftyp", type(ByteBuffer.wrap(header), 0));
+
+			// release writes pending data before returning but does not notify the file
+			writer.open(second.getPath());
+			writer.release();
+			assertArrayEquals(header, readFile(second));
+			synchronized (closed) {
+				assertEquals(1, closed.size());
+			}
+		} finally {
+			first.delete();
+			second.delete();
+		}
+	}
+
+	/**
+	 * @return offset of the next box
+	 */
+	private static int checkTraf(final ByteBuffer buf, final int offset, final int trackId,
+		final long baseTime, final int dataOffset,
+		final int[] sizes, final int[] durations, final int[] flags) {
+
+		final int n = sizes.length;
+		assertEquals("traf", type(buf, offset));
+		assertEquals(64 + 12 * n, buf.getInt(offset));
+		final int tfhd = offset + 8;
+		assertEquals("tfhd", type(buf, tfhd));
+		assertEquals(16, buf.getInt(tfhd));
+		assertEquals(trackId, buf.getInt(tfhd + 12));
+		final int tfdt = tfhd + 16;
+		assertEquals("tfdt", type(buf, tfdt));
+		assertEquals(20, buf.getInt(tfdt));
+		assertEquals(0x01000000, buf.getInt(tfdt + 8));	// version 1
+		assertEquals(baseTime, buf.getLong(tfdt + 12));
+		final int trun = tfdt + 20;
+		assertEquals("trun", type(buf, trun));
+		assertEquals(20 + 12 * n, buf.getInt(trun));
+		assertEquals(TRUN_FLAGS, buf.getInt(trun + 8));
+		assertEquals(n, buf.getInt(trun + 12));
+		assertEquals(dataOffset, buf.getInt(trun + 16));
+		for (int i = 0; i < n; i++) {
+			final int entry = trun + 20 + 12 * i;
+			assertEquals("duration " + i, durations[i], buf.getInt(entry));
+			assertEquals("size " + i, sizes[i], buf.getInt(entry + 4));
+			assertEquals("flags " + i, flags[i], buf.getInt(entry + 8));
+		}
+		return trun + 20 + 12 * n;
+	}
+}
@@ -26,6 +26,8 @@ package com.serenegiant.service;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.Context;
 import android.media.AudioManager;
@@ -35,6 +37,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.text.TextUtils;
@@ -48,6 +51,7 @@ import com.serenegiant.encoder.MediaSurfaceEncoder;
 import com.serenegiant.glutils.RenderHolderCallback;
 import com.serenegiant.glutils.RendererHolder;
 import com.serenegiant.usb.USBMonitor.UsbControlBlock;
+import com.serenegiant.usb.SharedMemoryPipeline;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.usbcameratest4.R;
@@ -58,6 +62,7 @@ public final class CameraServer extends Handler {
 
 	private static final int DEFAULT_WIDTH = 640;
 	private static final int DEFAULT_HEIGHT = 480;
+	private static final int SHARED_FRAME_SLOTS = 4;
 	
 	private int mFrameWidth = DEFAULT_WIDTH, mFrameHeight = DEFAULT_HEIGHT;
 	
@@ -207,6 +212,35 @@ public final class CameraServer extends Handler {
 		}
 	}
 
+	/**
+	 * share raw frames with other processes through shared memory,
+	 * the first subscriber creates the shared memory and the last one releases it.
+	 * the shared memory is closed when the frame size changed because its slot size is fixed,
+	 * subscribers should subscribe again then
+	 * @param token binder of the subscriber, the subscription is released when the subscriber died
+	 * @return file descriptor of the shared memory
+	 * @throws IOException
+	 */
+	public ParcelFileDescriptor subscribeFrames(final IBinder token) throws IOException {
+		if (DEBUG) Log.d(TAG, "subscribeFrames:");
+		if (token == null) {
+			throw new IllegalArgumentException("token should not be null");
+		}
+		final CameraThread thread = mWeakThread.get();
+		if (thread == null) {
+			throw new IllegalStateException("already released");
+		}
+		return thread.handleSubscribeFrames(mFrameWidth, mFrameHeight, token);
+	}
+
+	public void unsubscribeFrames(final IBinder token) {
+		if (DEBUG) Log.d(TAG, "unsubscribeFrames:");
+		final CameraThread thread = mWeakThread.get();
+		if ((thread != null) && (token != null)) {
+			thread.handleUnsubscribeFrames(token);
+		}
+	}
+
 //********************************************************************************
 	private void processOnCameraStart() {
 		if (DEBUG) Log.d(TAG, "processOnCameraStart:");
@@ -336,6 +370,13 @@ public final class CameraServer extends Handler {
 		 */
 		private MediaMuxerWrapper mMuxer;
 		private MediaSurfaceEncoder mVideoEncoder;
+		/**
+		 * for sharing raw frames with other processes
+		 */
+		private SharedMemoryPipeline mSharedFrames;
+		private int mSharedFrameBytes;
+		private final Map<IBinder, IBinder.DeathRecipient> mSharedFrameSubscribers
+			= new HashMap<IBinder, IBinder.DeathRecipient>();
 
 		private CameraThread(final Context context, final UsbControlBlock ctrlBlock) {
 			super("CameraThread");
@@ -419,8 +460,12 @@ public final class CameraServer extends Handler {
 //				mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_YUV);
 				mFrameWidth = width;
 				mFrameHeight = height;
+				checkSharedFrameSize();
 				mUVCCamera.setPreviewDisplay(surface);
 				mUVCCamera.startPreview();
+				if (mSharedFrames != null) {
+					mUVCCamera.setPipeline(mSharedFrames);
+				}
 			}
 		}
 
@@ -453,6 +498,7 @@ public final class CameraServer extends Handler {
 						if (mUVCCamera == null) return;
 						mFrameWidth = width;
 						mFrameHeight = height;
+						checkSharedFrameSize();
 						mUVCCamera.setPreviewDisplay(surface);
 						mUVCCamera.startPreview();
 					}
@@ -516,9 +562,87 @@ public final class CameraServer extends Handler {
 			}
 		}
 
+		public ParcelFileDescriptor handleSubscribeFrames(final int width, final int height, final IBinder token) throws IOException {
+			if (DEBUG) Log.d(TAG_THREAD, "handleSubscribeFrames:");
+			synchronized (mSync) {
+				if (!mSharedFrameSubscribers.containsKey(token)) {
+					final IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+						@Override
+						public void binderDied() {
+							Log.w(TAG_THREAD, "subscriber died");
+							handleUnsubscribeFrames(token);
+						}
+					};
+					try {
+						token.linkToDeath(recipient, 0);
+					} catch (final RemoteException e) {
+						// the subscriber already died
+						throw new IOException("subscriber is not alive");
+					}
+					mSharedFrameSubscribers.put(token, recipient);
+				}
+				if (mSharedFrames == null) {
+					// YUYV is the largest format that UVC camera sends, MJPEG frames are smaller
+					// use the size of running preview if exists
+					mSharedFrameBytes = (mUVCCamera != null) && (mFrameWidth > 0) && (mFrameHeight > 0)
+						? mFrameWidth * mFrameHeight * 2 : width * height * 2;
+					mSharedFrames = new SharedMemoryPipeline(SHARED_FRAME_SLOTS, mSharedFrameBytes);
+					mSharedFrames.start();
+					if (mUVCCamera != null) {
+						mUVCCamera.setPipeline(mSharedFrames);
+					}
+				}
+				return mSharedFrames.getFileDescriptor();
+			}
+		}
+
+		public void handleUnsubscribeFrames(final IBinder token) {
+			if (DEBUG) Log.d(TAG_THREAD, "handleUnsubscribeFrames:");
+			synchronized (mSync) {
+				final IBinder.DeathRecipient recipient = mSharedFrameSubscribers.remove(token);
+				if (recipient != null) {
+					token.unlinkToDeath(recipient, 0);
+					if (mSharedFrameSubscribers.isEmpty()) {
+						releaseSharedFrames();
+					}
+				}
+			}
+		}
+
+		/**
+		 * slot size of the shared memory is fixed and larger frames are dropped,
+		 * so close the shared memory when the frame size changed.
+		 * subscribers notice it with SharedFrameReader#isClosed and subscribe again with the new size
+		 */
+		private void checkSharedFrameSize() {
+			synchronized (mSync) {
+				if ((mSharedFrames != null) && (mFrameWidth * mFrameHeight * 2 != mSharedFrameBytes)) {
+					Log.i(TAG_THREAD, "frame size changed, close shared frames");
+					releaseSharedFrames();
+				}
+			}
+		}
+
+		private void releaseSharedFrames() {
+			synchronized (mSync) {
+				if (mSharedFrames != null) {
+					if (mUVCCamera != null) {
+						mUVCCamera.setPipeline(null);
+					}
+					mSharedFrames.release();
+					mSharedFrames = null;
+				}
+				for (final Map.Entry<IBinder, IBinder.DeathRecipient> entry: mSharedFrameSubscribers.entrySet()) {
+					entry.getKey().unlinkToDeath(entry.getValue(), 0);
+				}
+				mSharedFrameSubscribers.clear();
+			}
+		}
+
 		public void handleRelease() {
 			if (DEBUG) Log.d(TAG_THREAD, "handleRelease:");
 			handleClose();
+			releaseSharedFrames();
 			if (mCtrlBlock != null) {
 				mCtrlBlock.close();
 				mCtrlBlock = null;
@@ -23,12 +23,15 @@
 
 package com.serenegiant.service;
 
+import java.io.IOException;
+
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.hardware.usb.UsbDevice;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.SparseArray;
@@ -232,6 +235,26 @@ public class UVCService extends BaseService {
 		}
 	}
 
+	/**
+	 * helper for IUVCService/IUVCSlaveService#subscribeFrames
+	 * @param serviceId
+	 * @param token binder of the subscriber to release the subscription when the subscriber died
+	 * @return file descriptor of the shared memory that holds raw frames
+	 * @throws IllegalArgumentException invalid serviceId
+	 */
+	private static ParcelFileDescriptor subscribeFrames(final int serviceId, final IBinder token) {
+		final CameraServer server = getCameraServer(serviceId);
+		if (server == null) {
+			throw new IllegalArgumentException("invalid serviceId");
+		}
+		try {
+			return server.subscribeFrames(token);
+		} catch (final IOException e) {
+			Log.e(TAG, "subscribeFrames:", e);
+			return null;
+		}
+	}
+
 	/**
 	 * @return true if there are no camera connection
 	 */
@@ -414,6 +437,21 @@ public class UVCService extends BaseService {
 			}
 		}
 
+		@Override
+		public ParcelFileDescriptor subscribeFrames(final int serviceId, final IBinder token) throws RemoteException {
+			if (DEBUG) Log.d(TAG, "mBasicBinder#subscribeFrames:");
+			return UVCService.subscribeFrames(serviceId, token);
+		}
+
+		@Override
+		public void unsubscribeFrames(final int serviceId, final IBinder token) throws RemoteException {
+			if (DEBUG) Log.d(TAG, "mBasicBinder#unsubscribeFrames:");
+			final CameraServer server = getCameraServer(serviceId);
+			if (server != null) {
+				server.unsubscribeFrames(token);
+			}
+		}
+
     };
 
 //********************************************************************************
@@ -450,6 +488,23 @@ public class UVCService extends BaseService {
 				Log.e(TAG, "failed to get CameraServer:serviceID=" + serviceID);
 			}
 		}
+
+		@Override
+		public ParcelFileDescriptor subscribeFrames(final int serviceID, final IBinder token) throws RemoteException {
+			if (DEBUG) Log.d(TAG, "mSlaveBinder#subscribeFrames:");
+			return UVCService.subscribeFrames(serviceID, token);
+		}
+
+		@Override
+		public void unsubscribeFrames(final int serviceID, final IBinder token) throws RemoteException {
+			if (DEBUG) Log.d(TAG, "mSlaveBinder#unsubscribeFrames:");
+			final CameraServer server = getCameraServer(serviceID);
+			if (server != null) {
+				server.unsubscribeFrames(token);
+			} else {
+				Log.e(TAG, "failed to get CameraServer:serviceID=" + serviceID);
+			}
+		}
 	};
 
 }
@@ -23,23 +23,29 @@
 
 package com.serenegiant.serviceclient;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.hardware.usb.UsbDevice;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.service.IUVCService;
 import com.serenegiant.service.IUVCServiceCallback;
+import com.serenegiant.usb.SharedFrameReader;
 
 public class CameraClient implements ICameraClient {
 	private static final boolean DEBUG = true;
@@ -151,6 +157,23 @@ public class CameraClient implements ICameraClient {
 		}
 	}
 
+	@Override
+	public SharedFrameReader subscribeFrames() {
+		final CameraHandler handler = mWeakHandler.get();
+		return handler != null ? handler.subscribeFrames() : null;
+	}
+
+	@Override
+	public void unsubscribeFrames(final SharedFrameReader reader) {
+		if (reader != null) {
+			reader.release();
+		}
+		final CameraHandler handler = mWeakHandler.get();
+		if (handler != null) {
+			handler.unsubscribeFrames(reader);
+		}
+	}
+
 	protected boolean doBindService() {
 		if (DEBUG) Log.v(TAG, "doBindService:");
 		synchronized (mServiceSync) {
@@ -243,6 +266,11 @@ public class CameraClient implements ICameraClient {
 		}
 
 		private CameraTask mCameraTask;
+		/**
+		 * token of each subscription, the service releases the subscription with it
+		 * when this process died without unsubscribing
+		 */
+		private final Map<SharedFrameReader, IBinder> mSharedFrameTokens = new HashMap<SharedFrameReader, IBinder>();
 		private CameraHandler(final CameraTask cameraTask) {
 			mCameraTask = cameraTask;
 		}
@@ -258,6 +286,48 @@ public class CameraClient implements ICameraClient {
 			return false;
 		}
 
+		public SharedFrameReader subscribeFrames() {
+			final IUVCService service = mCameraTask.mParent.getService();
+			if (service != null)
+			try {
+				final IBinder token = new Binder();
+				final ParcelFileDescriptor pfd = service.subscribeFrames(mCameraTask.mServiceId, token);
+				if (pfd != null) {
+					try {
+						// the shared memory is still mapped after closing the file descriptor
+						final SharedFrameReader reader = new SharedFrameReader(pfd);
+						synchronized (mSharedFrameTokens) {
+							mSharedFrameTokens.put(reader, token);
+						}
+						return reader;
+					} finally {
+						try {
+							pfd.close();
+						} catch (final IOException e) {
+							// ignore
+						}
+					}
+				}
+			} catch (final RemoteException e) {
+				if (DEBUG) Log.e(TAG, "subscribeFrames:", e);
+			}
+			return null;
+		}
+
+		public void unsubscribeFrames(final SharedFrameReader reader) {
+			final IBinder token;
+			synchronized (mSharedFrameTokens) {
+				token = mSharedFrameTokens.remove(reader);
+			}
+			final IUVCService service = mCameraTask.mParent.getService();
+			if ((service != null) && (token != null))
+			try {
+				service.unsubscribeFrames(mCameraTask.mServiceId, token);
+			} catch (final RemoteException e) {
+				if (DEBUG) Log.e(TAG, "unsubscribeFrames:", e);
+			}
+		}
+
 		@Override
 		public void handleMessage(final Message msg) {
 			switch (msg.what) {
@@ -26,6 +26,8 @@ package com.serenegiant.serviceclient;
 import android.hardware.usb.UsbDevice;
 import android.view.Surface;
 
+import com.serenegiant.usb.SharedFrameReader;
+
 public interface ICameraClient {
 	public void select(UsbDevice device);
 	public void release();
@@ -39,4 +41,12 @@ public interface ICameraClient {
 	public void stopRecording();
 	public boolean isRecording();
 	public void captureStill(String path);
+	/**
+	 * you should not call this from UI thread, this method blocks until the service returns.
+	 * when SharedFrameReader#isClosed becomes true(e.g. the frame size changed),
+	 * call #unsubscribeFrames with it and subscribe again
+	 * @return reader of raw frames in shared memory, null if failed
+	 */
+	public SharedFrameReader subscribeFrames();
+	public void unsubscribeFrames(SharedFrameReader reader);
 }
\ No newline at end of file